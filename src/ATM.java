@@ -1,124 +1,1030 @@
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.TreeMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 public class ATM {
-    private Map<Integer, Integer> banknotes = new TreeMap<Integer, Integer>();
-    private int minimumAmount;
+    // currency of ATMs created with notes of a single currency,
+    // and of cards created without one
+    public static final String DEFAULT_CURRENCY = "HRK";
+    
+    // holds how many instances of the class were initiated
+    // used for the number of the ATM
+    private static AtomicInteger counter = new AtomicInteger();
+    private int number;
+    
+    // bill values in descending order (200, 100, 50, etc.)
+    // and how many notes of each bill are left, by the same index;
+    // counts are updated with compare-and-set, so one ATM
+    // can serve any number of sessions at the same time.
+    // with several currencies, the bills of each currency are next
+    // to each other (see CassetteSet), one currency after another
+    private int[] bills;
+    private AtomicIntegerArray banknotes;
+    
+    // cassettes of each currency, found by its code in one lookup,
+    // so a withdrawal only ever looks at the bills of its own currency
+    private Map<String, CassetteSet> currencies = new LinkedHashMap<String, CassetteSet>();
+    private CassetteSet              defaultCassettes;
+    
+    // notes which were reserved for a withdrawal,
+    // but have not been handed out yet (see reserveCash)
+    private AtomicIntegerArray reserved;
+    
+    // finds the combination of notes for each withdrawal;
+    // by default large bills are used first, same as before.
+    // planners keep a scratch table, so every thread gets its own
+    private volatile CashPlanner.Objective objective = CashPlanner.Objective.PRESERVE_SMALL_BILLS;
+    private ThreadLocal<CashPlanner> planners        = ThreadLocal.withInitial(() -> new CashPlanner(this.objective));
+    private ThreadLocal<int[]>       snapshots       = ThreadLocal.withInitial(() -> new int[this.bills.length]);
+    private ThreadLocal<int[]>       results         = ThreadLocal.withInitial(() -> new int[this.bills.length]);
+    
+    // where withdrawals are recorded and daily totals are kept;
+    // without one, daily limits are not checked.
+    // with a group committer, records are written to the journal in batches
+    private TransactionJournal journal;
+    private GroupCommitter     committer;
+    
+    // prints the receipts on its own thread; without one,
+    // the balance is only shown on the screen
+    private ReceiptSpooler receipts;
+    
+    // how fast each cassette is being emptied (see forecastSecondsToEmpty)
+    private CassetteForecaster forecaster;
+    
+    // latencies and outcomes of the ATM's operations (see Metrics)
+    private static final Metrics.Timer    PLAN_LATENCY     = Metrics.get().timer("atm_plan");
+    private static final Metrics.Timer    WITHDRAW_LATENCY = Metrics.get().timer("atm_withdraw");
+    private static final Metrics.Counter  PLAN_CACHE_HITS  = Metrics.get().counter("atm_plan_cache_hits");
+    private static final Metrics.Timer    BATCH_LATENCY    = Metrics.get().timer("atm_batch");
+    private static final Metrics.Outcomes BATCH_PLANS      = Metrics.get().outcomes("atm_batch_plan");
+    private static final Metrics.Outcomes AMOUNT_CHECKS    = Metrics.get().outcomes("atm_amount_validity");
+    private static final Metrics.Outcomes CASH_PLANS       = Metrics.get().outcomes("atm_prepare_cash");
+    private static final Metrics.Outcomes RESERVATIONS     = Metrics.get().outcomes("atm_reserve_cash");
+    private static final Metrics.Outcomes WITHDRAWALS      = Metrics.get().outcomes("atm_withdraw");
+    private static final Metrics.Outcomes PRINTER_CHECKS   = Metrics.get().outcomes("atm_printer");
     
     ///////////////////////////////////////////////////////
-    // Constructor: set amounts for all bills, set minimum amount
+    // Constructor: set amounts for all bills, all of them in the default currency,
     // and print amount of money in the ATM
     public ATM(Map<Integer, Integer> banknotes) {
-        this.banknotes     = banknotes;
-        this.minimumAmount = this.setMinimumAmount();
-        System.out.println("<<<>>> Money in the ATM: " + this.banknotes + "<<<>>>");
+        this(counter.incrementAndGet(), Collections.singletonMap(DEFAULT_CURRENCY, banknotes), DEFAULT_CURRENCY);
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * ATM with notes of several currencies, each in cassettes of its own
+     *
+     * @param cassettes: (currency, (banknote, count)) for every currency
+     * @param defaultCurrency: the one used by the methods without a currency
+     *                         (getBanknotes, checkAmountValidity, reserveCash, etc.)
+     */
+    public ATM(Map<String, Map<Integer, Integer>> cassettes, String defaultCurrency) {
+        this(counter.incrementAndGet(), cassettes, defaultCurrency);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, for an ATM with a known number (eg. restored from a snapshot);
+    // ATMs created later get numbers after it
+    ATM(int number, Map<String, Map<Integer, Integer>> cassettes, String defaultCurrency) {
+        this.number = number;
+        counter.accumulateAndGet(number, Math::max);
+        
+        int billsCount = 0;
+        for (Map<Integer, Integer> banknotes : cassettes.values()) {
+            billsCount += banknotes.size();
+        }
+        
+        this.bills     = new int[billsCount];
+        this.banknotes = new AtomicIntegerArray(billsCount);
+        this.reserved  = new AtomicIntegerArray(billsCount);
+        
+        int i = 0;
+        for (Map.Entry<String, Map<Integer, Integer>> currency : cassettes.entrySet()) {
+            Map<Integer, Integer> sorted = new TreeMap<Integer, Integer>(Collections.reverseOrder());
+            sorted.putAll(currency.getValue());
+            
+            int from = i;
+            for (Map.Entry<Integer, Integer> entry : sorted.entrySet()) {
+                this.bills[i] = entry.getKey();
+                this.banknotes.set(i, entry.getValue());
+                i++;
+            }
+            
+            this.currencies.put(currency.getKey(),
+                                new CassetteSet(currency.getKey(), from, Arrays.copyOfRange(this.bills, from, i)));
+        }
+        
+        this.defaultCassettes = this.currencies.get(defaultCurrency);
+        
+        if (this.defaultCassettes == null) {
+            throw new IllegalArgumentException("No cassettes for the default currency " + defaultCurrency);
+        }
+        
+        this.forecaster = new CassetteForecaster(this.bills);
+        
+        // the notes are copied now, but only formatted by the event log's thread
+        if (EventLog.get().isEnabled()) {
+            int[] notes = this.newNotesArray();
+            for (int j = 0; j < notes.length; j++) {
+                notes[j] = this.banknotes.get(j);
+            }
+            
+            EventLog.get().log(EventLog.Type.ATM_CREATED, this, 0, 0, null, notes);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    public int getNumber() {
+        return this.number;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // record withdrawals in the given journal and check daily limits against it
+    public void setJournal(TransactionJournal journal) {
+        if (this.bills.length > TransactionJournal.MAX_BILLS) {
+            throw new IllegalArgumentException("Journal records hold at most " + TransactionJournal.MAX_BILLS + " bills");
+        }
+        
+        this.journal = journal;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // where withdrawals are recorded (or null)
+    TransactionJournal getJournal() {
+        return this.journal;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // record withdrawals through the given group committer
+    // (and check daily limits against its journal)
+    public void setGroupCommitter(GroupCommitter committer) {
+        this.setJournal(committer.getJournal());
+        this.committer = committer;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // print receipts through the given spooler (see ReceiptSpooler),
+    // or not at all with null; the spooler is not closed with the ATM
+    public void setReceiptSpooler(ReceiptSpooler receipts) {
+        this.receipts = receipts;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public ReceiptSpooler getReceiptSpooler() {
+        return this.receipts;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public CassetteForecaster getForecaster() {
+        return this.forecaster;
     }
     
     ///////////////////////////////////////////////////////
-    // smallest bill value in the ATM
-    // since bills are stored in descending order,
-    // that would be the last element of the map
-    public int setMinimumAmount() {
-        return ((TreeMap<Integer, Integer>) this.banknotes).lastKey();
+    // (banknote, seconds) until each cassette runs out at the recent
+    // rate of withdrawals; infinite for bills nobody withdraws
+    public Map<Integer, Double> forecastSecondsToEmpty() {
+        return this.forecastSecondsToEmpty(this.defaultCassettes.getCurrency());
     }
     
     ///////////////////////////////////////////////////////
+    // same as above, for the cassettes of the currency
+    public Map<Integer, Double> forecastSecondsToEmpty(String currency) {
+        CassetteSet          cassettes = this.currencies.get(currency);
+        Map<Integer, Double> result    = new TreeMap<Integer, Double>(Collections.reverseOrder());
+        
+        for (int i = 0; cassettes != null && i < cassettes.size(); i++) {
+            int j = cassettes.getFrom() + i;
+            
+            result.put(cassettes.getBill(i),
+                       this.forecaster.secondsToEmptyAt(j, this.banknotes.get(j) + this.reserved.get(j)));
+        }
+        
+        return result;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // currencies the ATM pays out, in the order their bills are in the arrays
+    public Set<String> getCurrencies() {
+        return Collections.unmodifiableSet(this.currencies.keySet());
+    }
+    
+    ///////////////////////////////////////////////////////
+    public String getDefaultCurrency() {
+        return this.defaultCassettes.getCurrency();
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the cassettes of the currency, or null if the ATM has none
+    public CassetteSet getCassettes(String currency) {
+        return this.currencies.get(currency);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // smallest bill of the default currency
     public int getMinimumAmount() {
-        return this.minimumAmount;
+        return this.defaultCassettes.getSmallestBill();
+    }
+    
+    ///////////////////////////////////////////////////////
+    // how many different bills the ATM holds;
+    // arrays of notes passed to the ATM should be of this length
+    public int getBillsCount() {
+        return this.bills.length;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // empty array for the notes of a single withdrawal,
+    // indexed the same way as the bills in the ATM;
+    // can be reused for any number of withdrawals
+    public int[] newNotesArray() {
+        return new int[this.bills.length];
+    }
+    
+    ///////////////////////////////////////////////////////
+    // (banknote, count) view of the money of the default currency in the ATM,
+    // including notes which are reserved but not handed out yet
+    public Map<Integer, Integer> getBanknotes() {
+        return this.getBanknotes(this.defaultCassettes.getCurrency());
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, for the currency (empty if the ATM has none of it)
+    public Map<Integer, Integer> getBanknotes(String currency) {
+        CassetteSet           cassettes = this.currencies.get(currency);
+        Map<Integer, Integer> result    = new TreeMap<Integer, Integer>(Collections.reverseOrder());
+        
+        for (int i = 0; cassettes != null && i < cassettes.size(); i++) {
+            int j = cassettes.getFrom() + i;
+            
+            result.put(cassettes.getBill(i), this.banknotes.get(j) + this.reserved.get(j));
+        }
+        
+        return result;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // (banknote, count) view of the notes of a withdrawal,
+    // skipping the bills which are not part of it
+    // (a withdrawal is always in a single currency)
+    public Map<Integer, Integer> notesToMap(int[] notes) {
+        return this.notesToMap(notes, 0, this.bills.length);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, only the bills of the currency
+    public Map<Integer, Integer> notesToMap(String currency, int[] notes) {
+        CassetteSet cassettes = this.cassettesOf(currency);
+        
+        return this.notesToMap(notes, cassettes.getFrom(), cassettes.getFrom() + cassettes.size());
+    }
+    
+    ///////////////////////////////////////////////////////
+    private Map<Integer, Integer> notesToMap(int[] notes, int from, int to) {
+        Map<Integer, Integer> result = new TreeMap<Integer, Integer>(Collections.reverseOrder());
+        
+        for (int i = from; i < to; i++) {
+            if (notes[i] > 0) {
+                result.put(this.bills[i], notes[i]);
+            }
+        }
+        
+        return result;
     }
     
     ///////////////////////////////////////////////////////
     public boolean checkAmountValidity(int number) throws InvalidRequestedAmount {
-        int     smallestBill         = this.getMinimumAmount();
-        boolean isGreaterThanZero    = (boolean) (number > 0);
-        boolean divisableByMinAmount = (boolean) (number%smallestBill == 0);
+        Outcome outcome = this.tryCheckAmountValidity(number);
         
-        if (!isGreaterThanZero || !divisableByMinAmount) {
-            throw new InvalidRequestedAmount(">>> Requested amount should be divisable by " + smallestBill);
+        if (outcome != Outcome.OK) {
+            throw new InvalidRequestedAmount(outcome.getMessage(this, null), false);
         }
         
         return true;
     }
     
     ///////////////////////////////////////////////////////
-    /* 
+    // same as above, but returns the outcome instead of throwing
+    public Outcome tryCheckAmountValidity(int number) {
+        return this.tryCheckAmountValidity(this.defaultCassettes, number);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, for an amount in the currency
+    public Outcome tryCheckAmountValidity(String currency, int number) {
+        CassetteSet cassettes = this.currencies.get(currency);
+        
+        if (cassettes == null) {
+            return AMOUNT_CHECKS.record(Outcome.UNSUPPORTED_CURRENCY);
+        }
+        
+        return this.tryCheckAmountValidity(cassettes, number);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the amount should be > 0 and a multiple of the greatest common
+    // divisor of the bills, which is worked out when the ATM is created
+    private Outcome tryCheckAmountValidity(CassetteSet cassettes, int number) {
+        if (!cassettes.isValidAmount(number)) {
+            return AMOUNT_CHECKS.record(Outcome.INVALID_REQUESTED_AMOUNT);
+        }
+        
+        return AMOUNT_CHECKS.record(Outcome.OK);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // which combination of bills should be preferred
+    // when there is more than one way to pay out an amount
+    public void setDispenseObjective(CashPlanner.Objective objective) {
+        this.objective = objective;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // plan with the calling thread's planner against a copy of
+    // the current note counts of the currency's cassettes,
+    // unless there's a cached plan which still fits
+    // (only plans which are not cached are timed)
+    private boolean plan(CassetteSet cassettes, int requestedAmount, int[] notes) {
+        CashPlanner.Objective  objective = this.objective;
+        DispensePlanCache.Plan cached    = this.cachedPlan(cassettes, requestedAmount, objective);
+        
+        if (cached != null) {
+            cached.copyTo(notes);
+            return true;
+        }
+        
+        long        start   = System.nanoTime();
+        CashPlanner planner = this.planners.get();
+        int[]       counts  = this.snapshots.get();
+        int[]       result  = this.results.get();
+        int[]       bills   = cassettes.getBills();
+        int         from    = cassettes.getFrom();
+        
+        planner.setObjective(objective);
+        
+        // the planner only looks at the first bills.length counts
+        for (int i = 0; i < bills.length; i++) {
+            counts[i] = this.banknotes.get(from + i);
+        }
+        
+        boolean planned = planner.plan(bills, counts, requestedAmount, result);
+        
+        Arrays.fill(notes, 0);
+        System.arraycopy(result, 0, notes, from, bills.length);
+        
+        DispensePlanCache plans = cassettes.getPlans();
+        
+        if (planned && plans.accepts(requestedAmount, bills, counts)) {
+            plans.put(requestedAmount, objective, notes, this.notesToMap(notes));
+        }
+        
+        PLAN_LATENCY.recordSince(start);
+        
+        return planned;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the cached plan for the amount, if the ATM still has all of its notes;
+    // the plan was made when no bill was running low, so while it fits
+    // it's the same plan the planner would make now
+    private DispensePlanCache.Plan cachedPlan(CassetteSet cassettes, int requestedAmount, CashPlanner.Objective objective) {
+        DispensePlanCache.Plan plan = cassettes.getPlans().get(requestedAmount, objective);
+        
+        if (plan == null) {
+            return null;
+        }
+        
+        // the plan has no notes of other currencies
+        int from = cassettes.getFrom();
+        
+        for (int i = from; i < from + cassettes.size(); i++) {
+            if (this.banknotes.get(i) < plan.getNotes(i)) {
+                return null;
+            }
+        }
+        
+        PLAN_CACHE_HITS.increment();
+        
+        return plan;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // true if some note count of the currency has changed since
+    // the last plan of the calling thread, eg. because of a concurrent withdrawal
+    private boolean countsChangedSincePlan(CassetteSet cassettes) {
+        int[] counts = this.snapshots.get();
+        int   from   = cassettes.getFrom();
+        
+        for (int i = 0; i < cassettes.size(); i++) {
+            if (counts[i] != this.banknotes.get(from + i)) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
      * Calculate how many notes to withdraw for each
      * banknote type in the ATM (200, 100, 50, etc.)
+     * of the default currency without allocating anything on the way
+     *
+     * @param requestedAmount: how much money the user has requested
+     * @param notes: filled with the amount of notes per bill (see newNotesArray)
+     * @throws NotEnoughMoneyInATM
+     */
+    public void prepareCashForDisposal(int requestedAmount, int[] notes) throws NotEnoughMoneyInATM {
+        // if no combination of the remaining notes sums up to the amount,
+        // this means there was not enough money in the ATM
+        if (!this.plan(this.defaultCassettes, requestedAmount, notes)) {
+            CASH_PLANS.record(Outcome.NOT_ENOUGH_MONEY_IN_ATM);
+            throw NotEnoughMoneyInATM.STACKLESS;
+        }
+        
+        CASH_PLANS.record(Outcome.OK);
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Same as above, for callers which need the notes as a map
      *
      * @param requestedAmount: how much money the user has requested
-     * @return Map with notes and their amounts
+     * @return Map with notes and their amounts (shared for common amounts, can't be changed)
      * @throws NotEnoughMoneyInATM
      */
     public Map<Integer, Integer> prepareCashForDisposal(int requestedAmount) throws NotEnoughMoneyInATM {
-        // result map with bills which the user should receive
-        Map<Integer, Integer> result = new TreeMap<Integer, Integer>(Collections.reverseOrder());
-
-        // how much money the user requested; should be 0 by the end of the cycle
-        int amountLeft = requestedAmount;
-
-        // cycle through all note values in the ATM
-        for (Map.Entry<Integer, Integer> entry : this.banknotes.entrySet()) {
+        DispensePlanCache.Plan cached = this.cachedPlan(this.defaultCassettes, requestedAmount, this.objective);
+        
+        if (cached != null) {
+            CASH_PLANS.record(Outcome.OK);
+            return cached.getBanknotes();
+        }
+        
+        int[] notes = this.newNotesArray();
+        this.prepareCashForDisposal(requestedAmount, notes);
+        
+        return this.notesToMap(notes);
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Plan the notes for a withdrawal and take them out
+     * of the cassettes in one step, so that concurrent sessions
+     * can never plan against the same notes.
+     * The reservation has to be followed by either commitCash
+     * (money handed out) or releaseCash (a later check failed)
+     *
+     * @param requestedAmount: how much money the user has requested
+     * @param notes: filled with the reserved notes per bill (see newNotesArray)
+     * @throws NotEnoughMoneyInATM
+     */
+    public void reserveCash(int requestedAmount, int[] notes) throws NotEnoughMoneyInATM {
+        if (this.tryReserveCash(requestedAmount, notes) != Outcome.OK) {
+            throw NotEnoughMoneyInATM.STACKLESS;
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, but returns the outcome instead of throwing
+    public Outcome tryReserveCash(int requestedAmount, int[] notes) {
+        return this.tryReserveCash(this.defaultCassettes, requestedAmount, notes);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, in the currency
+    public Outcome tryReserveCash(String currency, int requestedAmount, int[] notes) {
+        CassetteSet cassettes = this.currencies.get(currency);
+        
+        if (cassettes == null) {
+            return RESERVATIONS.record(Outcome.UNSUPPORTED_CURRENCY);
+        }
+        
+        return this.tryReserveCash(cassettes, requestedAmount, notes);
+    }
+    
+    ///////////////////////////////////////////////////////
+    private Outcome tryReserveCash(CassetteSet cassettes, int requestedAmount, int[] notes) {
+        while (true) {
+            if (this.plan(cassettes, requestedAmount, notes)) {
+                if (this.takeNotes(notes)) {
+                    return RESERVATIONS.record(Outcome.OK);
+                }
+            }
             
-            int billValue  = entry.getKey();
-            int billAmount = entry.getValue();
+            // the amount cannot be paid out from what was in the ATM when planning;
+            // unless another session has changed the counts in the meantime, give up
+            else if (!this.countsChangedSincePlan(cassettes)) {
+                return RESERVATIONS.record(Outcome.NOT_ENOUGH_MONEY_IN_ATM);
+            }
             
-            if (billAmount > 0) {
+            // otherwise some other session took the notes first: plan again
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Plan many withdrawals at once against the notes in the ATM now,
+     * without taking any of them out; every amount is planned against
+     * what the amounts before it would leave in the cassettes
+     *
+     * @param amounts: requested amounts, in the order they would be paid out
+     * @return outcome and notes of each amount
+     */
+    public DispenseBatch planBatch(int[] amounts) {
+        return this.planBatch(this.defaultCassettes, amounts);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, for amounts in the currency;
+    // throws IllegalArgumentException if the ATM has none of it
+    public DispenseBatch planBatch(String currency, int[] amounts) {
+        return this.planBatch(this.cassettesOf(currency), amounts);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // counts only go down during a batch, so like in DispensePlanCache
+    // a plan made while no count could limit it is reused for the same amount
+    // for as long as it fits: every distinct amount is usually planned once
+    private DispenseBatch planBatch(CassetteSet cassettes, int[] amounts) {
+        long                  start     = System.nanoTime();
+        DispenseBatch         batch     = new DispenseBatch(this, amounts);
+        CashPlanner.Objective objective = this.objective;
+        CashPlanner           planner   = this.planners.get();
+        int[]                 bills     = cassettes.getBills();
+        int                   from      = cassettes.getFrom();
+        int                   unit      = cassettes.getUnit();
+        int[]                 counts    = new int[bills.length];
+        int[]                 result    = new int[bills.length];
+        int[]                 notes     = this.newNotesArray();
+        
+        for (int i = 0; i < bills.length; i++) {
+            counts[i] = this.banknotes.get(from + i);
+        }
+        
+        // plans by amount / unit, up to the largest valid amount (or 64k)
+        int largest = 0;
+        for (int amount : amounts) {
+            if (cassettes.isValidAmount(amount)) {
+                largest = Math.max(largest, amount / unit);
+            }
+        }
+        int[][] planned = new int[Math.min(largest, 1 << 16) + 1][];
+        
+        planner.setObjective(objective);
+        
+        for (int i = 0; i < amounts.length; i++) {
+            Outcome outcome = this.tryCheckAmountValidity(cassettes, amounts[i]);
+            
+            if (outcome == Outcome.OK) {
+                int   key  = amounts[i] / unit;
+                int[] plan = (key < planned.length) ? planned[key] : null;
                 
-                // how many notes of the current value
-                // fit inside the amount that's left (eg. 320/100 = 3)
-                int billsPerValue = (int) Math.floor(amountLeft/billValue);
+                if (plan != null && DispensePlanCache.fits(plan, counts)) {
+                    System.arraycopy(plan, 0, result, 0, result.length);
+                }
+                else if (!planner.plan(bills, counts, amounts[i], result)) {
+                    outcome = Outcome.NOT_ENOUGH_MONEY_IN_ATM;
+                }
+                else if (key < planned.length && DispensePlanCache.isUnlimited(amounts[i], bills, counts)) {
+                    planned[key] = result.clone();
+                }
+            }
+            
+            // notes of other currencies stay at 0
+            if (outcome == Outcome.OK) {
+                for (int j = 0; j < bills.length; j++) {
+                    counts[j] -= result[j];
+                }
                 
-                if (billsPerValue > 0) {
-                    // if billsPerValue is equal to 2, but there's only 1 note left,
-                    // the user should get only 1 note  hence the min function
-                    int noteAmount = Math.min(billsPerValue, billAmount);
-                    
-                    result.put(billValue, noteAmount);
-                    
-                    // update the amount of money the user expects
-                    amountLeft -= noteAmount * billValue;
-                    
-                    // if the amount is already zero, no need to cycle through the other banknotes
-                    if (amountLeft == 0) {
-                        break;
+                System.arraycopy(result, 0, notes, from, bills.length);
+            }
+            
+            batch.set(i, BATCH_PLANS.record(outcome), notes);
+        }
+        
+        BATCH_LATENCY.recordSince(start);
+        
+        return batch;
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Same as above, and take the notes of every amount which can be
+     * paid out of the ATM in one step, with the totals per bill
+     * (eg. replaying a day of withdrawals for reconciliation).
+     * If another session takes notes in the meantime
+     * so the totals no longer fit, the batch is planned again.
+     * With a journal, every amount paid out is written to it
+     * (as CASH_DISPENSED, no card pays for it) and synced first;
+     * if that fails, the notes go back and nothing is paid out
+     *
+     * @param amounts: requested amounts, in the order they are paid out
+     * @return outcome and notes of each amount
+     */
+    public DispenseBatch withdrawBatch(int[] amounts) {
+        return this.withdrawBatch(this.defaultCassettes, amounts);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, for amounts in the currency;
+    // throws IllegalArgumentException if the ATM has none of it
+    public DispenseBatch withdrawBatch(String currency, int[] amounts) {
+        return this.withdrawBatch(this.cassettesOf(currency), amounts);
+    }
+    
+    ///////////////////////////////////////////////////////
+    private DispenseBatch withdrawBatch(CassetteSet cassettes, int[] amounts) {
+        while (true) {
+            DispenseBatch batch  = this.planBatch(cassettes, amounts);
+            int[]         totals = batch.getTotalsArray();
+            
+            if (this.takeNotes(totals)) {
+                try {
+                    this.recordBatch(batch);
+                }
+                catch (RuntimeException e) {
+                    this.releaseCash(totals);
+                    throw e;
+                }
+                
+                this.commitCash(totals);
+                batch.markCommitted();
+                
+                return batch;
+            }
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // a record for every amount the batch pays out, synced together;
+    // if any of them can't be written or synced, none of them are kept
+    // (the journal is held throughout, like GroupCommitter does)
+    private void recordBatch(DispenseBatch batch) {
+        if (this.journal == null) {
+            return;
+        }
+        
+        int[] notes = this.newNotesArray();
+        
+        synchronized (this.journal) {
+            long start = this.journal.size();
+            
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    if (batch.getOutcome(i) == Outcome.OK) {
+                        batch.getNotes(i, notes);
+                        this.journal.write(TransactionJournal.CASH_DISPENSED, this.number, 0, batch.getAmount(i), notes, 0);
                     }
                 }
+                
+                this.journal.sync();
+            }
+            catch (RuntimeException e) {
+                this.journal.rollBackTo(start);
+                throw e;
             }
         }
+    }
+    
+    ///////////////////////////////////////////////////////
+    private CassetteSet cassettesOf(String currency) {
+        CassetteSet cassettes = this.currencies.get(currency);
         
-        // if at the end of the cycle the amount of money is not zero,
-        // this means there was not enough money in the ATM
-        if (amountLeft > 0) {
-            throw new NotEnoughMoneyInATM(">>> Insufficient funds in ATM. Try again later.");
+        if (cassettes == null) {
+            throw new IllegalArgumentException("No cassettes for " + currency);
         }
         
-        return result;
+        return cassettes;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the reserved notes were handed out to the user
+    public void commitCash(int[] notes) {
+        for (int i = 0; i < this.bills.length; i++) {
+            if (notes[i] > 0) {
+                this.reserved.addAndGet(i, -notes[i]);
+            }
+        }
+        
+        this.forecaster.record(notes);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the withdrawal was cancelled after the notes were reserved
+    // (eg. not enough funds on the card) -> put them back
+    public void releaseCash(int[] notes) {
+        for (int i = 0; i < this.bills.length; i++) {
+            if (notes[i] > 0) {
+                this.reserved.addAndGet(i, -notes[i]);
+                this.banknotes.addAndGet(i, notes[i]);
+            }
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // lower the count of each bill by the amount of notes,
+    // unless there are not enough notes of some bill left;
+    // in that case undo the bills that were already lowered
+    private boolean takeNotes(int[] notes) {
+        for (int i = 0; i < this.bills.length; i++) {
+            if (notes[i] == 0) {
+                continue;
+            }
+            
+            int amountInAtm;
+            
+            do {
+                amountInAtm = this.banknotes.get(i);
+                
+                if (amountInAtm < notes[i]) {
+                    for (int j = 0; j < i; j++) {
+                        if (notes[j] > 0) {
+                            this.banknotes.addAndGet(j, notes[j]);
+                        }
+                    }
+                    
+                    return false;
+                }
+            }
+            while (!this.banknotes.compareAndSet(i, amountInAtm, amountInAtm - notes[i]));
+        }
+        
+        for (int i = 0; i < this.bills.length; i++) {
+            if (notes[i] > 0) {
+                this.reserved.addAndGet(i, notes[i]);
+            }
+        }
+        
+        return true;
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Whole withdrawal for a card which is inserted
+     * and whose PIN was verified: validate the amount, reserve the notes,
+     * run the card checks and, if all of them pass, hand out the notes
+     *
+     * @param card: the inserted card
+     * @param requestedAmount: how much money the user has requested
+     * @param notes: filled with the notes to hand out (see newNotesArray)
+     */
+    public void withdraw(Card card, int requestedAmount, int[] notes)
+            throws InvalidRequestedAmount, NotEnoughMoneyInATM, ExceededDailyLimit,
+                   ExceededTransactionLimit, NotEnoughFunds {
+        Outcome outcome = this.tryWithdraw(card, requestedAmount, notes);
+        
+        switch (outcome) {
+            case INVALID_REQUESTED_AMOUNT:
+            case UNSUPPORTED_CURRENCY:
+                throw new InvalidRequestedAmount(outcome.getMessage(this, card), false);
+            
+            case NOT_ENOUGH_MONEY_IN_ATM:
+                throw NotEnoughMoneyInATM.STACKLESS;
+            
+            // nothing was paid out, the ATM can't hand out money right now
+            case WITHDRAWAL_NOT_RECORDED:
+                throw new NotEnoughMoneyInATM(outcome.getMessage(), false);
+            
+            case EXCEEDED_DAILY_LIMIT:
+                throw ExceededDailyLimit.STACKLESS;
+            
+            case EXCEEDED_TRANSACTION_LIMIT:
+                throw new ExceededTransactionLimit(outcome.getMessage(this, card), false);
+            
+            case NOT_ENOUGH_FUNDS:
+                throw NotEnoughFunds.STACKLESS;
+            
+            default:
+                break;
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, but returns the outcome of the first check
+    // which failed (or OK) instead of throwing;
+    // with a group committer, waits until the withdrawal is on disk.
+    // if it can't be written, the withdrawal is undone and
+    // WITHDRAWAL_NOT_RECORDED returned (no notes are handed out)
+    public Outcome tryWithdraw(Card card, int requestedAmount, int[] notes) {
+        long    start   = System.nanoTime();
+        Outcome outcome = this.withdrawInMemory(card, requestedAmount, notes);
+        
+        if (outcome == Outcome.OK) {
+            try {
+                if (this.committer != null) {
+                    this.committer.submit(this.number, card.getNumber(), requestedAmount, notes).join();
+                }
+                else if (this.journal != null) {
+                    this.journal.append(this.number, card.getNumber(), requestedAmount, notes);
+                }
+            }
+            catch (RuntimeException e) {
+                outcome = this.undoWithdrawal(card, requestedAmount, notes);
+            }
+        }
+        
+        WITHDRAW_LATENCY.recordSince(start);
+        EventLog.get().log(EventLog.Type.WITHDRAWAL, this, card.getNumber(), requestedAmount, outcome, null);
+        
+        return WITHDRAWALS.record(outcome);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, but doesn't wait for the withdrawal to be written:
+    // the future completes once it's on disk, so the caller can
+    // hand out the notes then and do something else in the meantime
+    public CompletableFuture<Outcome> tryWithdrawAsync(Card card, int requestedAmount, int[] notes) {
+        if (this.committer == null) {
+            return CompletableFuture.completedFuture(this.tryWithdraw(card, requestedAmount, notes));
+        }
+        
+        Outcome outcome = this.withdrawInMemory(card, requestedAmount, notes);
+        
+        if (outcome != Outcome.OK) {
+            EventLog.get().log(EventLog.Type.WITHDRAWAL, this, card.getNumber(), requestedAmount, outcome, null);
+            return CompletableFuture.completedFuture(WITHDRAWALS.record(outcome));
+        }
+        
+        // the caller may reuse the notes array before the record is written
+        int[] taken = notes.clone();
+        
+        return this.committer.submit(this.number, card.getNumber(), requestedAmount, notes)
+                             .handle((committed, e) -> {
+                                 Outcome written = (e == null) ? Outcome.OK : this.undoWithdrawal(card, requestedAmount, taken);
+                                 
+                                 EventLog.get().log(EventLog.Type.WITHDRAWAL, this, card.getNumber(), requestedAmount, written, null);
+                                 
+                                 return WITHDRAWALS.record(written);
+                             });
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the withdrawal passed every check but couldn't be written to the
+    // journal: give the amount back to the card and the daily limit,
+    // and put the notes back in the cassettes (they were never handed out,
+    // so they don't count towards the forecast either)
+    private Outcome undoWithdrawal(Card card, int requestedAmount, int[] notes) {
+        card.credit((long) requestedAmount * Card.MINOR_UNITS);
+        
+        for (int i = 0; i < this.bills.length; i++) {
+            if (notes[i] > 0) {
+                this.banknotes.addAndGet(i, notes[i]);
+            }
+        }
+        
+        this.forecaster.unrecord(notes);
+        
+        if (this.journal != null) {
+            this.journal.removeFromDailyTotal(card.getNumber(), requestedAmount);
+        }
+        
+        return Outcome.WITHDRAWAL_NOT_RECORDED;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // all of the withdrawal checks and updates of the ATM and the card,
+    // but without recording the withdrawal in the journal
+    private Outcome withdrawInMemory(Card card, int requestedAmount, int[] notes) {
+        // the cassettes of the card's currency; check that amount is > 0
+        // and a multiple of the smallest unit the bills can make up
+        CassetteSet cassettes = this.currencies.get(card.getCurrency());
+        Outcome     outcome   = (cassettes != null) ? this.tryCheckAmountValidity(cassettes, requestedAmount)
+                                                    : AMOUNT_CHECKS.record(Outcome.UNSUPPORTED_CURRENCY);
+        
+        // make sure the ATM has sufficient funds
+        // and put the notes aside for this withdrawal
+        if (outcome == Outcome.OK) {
+            outcome = this.tryReserveCash(cassettes, requestedAmount, notes);
+        }
+        
+        if (outcome != Outcome.OK) {
+            return outcome;
+        }
+        
+        // make sure the user has not exceeded their daily withdrawal limit
+        outcome = card.tryCheckDailyLimit(requestedAmount, this.journal);
+        
+        boolean countedToday = (outcome == Outcome.OK && this.journal != null);
+        
+        // make sure the user is not surpassing their withdrawal limit
+        if (outcome == Outcome.OK) {
+            outcome = card.tryCheckTransactionLimit(requestedAmount);
+        }
+        
+        // make sure the user has sufficient funds
+        if (outcome == Outcome.OK) {
+            outcome = card.tryWithdrawFromBalance(requestedAmount);
+        }
+        
+        // if any of the card checks failed, give the notes back to the ATM
+        // (and the amount back to the daily limit)
+        if (outcome != Outcome.OK) {
+            this.releaseCash(notes);
+            this.recordEvent(TransactionJournal.CASH_PLANNED, card.getNumber(), requestedAmount, notes, outcome.ordinal());
+            
+            if (countedToday) {
+                this.journal.removeFromDailyTotal(card.getNumber(), requestedAmount);
+            }
+        }
+        
+        // otherwise refresh the amount of bills in the ATM
+        else {
+            this.commitCash(notes);
+        }
+        
+        return outcome;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // write something which happened at this ATM to its journal, if it has one
+    // (see TransactionJournal for the types and the detail)
+    void recordEvent(int type, int cardNumber, int amount, int[] notes, int detail) {
+        if (this.journal != null) {
+            this.journal.write(type, this.number, cardNumber, amount, notes, detail);
+        }
     }
     
     ///////////////////////////////////////////////////////
     // after cash disposal lower the total amount of notes
-    // for each banknote value of the map passed as parameter
+    // for each banknote value of the array passed as parameter;
+    // for concurrent sessions use reserveCash instead
+    public void removeBillsFromATM(int[] notes) {
+        for (int i = 0; i < this.bills.length; i++) {
+            if (notes[i] > 0) {
+                this.banknotes.addAndGet(i, -notes[i]);
+            }
+        }
+        
+        this.forecaster.record(notes);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, for notes of the default currency passed as a map
     public void removeBillsFromATM(Map<Integer, Integer> notes) {
+        long        now       = System.nanoTime();
+        CassetteSet cassettes = this.defaultCassettes;
+        
         for (Map.Entry<Integer, Integer> entry : notes.entrySet()) {
             int billValue       = entry.getKey();
-            int amountInAtm     = this.banknotes.get(billValue);
             int withdrawnAmount = entry.getValue();
             
-             this.banknotes.put(billValue, (amountInAtm - withdrawnAmount));
+            for (int i = cassettes.getFrom(); i < cassettes.getFrom() + cassettes.size(); i++) {
+                if (this.bills[i] == billValue) {
+                    this.banknotes.addAndGet(i, -withdrawnAmount);
+                    this.forecaster.record(i, withdrawnAmount, now);
+                }
+            }
         }
     }
-
+    
     ///////////////////////////////////////////////////////
-    // to check whether there's printer in ink in the printer
+    // to check whether there's paper and ink in the printer
+    // (as of its last receipts, the printer itself is not asked)
     public boolean isPrinterInOrder() throws PrinterError {
-        boolean error = false;
-        // TODO: call method to check for errors
-
-        if (error) {        
-            throw new PrinterError(">>> There's an error with the printer.");
+        if (this.checkPrinter() != Outcome.OK) {
+            throw PrinterError.STACKLESS;
         }
-
+        
         return true;
     }
-}
\ No newline at end of file
+    
+    ///////////////////////////////////////////////////////
+    // same as above, but returns the outcome instead of throwing
+    public Outcome checkPrinter() {
+        ReceiptSpooler receipts = this.receipts;
+        
+        if (receipts == null) {
+            return PRINTER_CHECKS.record(Outcome.OK);
+        }
+        
+        return PRINTER_CHECKS.record(receipts.getHealth());
+    }
+    
+    ///////////////////////////////////////////////////////
+    // queue a receipt with the balance of the card; never waits
+    // for the printer (and without one there's nothing to print)
+    public void printReceipt(Card card) throws PrinterError {
+        if (this.tryPrintReceipt(card) != Outcome.OK) {
+            throw PrinterError.STACKLESS;
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, but returns the outcome instead of throwing:
+    // PRINTER_ERROR if the printer is out of order or too far behind
+    public Outcome tryPrintReceipt(Card card) {
+        ReceiptSpooler receipts = this.receipts;
+        
+        if (receipts == null) {
+            return PRINTER_CHECKS.record(Outcome.OK);
+        }
+        
+        return PRINTER_CHECKS.record(receipts.submit(this.number, card));
+    }
+}
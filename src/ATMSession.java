@@ -0,0 +1,265 @@
+///////////////////////////////////////////////////////
+// one customer at one terminal: the same screens as the console ATM,
+// but reading and printing through the session's terminal,
+// so any number of sessions can run side by side
+public class ATMSession {
+    private ATM          atm;
+    private CardRegistry cards;
+    private Terminal     terminal;
+    
+    // reused for every inserted card, so PINs verified
+    // at this terminal are remembered (see CardSession)
+    private CardSession  cardSession;
+    
+    ///////////////////////////////////////////////////////
+    public ATMSession(ATM atm, CardRegistry cards, Terminal terminal) {
+        this.atm         = atm;
+        this.cards       = cards;
+        this.terminal    = terminal;
+        this.cardSession = new CardSession(null, terminal, atm);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // keep coming back to the welcome screen
+    // until the terminal runs out of input
+    public void run() {
+        try {
+            while (true) {
+                welcomeScreen();
+            }
+        }
+        catch (SessionClosed e) {
+            // the user walked away, nothing left to do
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // ask the user to insert their card 
+    private void welcomeScreen() {
+        int whichCard;
+        String input;
+        
+        try {
+            do {
+                this.terminal.print("\n<<< Please pick which card to insert from 1 to " + this.cards.getHighestNumber() + ": ");
+                input     = this.readLine();
+                whichCard = Integer.parseInt(input);
+            }
+            while (!input.matches("^[0-9]+$") || (this.cards.get(whichCard) == null));
+            
+            CardSession selectedCard = this.cardSession;
+            selectedCard.reset(this.cards.get(whichCard));
+            
+            // if the PIN was correct, show actions
+            // otherwise block or exit -> eject card
+            if (insertCardAndCheckPIN(selectedCard)) {
+                chooseAction(selectedCard);
+            }
+            else {
+                ejectCardAction(selectedCard);
+            }
+        }
+        
+        // the terminal has no more input: end the session
+        catch (SessionClosed e) {
+            throw e;
+        }
+        
+        // for any error occurring,
+        // print the message if it's card related
+        catch (Exception e) {
+            if (e instanceof CardNotInserted) {
+                this.terminal.println(e.getMessage());
+            }
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // on card insertion show PIN and balance (if card is not blocked)
+    // if it is or gets blocked (maxed out attempts),
+    // show error message
+    private boolean insertCardAndCheckPIN(CardSession selectedCard) throws CardNotInserted {
+        boolean verified = false;
+        if (!selectedCard.getCard().isCardBlocked()) {
+            this.terminal.println(selectedCard.getCard().toString());
+        }
+        
+        try {
+            selectedCard.insertCard();
+            verified = selectedCard.verifyPIN();
+        }
+        catch (CardIsBlocked e) {
+            this.terminal.println(e.getMessage());
+        }
+        
+        return verified;
+    }
+    
+    ///////////////////////////////////////////////////////
+    private void chooseAction(CardSession card) {
+        String input;
+        int action;
+        
+        try {
+            do {
+                this.terminal.println("Choose action:");
+                this.terminal.println("Withdraw money (1)");
+                this.terminal.println("Check balance  (2)");
+                this.terminal.println("Change PIN     (3)");
+                this.terminal.println("- - - - - - - - -");
+                this.terminal.println("Exit           (0)");
+                
+                input  = this.readLine();
+                action = Integer.parseInt(input);
+            }
+            while (action < 0 || action > 3);
+            
+            switch (action) {
+                case 1:
+                    withdrawalAction(card);
+                    break;
+                
+                case 2:
+                    printBalanceAction(card);
+                    break;
+                
+                case 3:
+                    changePINAction(card);
+                    break;
+                
+                case 0:
+                    ejectCardAction(card);
+                    break;
+            }
+        }
+        
+        catch (SessionClosed e) {
+            throw e;
+        }
+        
+        // if the exception was thrown by the parseInt (NumberFormatException)
+        // print Invalid number message; otherwise print the thrown error message
+        // afterwards, ask the user to choose an action again
+        catch (Exception e) {
+            String errorMsg = (e instanceof NumberFormatException) ? ">>> Invalid number." : e.getMessage();
+            this.terminal.println(errorMsg);
+            
+            chooseAction(card);
+        }
+    
+    }
+    
+    ///////////////////////////////////////////////////////
+    private void withdrawalAction(CardSession card) throws CardNotInserted {
+        int[] cash = this.atm.newNotesArray();
+        
+        try {
+            this.terminal.print("<<< Enter amount (0 to exit): ");
+            int requestedAmount = Integer.parseInt(this.readLine());
+            
+            // if the user has entered 0, eject the card
+            if (requestedAmount == 0) {
+                ejectCardAction(card);
+            }
+            
+            // otherwise proceed with the withdrawal
+            else {
+                // validate the amount, make sure both the ATM and the card
+                // allow the withdrawal and refresh the amount of bills in the ATM
+                Outcome outcome = this.atm.tryWithdraw(card.getCard(), requestedAmount, cash);
+                
+                switch (outcome) {
+                    case OK:
+                        this.terminal.println(">>> Take your money: " + this.atm.notesToMap(cash));
+                        
+                        // print balance and eject the card
+                        printBalanceAction(card);
+                        break;
+                    
+                    // if there's not enough money in the ATM, daily limit is exceeded
+                    // or the withdrawal couldn't be recorded
+                    // DON'T ask the user to enter amount again, eject card instead
+                    case NOT_ENOUGH_MONEY_IN_ATM:
+                    case EXCEEDED_DAILY_LIMIT:
+                    case WITHDRAWAL_NOT_RECORDED:
+                        this.terminal.println(outcome.getMessage(this.atm, card.getCard()));
+                        ejectCardAction(card);
+                        break;
+                    
+                    // otherwise repeat withdrawal steps
+                    default:
+                        this.terminal.println(outcome.getMessage(this.atm, card.getCard()));
+                        withdrawalAction(card);
+                        break;
+                }
+            }
+        }
+        
+        // amount was not a number: ask for it again
+        catch (NumberFormatException e) {
+            this.terminal.println(">>> Invalid number.");
+            withdrawalAction(card);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    private void printBalanceAction(CardSession card) throws CardNotInserted {
+        // try to print a receipt if there's paper and ink in the printer
+        // (it comes out while the card is being ejected)
+        try {
+            this.atm.printReceipt(card.getCard());
+            
+            double balance = card.getCard().getBalance();
+            this.terminal.println(String.format(">>> Current balance: %1.2f", balance));
+        }
+        
+        // if not, notify the user
+        catch (PrinterError e) {
+            this.terminal.println(e.getMessage());
+        }
+        
+        // in the end, eject the card
+        finally {
+            ejectCardAction(card);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // if the PIN change was successful,
+    // allow to user to choose another action
+    // otherwise eject the card
+    private void changePINAction(CardSession card) throws CardNotInserted {
+        try {
+            if (card.changePIN()) {
+                this.terminal.println(">>> Your PIN was updated successfully!");
+                chooseAction(card);
+            }
+            else {
+                ejectCardAction(card);
+            }
+        }
+        catch (SamePINOnChange e) {
+            this.terminal.println(e.getMessage());
+            changePINAction(card);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    private void ejectCardAction(CardSession card) throws CardNotInserted {
+        card.ejectCard();
+        this.terminal.println(">>> Card is ejected.");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // next line from the terminal;
+    // ends the session if there's no more input
+    private String readLine() {
+        String line = this.terminal.readLine();
+        
+        if (line == null) {
+            throw new SessionClosed(">>> Session closed.");
+        }
+        
+        return line;
+    }
+}
@@ -0,0 +1,399 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.function.Supplier;
+
+///////////////////////////////////////////////////////
+// micro benchmarks of the hot paths of a withdrawal: planning the notes,
+// validating the amount, taking the notes out of the ATM, the card checks
+// and PIN verification, plus withdrawals from many threads against one ATM.
+// every benchmark is warmed up first and then measured in several rounds,
+// so the results can be compared before and after a change.
+//
+// usage: java Benchmarks [name filter] [milliseconds per round]
+public class Benchmarks {
+    
+    // a single call of the code being measured; the result is collected
+    // in sink, so the JIT cannot decide the work is unused
+    interface Operation {
+        long run(int iteration) throws Exception;
+    }
+    
+    private static final int WARMUP_ROUNDS  = 3;
+    private static final int MEASURE_ROUNDS = 5;
+    
+    private static volatile long sink;
+    
+    private String filter;
+    private long   roundNanos;
+    
+    ///////////////////////////////////////////////////////
+    public Benchmarks(String filter, long roundMillis) {
+        this.filter     = filter;
+        this.roundNanos = roundMillis * 1000000L;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public static void main(String[] args) throws Exception {
+        String filter      = (args.length > 0) ? args[0] : "";
+        long   roundMillis = (args.length > 1) ? Long.parseLong(args[1]) : 500;
+        
+        Benchmarks benchmarks = new Benchmarks(filter, roundMillis);
+        
+        // measure the operations, not the writing of their events
+        EventLog.get().setEnabled(false);
+        
+        System.out.println(String.format("%-64s %8s %14s %14s", "benchmark", "threads", "ns/op", "ops/s"));
+        
+        benchmarks.dispensePlanning();
+        benchmarks.amountValidation();
+        benchmarks.removingBills();
+        benchmarks.cardChecks();
+        benchmarks.PINVerification();
+        benchmarks.concurrentWithdrawals();
+    }
+    
+    ///////////////////////////////////////////////////////
+    // prepareCashForDisposal for small, medium and large amounts,
+    // with full cassettes and with the large bills running out
+    private void dispensePlanning() throws Exception {
+        int[][] amounts   = { randomAmounts(10, 200), randomAmounts(200, 1000), randomAmounts(1000, 5000) };
+        String[] ranges   = { "10-200", "200-1000", "1000-5000" };
+        
+        int[][] cassettes = {
+            { 4000, 6000, 8000, 10000, 20000 },   // full
+            { 0, 5, 8000, 10000, 20000 },         // out of 200s, almost out of 100s
+            { 0, 0, 10, 200, 20000 },             // mostly 10s left
+        };
+        String[] states   = { "full", "large bills depleted", "small bills only" };
+        
+        for (CashPlanner.Objective objective : CashPlanner.Objective.values()) {
+            for (int state = 0; state < cassettes.length; state++) {
+                ATM atm = newATM(cassettes[state]);
+                atm.setDispenseObjective(objective);
+                
+                for (int range = 0; range < amounts.length; range++) {
+                    int[] requested = amounts[range];
+                    
+                    this.run("prepareCash " + objective + " " + states[state] + " " + ranges[range], 1, () -> {
+                        int[] notes = atm.newNotesArray();
+                        
+                        return iteration -> {
+                            try {
+                                atm.prepareCashForDisposal(requested[iteration & (requested.length - 1)], notes);
+                                return notes[0];
+                            }
+                            catch (NotEnoughMoneyInATM e) {
+                                return -1;
+                            }
+                        };
+                    });
+                }
+            }
+        }
+        
+        // the few amounts most withdrawals are for, served from the plan cache
+        int[] common = { 50, 100, 200, 400 };
+        ATM   atm    = newATM(cassettes[0]);
+        
+        this.run("prepareCash common amounts", 1, () -> {
+            int[] notes = atm.newNotesArray();
+            
+            return iteration -> {
+                atm.prepareCashForDisposal(common[iteration & (common.length - 1)], notes);
+                return notes[0];
+            };
+        });
+        
+        this.run("prepareCash common amounts Map", 1, () -> iteration -> {
+            return atm.prepareCashForDisposal(common[iteration & (common.length - 1)]).size();
+        });
+    }
+    
+    ///////////////////////////////////////////////////////
+    private void amountValidation() throws Exception {
+        ATM   atm       = newATM(new int[] { 4000, 6000, 8000, 10000, 20000 });
+        int[] requested = randomAmounts(10, 1000);
+        
+        this.run("checkAmountValidity valid", 1, () -> iteration -> {
+            return atm.checkAmountValidity(requested[iteration & (requested.length - 1)]) ? 1 : 0;
+        });
+        
+        this.run("tryCheckAmountValidity invalid", 1, () -> iteration -> {
+            return atm.tryCheckAmountValidity(requested[iteration & (requested.length - 1)] + 5).ordinal();
+        });
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the ATM has enough notes not to run out during the benchmark
+    private void removingBills() throws Exception {
+        ATM                   atm   = newATM(new int[] { 1000000000, 1000000000, 1000000000, 1000000000, 1000000000 });
+        int[]                 notes = { 1, 0, 1, 0, 1 };
+        Map<Integer, Integer> map   = atm.notesToMap(notes);
+        
+        this.run("removeBillsFromATM int[]", 1, () -> iteration -> {
+            atm.removeBillsFromATM(notes);
+            return iteration;
+        });
+        
+        this.run("removeBillsFromATM Map", 1, () -> iteration -> {
+            atm.removeBillsFromATM(map);
+            return iteration;
+        });
+        
+        // 1024 amounts one by one, and as a single batch
+        int[] amounts = randomAmounts(10, 1000);
+        
+        this.run("tryReserveCash + commitCash x1024", 1, () -> {
+            int[] reserved = atm.newNotesArray();
+            
+            return iteration -> {
+                for (int amount : amounts) {
+                    atm.tryReserveCash(amount, reserved);
+                    atm.commitCash(reserved);
+                }
+                
+                return reserved[0];
+            };
+        });
+        
+        this.run("withdrawBatch x1024", 1, () -> iteration -> {
+            return atm.withdrawBatch(amounts).getTotalAmount();
+        });
+    }
+    
+    ///////////////////////////////////////////////////////
+    private void cardChecks() throws Exception {
+        Card card = new Card(1e15, 400, 1000000);
+        Path file = Files.createTempFile("benchmark", ".journal");
+        
+        this.run("Card.tryCheckTransactionLimit", 1, () -> iteration -> {
+            return card.tryCheckTransactionLimit(10 * (iteration & 63)).ordinal();
+        });
+        
+        this.run("Card.tryWithdrawFromBalance", 1, () -> iteration -> {
+            return card.tryWithdrawFromBalance(10).ordinal();
+        });
+        
+        // the same card debited from several terminals at once
+        int cores    = Runtime.getRuntime().availableProcessors();
+        int previous = 0;
+        
+        for (int threads : new int[] { 1, 2, cores }) {
+            if (threads <= previous) {
+                continue;
+            }
+            
+            previous = threads;
+            
+            this.run("Card.tryDebit shared card", threads, () -> iteration -> {
+                return card.tryDebit(1).ordinal();
+            });
+        }
+        
+        this.run("Card.tryCheckDailyLimit without journal", 1, () -> iteration -> {
+            return card.tryCheckDailyLimit(10, null).ordinal();
+        });
+        
+        try (TransactionJournal journal = new TransactionJournal(file)) {
+            // count the amount and take it back, so the limit is never reached
+            this.run("Card.tryCheckDailyLimit with journal", 1, () -> iteration -> {
+                Outcome outcome = card.tryCheckDailyLimit(10, journal);
+                journal.removeFromDailyTotal(card.getNumber(), 10);
+                return outcome.ordinal();
+            });
+        }
+        finally {
+            Files.deleteIfExists(file);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    private void PINVerification() throws Exception {
+        Card card = new Card(1000, 400, "1234");
+        
+        this.run("Card.isPINCorrect correct", 1, () -> iteration -> {
+            return card.isPINCorrect("1234") ? 1 : 0;
+        });
+        
+        this.run("Card.isPINCorrect wrong", 1, () -> iteration -> {
+            return card.isPINCorrect("4321") ? 1 : 0;
+        });
+        
+        this.run("CardSession.tryVerifyPIN cached", 1, () -> {
+            CardSession session = new CardSession(card, null);
+            session.tryInsertCard();
+            
+            return iteration -> session.tryVerifyPIN("1234").ordinal();
+        });
+    }
+    
+    ///////////////////////////////////////////////////////
+    // whole withdrawals from one shared ATM, every thread with its own card
+    private void concurrentWithdrawals() throws Exception {
+        int   cores     = Runtime.getRuntime().availableProcessors();
+        int[] requested = randomAmounts(10, 400);
+        
+        int previous = 0;
+        
+        for (int threads : new int[] { 1, 2, cores, 4 * cores }) {
+            // on machines with only one or two cores
+            if (threads <= previous) {
+                continue;
+            }
+            
+            previous = threads;
+            ATM atm = newATM(new int[] { 100000000, 100000000, 100000000, 100000000, 100000000 });
+            
+            this.run("ATM.tryWithdraw shared ATM", threads, () -> {
+                Card  card  = new Card(1e15, 400);
+                int[] notes = atm.newNotesArray();
+                
+                return iteration -> atm.tryWithdraw(card, requested[iteration & (requested.length - 1)], notes).ordinal();
+            });
+        }
+        
+        // cards of the last of three currencies: only its cassettes are planned
+        Map<String, Map<Integer, Integer>> cassettes = new LinkedHashMap<String, Map<Integer, Integer>>();
+        cassettes.put("HRK", Map.of(200, 100000000, 100, 100000000, 50, 100000000, 20, 100000000, 10, 100000000));
+        cassettes.put("USD", Map.of(100, 100000000, 50, 100000000, 20, 100000000));
+        cassettes.put("EUR", Map.of(100, 100000000, 50, 100000000, 20, 100000000, 10, 100000000, 5, 100000000));
+        
+        ATM atm = new ATM(cassettes, "HRK");
+        
+        this.run("ATM.tryWithdraw EUR of 3 currencies", 1, () -> {
+            Card  card  = new Card(1e15, 400, Integer.MAX_VALUE, "1234", "EUR");
+            int[] notes = atm.newNotesArray();
+            
+            return iteration -> atm.tryWithdraw(card, requested[iteration & (requested.length - 1)], notes).ordinal();
+        });
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Warm up and measure one benchmark, then print the result
+     *
+     * @param name: shown in the results; benchmarks not matching the filter are skipped
+     * @param threads: how many threads run the operation at the same time
+     * @param operations: creates the operation for each thread (eg. with its own notes array)
+     */
+    private void run(String name, int threads, Supplier<Operation> operations) throws Exception {
+        if (!name.contains(this.filter)) {
+            return;
+        }
+        
+        Operation[] perThread = new Operation[threads];
+        for (int i = 0; i < threads; i++) {
+            perThread[i] = operations.get();
+        }
+        
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            this.round(perThread);
+        }
+        
+        long   operationsDone = 0;
+        double bestNanosPerOp = Double.MAX_VALUE;
+        
+        for (int round = 0; round < MEASURE_ROUNDS; round++) {
+            long done = this.round(perThread);
+            
+            operationsDone += done;
+            bestNanosPerOp  = Math.min(bestNanosPerOp, (double) this.roundNanos * threads / done);
+        }
+        
+        double operationsPerSecond = operationsDone * 1e9 / (MEASURE_ROUNDS * (double) this.roundNanos);
+        double nanosPerOperation   = (double) MEASURE_ROUNDS * this.roundNanos * threads / operationsDone;
+        
+        System.out.println(String.format("%-64s %8d %14.1f %14.0f   (best round %.1f ns/op)",
+                                         name, threads, nanosPerOperation, operationsPerSecond, bestNanosPerOp));
+    }
+    
+    ///////////////////////////////////////////////////////
+    // run the operations on their threads for one round;
+    // returns how many operations were done in total
+    private long round(Operation[] operations) throws Exception {
+        int             threads = operations.length;
+        long[]          done    = new long[threads];
+        Exception[]     failure = new Exception[1];
+        CyclicBarrier   start   = new CyclicBarrier(threads);
+        List<Thread>    workers = new ArrayList<Thread>(threads);
+        
+        for (int i = 0; i < threads; i++) {
+            int       which     = i;
+            Operation operation = operations[i];
+            
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    
+                    long end       = System.nanoTime() + this.roundNanos;
+                    long result    = 0;
+                    int  iteration = 0;
+                    
+                    // check the time only every 256 operations
+                    do {
+                        for (int j = 0; j < 256; j++) {
+                            result += operation.run(iteration++);
+                        }
+                    }
+                    while (System.nanoTime() < end);
+                    
+                    done[which] = iteration;
+                    sink       += result;
+                }
+                catch (Exception e) {
+                    failure[0] = e;
+                }
+            }, "benchmark-" + i);
+            
+            workers.add(worker);
+            worker.start();
+        }
+        
+        long total = 0;
+        for (int i = 0; i < threads; i++) {
+            workers.get(i).join();
+            total += done[i];
+        }
+        
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        
+        return total;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // 1024 random amounts divisible by 10 in the given range (fixed seed)
+    private static int[] randomAmounts(int from, int to) {
+        Random random  = new Random(42);
+        int[]  amounts = new int[1024];
+        
+        for (int i = 0; i < amounts.length; i++) {
+            amounts[i] = (from + random.nextInt(to - from + 1)) / 10 * 10;
+            amounts[i] = Math.max(amounts[i], 10);
+        }
+        
+        return amounts;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // ATM with 200, 100, 50, 20 and 10 notes in the given amounts
+    private static ATM newATM(int[] counts) {
+        int[]                 bills     = { 200, 100, 50, 20, 10 };
+        Map<Integer, Integer> banknotes = new TreeMap<Integer, Integer>(Collections.reverseOrder());
+        
+        for (int i = 0; i < bills.length; i++) {
+            banknotes.put(bills[i], counts[i]);
+        }
+        
+        return new ATM(banknotes);
+    }
+}
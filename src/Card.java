@@ -1,68 +1,259 @@
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 public class Card {
-    static Scanner  sc = new Scanner(System.in);
+    // bytes taken by one card in a snapshot (see writeTo)
+    static final int SNAPSHOT_SIZE = 48;
+    
+    // minor units in a unit of the currency (cents in a euro, lipa in a kuna)
+    public static final int MINOR_UNITS = 100;
     
     // holds how many instances of the class were initiated
-    // used for the name of the card
-    private static int counter = 0;
-    private String name;
+    // used for the number and the name of the card;
+    // atomic, so cards can be created from many threads
+    private static AtomicInteger counter = new AtomicInteger();
+    private int        number;
+    
+    // card status; whether the card is inserted is kept per session
+    // (see CardSession), since the same card can be used by several
+    // sessions at once
+    private volatile boolean isBlocked = false;
+    
+    // card PIN restrictions; only the hash of the PIN is kept (see PINHash),
+    // the salt stays the same for the life of the card.
+    // wrong PINs in a row and the token bucket of wrong PINs are shared
+    // by all sessions of the card and changed by PINGuard without locking
+    private long          PINsalt;
+    private volatile long PINhash;
+    private int           maxPINattempts = 3;
+    private volatile int  wrongPINattempts = 0;
+    private volatile long PINbucket        = Long.MIN_VALUE;
+    
+    // random PIN of a card created without one, until it's handed
+    // out to the card holder (see takeIssuedPIN); never in snapshots
+    private String issuedPIN;
+    
+    // passed as the PIN of a card created without one (see PINHash.parse,
+    // which never returns it for a PIN that was given)
+    private static final int RANDOM_PIN = -1;
     
-    // card statuses
-    private boolean isBlocked  = false,
-                    isInserted = false;
+    // card financial restrictions; balance and limits
+    // are in the currency of the account.
+    // the balance is kept exactly, in minor units, and changed with
+    // compare-and-set, so sessions using the same card at once never
+    // lose an update; a plain long field instead of an AtomicLong,
+    // so millions of cards don't need millions of extra objects
+    private String        currency = ATM.DEFAULT_CURRENCY;
+    private volatile long accountBalance;
+    private int           maxWithdrawAmount;
+    private int           maxDailyAmount = Integer.MAX_VALUE;
     
-    // card PIN restrictions
-    private String  PIN;
-    private int     maxPINattempts   = 3,
-                    wrongPINattempts = 0;
+    // outcomes of the card checks and how many cards got blocked (see Metrics)
+    private static final Metrics.Outcomes DAILY_LIMIT_CHECKS       = Metrics.get().outcomes("card_daily_limit");
+    private static final Metrics.Outcomes TRANSACTION_LIMIT_CHECKS = Metrics.get().outcomes("card_transaction_limit");
+    private static final Metrics.Outcomes BALANCE_CHECKS           = Metrics.get().outcomes("card_balance");
+    private static final Metrics.Outcomes PIN_CHANGES              = Metrics.get().outcomes("card_change_pin");
+    private static final Metrics.Counter  BLOCKS                   = Metrics.get().counter("card_blocks");
     
-    // card financial restrictions
-    private double  accountBalance;
-    private int     maxWithdrawAmount;
+    private static final AtomicLongFieldUpdater<Card>    BALANCE    = AtomicLongFieldUpdater.newUpdater(Card.class, "accountBalance");
+    private static final AtomicLongFieldUpdater<Card>    PIN_BUCKET = AtomicLongFieldUpdater.newUpdater(Card.class, "PINbucket");
+    private static final AtomicIntegerFieldUpdater<Card> WRONG_PINS = AtomicIntegerFieldUpdater.newUpdater(Card.class, "wrongPINattempts");
     
     ///////////////////////////////////////////////////////
     // normally PIN should be read off the card,
     // and a connection to the bank is needed for the balance,
-    // but in this case PIN is randomly generated,
+    // but in this case PIN is randomly generated (see takeIssuedPIN),
     // and balance & per-transaction limit are passed as a parameter
     Card (double balance, int limit) {
-        Card.counter++;
-        this.name = "Card #" + Card.counter;
-        generateRandPIN();
-        this.accountBalance    = balance;
+        this(balance, limit, Integer.MAX_VALUE, RANDOM_PIN);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, with a limit of how much
+    // can be withdrawn in total during one day
+    Card (double balance, int limit, int dailyLimit) {
+        this(balance, limit, dailyLimit, RANDOM_PIN);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, but with a known PIN
+    // (eg. for simulated sessions which have to type it in)
+    Card (double balance, int limit, String PIN) {
+        this(balance, limit, Integer.MAX_VALUE, parsePIN(PIN));
+    }
+    
+    ///////////////////////////////////////////////////////
+    // known PIN and a daily limit
+    Card (double balance, int limit, int dailyLimit, String PIN) {
+        this(balance, limit, dailyLimit, parsePIN(PIN));
+    }
+    
+    ///////////////////////////////////////////////////////
+    // every new card is made here; the PIN is hashed once, which is
+    // most of the cost of a card (see PINHash), so a random one is only
+    // made if no PIN was given. The card only keeps the hash of the PIN,
+    // a random PIN itself is kept until whoever issued the card takes it
+    private Card (double balance, int limit, int dailyLimit, int PIN) {
+        this.number            = Card.counter.incrementAndGet();
+        this.PINsalt           = PINHash.newSalt();
+        this.accountBalance    = toMinorUnits(balance);
         this.maxWithdrawAmount = limit;
+        this.maxDailyAmount    = dailyLimit;
+        
+        if (PIN == RANDOM_PIN) {
+            this.issuedPIN = PINHash.randomPIN();
+            PIN            = PINHash.parse(this.issuedPIN);
+        }
+        
+        this.PINhash = PINHash.hash(this.PINsalt, PIN);
     }
     
     ///////////////////////////////////////////////////////
-    // for simplicity's sake the PIN will not be hashed
-    private void generateRandPIN() {
-        int rand = (int) (Math.random() * 9999);
-        this.PIN = String.format("%04d", rand);
+    // same as above, for an account in another currency (eg. "EUR"):
+    // the card withdraws from the ATM's cassettes of that currency
+    Card (double balance, int limit, int dailyLimit, String PIN, String currency) {
+        this(balance, limit, dailyLimit, PIN);
+        CassetteSet.pack(currency);
+        this.currency = currency;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, with the given number instead of the next one
+    // (eg. replayed sessions, where every session has its own card #1);
+    // the card can't be in the same registry as the card with that number,
+    // and cards created later get numbers after it (same as restored ones)
+    Card (int number, double balance, int limit, int dailyLimit, String PIN, String currency) {
+        this(balance, limit, dailyLimit, PIN, currency);
+        this.number = number;
+        
+        Card.counter.accumulateAndGet(number, Math::max);
     }
+    
+    ///////////////////////////////////////////////////////
+    // card as it was written by writeTo;
+    // cards created later get numbers after the restored ones
+    private Card (ByteBuffer snapshot) {
+        this.number            = snapshot.getInt();
+        int status             = snapshot.getInt();
+        this.isBlocked         = (status & 1) != 0;
+        this.wrongPINattempts  = status >>> 1;
+        this.accountBalance    = snapshot.getLong();
+        this.maxWithdrawAmount = snapshot.getInt();
+        this.maxDailyAmount    = snapshot.getInt();
+        this.maxPINattempts    = snapshot.getInt();
+        this.PINsalt           = snapshot.getLong();
+        this.PINhash           = snapshot.getLong();
+        this.currency          = CassetteSet.unpack(snapshot.getInt());
         
+        Card.counter.accumulateAndGet(this.number, Math::max);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // write the card in SNAPSHOT_SIZE bytes:
+    // number, status (blocked flag and wrong PINs in a row),
+    // balance (minor units), limits, PIN attempts,
+    // salt and hash of the PIN, currency (see CassetteSet.pack)
+    void writeTo(ByteBuffer snapshot) {
+        snapshot.putInt(this.number)
+                .putInt((this.wrongPINattempts << 1) | (this.isBlocked ? 1 : 0))
+                .putLong(this.accountBalance)
+                .putInt(this.maxWithdrawAmount)
+                .putInt(this.maxDailyAmount)
+                .putInt(this.maxPINattempts)
+                .putLong(this.PINsalt)
+                .putLong(this.PINhash)
+                .putInt(CassetteSet.pack(this.currency));
+    }
+    
+    ///////////////////////////////////////////////////////
+    static Card readFrom(ByteBuffer snapshot) {
+        return new Card(snapshot);
+    }
+    
+    ///////////////////////////////////////////////////////
+    private static int parsePIN(String PIN) {
+        int value = PINHash.parse(PIN);
+        
+        if (value < 0) {
+            throw new IllegalArgumentException("PIN must be 4 digits");
+        }
+        
+        return value;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the random PIN the card was created with, to be shown
+    // to the card holder; null if it was already taken
+    // (or the card was created with a known PIN)
+    public synchronized String takeIssuedPIN() {
+        String PIN = this.issuedPIN;
+        this.issuedPIN = null;
+        
+        return PIN;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // a new random PIN for the card (eg. restored from a snapshot,
+    // which only has the hash of the old one); the wrong PINs in a row
+    // start from 0 again, a blocked card stays blocked
+    public synchronized String reissuePIN() {
+        String PIN = PINHash.randomPIN();
+        
+        this.PINhash          = PINHash.hash(this.PINsalt, PINHash.parse(PIN));
+        this.wrongPINattempts = 0;
+        
+        return PIN;
+    }
+    
     ///////////////////////////////////////////////////////
     public String toString() {
-        return ">>> " + this.name + "\n>>> PIN: "
-               + this.PIN + "\n>>> Balance: "
+        return ">>> " + this.getName() + "\n>>> Balance: "
                + String.format("%1.2f", this.getBalance())
-               + "\n>>> Transaction limit: "+this.maxWithdrawAmount;  
+               + "\n>>> Transaction limit: "+this.maxWithdrawAmount
+               + (this.maxDailyAmount != Integer.MAX_VALUE ? "\n>>> Daily limit: " + this.maxDailyAmount : "");
     }
     
     ///////////////////////////////////////////////////////
+    // built when needed, so restoring millions of cards
+    // from a snapshot doesn't create millions of names
+    public String getName() {
+        return "Card #" + this.number;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public int getNumber() {
+        return this.number;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the amount rounded to minor units, eg. 12.345 -> 1235
+    public static long toMinorUnits(double amount) {
+        return Math.round(amount * MINOR_UNITS);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // balance for showing it; use getBalanceInMinorUnits to calculate with it
     public double getBalance() {
+        return (double) this.accountBalance / MINOR_UNITS;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public long getBalanceInMinorUnits() {
         return this.accountBalance;
     }
     
     ///////////////////////////////////////////////////////
-    // simulate insertion of the card
-    // if it's marked as blocked, throw an exception
-    public void insertCard() throws CardIsBlocked {
-        this.isInserted = true;
-        
-        if (this.isCardBlocked()) {
-            blockCard();
-        }
+    // each card has its own transaction limit
+    public int getMaxWithdrawAmount() {
+        return this.maxWithdrawAmount;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // how much can be withdrawn in total during one day
+    public int getMaxDailyAmount() {
+        return this.maxDailyAmount;
     }
     
     ///////////////////////////////////////////////////////
@@ -72,120 +263,215 @@ public class Card {
     
     ///////////////////////////////////////////////////////
     // mark the card as blocked and throw an exception
-    private void blockCard() throws CardIsBlocked {
-        this.isBlocked = true;
-        throw new CardIsBlocked(">>> Your card is blocked. Please contact your bank!");
+    void blockCard() throws CardIsBlocked {
+        this.markBlocked();
+        throw CardIsBlocked.STACKLESS;
     }
     
     ///////////////////////////////////////////////////////
-    // verifies PIN:
-    // returns true on match
-    // returns false on card block or premature exit
-    public boolean verifyPIN() throws CardNotInserted, CardIsBlocked {
-        checkIfCardIsInserted();
-        
-        String enteredPIN;
+    // same as above, without the exception
+    void markBlocked() {
+        if (!this.isBlocked) {
+            BLOCKS.increment();
+            EventLog.get().log(EventLog.Type.CARD_BLOCKED, null, this.number, 0, null, null);
+        }
         
-        while (this.wrongPINattempts < this.maxPINattempts) {
-            do {
-                System.out.print("<<< Please enter your PIN code - " + (this.maxPINattempts - this.wrongPINattempts) + " attempt(s) left (0 to exit): ");
-                enteredPIN = sc.nextLine().toString();
-            }
-            while (!enteredPIN.matches("^[0-9]{4}|0$"));
-            
-            // if the user entered 0, don't verify the PIN
-            if (enteredPIN.equals("0")) {
-                return false;
-            }
-
-            // if the PIN was incorrect, increment the counter
-            else if (!enteredPIN.equals(this.PIN)) {
-                System.out.println(">>> Wrong PIN code.");
-                this.wrongPINattempts++;
-            }
-            
-            else {
-                this.wrongPINattempts = 0;
-                return true;
-            }
+        this.isBlocked = true;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // currency of the account, eg. "HRK"
+    public String getCurrency() {
+        return this.currency;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // after how many wrong PINs in a row the card gets blocked
+    public int getMaxPINattempts() {
+        return this.maxPINattempts;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // wrong PINs in a row, in all sessions of the card
+    public int getWrongPINattempts() {
+        return this.wrongPINattempts;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // one more wrong PIN in a row; returns how many there are now
+    int addWrongPINattempt() {
+        return WRONG_PINS.incrementAndGet(this);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // written only if there were wrong PINs, so verifying
+    // the same card from many threads doesn't contend on it
+    void resetWrongPINattempts() {
+        if (this.wrongPINattempts != 0) {
+            this.wrongPINattempts = 0;
         }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // when the token bucket of wrong PINs is full again
+    // (System.nanoTime, see PINGuard)
+    long getPINbucket() {
+        return this.PINbucket;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // take a token for a wrong PIN at now: the bucket is full
+    // one interval later than it would have been
+    void chargePINbucket(long now, long interval) {
+        long bucket;
         
-        // on correct PIN or 0 the while cycle gets broken by a return statement
-        // otherwise, the user has maxed out their guesses -> block the card
-        this.blockCard();
+        do {
+            bucket = this.PINbucket;
+        }
+        while (!PIN_BUCKET.compareAndSet(this, bucket, Math.max(bucket, now) + interval));
+    }
+    
+    ///////////////////////////////////////////////////////
+    public boolean isPINCorrect(String enteredPIN) {
+        int PIN = PINHash.parse(enteredPIN);
         
-        return false;
+        return PIN >= 0 && this.isPINCorrect(PIN);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, with the PIN already parsed (see PINHash.parse)
+    boolean isPINCorrect(int PIN) {
+        return PINHash.matches(PINHash.hash(this.PINsalt, PIN), this.PINhash);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // changes whenever the PIN is changed (see CardSession's cache)
+    long getPINhash() {
+        return this.PINhash;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // to check daily daily limit, the withdrawn amount for the current date
+    // is looked up in the journal; if the requested amount fits,
+    // it's counted towards today's total right away, so two sessions
+    // cannot both use up the rest of the limit (see ATM.tryWithdraw)
+    public void checkDailyLimit(int requestedAmount, TransactionJournal journal) throws ExceededDailyLimit {
+        if (this.tryCheckDailyLimit(requestedAmount, journal) != Outcome.OK) {
+            throw ExceededDailyLimit.STACKLESS;
+        }
     }
     
     ///////////////////////////////////////////////////////
-    // to check daily daily limit,
-    // transactions need to be stored in a DB
-    public void checkDailyLimit() throws ExceededDailyLimit {
-        // basic idea is to sum the withdrawn amount for the current date
-        // and if it exceeds the daily limit, an exception is being thrown:
+    // same as above, but returns the outcome instead of throwing;
+    // without a journal there's no history, so nothing to check against
+    public Outcome tryCheckDailyLimit(int requestedAmount, TransactionJournal journal) {
+        if (journal != null && !journal.tryAddToDailyTotal(this.number, requestedAmount, this.maxDailyAmount)) {
+            return DAILY_LIMIT_CHECKS.record(Outcome.EXCEEDED_DAILY_LIMIT);
+        }
         
-        // throw new ExceededDailyLimit(">>> You have exceeded your daily limit.");
+        return DAILY_LIMIT_CHECKS.record(Outcome.OK);
     }
     
     ///////////////////////////////////////////////////////
     // each card has its own transaction limit
     // which cannot be surpassed in a single withdrawal
     public void checkTransactionLimit(int requestedAmount) throws ExceededTransactionLimit {
+        Outcome outcome = this.tryCheckTransactionLimit(requestedAmount);
+        
+        if (outcome != Outcome.OK) {
+            throw new ExceededTransactionLimit(outcome.getMessage(null, this), false);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, but returns the outcome instead of throwing
+    public Outcome tryCheckTransactionLimit(int requestedAmount) {
         if (requestedAmount > this.maxWithdrawAmount) {
-            throw new ExceededTransactionLimit(">>> You cannot withdraw more than " + this.maxWithdrawAmount + "HRK");
+            return TRANSACTION_LIMIT_CHECKS.record(Outcome.EXCEEDED_TRANSACTION_LIMIT);
         }
+        
+        return TRANSACTION_LIMIT_CHECKS.record(Outcome.OK);
     }
     
     ///////////////////////////////////////////////////////
     public void withdrawFromBalance(int requestedAmount) throws NotEnoughFunds, CardNotInserted {
-        if (requestedAmount > this.accountBalance) {
-            throw new NotEnoughFunds(">>> You don't have enough funds on your balance.");
+        if (this.tryWithdrawFromBalance(requestedAmount) != Outcome.OK) {
+            throw NotEnoughFunds.STACKLESS;
         }
-        
-        this.accountBalance -= requestedAmount;
     }
     
     ///////////////////////////////////////////////////////
-    public boolean changePIN() throws CardNotInserted, SamePINOnChange {
-        checkIfCardIsInserted(); // makes sure the card is inserted
-        String newPIN;
+    // same as above, but returns the outcome instead of throwing
+    public Outcome tryWithdrawFromBalance(int requestedAmount) {
+        return BALANCE_CHECKS.record(this.tryDebit((long) requestedAmount * MINOR_UNITS));
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Take the amount off the balance, unless there's not enough on it;
+     * with compare-and-set instead of a lock, so two sessions using
+     * the same card cannot both withdraw the last of the balance
+     *
+     * @param minorUnits: the amount in minor units (see MINOR_UNITS), > 0
+     * @return OK or NOT_ENOUGH_FUNDS
+     */
+    public Outcome tryDebit(long minorUnits) {
+        long balance;
         
-        // if the user enters anything different than 4 digits or 0,
-        // ask them to reenter their new PIN
         do {
-            System.out.print("<<< Enter new PIN (4 digits, 0 to exit): ");
-            newPIN = sc.nextLine().toString();
-        }
-        while (!newPIN.matches("^[0-9]{4}|0$"));
-        
-        // if the user entered 0, the change was not successful
-        if ("0".equals(newPIN)) {
-            return false;
-        }
-
-        // if new pin same as old
-        else if (newPIN.equals(this.PIN)) {
-            throw new SamePINOnChange(">>> New PIN cannot be the same as old PIN.");
+            balance = this.accountBalance;
+            
+            if (minorUnits > balance) {
+                return Outcome.NOT_ENOUGH_FUNDS;
+            }
         }
+        while (!BALANCE.compareAndSet(this, balance, balance - minorUnits));
         
-        // otherwise change the PIN, notify the user and return true
-        else {
-            this.PIN = newPIN;
-            return true;
-        }
+        return Outcome.OK;
     }
     
     ///////////////////////////////////////////////////////
-    private void checkIfCardIsInserted() throws CardNotInserted {
-        if (!this.isInserted) {
-            throw new CardNotInserted(">>> Please insert card");
+    // put the amount (in minor units) on the balance, eg. a refund
+    public void credit(long minorUnits) {
+        BALANCE.addAndGet(this, minorUnits);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // changes the PIN (see CardSession for the checks
+    // which come before): returns false if it's not 4 digits
+    public boolean changePIN(String newPIN) throws SamePINOnChange {
+        Outcome outcome = this.tryChangePIN(newPIN);
+        
+        if (outcome == Outcome.SAME_PIN_ON_CHANGE) {
+            throw SamePINOnChange.STACKLESS;
         }
+        
+        return outcome == Outcome.OK;
     }
     
     ///////////////////////////////////////////////////////
-    public void ejectCard() throws CardNotInserted {
-        checkIfCardIsInserted();
-        this.isInserted = false;
+    // same as above, but returns the outcome instead of throwing
+    public synchronized Outcome tryChangePIN(String newPIN) {
+        int PIN = PINHash.parse(newPIN);
+        
+        if (PIN < 0) {
+            return PIN_CHANGES.record(Outcome.INVALID_PIN);
+        }
+        
+        long hash = PINHash.hash(this.PINsalt, PIN);
+        
+        // if new pin same as old
+        if (PINHash.matches(hash, this.PINhash)) {
+            return PIN_CHANGES.record(Outcome.SAME_PIN_ON_CHANGE);
+        }
+        
+        // otherwise change the PIN
+        else {
+            this.PINhash = hash;
+            EventLog.get().log(EventLog.Type.PIN_CHANGED, null, this.number, 0, null, null);
+            
+            return PIN_CHANGES.record(Outcome.OK);
+        }
     }
 
 }
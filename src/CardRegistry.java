@@ -0,0 +1,185 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+///////////////////////////////////////////////////////
+// all cards known to the ATMs, by card number.
+// card numbers are handed out one after another (see Card),
+// so the number itself is the position of the card: the shard is
+// the lowest bits of the number, the slot in the shard the rest.
+// every shard grows in fixed size chunks, so there are no map entries
+// or boxed keys per card, lookups never lock, and cards registered
+// at the same time usually end up in different shards.
+// the cards themselves stay objects rather than arrays of their fields:
+// sessions, PINGuard, the ATM checks and snapshots all take a Card, and
+// the fields which change (balance, wrong PINs) are already updated in
+// place with compare-and-set, without a lock or an extra object per card
+public class CardRegistry {
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    
+    private Shard[] shards;
+    private int     shardBits;
+    
+    private AtomicInteger count         = new AtomicInteger();
+    private AtomicInteger highestNumber = new AtomicInteger();
+    
+    // part of the cards with the same lowest bits of the number;
+    // the array of chunks is replaced (not changed) when it grows,
+    // so readers can use whichever one they see without locking
+    private static class Shard {
+        private volatile AtomicReferenceArray<Card>[] chunks = newChunks(0);
+        
+        ///////////////////////////////////////////////////////
+        Card get(int slot) {
+            AtomicReferenceArray<Card>[] chunks = this.chunks;
+            int                          chunk  = slot >>> CHUNK_BITS;
+            
+            if (chunk >= chunks.length) {
+                return null;
+            }
+            
+            return chunks[chunk].get(slot & (CHUNK_SIZE - 1));
+        }
+        
+        ///////////////////////////////////////////////////////
+        // returns false if there's already a card in the slot
+        boolean put(int slot, Card card) {
+            int chunk = slot >>> CHUNK_BITS;
+            
+            if (chunk >= this.chunks.length) {
+                this.grow(chunk);
+            }
+            
+            return this.chunks[chunk].compareAndSet(slot & (CHUNK_SIZE - 1), null, card);
+        }
+        
+        ///////////////////////////////////////////////////////
+        private synchronized void grow(int chunk) {
+            AtomicReferenceArray<Card>[] chunks = this.chunks;
+            
+            if (chunk < chunks.length) {
+                return;
+            }
+            
+            AtomicReferenceArray<Card>[] grown = newChunks(Math.max(chunk + 1, chunks.length * 2));
+            System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            
+            for (int i = chunks.length; i < grown.length; i++) {
+                grown[i] = new AtomicReferenceArray<Card>(CHUNK_SIZE);
+            }
+            
+            this.chunks = grown;
+        }
+        
+        ///////////////////////////////////////////////////////
+        @SuppressWarnings("unchecked")
+        private static AtomicReferenceArray<Card>[] newChunks(int length) {
+            return (AtomicReferenceArray<Card>[]) new AtomicReferenceArray<?>[length];
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // two shards per core
+    public CardRegistry() {
+        this(2 * Runtime.getRuntime().availableProcessors());
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the number of shards is rounded up to a power of two
+    public CardRegistry(int shardsCount) {
+        this.shardBits = 32 - Integer.numberOfLeadingZeros(Math.max(shardsCount, 1) - 1);
+        this.shards    = new Shard[1 << this.shardBits];
+        
+        for (int i = 0; i < this.shards.length; i++) {
+            this.shards[i] = new Shard();
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // registry with the given cards
+    public static CardRegistry of(Card... cards) {
+        CardRegistry registry = new CardRegistry();
+        
+        for (Card card : cards) {
+            registry.register(card);
+        }
+        
+        return registry;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // add the card under its number;
+    // a card with the same number cannot be registered twice
+    public void register(Card card) {
+        int number = card.getNumber();
+        
+        if (number <= 0) {
+            throw new IllegalArgumentException("Invalid card number: " + number);
+        }
+        
+        if (!this.shardOf(number).put(number >>> this.shardBits, card)) {
+            throw new IllegalArgumentException("Card #" + number + " is already registered");
+        }
+        
+        this.count.incrementAndGet();
+        this.highestNumber.accumulateAndGet(number, Math::max);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the card with the given number, or null if there is none
+    public Card get(int number) {
+        if (number <= 0 || number > this.highestNumber.get()) {
+            return null;
+        }
+        
+        return this.shardOf(number).get(number >>> this.shardBits);
+    }
+    
+    ///////////////////////////////////////////////////////
+    private Shard shardOf(int number) {
+        return this.shards[number & (this.shards.length - 1)];
+    }
+    
+    ///////////////////////////////////////////////////////
+    // how many cards are registered
+    public int size() {
+        return this.count.get();
+    }
+    
+    ///////////////////////////////////////////////////////
+    public int getHighestNumber() {
+        return this.highestNumber.get();
+    }
+    
+    ///////////////////////////////////////////////////////
+    // go through the cards in the order of their numbers
+    public void forEach(Consumer<Card> action) {
+        int highest = this.highestNumber.get();
+        
+        for (int number = 1; number <= highest; number++) {
+            Card card = this.get(number);
+            
+            if (card != null) {
+                action.accept(card);
+            }
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the cards registered so far, in the order of their numbers
+    public Card[] toArray() {
+        Card[] cards = new Card[this.size()];
+        int[]  i     = { 0 };
+        
+        this.forEach(card -> {
+            // cards registered while copying are left out
+            if (i[0] < cards.length) {
+                cards[i[0]++] = card;
+            }
+        });
+        
+        return (i[0] == cards.length) ? cards : Arrays.copyOf(cards, i[0]);
+    }
+}
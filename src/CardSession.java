@@ -0,0 +1,303 @@
+///////////////////////////////////////////////////////
+// a card while it's inserted in one terminal:
+// whether it's inserted belongs to the session, the rest
+// (PIN, balance, limits) to the card, so several sessions
+// can use the same Card at the same time; wrong PINs are counted
+// for the card, in all of its sessions (see PINGuard)
+public class CardSession {
+    private Card     card;
+    private Terminal terminal;
+    
+    // ATM the card is inserted in, which records the session's
+    // events in its journal (see ATM.recordEvent); can be null
+    private ATM      atm;
+    
+    // session status
+    private boolean  isInserted = false;
+    private PINGuard guard      = PINGuard.get();
+    
+    // PINs verified recently in this session (kept across reset),
+    // so verifying the same card again doesn't hash the PIN again:
+    // card number, PIN and the card's PIN hash at the time, so
+    // the entry no longer matches once the PIN is changed
+    private static final int VERIFIED_CACHE_SIZE = 8;
+    private int[]  verifiedCards  = new int[VERIFIED_CACHE_SIZE];
+    private int[]  verifiedPINs   = new int[VERIFIED_CACHE_SIZE];
+    private long[] verifiedHashes = new long[VERIFIED_CACHE_SIZE];
+    private int    nextVerified   = 0;
+    
+    // outcomes of card insertions and PIN verifications (see Metrics)
+    private static final Metrics.Outcomes INSERTIONS        = Metrics.get().outcomes("card_insert");
+    private static final Metrics.Outcomes PIN_VERIFICATIONS = Metrics.get().outcomes("card_verify_pin");
+    
+    ///////////////////////////////////////////////////////
+    // terminal is only needed for the interactive methods
+    // (verifyPIN and changePIN without parameters)
+    public CardSession(Card card, Terminal terminal) {
+        this(card, terminal, null);
+    }
+    
+    ///////////////////////////////////////////////////////
+    public CardSession(Card card, Terminal terminal, ATM atm) {
+        this.card     = card;
+        this.terminal = terminal;
+        this.atm      = atm;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public Card getCard() {
+        return this.card;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // start a new session with the given card,
+    // so one session object can be reused for many transactions
+    void reset(Card card) {
+        this.card       = card;
+        this.isInserted = false;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // simulate insertion of the card
+    // if it's marked as blocked, throw an exception
+    public void insertCard() throws CardIsBlocked {
+        if (this.tryInsertCard() != Outcome.OK) {
+            throw CardIsBlocked.STACKLESS;
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, but returns the outcome instead of throwing
+    public Outcome tryInsertCard() {
+        this.isInserted = true;
+        this.record(TransactionJournal.CARD_INSERTED);
+        
+        if (this.card.isCardBlocked()) {
+            return INSERTIONS.record(Outcome.CARD_IS_BLOCKED);
+        }
+        
+        return INSERTIONS.record(Outcome.OK);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // verifies PIN:
+    // returns true on match
+    // returns false on card block or premature exit
+    public boolean verifyPIN() throws CardNotInserted, CardIsBlocked {
+        checkIfCardIsInserted();
+        
+        String enteredPIN;
+        int    maxPINattempts = this.card.getMaxPINattempts();
+        
+        // wrong PINs of earlier sessions count too
+        while (this.card.getWrongPINattempts() < maxPINattempts) {
+            do {
+                this.terminal.print("<<< Please enter your PIN code - " + (maxPINattempts - this.card.getWrongPINattempts()) + " attempt(s) left (0 to exit): ");
+                enteredPIN = this.readLine();
+            }
+            while (PINHash.parse(enteredPIN) < 0 && !enteredPIN.equals("0"));
+            
+            // if the user entered 0, don't verify the PIN
+            if (enteredPIN.equals("0")) {
+                return false;
+            }
+            
+            Outcome outcome = this.tryVerifyPIN(enteredPIN);
+            
+            switch (outcome) {
+                case OK:
+                    return true;
+                
+                // the user has maxed out their guesses
+                case CARD_IS_BLOCKED:
+                    throw CardIsBlocked.STACKLESS;
+                
+                // too many wrong PINs recently: no more guesses for now
+                case PIN_ATTEMPTS_THROTTLED:
+                    this.terminal.println(outcome.getMessage());
+                    return false;
+                
+                default:
+                    this.terminal.println(outcome.getMessage());
+                    break;
+            }
+        }
+        
+        // on correct PIN or 0 the while cycle gets broken by a return statement
+        // otherwise, the guesses were maxed out in another session -> block the card
+        this.record(TransactionJournal.CARD_BLOCKED);
+        this.card.blockCard();
+        
+        return false;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // verifies a PIN which was not typed on the terminal
+    // (eg. TransactionProcessor):
+    // returns true on match, false on wrong PIN;
+    // blocks the card once the user has maxed out their guesses
+    public boolean verifyPIN(String enteredPIN) throws CardNotInserted, CardIsBlocked {
+        switch (this.tryVerifyPIN(enteredPIN)) {
+            case CARD_NOT_INSERTED:
+                throw CardNotInserted.STACKLESS;
+            
+            case CARD_IS_BLOCKED:
+                throw CardIsBlocked.STACKLESS;
+            
+            case OK:
+                return true;
+            
+            default:
+                return false;
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, but returns the outcome instead of throwing:
+    // OK, WRONG_PIN, CARD_IS_BLOCKED (after too many wrong PINs in a row)
+    // or PIN_ATTEMPTS_THROTTLED (the PIN is not checked, see PINGuard)
+    public Outcome tryVerifyPIN(String enteredPIN) {
+        if (!this.isInserted) {
+            return Outcome.CARD_NOT_INSERTED;
+        }
+        
+        Outcome outcome = this.guard.tryAttempt(this.card);
+        
+        if (outcome != Outcome.OK) {
+            return PIN_VERIFICATIONS.record(outcome);
+        }
+        
+        if (this.isPINCorrect(PINHash.parse(enteredPIN))) {
+            this.guard.recordSuccess(this.card);
+            return PIN_VERIFICATIONS.record(Outcome.OK);
+        }
+        
+        this.record(TransactionJournal.PIN_FAILED);
+        
+        if (this.guard.recordFailure(this.card)) {
+            this.record(TransactionJournal.CARD_BLOCKED);
+            this.card.markBlocked();
+            return PIN_VERIFICATIONS.record(Outcome.CARD_IS_BLOCKED);
+        }
+        
+        return PIN_VERIFICATIONS.record(Outcome.WRONG_PIN);
+    }
+    
+    ///////////////////////////////////////////////////////
+    public boolean changePIN() throws CardNotInserted, SamePINOnChange {
+        checkIfCardIsInserted(); // makes sure the card is inserted
+        String newPIN;
+        
+        // if the user enters anything different than 4 digits or 0,
+        // ask them to reenter their new PIN
+        do {
+            this.terminal.print("<<< Enter new PIN (4 digits, 0 to exit): ");
+            newPIN = this.readLine();
+        }
+        while (PINHash.parse(newPIN) < 0 && !newPIN.equals("0"));
+        
+        // if the user entered 0, the change was not successful
+        if ("0".equals(newPIN)) {
+            return false;
+        }
+        
+        return this.card.changePIN(newPIN);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // changes the PIN to one which was not typed on the terminal:
+    // returns false if it's not 4 digits
+    public boolean changePIN(String newPIN) throws CardNotInserted, SamePINOnChange {
+        checkIfCardIsInserted(); // makes sure the card is inserted
+        
+        return this.card.changePIN(newPIN);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, but returns the outcome instead of throwing
+    public Outcome tryChangePIN(String newPIN) {
+        if (!this.isInserted) {
+            return Outcome.CARD_NOT_INSERTED;
+        }
+        
+        return this.card.tryChangePIN(newPIN);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // PIN as returned by PINHash.parse (-1 is never correct);
+    // looks in the PINs verified recently before hashing it
+    private boolean isPINCorrect(int PIN) {
+        if (PIN < 0) {
+            return false;
+        }
+        
+        int     number   = this.card.getNumber();
+        long    hash     = this.card.getPINhash();
+        boolean verified = false;
+        
+        // every entry is compared, whether it matches or not
+        for (int i = 0; i < VERIFIED_CACHE_SIZE; i++) {
+            verified |= (this.verifiedCards[i] == number) & (this.verifiedPINs[i] == PIN) & (this.verifiedHashes[i] == hash);
+        }
+        
+        if (verified) {
+            return true;
+        }
+        
+        if (!this.card.isPINCorrect(PIN)) {
+            return false;
+        }
+        
+        // replace the oldest entry
+        this.verifiedCards[this.nextVerified]  = number;
+        this.verifiedPINs[this.nextVerified]   = PIN;
+        this.verifiedHashes[this.nextVerified] = hash;
+        this.nextVerified                      = (this.nextVerified + 1) % VERIFIED_CACHE_SIZE;
+        
+        return true;
+    }
+    
+    ///////////////////////////////////////////////////////
+    private void record(int type) {
+        if (this.atm != null) {
+            this.atm.recordEvent(type, this.card.getNumber(), 0, null, 0);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    private void checkIfCardIsInserted() throws CardNotInserted {
+        if (!this.isInserted) {
+            throw CardNotInserted.STACKLESS;
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    public void ejectCard() throws CardNotInserted {
+        if (this.tryEjectCard() != Outcome.OK) {
+            throw CardNotInserted.STACKLESS;
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, but returns the outcome instead of throwing
+    public Outcome tryEjectCard() {
+        if (!this.isInserted) {
+            return Outcome.CARD_NOT_INSERTED;
+        }
+        
+        this.isInserted = false;
+        
+        return Outcome.OK;
+    }
+    
+    ///////////////////////////////////////////////////////
+    private String readLine() {
+        String line = this.terminal.readLine();
+        
+        if (line == null) {
+            throw new SessionClosed(">>> Session closed.");
+        }
+        
+        return line;
+    }
+}
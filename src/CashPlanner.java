@@ -0,0 +1,199 @@
+public class CashPlanner {
+    
+    // what the planner should optimize for when
+    // more than one combination of bills is possible
+    public enum Objective {
+        FEWEST_NOTES,          // hand out as few notes as possible
+        PRESERVE_SMALL_BILLS   // use large bills first, keep small ones in stock
+    }
+    
+    private static final int UNREACHABLE = Integer.MAX_VALUE;
+    
+    // largest amount planned, in units of the bills (eg. 655350 with
+    // 200, 100, 50, 20, 10), so the table never grows past a few MB
+    // and a plan never has more notes of a bill than a journal record
+    // can hold; no ATM holds that much in notes of one currency anyway
+    public static final int MAX_AMOUNT_UNITS = TransactionJournal.MAX_NOTES;
+    
+    private Objective objective;
+    
+    // scratch table reused between requests, which is why
+    // a planner should not be shared between threads:
+    // best[i * width + a] = fewest notes needed to pay "a" units
+    // using only the bills from index i to the end (smaller bills)
+    private int[] best  = new int[0];
+    private int[] queue = new int[0];
+    
+    ///////////////////////////////////////////////////////
+    public CashPlanner(Objective objective) {
+        this.objective = objective;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public Objective getObjective() {
+        return this.objective;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public void setObjective(Objective objective) {
+        this.objective = objective;
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Find how many notes of each bill to dispose
+     * so that they sum up exactly to the requested amount.
+     * Unlike a greedy walk this always finds a combination
+     * if one exists (eg. 60 with only 50s and 20s left)
+     *
+     * @param bills: bill values in descending order
+     * @param counts: how many notes of each bill are available
+     * @param requestedAmount: how much money the user has requested
+     * @param result: filled with the amount of notes per bill
+     * @return true if the amount can be paid out, false otherwise
+     */
+    public boolean plan(int[] bills, int[] counts, int requestedAmount, int[] result) {
+        int billsCount = bills.length;
+        
+        for (int i = 0; i < billsCount; i++) {
+            result[i] = 0;
+        }
+        
+        if (requestedAmount <= 0) {
+            return requestedAmount == 0;
+        }
+        
+        // more than all of the notes together: no table needed
+        long total = 0;
+        for (int i = 0; i < billsCount; i++) {
+            total += (long) bills[i] * Math.max(counts[i], 0);
+        }
+        
+        if (requestedAmount > total) {
+            return false;
+        }
+        
+        // work in units of the greatest common divisor of all bills
+        // (eg. 10 for 200, 100, 50, 20, 10) to keep the table small
+        int unit = 0;
+        for (int i = 0; i < billsCount; i++) {
+            unit = gcd(unit, bills[i]);
+        }
+        
+        if (unit == 0 || requestedAmount % unit != 0 || requestedAmount / unit > MAX_AMOUNT_UNITS) {
+            return false;
+        }
+        
+        int amount = requestedAmount / unit;
+        int width  = amount + 1;
+        
+        this.fillTable(bills, counts, unit, amount, width);
+        
+        if (this.best[amount] == UNREACHABLE) {
+            return false;
+        }
+        
+        // walk the table from the largest bill down and pick
+        // how many notes of each bill to take
+        int amountLeft = amount;
+        
+        for (int i = 0; i < billsCount && amountLeft > 0; i++) {
+            int billUnits  = bills[i] / unit;
+            int maxNotes   = Math.min(counts[i], amountLeft / billUnits);
+            int noteAmount = 0;
+            
+            for (int k = maxNotes; k >= 0; k--) {
+                int rest = this.cell(i + 1, amountLeft - k * billUnits, width, billsCount);
+                
+                if (rest == UNREACHABLE) {
+                    continue;
+                }
+                
+                // fewest notes: take the count the table was built with;
+                // small bills: take as many large notes as still leave a valid rest
+                if (this.objective == Objective.PRESERVE_SMALL_BILLS || rest + k == this.cell(i, amountLeft, width, billsCount)) {
+                    noteAmount = k;
+                    break;
+                }
+            }
+            
+            result[i]   = noteAmount;
+            amountLeft -= noteAmount * billUnits;
+        }
+        
+        return true;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // bounded coin change table, filled from the smallest bill up;
+    // row i is computed from row i+1 with a sliding window minimum
+    // per remainder, so each row costs O(amount) regardless of counts
+    private void fillTable(int[] bills, int[] counts, int unit, int amount, int width) {
+        int billsCount = bills.length;
+        
+        if (this.best.length < billsCount * width) {
+            this.best = new int[billsCount * width];
+        }
+        
+        if (this.queue.length < width) {
+            this.queue = new int[width];
+        }
+        
+        for (int i = billsCount - 1; i >= 0; i--) {
+            int billUnits = bills[i] / unit;
+            int maxNotes  = Math.max(counts[i], 0);
+            int row       = i * width;
+            
+            for (int remainder = 0; remainder < billUnits && remainder <= amount; remainder++) {
+                int head = 0,
+                    tail = 0;
+                
+                for (int j = 0, a = remainder; a <= amount; j++, a += billUnits) {
+                    // candidate: pay "a" with bills below i, then add notes of bill i
+                    if (this.cell(i + 1, a, width, billsCount) != UNREACHABLE) {
+                        while (tail > head && this.windowValue(i, this.queue[tail - 1], remainder, billUnits, width, billsCount) >= this.cell(i + 1, a, width, billsCount) - j) {
+                            tail--;
+                        }
+                        this.queue[tail++] = j;
+                    }
+                    
+                    // drop candidates which would need more notes than available
+                    while (tail > head && this.queue[head] < j - maxNotes) {
+                        head++;
+                    }
+                    
+                    this.best[row + a] = (tail > head)
+                                         ? this.windowValue(i, this.queue[head], remainder, billUnits, width, billsCount) + j
+                                         : UNREACHABLE;
+                }
+            }
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // fewest notes for "a" units with bills from index i on;
+    // past the last bill only zero is reachable
+    private int cell(int i, int a, int width, int billsCount) {
+        if (i == billsCount) {
+            return (a == 0) ? 0 : UNREACHABLE;
+        }
+        
+        return this.best[i * width + a];
+    }
+    
+    ///////////////////////////////////////////////////////
+    private int windowValue(int i, int j, int remainder, int billUnits, int width, int billsCount) {
+        return this.cell(i + 1, remainder + j * billUnits, width, billsCount) - j;
+    }
+    
+    ///////////////////////////////////////////////////////
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        
+        return a;
+    }
+}
@@ -0,0 +1,341 @@
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+///////////////////////////////////////////////////////
+// how fast the cassettes of an ATM are being emptied, and when
+// each of them will run out, so refills can be scheduled before
+// withdrawals start failing with NotEnoughMoneyInATM.
+// every bill keeps a few numbers, no matter how many dispenses there have been:
+//  - the rate of notes per second, where older dispenses count less
+//    and less (half of their weight is gone after halfLife)
+//  - the median and 90th percentile of notes per interval (a minute
+//    by default), estimated by nudging them towards every new interval
+// a dispense only adds its notes to a striped counter (LongAdder) of the
+// current interval, so dispensing never locks; the counts are folded into
+// the rate and the percentiles once the interval is over, by the first
+// dispense or forecast after it (the rate counts the notes of an interval
+// at its end, and the ones of the current interval as of now)
+public class CassetteForecaster {
+    // how far a percentile estimate moves per interval, relative to its value
+    private static final double STEP = 0.05;
+    
+    // after this many intervals without dispenses the rest are skipped,
+    // the percentiles are at 0 by then anyway
+    private static final int MAX_EMPTY_INTERVALS = 256;
+    
+    // intervals with a counter of their own; a dispense which races
+    // with the end of its interval is counted in a later one
+    private static final int RING = 4;
+    
+    private int[]       bills;
+    private Estimator[] estimators;
+    private double      timeConstant;
+    private long        interval;
+    private long        createdAt;
+    
+    // consumption of a single bill
+    private class Estimator {
+        // notes of the last few intervals (by number, see intervalOf)
+        // and the interval the dispenses are counted in now
+        private LongAdder[] notes   = new LongAdder[RING];
+        private AtomicLong  current = new AtomicLong(0);
+        
+        // the intervals before the current one, folded in by moveTo:
+        // the rate as of the start of the current interval, and the percentiles
+        private double rate;
+        private double median;
+        private double peak;
+        
+        ///////////////////////////////////////////////////////
+        Estimator() {
+            for (int i = 0; i < RING; i++) {
+                this.notes[i] = new LongAdder();
+            }
+        }
+        
+        ///////////////////////////////////////////////////////
+        // the only part of the dispense path: lock-free, unless
+        // it's the first dispense of the bill in a new interval
+        void add(int notes, long now) {
+            long interval = CassetteForecaster.this.intervalOf(now);
+            
+            if (interval > this.current.get()) {
+                this.moveTo(interval);
+            }
+            
+            this.notes[(int) (interval & (RING - 1))].add(notes);
+        }
+        
+        ///////////////////////////////////////////////////////
+        // the rate as of the start of the current interval, decayed until now,
+        // with the notes of the current interval so far
+        synchronized double rateAt(long now) {
+            long   interval = CassetteForecaster.this.intervalOf(now);
+            double elapsed;
+            
+            this.moveTo(interval);
+            
+            elapsed = Math.max(now - CassetteForecaster.this.startOf(interval), 0) / 1e9;
+            
+            return this.rate * Math.exp(-elapsed / CassetteForecaster.this.timeConstant)
+                   + Math.max(this.notes[(int) (interval & (RING - 1))].sum(), 0) / CassetteForecaster.this.timeConstant;
+        }
+        
+        ///////////////////////////////////////////////////////
+        // notes per second in a busy interval (90th percentile)
+        synchronized double peakRateAt(long now) {
+            this.moveTo(CassetteForecaster.this.intervalOf(now));
+            
+            return this.peak / (CassetteForecaster.this.interval / 1e9);
+        }
+        
+        ///////////////////////////////////////////////////////
+        synchronized double medianRateAt(long now) {
+            this.moveTo(CassetteForecaster.this.intervalOf(now));
+            
+            return this.median / (CassetteForecaster.this.interval / 1e9);
+        }
+        
+        ///////////////////////////////////////////////////////
+        // fold every interval which ended before the given one
+        // into the rate and the percentiles, and count in that one from now on
+        private synchronized void moveTo(long interval) {
+            long   current = this.current.get();
+            long   ended   = interval - current;
+            double decay   = Math.exp(-CassetteForecaster.this.interval / 1e9 / CassetteForecaster.this.timeConstant);
+            
+            // an interval can end up below 0 if a dispense was
+            // undone in a later interval than it was counted in
+            for (long i = 0; i < Math.min(ended, MAX_EMPTY_INTERVALS); i++) {
+                long notes = (i < RING) ? Math.max(this.notes[(int) ((current + i) & (RING - 1))].sumThenReset(), 0) : 0;
+                
+                this.rate   = this.rate * decay + notes / CassetteForecaster.this.timeConstant;
+                this.median = nudge(this.median, notes, 0.5);
+                this.peak   = nudge(this.peak, notes, 0.9);
+            }
+            
+            if (ended > MAX_EMPTY_INTERVALS) {
+                this.rate *= Math.pow(decay, ended - MAX_EMPTY_INTERVALS);
+            }
+            
+            if (ended > 0) {
+                this.current.set(interval);
+            }
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // a rate half life of an hour, percentiles of notes per minute
+    public CassetteForecaster(int[] bills) {
+        this(bills, TimeUnit.HOURS.toNanos(1), TimeUnit.MINUTES.toNanos(1));
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * @param bills: bill values, in the order of the notes arrays passed to record
+     * @param halfLife: after how long a dispense counts half as much in the rate (nanoseconds)
+     * @param interval: length of the intervals the percentiles are taken over (nanoseconds)
+     */
+    public CassetteForecaster(int[] bills, long halfLife, long interval) {
+        long now = System.nanoTime();
+        
+        this.bills        = bills.clone();
+        this.estimators   = new Estimator[bills.length];
+        this.timeConstant = halfLife / 1e9 / Math.log(2);
+        this.interval     = interval;
+        this.createdAt    = now;
+        
+        for (int i = 0; i < bills.length; i++) {
+            this.estimators[i] = new Estimator();
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // number of the interval the time (from System.nanoTime) is in,
+    // counted from when the forecaster was created
+    private long intervalOf(long now) {
+        return Math.floorDiv(now - this.createdAt, this.interval);
+    }
+    
+    ///////////////////////////////////////////////////////
+    private long startOf(long interval) {
+        return this.createdAt + interval * this.interval;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // notes of a dispense, indexed the same way as the bills
+    public void record(int[] notes) {
+        this.record(notes, System.nanoTime());
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, at the given time (from System.nanoTime)
+    void record(int[] notes, long now) {
+        for (int i = 0; i < this.bills.length; i++) {
+            if (notes[i] > 0) {
+                this.estimators[i].add(notes[i], now);
+            }
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, for the bill at index i
+    // (bill values are not unique in an ATM with several currencies)
+    void record(int i, int notes, long now) {
+        if (notes > 0) {
+            this.estimators[i].add(notes, now);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // notes of a dispense which was recorded, but then undone
+    // (see ATM.undoWithdrawal): taken off the current interval,
+    // which is usually the one they were counted in
+    public void unrecord(int[] notes) {
+        this.unrecord(notes, System.nanoTime());
+    }
+    
+    ///////////////////////////////////////////////////////
+    void unrecord(int[] notes, long now) {
+        for (int i = 0; i < this.bills.length; i++) {
+            if (notes[i] > 0) {
+                this.estimators[i].add(-notes[i], now);
+            }
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // notes of the bill handed out per second, recently
+    public double getRate(int bill) {
+        return this.getRate(bill, System.nanoTime());
+    }
+    
+    ///////////////////////////////////////////////////////
+    double getRate(int bill, long now) {
+        int i = this.indexOf(bill);
+        
+        return (i < 0) ? 0 : this.rateAt(i, now);
+    }
+    
+    ///////////////////////////////////////////////////////
+    private double rateAt(int i, long now) {
+        // until the forecaster is a few half lives old, the rate only
+        // holds part of the weight it will have later: divide by that part
+        double age    = Math.max(now - this.createdAt, 1) / 1e9;
+        double weight = -Math.expm1(-age / this.timeConstant);
+        
+        return this.estimators[i].rateAt(now) / weight;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // notes of the bill handed out per second in a busy interval
+    // (one of the 10% busiest), for a pessimistic forecast
+    public double getPeakRate(int bill) {
+        return this.getPeakRate(bill, System.nanoTime());
+    }
+    
+    ///////////////////////////////////////////////////////
+    double getPeakRate(int bill, long now) {
+        int i = this.indexOf(bill);
+        
+        return (i < 0) ? 0 : this.estimators[i].peakRateAt(now);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, in a typical interval
+    public double getMedianRate(int bill) {
+        int i = this.indexOf(bill);
+        
+        return (i < 0) ? 0 : this.estimators[i].medianRateAt(System.nanoTime());
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Seconds until the given notes of each bill run out
+     * at the recent rate; infinite for bills nobody withdraws
+     *
+     * @param banknotes: (banknote, count) of the notes left (see ATM.getBanknotes)
+     * @return (banknote, seconds) in the same order
+     */
+    public Map<Integer, Double> secondsToEmpty(Map<Integer, Integer> banknotes) {
+        return this.secondsToEmpty(banknotes, false, System.nanoTime());
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, if every interval were as busy as the peak ones
+    // (but never later than at the recent rate)
+    public Map<Integer, Double> secondsToEmptyAtPeak(Map<Integer, Integer> banknotes) {
+        return this.secondsToEmpty(banknotes, true, System.nanoTime());
+    }
+    
+    ///////////////////////////////////////////////////////
+    Map<Integer, Double> secondsToEmpty(Map<Integer, Integer> banknotes, boolean atPeak, long now) {
+        Map<Integer, Double> result = new TreeMap<Integer, Double>(Collections.reverseOrder());
+        
+        for (Map.Entry<Integer, Integer> entry : banknotes.entrySet()) {
+            int    bill = entry.getKey();
+            double rate = this.getRate(bill, now);
+            
+            if (atPeak) {
+                rate = Math.max(rate, this.getPeakRate(bill, now));
+            }
+            
+            result.put(bill, secondsToEmpty(entry.getValue(), rate));
+        }
+        
+        return result;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // seconds until the bill runs out at the recent rate
+    public double secondsToEmpty(int bill, int notesLeft) {
+        return secondsToEmpty(notesLeft, this.getRate(bill));
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, for the bill at index i
+    public double secondsToEmptyAt(int i, int notesLeft) {
+        return secondsToEmpty(notesLeft, this.rateAt(i, System.nanoTime()));
+    }
+    
+    ///////////////////////////////////////////////////////
+    private static double secondsToEmpty(int notesLeft, double rate) {
+        if (notesLeft <= 0) {
+            return 0;
+        }
+        
+        return (rate > 0) ? notesLeft / rate : Double.POSITIVE_INFINITY;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // move the estimate of a percentile towards the new value:
+    // up by p steps if the value is above it, down by (1 - p) steps otherwise,
+    // so it settles where a fraction p of the values are below it
+    private static double nudge(double estimate, long value, double p) {
+        double step = STEP * Math.max(estimate, 1);
+        
+        if (value > estimate) {
+            return Math.min(estimate + step * p, value);
+        }
+        if (value < estimate) {
+            return Math.max(estimate - step * (1 - p), value);
+        }
+        
+        return estimate;
+    }
+    
+    ///////////////////////////////////////////////////////
+    private int indexOf(int bill) {
+        for (int i = 0; i < this.bills.length; i++) {
+            if (this.bills[i] == bill) {
+                return i;
+            }
+        }
+        
+        return -1;
+    }
+}
@@ -0,0 +1,147 @@
+import java.util.Arrays;
+
+///////////////////////////////////////////////////////
+// the cassettes of one currency in an ATM: its bills, and where
+// they are in the ATM's arrays of notes. the bills of a currency are
+// next to each other, in descending order, so a withdrawal is planned
+// and taken only from them. what the amount check needs (the smallest
+// bill and the greatest common divisor of the bills) is worked out once,
+// when the ATM is created, and every currency caches its own plans
+public class CassetteSet {
+    private String            currency;
+    private int               from;
+    private int[]             bills;
+    private int               smallestBill;
+    private int               unit;
+    private DispensePlanCache plans;
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * @param currency: ISO 4217 code of the currency, eg. "HRK" or "EUR"
+     * @param from: index of the first (largest) bill in the ATM's arrays
+     * @param bills: bill values in descending order
+     */
+    CassetteSet(String currency, int from, int[] bills) {
+        // checks the code
+        pack(currency);
+        
+        if (bills.length == 0) {
+            throw new IllegalArgumentException("No bills for " + currency);
+        }
+        
+        this.currency     = currency;
+        this.from         = from;
+        this.bills        = bills.clone();
+        this.smallestBill = bills[bills.length - 1];
+        
+        for (int bill : bills) {
+            this.unit = gcd(this.unit, bill);
+        }
+        
+        this.plans = new DispensePlanCache(this.unit);
+    }
+    
+    ///////////////////////////////////////////////////////
+    public String getCurrency() {
+        return this.currency;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // index of the first bill of the currency in the ATM's arrays
+    public int getFrom() {
+        return this.from;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // how many different bills of the currency the ATM holds
+    public int size() {
+        return this.bills.length;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // value of bill i of the currency (i from 0 to size - 1)
+    public int getBill(int i) {
+        return this.bills[i];
+    }
+    
+    ///////////////////////////////////////////////////////
+    // bill values in descending order (do not change)
+    int[] getBills() {
+        return this.bills;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public int getSmallestBill() {
+        return this.smallestBill;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // greatest common divisor of the bills: every amount which
+    // can be paid out is a multiple of it (eg. 10 for 200, 100, 50, 20, 10)
+    public int getUnit() {
+        return this.unit;
+    }
+    
+    ///////////////////////////////////////////////////////
+    DispensePlanCache getPlans() {
+        return this.plans;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // true if the amount is > 0 and a multiple of the unit;
+    // whether the notes in the ATM can make it up is up to the planner
+    public boolean isValidAmount(int amount) {
+        return amount > 0 && amount % this.unit == 0;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the currency code in an int, eg. for snapshots;
+    // throws IllegalArgumentException if it's not 3 capital letters
+    static int pack(String currency) {
+        if (currency == null || currency.length() != 3) {
+            throw new IllegalArgumentException("Currency should be a 3 letter code: " + currency);
+        }
+        
+        int packed = 0;
+        
+        for (int i = 0; i < 3; i++) {
+            char letter = currency.charAt(i);
+            
+            if (letter < 'A' || letter > 'Z') {
+                throw new IllegalArgumentException("Currency should be a 3 letter code: " + currency);
+            }
+            
+            packed = (packed << 8) | letter;
+        }
+        
+        return packed;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the currency code from pack
+    static String unpack(int packed) {
+        char[] letters = { (char) ((packed >>> 16) & 0xFF), (char) ((packed >>> 8) & 0xFF), (char) (packed & 0xFF) };
+        String currency = new String(letters);
+        
+        // checks the letters
+        pack(currency);
+        
+        return currency;
+    }
+    
+    ///////////////////////////////////////////////////////
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int rest = a % b;
+            a = b;
+            b = rest;
+        }
+        
+        return a;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public String toString() {
+        return this.currency + Arrays.toString(this.bills);
+    }
+}
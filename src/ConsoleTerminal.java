@@ -0,0 +1,31 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+///////////////////////////////////////////////////////
+// the terminal of the interactive ATM: keyboard and screen;
+// all prompts share one reader, so no typed input gets lost
+// between two readers buffering System.in
+public class ConsoleTerminal implements Terminal {
+    private static BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+    
+    ///////////////////////////////////////////////////////
+    public String readLine() {
+        try {
+            return input.readLine();
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    public void print(String text) {
+        System.out.print(text);
+    }
+    
+    ///////////////////////////////////////////////////////
+    public void println(String text) {
+        System.out.println(text);
+    }
+}
@@ -1,55 +1,119 @@
+// every exception can be created without a stack trace (much cheaper);
+// the ones with a fixed message also have a shared STACKLESS instance
+
 /////////////////////// ATM RELATED \\\\\\\\\\\\\\\\\\\\\\\\
 class NotEnoughMoneyInATM extends Exception {
+    static final NotEnoughMoneyInATM STACKLESS = new NotEnoughMoneyInATM(Outcome.NOT_ENOUGH_MONEY_IN_ATM.getMessage(), false);
+    
     NotEnoughMoneyInATM(String s){
         super(s);
     }
+    
+    NotEnoughMoneyInATM(String s, boolean withStackTrace){
+        super(s, null, false, withStackTrace);
+    }
 }
 
 class InvalidRequestedAmount extends Exception {
     InvalidRequestedAmount(String s){
         super(s);
     }
+    
+    InvalidRequestedAmount(String s, boolean withStackTrace){
+        super(s, null, false, withStackTrace);
+    }
 }
 
 class PrinterError extends Exception {
+    static final PrinterError STACKLESS = new PrinterError(Outcome.PRINTER_ERROR.getMessage(), false);
+    
     PrinterError(String s){
         super(s);
     }
+    
+    PrinterError(String s, boolean withStackTrace){
+        super(s, null, false, withStackTrace);
+    }
 }
 
 /////////////////////// CARD RELATED \\\\\\\\\\\\\\\\\\\\\\\\
 class CardIsBlocked extends Exception {
+    static final CardIsBlocked STACKLESS = new CardIsBlocked(Outcome.CARD_IS_BLOCKED.getMessage(), false);
+    
     CardIsBlocked(String s){
         super(s);
     }
+    
+    CardIsBlocked(String s, boolean withStackTrace){
+        super(s, null, false, withStackTrace);
+    }
 }
 
 class CardNotInserted extends Exception {
+    static final CardNotInserted STACKLESS = new CardNotInserted(Outcome.CARD_NOT_INSERTED.getMessage(), false);
+    
     CardNotInserted(String s){
         super(s);
     }
+    
+    CardNotInserted(String s, boolean withStackTrace){
+        super(s, null, false, withStackTrace);
+    }
 }
 
 class ExceededDailyLimit extends Exception {
+    static final ExceededDailyLimit STACKLESS = new ExceededDailyLimit(Outcome.EXCEEDED_DAILY_LIMIT.getMessage(), false);
+    
     ExceededDailyLimit(String s){
         super(s);
     }
+    
+    ExceededDailyLimit(String s, boolean withStackTrace){
+        super(s, null, false, withStackTrace);
+    }
 }
 
 class ExceededTransactionLimit extends Exception {
     ExceededTransactionLimit(String s){
         super(s);
     }
+    
+    ExceededTransactionLimit(String s, boolean withStackTrace){
+        super(s, null, false, withStackTrace);
+    }
 }
 
 class NotEnoughFunds extends Exception {
+    static final NotEnoughFunds STACKLESS = new NotEnoughFunds(Outcome.NOT_ENOUGH_FUNDS.getMessage(), false);
+    
     NotEnoughFunds(String s){
         super(s);
     }
+    
+    NotEnoughFunds(String s, boolean withStackTrace){
+        super(s, null, false, withStackTrace);
+    }
 }
 
 class SamePINOnChange extends Exception {
+    static final SamePINOnChange STACKLESS = new SamePINOnChange(Outcome.SAME_PIN_ON_CHANGE.getMessage(), false);
+    
     SamePINOnChange(String s){
         super(s);
     }
-}
\ No newline at end of file
+    
+    SamePINOnChange(String s, boolean withStackTrace){
+        super(s, null, false, withStackTrace);
+    }
+}
+
+/////////////////////// SESSION RELATED \\\\\\\\\\\\\\\\\\\\\\\\
+// thrown when the terminal of a session has no more input;
+// unchecked, since any prompt of the session can run into it
+class SessionClosed extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    
+    SessionClosed(String s){
+        super(s);
+    }
+}
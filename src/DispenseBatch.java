@@ -0,0 +1,116 @@
+import java.util.Map;
+
+///////////////////////////////////////////////////////
+// many withdrawal amounts planned together against the notes
+// in an ATM (see ATM.planBatch and ATM.withdrawBatch): the outcome
+// and the notes of each amount, and the notes of all of them in total.
+// amounts are planned in order, each against what the ones before it
+// left in the cassettes, so the batch pays out the same as the
+// amounts would one after another
+public class DispenseBatch {
+    private ATM       atm;
+    private int       billsCount;
+    private int[]     amounts;
+    private Outcome[] outcomes;
+    
+    // notes of every amount one after another, billsCount each,
+    // so a batch of any size is a single array
+    private int[]     notes;
+    private int[]     totals;
+    private boolean   isCommitted = false;
+    
+    ///////////////////////////////////////////////////////
+    DispenseBatch(ATM atm, int[] amounts) {
+        this.atm        = atm;
+        this.billsCount = atm.getBillsCount();
+        this.amounts    = amounts.clone();
+        this.outcomes   = new Outcome[amounts.length];
+        this.notes      = new int[amounts.length * this.billsCount];
+        this.totals     = new int[this.billsCount];
+    }
+    
+    ///////////////////////////////////////////////////////
+    // record the outcome of amount i and, if it's paid out, its notes
+    void set(int i, Outcome outcome, int[] notes) {
+        this.outcomes[i] = outcome;
+        
+        if (outcome == Outcome.OK) {
+            System.arraycopy(notes, 0, this.notes, i * this.billsCount, this.billsCount);
+            
+            for (int j = 0; j < this.billsCount; j++) {
+                this.totals[j] += notes[j];
+            }
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    void markCommitted() {
+        this.isCommitted = true;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // notes of all amounts which are paid out, per bill (do not change)
+    int[] getTotalsArray() {
+        return this.totals;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // how many amounts are in the batch
+    public int size() {
+        return this.amounts.length;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public int getAmount(int i) {
+        return this.amounts[i];
+    }
+    
+    ///////////////////////////////////////////////////////
+    // OK, INVALID_REQUESTED_AMOUNT or NOT_ENOUGH_MONEY_IN_ATM
+    public Outcome getOutcome(int i) {
+        return this.outcomes[i];
+    }
+    
+    ///////////////////////////////////////////////////////
+    // copy the notes of amount i (all 0 if it's not paid out)
+    // into an array from ATM.newNotesArray
+    public void getNotes(int i, int[] notes) {
+        System.arraycopy(this.notes, i * this.billsCount, notes, 0, this.billsCount);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // (banknote, count) of the notes of amount i
+    public Map<Integer, Integer> getNotes(int i) {
+        int[] notes = this.atm.newNotesArray();
+        this.getNotes(i, notes);
+        
+        return this.atm.notesToMap(notes);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // (banknote, count) of the notes of the whole batch
+    public Map<Integer, Integer> getTotals() {
+        return this.atm.notesToMap(this.totals);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // how much money the batch pays out
+    public long getTotalAmount() {
+        long total = 0;
+        
+        for (int i = 0; i < this.amounts.length; i++) {
+            if (this.outcomes[i] == Outcome.OK) {
+                total += this.amounts[i];
+            }
+        }
+        
+        return total;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // true if the notes were taken out of the ATM (see ATM.withdrawBatch),
+    // false if the batch was only planned
+    public boolean isCommitted() {
+        return this.isCommitted;
+    }
+}
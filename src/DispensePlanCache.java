@@ -0,0 +1,141 @@
+import java.util.Collections;
+import java.util.Map;
+
+///////////////////////////////////////////////////////
+// plans of the amounts an ATM pays out most often (50, 100, 200, ...),
+// so they don't have to be planned again every time.
+// only plans which were made while no bill was running low are kept:
+// such a plan is what the planner picks with unlimited notes,
+// so it's still the best plan for as long as the ATM has at least
+// the notes it uses (see ATM.cachedPlan), however the counts change.
+// it's a small table with one plan per slot, where the slot comes from
+// the amount; an amount has to miss twice in a row before it replaces
+// what's in its slot, so rare amounts don't push out the common ones
+public class DispensePlanCache {
+    private static final int SIZE = 64;
+    
+    // plans are never changed once they are in the table, and all of
+    // their fields are final, so a thread which reads a plan from the
+    // plain array (without locking or a volatile read) sees it complete;
+    // at worst it sees an older plan of the slot, or none, and misses.
+    // missed only decides when a plan is kept, a lost write there
+    // costs one more miss
+    private Plan[] plans  = new Plan[SIZE];
+    private int[]  missed = new int[SIZE];
+    private int    unit;
+    
+    // notes for one amount; the map is the same for every caller
+    // and can't be changed
+    public static class Plan {
+        private final int                   amount;
+        private final CashPlanner.Objective objective;
+        private final int[]                 notes;
+        private final Map<Integer, Integer> banknotes;
+        
+        ///////////////////////////////////////////////////////
+        Plan(int amount, CashPlanner.Objective objective, int[] notes, Map<Integer, Integer> banknotes) {
+            this.amount    = amount;
+            this.objective = objective;
+            this.notes     = notes.clone();
+            this.banknotes = Collections.unmodifiableMap(banknotes);
+        }
+        
+        ///////////////////////////////////////////////////////
+        // notes of bill i (indexed like the bills of the ATM)
+        public int getNotes(int i) {
+            return this.notes[i];
+        }
+        
+        ///////////////////////////////////////////////////////
+        public void copyTo(int[] notes) {
+            System.arraycopy(this.notes, 0, notes, 0, this.notes.length);
+        }
+        
+        ///////////////////////////////////////////////////////
+        public Map<Integer, Integer> getBanknotes() {
+            return this.banknotes;
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // unit: the greatest common divisor of the bills (see CassetteSet.getUnit),
+    // every valid amount is a multiple of it. Amounts SIZE units apart
+    // share a slot, only the amount kept in the plan tells them apart
+    public DispensePlanCache(int unit) {
+        this.unit = unit;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the plan for the amount made with the given objective, or null
+    public Plan get(int amount, CashPlanner.Objective objective) {
+        Plan plan = this.plans[this.slotOf(amount)];
+        
+        if (plan == null || plan.amount != amount || plan.objective != objective) {
+            return null;
+        }
+        
+        return plan;
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Whether a plan which was just made should be kept (see put):
+     * only if none of the counts it was planned with could have
+     * limited it, and the amount has missed its slot before
+     *
+     * @param amount: the planned amount
+     * @param bills: bill values of the ATM
+     * @param counts: notes per bill the plan was made with
+     */
+    public boolean accepts(int amount, int[] bills, int[] counts) {
+        if (!isUnlimited(amount, bills, counts)) {
+            return false;
+        }
+        
+        int slot = this.slotOf(amount);
+        
+        // first miss: only remember the amount
+        if (this.missed[slot] != amount) {
+            this.missed[slot] = amount;
+            return false;
+        }
+        
+        return true;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // keep the plan, replacing whatever was in its slot
+    public void put(int amount, CashPlanner.Objective objective, int[] notes, Map<Integer, Integer> banknotes) {
+        this.plans[this.slotOf(amount)] = new Plan(amount, objective, notes, banknotes);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // true if no count could limit a plan of the amount
+    // (there are enough notes of every bill to pay it all with that bill)
+    static boolean isUnlimited(int amount, int[] bills, int[] counts) {
+        for (int i = 0; i < bills.length; i++) {
+            if (counts[i] < amount / bills[i]) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // true if there are at least as many notes of every bill as the plan uses
+    static boolean fits(int[] notes, int[] counts) {
+        for (int i = 0; i < notes.length; i++) {
+            if (counts[i] < notes[i]) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    ///////////////////////////////////////////////////////
+    private int slotOf(int amount) {
+        return (amount / this.unit) & (SIZE - 1);
+    }
+}
@@ -0,0 +1,304 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+///////////////////////////////////////////////////////
+// log of what happens in the ATMs (withdrawals, blocked cards, etc.),
+// written on its own thread, so a transaction never waits for the console.
+// events go into a ring buffer of preallocated slots, every field in its
+// own array, and are only turned into text by the writer thread.
+// if the writer falls behind and the buffer is full, new events
+// are dropped (and counted) instead of blocking the caller.
+// the global log is off until it's given somewhere to write (see setOutput),
+// so its lines never end up between the prompts of a console session;
+// the writer thread is only started then, and sleeps while there's nothing to write
+public class EventLog {
+    private static final Metrics.Counter DROPPED = Metrics.get().counter("event_log_dropped");
+    
+    private static EventLog global = new EventLog(1 << 16, null);
+    
+    public enum Type {
+        ATM_CREATED,
+        WITHDRAWAL,
+        CARD_BLOCKED,
+        PIN_CHANGED,
+        PIN_ATTACK,
+        SNAPSHOT_FAILED
+    }
+    
+    // the slots; an event's slot is its sequence number modulo the capacity
+    private int       mask;
+    private long[]    times;
+    private Type[]    types;
+    private ATM[]     atms;
+    private int[]     cards;
+    private int[]     amounts;
+    private Outcome[] outcomes;
+    private Object[]  details;
+    
+    // sequence number of the event in each slot once it's completely written
+    private AtomicLongArray published;
+    
+    // next sequence number to hand out, the next one to be written out
+    // and up to which one the output has been flushed
+    private AtomicLong    next      = new AtomicLong();
+    private volatile long written   = 0;
+    private volatile long flushedTo = 0;
+    
+    private volatile boolean isEnabled = true;
+    private volatile Writer  sink;
+    private volatile Thread  writer;
+    
+    // set by the writer thread before it parks, so a publisher
+    // knows it has to wake it up (see log and write)
+    private volatile boolean isWaiting = false;
+    
+    ///////////////////////////////////////////////////////
+    // the log the ATMs and cards write to; off until setOutput is called
+    public static EventLog get() {
+        return global;
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * @param capacity: how many events can wait to be written (rounded up to a power of two)
+     * @param out: where the events are written (null: nowhere, the log is off until setOutput)
+     */
+    public EventLog(int capacity, PrintStream out) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        
+        this.mask      = size - 1;
+        this.times     = new long[size];
+        this.types     = new Type[size];
+        this.atms      = new ATM[size];
+        this.cards     = new int[size];
+        this.amounts   = new int[size];
+        this.outcomes  = new Outcome[size];
+        this.details   = new Object[size];
+        this.published = new AtomicLongArray(size);
+        this.sink      = toWriter(out);
+        this.isEnabled = (out != null);
+        
+        for (int i = 0; i < size; i++) {
+            this.published.set(i, -1);
+        }
+        
+        if (this.isEnabled) {
+            this.startWriter();
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the first time the log is turned on
+    private synchronized void startWriter() {
+        if (this.writer != null) {
+            return;
+        }
+        
+        Thread writer = new Thread(this::write, "event-log");
+        writer.setDaemon(true);
+        
+        this.writer = writer;
+        writer.start();
+        
+        // write what's left when the program ends
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+    }
+    
+    ///////////////////////////////////////////////////////
+    // write the events somewhere else from now on (eg. a file),
+    // and turn the log on
+    public void setOutput(PrintStream out) {
+        this.flush();
+        this.sink = toWriter(out);
+        this.setEnabled(true);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // when disabled, logging an event costs a single read of a flag
+    public void setEnabled(boolean isEnabled) {
+        if (isEnabled) {
+            this.startWriter();
+        }
+        
+        this.isEnabled = isEnabled;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // whether events are logged at all; callers check it before
+    // building anything for an event (eg. a copy of the notes)
+    public boolean isEnabled() {
+        return this.isEnabled;
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Put an event in the buffer for the writer thread;
+     * never blocks, drops the event if the buffer is full
+     *
+     * @param type: what happened
+     * @param atm: where it happened (or null)
+     * @param card: number of the card (or 0)
+     * @param amount: amount of money involved (or 0)
+     * @param outcome: outcome of the operation (or null)
+     * @param detail: anything else needed to describe the event, formatted by the writer
+     */
+    public void log(Type type, ATM atm, int card, int amount, Outcome outcome, Object detail) {
+        if (!this.isEnabled) {
+            return;
+        }
+        
+        long sequence;
+        
+        do {
+            sequence = this.next.get();
+            
+            if (sequence - this.written > this.mask) {
+                DROPPED.increment();
+                return;
+            }
+        }
+        while (!this.next.compareAndSet(sequence, sequence + 1));
+        
+        int slot = (int) (sequence & this.mask);
+        
+        this.times[slot]    = System.currentTimeMillis();
+        this.types[slot]    = type;
+        this.atms[slot]     = atm;
+        this.cards[slot]    = card;
+        this.amounts[slot]  = amount;
+        this.outcomes[slot] = outcome;
+        this.details[slot]  = detail;
+        
+        // a volatile write, then a volatile read: either the writer
+        // sees the event before it parks, or this sees it waiting
+        this.published.set(slot, sequence);
+        
+        if (this.isWaiting) {
+            LockSupport.unpark(this.writer);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // wait until everything logged so far is written out
+    public void flush() {
+        long   until  = this.next.get();
+        Thread writer = this.writer;
+        
+        while (writer != null && this.flushedTo < until && writer.isAlive()) {
+            LockSupport.parkNanos(100000);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the writer thread: format the events in order and write them;
+    // once there's nothing left to write, the output is flushed
+    // and the thread parks until the next event is logged
+    private void write() {
+        StringBuilder line = new StringBuilder(128);
+        
+        while (true) {
+            long sequence = this.written;
+            int  slot     = (int) (sequence & this.mask);
+            
+            if (this.published.get(slot) != sequence) {
+                if (this.flushedTo < sequence) {
+                    this.flushSink();
+                    continue;
+                }
+                
+                this.isWaiting = true;
+                
+                if (this.published.get(slot) != sequence) {
+                    LockSupport.park(this);
+                }
+                
+                this.isWaiting = false;
+                continue;
+            }
+            
+            line.setLength(0);
+            this.format(slot, line);
+            
+            // free the slot before writing, the event is copied into the line
+            this.atms[slot]    = null;
+            this.details[slot] = null;
+            this.written       = sequence + 1;
+            
+            try {
+                this.sink.append(line);
+            }
+            catch (IOException e) {
+                // nowhere left to report it
+            }
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    private void flushSink() {
+        try {
+            this.sink.flush();
+        }
+        catch (IOException e) {
+            // nowhere left to report it
+        }
+        
+        this.flushedTo = this.written;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // time, type and the fields which are set, eg.
+    // 2024-05-01T10:00:00.123Z WITHDRAWAL atm=1 card=2 amount=200 outcome=OK
+    private void format(int slot, StringBuilder line) {
+        Type type = this.types[slot];
+        ATM  atm  = this.atms[slot];
+        
+        line.append(Instant.ofEpochMilli(this.times[slot])).append(' ').append(type);
+        
+        if (atm != null) {
+            line.append(" atm=").append(atm.getNumber());
+        }
+        if (this.cards[slot] != 0) {
+            line.append(" card=").append(this.cards[slot]);
+        }
+        if (this.amounts[slot] != 0) {
+            line.append(" amount=").append(this.amounts[slot]);
+        }
+        if (this.outcomes[slot] != null) {
+            line.append(" outcome=").append(this.outcomes[slot]);
+        }
+        
+        Object detail = this.details[slot];
+        
+        // notes per bill of the ATM, eg. the money in a new ATM
+        // (per currency, if it has more than one)
+        if (detail instanceof int[] && atm != null && atm.getCurrencies().size() == 1) {
+            line.append(" notes=").append(atm.notesToMap((int[]) detail));
+        }
+        else if (detail instanceof int[] && atm != null) {
+            for (String currency : atm.getCurrencies()) {
+                line.append(' ').append(currency).append('=').append(atm.notesToMap(currency, (int[]) detail));
+            }
+        }
+        else if (detail != null) {
+            line.append(" detail=\"").append(detail).append('"');
+        }
+        
+        line.append(System.lineSeparator());
+    }
+    
+    ///////////////////////////////////////////////////////
+    private static Writer toWriter(PrintStream out) {
+        if (out == null) {
+            return Writer.nullWriter();
+        }
+        
+        return new BufferedWriter(new OutputStreamWriter(out), 1 << 16);
+    }
+}
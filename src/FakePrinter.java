@@ -0,0 +1,95 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+///////////////////////////////////////////////////////
+// a printer without paper: takes as long as a real one would,
+// fails as often as it's told to, and only counts what it printed
+// (and keeps the last batch, so it can be looked at).
+// failures come in two kinds: a batch which fails on its own (a paper jam)
+// and a printer which is out of order until setBroken(false)
+public class FakePrinter implements ReceiptPrinter {
+    private long             latency;
+    private long             latencyPerReceipt;
+    private double           failureRate;
+    private volatile boolean isBroken = false;
+    
+    private AtomicLong      printed   = new AtomicLong();
+    private AtomicLong      batches   = new AtomicLong();
+    private AtomicLong      failures  = new AtomicLong();
+    private volatile String lastBatch = "";
+    
+    ///////////////////////////////////////////////////////
+    // prints instantly and never fails
+    public FakePrinter() {
+        this(0, 0, TimeUnit.MILLISECONDS, 0);
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * @param latency: how long every batch takes (eg. to feed and cut the paper)
+     * @param latencyPerReceipt: and on top of that, every receipt in it
+     * @param unit: unit of the latencies
+     * @param failureRate: share of the batches which fail (0 to 1)
+     */
+    public FakePrinter(long latency, long latencyPerReceipt, TimeUnit unit, double failureRate) {
+        this.latency           = unit.toNanos(latency);
+        this.latencyPerReceipt = unit.toNanos(latencyPerReceipt);
+        this.failureRate       = failureRate;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // out of paper or ink: every batch fails until it's fixed
+    public void setBroken(boolean isBroken) {
+        this.isBroken = isBroken;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public void print(byte[] receipts, int length, int count) throws PrinterError {
+        long delay = this.latency + this.latencyPerReceipt * count;
+        
+        if (delay > 0) {
+            LockSupport.parkNanos(delay);
+        }
+        
+        if (this.isBroken || ThreadLocalRandom.current().nextDouble() < this.failureRate) {
+            this.failures.incrementAndGet();
+            throw PrinterError.STACKLESS;
+        }
+        
+        this.lastBatch = new String(receipts, 0, length, StandardCharsets.US_ASCII);
+        this.printed.addAndGet(count);
+        this.batches.incrementAndGet();
+    }
+    
+    ///////////////////////////////////////////////////////
+    public boolean isInOrder() {
+        return !this.isBroken;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // how many receipts were printed
+    public long getPrinted() {
+        return this.printed.get();
+    }
+    
+    ///////////////////////////////////////////////////////
+    // in how many batches
+    public long getBatches() {
+        return this.batches.get();
+    }
+    
+    ///////////////////////////////////////////////////////
+    // how many batches failed
+    public long getFailures() {
+        return this.failures.get();
+    }
+    
+    ///////////////////////////////////////////////////////
+    // text of the last batch which was printed
+    public String getLastBatch() {
+        return this.lastBatch;
+    }
+}
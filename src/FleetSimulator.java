@@ -0,0 +1,561 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+///////////////////////////////////////////////////////
+// a fleet of ATMs and a lot of cards under synthetic load:
+// every core runs transactions (withdrawals, balance checks, PIN changes,
+// some of them with a wrong PIN) against randomly picked ATMs of the fleet,
+// and at the end the throughput, the latency percentiles per action
+// and how the cassettes ran out over time are printed.
+//
+// usage: java FleetSimulator [key=value ...], eg.
+//   atms=16 cards=100000 seconds=10 threads=8 amounts=20-600
+//   amounts=100:5,200:3,50:2 (amount:weight) pinFailure=0.02 changePIN=0.01 balance=0.2
+//   stuffing=0.1 (share of balance checks with a random PIN on a random card, see PINGuard)
+//   printerLatency=20 printerFailure=0.001 (every ATM prints balance receipts on a FakePrinter
+//   taking that many ms per batch, of which that share fails; no printers otherwise)
+//   mixes=200:400,100:600,50:800/100:2000,20:2000 (cassettes of the ATMs, taken in turn)
+//   metrics=fleet.metrics (where to write the metrics at the end)
+//   export=fleet.export (where to write every transaction, see TransactionExportReader)
+//   events=fleet.log (where to write the event log, which is off otherwise)
+public class FleetSimulator {
+    private static final int AMOUNTS_TABLE_SIZE = 4096;
+    private static final int TIMELINE_SAMPLES   = 20;
+    
+    private ATM[]                  atms;
+    private TransactionProcessor[] processors;
+    private FakePrinter[]          printers;
+    private TransactionExport      export;
+    private Card[]                 cards;
+    private String[]               PINs;
+    
+    // amounts are drawn from this table, which is filled
+    // according to the configured distribution
+    private int[] amounts = new int[AMOUNTS_TABLE_SIZE];
+    
+    // share of the transactions with a wrong PIN,
+    // and of the ones which check the balance or change the PIN
+    // (all others are withdrawals)
+    private double PINFailureRate = 0.02;
+    private double balanceRate    = 0.2;
+    private double changePINRate  = 0.01;
+    
+    // share of the transactions which are someone trying random PINs
+    private double stuffingRate   = 0;
+    
+    private int threads = Runtime.getRuntime().availableProcessors();
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * @param cassetteMixes: (bill, count) for the ATMs, used in turn
+     * @param atmsCount: size of the fleet
+     * @param cardsCount: how many cards the load is spread over
+     * @param balance: starting balance of every card
+     * @param limit: transaction limit of every card
+     */
+    public FleetSimulator(List<Map<Integer, Integer>> cassetteMixes, int atmsCount, int cardsCount, double balance, int limit) {
+        CardRegistry registry = new CardRegistry();
+        
+        this.atms       = new ATM[atmsCount];
+        this.processors = new TransactionProcessor[atmsCount];
+        this.cards      = new Card[cardsCount];
+        this.PINs       = new String[cardsCount];
+        
+        for (int i = 0; i < cardsCount; i++) {
+            this.PINs[i]  = String.valueOf(10000 + i % 10000).substring(1);
+            this.cards[i] = new Card(balance, limit, this.PINs[i]);
+            registry.register(this.cards[i]);
+        }
+        
+        for (int i = 0; i < atmsCount; i++) {
+            this.atms[i]       = new ATM(cassetteMixes.get(i % cassetteMixes.size()));
+            this.processors[i] = new TransactionProcessor(this.atms[i], registry);
+        }
+        
+        this.setAmountRange(20, 600);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // every amount from the range (rounded to tens) is equally likely
+    public void setAmountRange(int from, int to) {
+        Random random = new Random(42);
+        
+        for (int i = 0; i < this.amounts.length; i++) {
+            this.amounts[i] = Math.max((from + random.nextInt(to - from + 1)) / 10 * 10, 10);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // amounts with their relative weights, eg. 100 five times as often as 20
+    public void setAmounts(int[] amounts, double[] weights) {
+        double total = 0;
+        for (double weight : weights) {
+            total += weight;
+        }
+        
+        int    filled     = 0;
+        double cumulative = 0;
+        
+        for (int i = 0; i < amounts.length; i++) {
+            cumulative += weights[i];
+            int upTo    = (i == amounts.length - 1) ? this.amounts.length : (int) Math.round(cumulative / total * this.amounts.length);
+            
+            for (; filled < upTo; filled++) {
+                this.amounts[filled] = amounts[i];
+            }
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    public void setPINFailureRate(double rate) {
+        this.PINFailureRate = rate;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public void setBalanceRate(double rate) {
+        this.balanceRate = rate;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public void setChangePINRate(double rate) {
+        this.changePINRate = rate;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public void setStuffingRate(double rate) {
+        this.stuffingRate = rate;
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Print a receipt for every balance check, on a printer of each ATM
+     *
+     * @param latency: how long a batch of receipts takes to print
+     * @param unit: unit of the latency
+     * @param failureRate: share of the batches which fail
+     */
+    public void setPrinters(long latency, TimeUnit unit, double failureRate) {
+        this.printers = new FakePrinter[this.atms.length];
+        
+        for (int i = 0; i < this.atms.length; i++) {
+            this.printers[i] = new FakePrinter(latency, 0, unit, failureRate);
+            this.atms[i].setReceiptSpooler(new ReceiptSpooler(this.printers[i]));
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // write every transaction of the run to the file (see TransactionExport),
+    // with a column for the notes of every bill of the fleet
+    public void setExport(Path file) throws IOException {
+        Set<Integer> bills = new TreeSet<Integer>(Collections.reverseOrder());
+        
+        for (ATM atm : this.atms) {
+            for (String currency : atm.getCurrencies()) {
+                CassetteSet cassettes = atm.getCassettes(currency);
+                
+                for (int i = 0; i < cassettes.size(); i++) {
+                    bills.add(cassettes.getBill(i));
+                }
+            }
+        }
+        
+        this.export = new TransactionExport(file, bills.stream().mapToInt(Integer::intValue).toArray());
+        
+        for (TransactionProcessor processor : this.processors) {
+            processor.setExport(this.export);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public ATM[] getATMs() {
+        return this.atms;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // what one thread has measured
+    private static class Worker extends Thread {
+        LatencyHistogram[] latencies = new LatencyHistogram[TransactionRequest.Action.values().length];
+        long[][]           outcomes  = new long[TransactionRequest.Action.values().length][Outcome.values().length];
+        
+        ///////////////////////////////////////////////////////
+        Worker(Runnable work, String name) {
+            super(work, name);
+            
+            for (int i = 0; i < this.latencies.length; i++) {
+                this.latencies[i] = new LatencyHistogram();
+            }
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Run the load for the given time, then print the report
+     *
+     * @param duration: how long to run the load
+     * @param unit: unit of the duration
+     */
+    public void run(long duration, TimeUnit unit) throws InterruptedException, IOException {
+        long           durationNanos = unit.toNanos(duration);
+        long           start         = System.nanoTime();
+        long           end           = start + durationNanos;
+        List<Worker>   workers       = new ArrayList<Worker>(this.threads);
+        List<String>   timeline      = new ArrayList<String>();
+        
+        timeline.add(this.timelineRow(0));
+        
+        // every thread gets its own cards, so it always knows their current PIN
+        for (int t = 0; t < this.threads; t++) {
+            int      first  = t;
+            Worker[] worker = new Worker[1];
+            
+            worker[0] = new Worker(() -> this.work(worker[0], first, end), "fleet-" + t);
+            workers.add(worker[0]);
+        }
+        
+        for (Worker worker : workers) {
+            worker.start();
+        }
+        
+        // how the cassettes run out
+        for (int sample = 1; sample <= TIMELINE_SAMPLES; sample++) {
+            long sampleAt = start + durationNanos * sample / TIMELINE_SAMPLES;
+            long sleep    = sampleAt - System.nanoTime();
+            
+            if (sleep > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            }
+            
+            timeline.add(this.timelineRow(System.nanoTime() - start));
+        }
+        
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        
+        if (this.export != null) {
+            this.export.close();
+        }
+        
+        // print the receipts which are still queued
+        for (ATM atm : this.atms) {
+            if (atm.getReceiptSpooler() != null) {
+                atm.getReceiptSpooler().close();
+            }
+        }
+        
+        this.report(workers, System.nanoTime() - start, timeline);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // transactions of one thread until the end of the run
+    private void work(Worker worker, int firstCard, long end) {
+        ThreadLocalRandom random  = ThreadLocalRandom.current();
+        TransactionResult result  = new TransactionResult();
+        int               cardsOf = (this.cards.length - firstCard + this.threads - 1) / this.threads;
+        
+        if (cardsOf <= 0) {
+            return;
+        }
+        
+        do {
+            for (int i = 0; i < 64; i++) {
+                int                  whichCard = firstCard + random.nextInt(cardsOf) * this.threads;
+                Card                 card      = this.cards[whichCard];
+                TransactionProcessor processor = this.processors[random.nextInt(this.processors.length)];
+                String               PIN       = this.PINs[whichCard];
+                double               action    = random.nextDouble();
+                
+                if (random.nextDouble() < this.PINFailureRate) {
+                    PIN = wrongPIN(PIN);
+                }
+                
+                TransactionRequest request;
+                String             newPIN = null;
+                
+                // a guess on any card, not only the ones of this thread
+                if (random.nextDouble() < this.stuffingRate) {
+                    card    = this.cards[random.nextInt(this.cards.length)];
+                    request = TransactionRequest.balance(card.getNumber(), String.valueOf(10000 + random.nextInt(10000)).substring(1));
+                }
+                else if (action < this.changePINRate) {
+                    newPIN  = String.valueOf(10000 + random.nextInt(10000)).substring(1);
+                    request = TransactionRequest.changePIN(card.getNumber(), PIN, newPIN);
+                }
+                else if (action < this.changePINRate + this.balanceRate) {
+                    request = TransactionRequest.balance(card.getNumber(), PIN);
+                }
+                else {
+                    request = TransactionRequest.withdrawal(card.getNumber(), PIN, this.amounts[random.nextInt(this.amounts.length)]);
+                }
+                
+                long started = System.nanoTime();
+                processor.process(request, result);
+                long elapsed = System.nanoTime() - started;
+                
+                int which = request.getAction().ordinal();
+                worker.latencies[which].record(elapsed);
+                worker.outcomes[which][result.getOutcome().ordinal()]++;
+                
+                if (newPIN != null && result.isSuccessful()) {
+                    this.PINs[whichCard] = newPIN;
+                }
+            }
+        }
+        while (System.nanoTime() < end);
+    }
+    
+    ///////////////////////////////////////////////////////
+    private static String wrongPIN(String PIN) {
+        char last = PIN.charAt(3);
+        
+        return PIN.substring(0, 3) + ((last == '9') ? '0' : (char) (last + 1));
+    }
+    
+    ///////////////////////////////////////////////////////
+    // notes left per bill in the whole fleet, and how many ATMs have empty cassettes
+    private String timelineRow(long elapsedNanos) {
+        Map<Integer, Integer> total        = new TreeMap<Integer, Integer>(Collections.reverseOrder());
+        int                   emptyATMs    = 0;
+        int                   emptyBills   = 0;
+        
+        for (ATM atm : this.atms) {
+            Map<Integer, Integer> banknotes = atm.getBanknotes();
+            boolean               isEmpty   = true;
+            
+            for (Map.Entry<Integer, Integer> entry : banknotes.entrySet()) {
+                total.merge(entry.getKey(), entry.getValue(), Integer::sum);
+                
+                if (entry.getValue() > 0) {
+                    isEmpty = false;
+                }
+                else {
+                    emptyBills++;
+                }
+            }
+            
+            if (isEmpty) {
+                emptyATMs++;
+            }
+        }
+        
+        return String.format("%8.2f s  %-56s %6d %6d", elapsedNanos / 1e9, total, emptyBills, emptyATMs);
+    }
+    
+    ///////////////////////////////////////////////////////
+    private void report(List<Worker> workers, long elapsedNanos, List<String> timeline) {
+        TransactionRequest.Action[] actions = TransactionRequest.Action.values();
+        LatencyHistogram            all     = new LatencyHistogram();
+        
+        System.out.println("\n>>> " + this.atms.length + " ATMs, " + this.cards.length + " cards, "
+                           + workers.size() + " threads, " + String.format("%.1f", elapsedNanos / 1e9) + " s");
+        System.out.println(String.format("\n%-14s %12s %12s %12s %12s %12s %12s", "action", "count", "tx/s", "p50", "p99", "p999", "max"));
+        
+        for (TransactionRequest.Action action : actions) {
+            LatencyHistogram    latency  = new LatencyHistogram();
+            Map<Outcome, Long>  outcomes = new HashMap<Outcome, Long>();
+            
+            for (Worker worker : workers) {
+                latency.add(worker.latencies[action.ordinal()]);
+                
+                for (Outcome outcome : Outcome.values()) {
+                    long count = worker.outcomes[action.ordinal()][outcome.ordinal()];
+                    
+                    if (count > 0) {
+                        outcomes.merge(outcome, count, Long::sum);
+                    }
+                }
+            }
+            
+            all.add(latency);
+            System.out.println(row(action.toString(), latency, elapsedNanos) + "   " + outcomes);
+        }
+        
+        System.out.println(row("all", all, elapsedNanos));
+        
+        if (PINGuard.get().isUnderAttack()) {
+            System.out.println("\n>>> Too many wrong PINs in the last minute, the PIN guard is throttling cards");
+        }
+        
+        if (this.printers != null) {
+            long printed = 0;
+            long batches = 0;
+            long failed  = 0;
+            
+            for (FakePrinter printer : this.printers) {
+                printed += printer.getPrinted();
+                batches += printer.getBatches();
+                failed  += printer.getFailures();
+            }
+            
+            System.out.println(String.format("\n>>> %d receipts printed in %d batches, %d batches failed", printed, batches, failed));
+        }
+        
+        System.out.println(String.format("\n%10s  %-56s %6s %6s", "time", "notes left in the fleet", "empty", "empty"));
+        System.out.println(String.format("%10s  %-56s %6s %6s", "", "", "bills", "ATMs"));
+        for (String row : timeline) {
+            System.out.println(row);
+        }
+        
+        this.reportForecast(5);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the cassettes which are expected to run out first
+    // at the rate they were emptied during the run (see CassetteForecaster)
+    private void reportForecast(int count) {
+        // seconds, ATM, bill and notes left of every cassette which is being emptied
+        List<double[]> rows = new ArrayList<double[]>();
+        
+        System.out.println(String.format("\n%6s %6s %8s %14s   (cassettes expected to run out first)", "atm", "bill", "notes", "empty in"));
+        
+        for (ATM atm : this.atms) {
+            Map<Integer, Integer> banknotes = atm.getBanknotes();
+            
+            for (Map.Entry<Integer, Double> entry : atm.forecastSecondsToEmpty().entrySet()) {
+                int    notes   = banknotes.get(entry.getKey());
+                double seconds = entry.getValue();
+                
+                if (notes > 0 && seconds < Double.POSITIVE_INFINITY) {
+                    rows.add(new double[] { seconds, atm.getNumber(), entry.getKey(), notes });
+                }
+            }
+        }
+        
+        rows.sort(Comparator.comparingDouble(row -> row[0]));
+        
+        for (double[] row : rows.subList(0, Math.min(count, rows.size()))) {
+            System.out.println(String.format("%6d %6d %8d %12.1f s", (int) row[1], (int) row[2], (int) row[3], row[0]));
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    private static String row(String name, LatencyHistogram latency, long elapsedNanos) {
+        return String.format("%-14s %12d %12.0f %12s %12s %12s %12s", name, latency.getCount(),
+                             latency.getCount() * 1e9 / elapsedNanos,
+                             LatencyHistogram.format(latency.getPercentile(50)),
+                             LatencyHistogram.format(latency.getPercentile(99)),
+                             LatencyHistogram.format(latency.getPercentile(99.9)),
+                             LatencyHistogram.format(latency.getMax()));
+    }
+    
+    ///////////////////////////////////////////////////////
+    public static void main(String[] args) throws InterruptedException, IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            
+            if (option.length != 2) {
+                System.out.println(">>> Options are key=value, eg. atms=16");
+                return;
+            }
+            
+            options.put(option[0], option[1]);
+        }
+        
+        // millions of withdrawals would only fill the console
+        if (options.containsKey("events")) {
+            EventLog.get().setOutput(new PrintStream(new FileOutputStream(options.get("events"))));
+        }
+        else {
+            EventLog.get().setEnabled(false);
+        }
+        
+        List<Map<Integer, Integer>> mixes = new ArrayList<Map<Integer, Integer>>();
+        
+        for (String mix : options.getOrDefault("mixes", "200:400,100:600,50:800,20:1000,10:2000/100:1500,50:1500,20:2000,10:2000").split("/")) {
+            mixes.add(parsePairs(mix));
+        }
+        
+        FleetSimulator simulator = new FleetSimulator(mixes,
+                                                      Integer.parseInt(options.getOrDefault("atms", "16")),
+                                                      Integer.parseInt(options.getOrDefault("cards", "100000")),
+                                                      Double.parseDouble(options.getOrDefault("cardBalance", "1000000")),
+                                                      Integer.parseInt(options.getOrDefault("limit", "1000")));
+        
+        String amounts = options.getOrDefault("amounts", "20-600");
+        
+        if (amounts.matches("^[0-9]+-[0-9]+$")) {
+            String[] range = amounts.split("-");
+            simulator.setAmountRange(Integer.parseInt(range[0]), Integer.parseInt(range[1]));
+        }
+        else {
+            Map<Integer, Integer> weighted = parsePairs(amounts);
+            int[]                 values   = new int[weighted.size()];
+            double[]              weights  = new double[weighted.size()];
+            int                   i        = 0;
+            
+            for (Map.Entry<Integer, Integer> entry : weighted.entrySet()) {
+                values[i]  = entry.getKey();
+                weights[i] = entry.getValue();
+                i++;
+            }
+            
+            simulator.setAmounts(values, weights);
+        }
+        
+        simulator.setPINFailureRate(Double.parseDouble(options.getOrDefault("pinFailure", "0.02")));
+        simulator.setChangePINRate(Double.parseDouble(options.getOrDefault("changePIN", "0.01")));
+        simulator.setBalanceRate(Double.parseDouble(options.getOrDefault("balance", "0.2")));
+        simulator.setStuffingRate(Double.parseDouble(options.getOrDefault("stuffing", "0")));
+        
+        if (options.containsKey("printerLatency")) {
+            simulator.setPrinters(Long.parseLong(options.get("printerLatency")), TimeUnit.MILLISECONDS,
+                                  Double.parseDouble(options.getOrDefault("printerFailure", "0")));
+        }
+        
+        if (options.containsKey("export")) {
+            simulator.setExport(Paths.get(options.get("export")));
+        }
+        
+        if (options.containsKey("threads")) {
+            simulator.setThreads(Integer.parseInt(options.get("threads")));
+        }
+        
+        // metrics of the run, including the cassettes of every ATM
+        if (options.containsKey("metrics")) {
+            for (ATM atm : simulator.getATMs()) {
+                Metrics.get().watch(atm);
+            }
+        }
+        
+        simulator.run(Long.parseLong(options.getOrDefault("seconds", "10")), TimeUnit.SECONDS);
+        
+        if (options.containsKey("metrics")) {
+            Metrics.get().writeTo(Paths.get(options.get("metrics")));
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // "200:400,100:600" -> {200=400, 100=600}
+    private static Map<Integer, Integer> parsePairs(String pairs) {
+        Map<Integer, Integer> result = new TreeMap<Integer, Integer>(Collections.reverseOrder());
+        
+        for (String pair : pairs.split(",")) {
+            String[] parts = pair.split(":");
+            result.put(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+        }
+        
+        return result;
+    }
+}
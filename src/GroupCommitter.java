@@ -0,0 +1,213 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+///////////////////////////////////////////////////////
+// writes withdrawals to the journal in groups: every record carries
+// the balance debit and the notes taken from the cassettes, so instead
+// of syncing the journal once per withdrawal, the records of all
+// withdrawals which arrive within a short window (or until the batch
+// is full) are written together and synced once. Every caller gets
+// a future which completes when its record is on disk
+public class GroupCommitter implements AutoCloseable {
+    private TransactionJournal journal;
+    private int                maxRecords;
+    private long               windowNanos;
+    
+    private BlockingQueue<Entry> pending   = new LinkedBlockingQueue<Entry>();
+    private List<Entry>          batch     = new ArrayList<Entry>();
+    private Thread               committer;
+    private volatile boolean     isClosed  = false;
+    
+    // a withdrawal waiting to be written
+    private static class Entry {
+        int                     atmNumber;
+        int                     cardNumber;
+        int                     amount;
+        int[]                   notes;
+        CompletableFuture<Void> committed = new CompletableFuture<Void>();
+    }
+    
+    // marks the end of the queue when the committer is closed
+    private static final Entry CLOSE = new Entry();
+    
+    ///////////////////////////////////////////////////////
+    // batches of at most 256 records, collected for at most 2 ms
+    public GroupCommitter(TransactionJournal journal) {
+        this(journal, 256, 2, TimeUnit.MILLISECONDS);
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * @param journal: where the batches are written
+     * @param maxRecords: a batch is written as soon as it has this many records
+     * @param window: how long to wait for more records after the first one of a batch
+     * @param unit: unit of the window
+     */
+    public GroupCommitter(TransactionJournal journal, int maxRecords, long window, TimeUnit unit) {
+        this.journal     = journal;
+        this.maxRecords  = maxRecords;
+        this.windowNanos = unit.toNanos(window);
+        
+        this.committer = new Thread(this::run, "group-committer");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+    
+    ///////////////////////////////////////////////////////
+    public TransactionJournal getJournal() {
+        return this.journal;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // queue a withdrawal for the next batch;
+    // notes are copied, so the caller can reuse the array
+    public CompletableFuture<Void> submit(int atmNumber, int cardNumber, int amount, int[] notes) {
+        Entry entry = new Entry();
+        
+        entry.atmNumber  = atmNumber;
+        entry.cardNumber = cardNumber;
+        entry.amount     = amount;
+        entry.notes      = notes.clone();
+        
+        if (this.isClosed) {
+            entry.committed.completeExceptionally(new IllegalStateException("Group committer is closed"));
+            return entry.committed;
+        }
+        
+        this.pending.add(entry);
+        
+        return entry.committed;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // collect a batch: wait for the first record,
+    // then take whatever arrives until the window ends or the batch is full
+    private void run() {
+        boolean closing = false;
+        
+        while (!closing) {
+            try {
+                Entry first = this.pending.take();
+                
+                if (first == CLOSE) {
+                    closing = true;
+                }
+                else {
+                    this.batch.add(first);
+                }
+                
+                long deadline = System.nanoTime() + this.windowNanos;
+                
+                while (!closing && this.batch.size() < this.maxRecords) {
+                    // take what's already waiting without blocking
+                    Entry next = this.pending.poll();
+                    
+                    if (next == null) {
+                        long left = deadline - System.nanoTime();
+                        
+                        if (left <= 0) {
+                            break;
+                        }
+                        
+                        next = this.pending.poll(left, TimeUnit.NANOSECONDS);
+                        
+                        if (next == null) {
+                            break;
+                        }
+                    }
+                    
+                    if (next == CLOSE) {
+                        closing = true;
+                    }
+                    else {
+                        this.batch.add(next);
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                closing = true;
+            }
+            
+            this.commit();
+        }
+        
+        // anything submitted while closing
+        this.pending.drainTo(this.batch);
+        this.batch.remove(CLOSE);
+        this.commit();
+    }
+    
+    ///////////////////////////////////////////////////////
+    // write the batch, sync once and let the callers know.
+    // if any of it fails, the callers undo their withdrawals, so
+    // the records of the batch are rolled back out of the journal
+    // (nothing else is written in between, the journal is locked)
+    private void commit() {
+        if (this.batch.isEmpty()) {
+            return;
+        }
+        
+        RuntimeException failure = null;
+        
+        synchronized (this.journal) {
+            long start = this.journal.size();
+            
+            try {
+                for (Entry entry : this.batch) {
+                    this.journal.write(entry.atmNumber, entry.cardNumber, entry.amount, entry.notes);
+                }
+                
+                this.journal.sync();
+            }
+            catch (RuntimeException e) {
+                failure = e;
+                
+                try {
+                    this.journal.rollBackTo(start);
+                }
+                catch (RuntimeException rollback) {
+                    failure.addSuppressed(rollback);
+                }
+            }
+        }
+        
+        for (Entry entry : this.batch) {
+            if (failure == null) {
+                entry.committed.complete(null);
+            }
+            else {
+                entry.committed.completeExceptionally(failure);
+            }
+        }
+        
+        this.batch.clear();
+    }
+    
+    ///////////////////////////////////////////////////////
+    // write what's been submitted so far and stop the committer thread;
+    // doesn't close the journal
+    public void close() {
+        if (this.isClosed) {
+            return;
+        }
+        
+        this.isClosed = true;
+        this.pending.add(CLOSE);
+        
+        try {
+            this.committer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        // submitted after the committer thread was done
+        for (Entry entry; (entry = this.pending.poll()) != null; ) {
+            entry.committed.completeExceptionally(new IllegalStateException("Group committer is closed"));
+        }
+    }
+}
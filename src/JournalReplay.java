@@ -0,0 +1,652 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+///////////////////////////////////////////////////////
+// rebuilds the notes in the ATMs and the balances of the cards
+// from a starting state (eg. a snapshot, which keeps where the journal was
+// when it was taken) and every record of a TransactionJournal after it,
+// and checks that the cash and the cards add up:
+//  - the notes of every withdrawal add up to the amount debited
+//  - no cassette hands out more notes than it had
+//  - no card is debited more than its balance, or after it was blocked
+//  - the notes dispensed by all ATMs add up to the debits of all cards
+//    (except the notes of batches, CASH_DISPENSED, which no card pays for)
+// the journal is read once, in blocks; every record goes to the replayer
+// of its ATM and to the replayer of its card, each on its own thread
+// with a short queue, so an ATM's records are applied in order,
+// cards are replayed in parallel, and memory doesn't grow with the journal
+public class JournalReplay {
+    private static final int RECORDS_PER_BATCH = 1024;
+    private static final int QUEUED_BATCHES    = 4;
+    private static final int MAX_VIOLATIONS    = 100;
+    private static final int RECORD_TYPES      = 8;
+    
+    // starting state: bills and notes of the ATMs by number, and the cards
+    private Map<Integer, int[]> bills  = new HashMap<Integer, int[]>();
+    private Map<Integer, int[]> counts = new HashMap<Integer, int[]>();
+    private CardRegistry        cards;
+    private int                 threads;
+    
+    // the first MAX_VIOLATIONS violations, and how many there were in total
+    private List<String> violations     = Collections.synchronizedList(new ArrayList<String>());
+    private AtomicLong   violationCount = new AtomicLong();
+    
+    // records of one replayer, RECORDS_PER_BATCH of them at most;
+    // a batch without records ends the replay
+    private static class Batch {
+        private byte[] records = new byte[RECORDS_PER_BATCH * TransactionJournal.RECORD_SIZE];
+        private int    count   = 0;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // applies the records it's given on its own thread, in the order they came
+    private abstract class Replayer extends Thread {
+        private BlockingQueue<Batch> queue   = new ArrayBlockingQueue<Batch>(QUEUED_BATCHES);
+        private Batch                current = new Batch();
+        private volatile Throwable   failure;
+        
+        ///////////////////////////////////////////////////////
+        Replayer(String name) {
+            super(name);
+            this.setDaemon(true);
+        }
+        
+        ///////////////////////////////////////////////////////
+        // copy the record into the current batch; waits while the queue is full
+        void add(ByteBuffer buffer, int offset) throws InterruptedException {
+            System.arraycopy(buffer.array(), offset, this.current.records,
+                             this.current.count * TransactionJournal.RECORD_SIZE, TransactionJournal.RECORD_SIZE);
+            
+            if (++this.current.count == RECORDS_PER_BATCH) {
+                this.queue.put(this.current);
+                this.current = new Batch();
+            }
+        }
+        
+        ///////////////////////////////////////////////////////
+        // hand over what's left, and wait until everything is applied
+        void finish() throws InterruptedException {
+            if (this.current.count > 0) {
+                this.queue.put(this.current);
+            }
+            
+            this.queue.put(new Batch());
+            this.join();
+            
+            if (this.failure != null) {
+                throw new IllegalStateException("Replay failed in " + this.getName(), this.failure);
+            }
+        }
+        
+        ///////////////////////////////////////////////////////
+        public void run() {
+            try {
+                while (true) {
+                    Batch      batch   = this.queue.take();
+                    ByteBuffer records = ByteBuffer.wrap(batch.records);
+                    
+                    if (batch.count == 0) {
+                        return;
+                    }
+                    
+                    for (int i = 0; i < batch.count; i++) {
+                        this.apply(records, i * TransactionJournal.RECORD_SIZE);
+                    }
+                }
+            }
+            catch (Throwable e) {
+                this.failure = e;
+                
+                // keep taking batches, so the reader is never stuck on a full queue
+                try {
+                    while (this.queue.take().count > 0) {
+                        continue;
+                    }
+                }
+                catch (InterruptedException interrupted) {
+                    // nothing left to do
+                }
+            }
+        }
+        
+        ///////////////////////////////////////////////////////
+        abstract void apply(ByteBuffer record, int offset);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // notes left in the ATMs whose number gives this replayer
+    private class ATMReplayer extends Replayer {
+        private Map<Integer, long[]> notes = new HashMap<Integer, long[]>();
+        private long                 dispensed;
+        private long                 dispensedInBatches;
+        
+        ///////////////////////////////////////////////////////
+        ATMReplayer(int i) {
+            super("replay-atm-" + i);
+        }
+        
+        ///////////////////////////////////////////////////////
+        void apply(ByteBuffer record, int offset) {
+            int type = record.getInt(offset);
+            
+            if (type != TransactionJournal.WITHDRAWAL && type != TransactionJournal.CASH_DISPENSED) {
+                return;
+            }
+            
+            int   atm    = record.getInt(offset + 20);
+            int   amount = record.getInt(offset + 16);
+            int[] bills  = JournalReplay.this.bills.get(atm);
+            
+            if (bills == null) {
+                violation("withdrawal at unknown ATM #" + atm, record, offset);
+                return;
+            }
+            
+            long[] notes = this.notes.computeIfAbsent(atm, k -> toLongs(JournalReplay.this.counts.get(k)));
+            long   value = 0;
+            
+            for (int i = 0; i < bills.length; i++) {
+                int count = record.getShort(offset + 24 + 2 * i) & TransactionJournal.MAX_NOTES;
+                
+                value    += (long) count * bills[i];
+                notes[i] -= count;
+                
+                if (count > 0 && notes[i] < 0) {
+                    violation("ATM #" + atm + " handed out more notes of " + bills[i] + " than it had", record, offset);
+                }
+            }
+            
+            if (value != amount) {
+                violation("notes worth " + value + " handed out for " + amount, record, offset);
+            }
+            
+            if (type == TransactionJournal.WITHDRAWAL) {
+                this.dispensed += value;
+            }
+            else {
+                this.dispensedInBatches += value;
+            }
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // balances of the cards whose number gives this replayer;
+    // by the card number divided by the number of card replayers
+    private class CardReplayer extends Replayer {
+        private static final byte SEEN       = 1;
+        private static final byte BLOCKED    = 2;
+        private static final byte OVERDRAWN  = 4;
+        
+        private int      replayers;
+        private long[]   balances = new long[0];
+        private byte[]   flags    = new byte[0];
+        private long     debited;
+        
+        ///////////////////////////////////////////////////////
+        CardReplayer(int i, int replayers) {
+            super("replay-cards-" + i);
+            this.replayers = replayers;
+        }
+        
+        ///////////////////////////////////////////////////////
+        void apply(ByteBuffer record, int offset) {
+            int type   = record.getInt(offset);
+            int number = record.getInt(offset + 4);
+            
+            // paid out without a card
+            if (type == TransactionJournal.CASH_DISPENSED) {
+                return;
+            }
+            
+            int slot = this.slotOf(number);
+            
+            if (slot < 0) {
+                violation("unknown card #" + number, record, offset);
+                return;
+            }
+            
+            if (type == TransactionJournal.CARD_BLOCKED) {
+                this.flags[slot] |= BLOCKED;
+            }
+            
+            else if (type == TransactionJournal.WITHDRAWAL) {
+                int amount = record.getInt(offset + 16);
+                
+                if ((this.flags[slot] & BLOCKED) != 0) {
+                    violation("withdrawal with blocked card #" + number, record, offset);
+                }
+                
+                this.balances[slot] -= (long) amount * Card.MINOR_UNITS;
+                this.debited        += amount;
+                
+                if (this.balances[slot] < 0 && (this.flags[slot] & OVERDRAWN) == 0) {
+                    this.flags[slot] |= OVERDRAWN;
+                    violation("card #" + number + " debited over its balance", record, offset);
+                }
+            }
+        }
+        
+        ///////////////////////////////////////////////////////
+        // slot of the card, set up from the starting state the first time
+        // it's seen; -1 if the card is not in the starting state
+        private int slotOf(int number) {
+            int slot = number / this.replayers;
+            
+            if (slot >= this.flags.length) {
+                int length = Math.max(slot + 1, this.flags.length * 2);
+                
+                this.balances = Arrays.copyOf(this.balances, length);
+                this.flags    = Arrays.copyOf(this.flags, length);
+            }
+            
+            if (this.flags[slot] == 0) {
+                Card card = JournalReplay.this.cards.get(number);
+                
+                if (card == null) {
+                    return -1;
+                }
+                
+                this.balances[slot] = card.getBalanceInMinorUnits();
+                this.flags[slot]    = (byte) (SEEN | (card.isCardBlocked() ? BLOCKED : 0));
+            }
+            
+            return slot;
+        }
+        
+        ///////////////////////////////////////////////////////
+        // in minor units; Long.MIN_VALUE if the card had no records
+        long getBalance(int number) {
+            int slot = number / this.replayers;
+            
+            return (slot < this.flags.length && this.flags[slot] != 0) ? this.balances[slot] : Long.MIN_VALUE;
+        }
+        
+        ///////////////////////////////////////////////////////
+        // null if the card had no records
+        Boolean isBlocked(int number) {
+            int slot = number / this.replayers;
+            
+            return (slot < this.flags.length && this.flags[slot] != 0) ? (this.flags[slot] & BLOCKED) != 0 : null;
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // state of the ATMs and cards after the replay, and what didn't add up
+    public class Result {
+        private long[]             records = new long[RECORD_TYPES];
+        private long               skipped;
+        private ATMReplayer[]      atmReplayers;
+        private CardReplayer[]     cardReplayers;
+        private long               dispensed;
+        private long               dispensedInBatches;
+        private long               debited;
+        
+        ///////////////////////////////////////////////////////
+        // how many records of the type were replayed (see TransactionJournal)
+        public long getRecords(int type) {
+            return (type >= 0 && type < RECORD_TYPES) ? this.records[type] : 0;
+        }
+        
+        ///////////////////////////////////////////////////////
+        // total value of the notes handed out by the ATMs for withdrawals
+        public long getDispensed() {
+            return this.dispensed;
+        }
+        
+        ///////////////////////////////////////////////////////
+        // total value of the notes handed out by the ATMs in batches,
+        // which no card pays for (not part of getDispensed)
+        public long getDispensedInBatches() {
+            return this.dispensedInBatches;
+        }
+        
+        ///////////////////////////////////////////////////////
+        // total amount debited from the cards
+        public long getDebited() {
+            return this.debited;
+        }
+        
+        ///////////////////////////////////////////////////////
+        // (banknote, count) left in the ATM after the replay
+        // (for ATMs with notes of a single currency)
+        public Map<Integer, Integer> getBanknotes(int atmNumber) {
+            int[]                 bills  = JournalReplay.this.bills.get(atmNumber);
+            Map<Integer, Integer> result = new TreeMap<Integer, Integer>(Collections.reverseOrder());
+            
+            for (int i = 0; bills != null && i < bills.length; i++) {
+                result.put(bills[i], this.getNotes(atmNumber, i));
+            }
+            
+            return result;
+        }
+        
+        ///////////////////////////////////////////////////////
+        // same as above, for the cassettes of one currency of the ATM
+        public Map<Integer, Integer> getBanknotes(int atmNumber, CassetteSet cassettes) {
+            Map<Integer, Integer> result = new TreeMap<Integer, Integer>(Collections.reverseOrder());
+            
+            for (int i = 0; i < cassettes.size(); i++) {
+                result.put(cassettes.getBill(i), this.getNotes(atmNumber, cassettes.getFrom() + i));
+            }
+            
+            return result;
+        }
+        
+        ///////////////////////////////////////////////////////
+        // notes of bill i left in the ATM after the replay
+        private int getNotes(int atmNumber, int i) {
+            long[] notes = this.atmReplayers[Math.floorMod(atmNumber, this.atmReplayers.length)].notes.get(atmNumber);
+            
+            return (int) ((notes != null) ? notes[i] : JournalReplay.this.counts.get(atmNumber)[i]);
+        }
+        
+        ///////////////////////////////////////////////////////
+        // balance of the card after the replay
+        public double getBalance(int cardNumber) {
+            long balance = this.getBalanceInMinorUnits(cardNumber);
+            
+            return (balance != Long.MIN_VALUE) ? (double) balance / Card.MINOR_UNITS : Double.NaN;
+        }
+        
+        ///////////////////////////////////////////////////////
+        // same as above, in minor units (Long.MIN_VALUE for unknown cards)
+        public long getBalanceInMinorUnits(int cardNumber) {
+            long balance = this.cardReplayerOf(cardNumber).getBalance(cardNumber);
+            Card card    = JournalReplay.this.cards.get(cardNumber);
+            
+            return (balance != Long.MIN_VALUE || card == null) ? balance : card.getBalanceInMinorUnits();
+        }
+        
+        ///////////////////////////////////////////////////////
+        public boolean isCardBlocked(int cardNumber) {
+            Boolean isBlocked = this.cardReplayerOf(cardNumber).isBlocked(cardNumber);
+            Card    card      = JournalReplay.this.cards.get(cardNumber);
+            
+            return (isBlocked != null) ? isBlocked : (card != null && card.isCardBlocked());
+        }
+        
+        ///////////////////////////////////////////////////////
+        private CardReplayer cardReplayerOf(int cardNumber) {
+            return this.cardReplayers[Math.floorMod(cardNumber, this.cardReplayers.length)];
+        }
+        
+        ///////////////////////////////////////////////////////
+        // the first violations found (at most 100)
+        public List<String> getViolations() {
+            return new ArrayList<String>(JournalReplay.this.violations);
+        }
+        
+        ///////////////////////////////////////////////////////
+        public long getViolationCount() {
+            return JournalReplay.this.violationCount.get();
+        }
+        
+        ///////////////////////////////////////////////////////
+        // true if nothing was violated and the cash matches the debits
+        public boolean isConsistent() {
+            return this.getViolationCount() == 0 && this.dispensed == this.debited;
+        }
+        
+        ///////////////////////////////////////////////////////
+        /*
+         * Compare the replayed state with the state of the ATMs and
+         * cards now (eg. a snapshot taken at the end of the journal)
+         *
+         * @param cards: cards to compare the balances and blocked flags of
+         * @param atms: ATMs to compare the notes of
+         * @return a line for every difference
+         */
+        public List<String> compareWith(CardRegistry cards, ATM... atms) {
+            List<String> differences = new ArrayList<String>();
+            
+            for (ATM atm : atms) {
+                for (String currency : atm.getCurrencies()) {
+                    Map<Integer, Integer> replayed = this.getBanknotes(atm.getNumber(), atm.getCassettes(currency));
+                    Map<Integer, Integer> has      = atm.getBanknotes(currency);
+                    
+                    if (!replayed.equals(has)) {
+                        differences.add("ATM #" + atm.getNumber() + " " + currency + ": replayed " + replayed + ", has " + has);
+                    }
+                }
+            }
+            
+            cards.forEach(card -> {
+                // balances are exact, so they have to match to the cent
+                if (this.getBalanceInMinorUnits(card.getNumber()) != card.getBalanceInMinorUnits()) {
+                    differences.add(card.getName() + ": replayed balance " + String.format("%1.2f", this.getBalance(card.getNumber()))
+                                    + ", has " + String.format("%1.2f", card.getBalance()));
+                }
+                if (this.isCardBlocked(card.getNumber()) != card.isCardBlocked()) {
+                    differences.add(card.getName() + ": replayed blocked " + this.isCardBlocked(card.getNumber())
+                                    + ", is " + card.isCardBlocked());
+                }
+            });
+            
+            return differences;
+        }
+        
+        ///////////////////////////////////////////////////////
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            
+            text.append(">>> withdrawals: ").append(this.records[TransactionJournal.WITHDRAWAL])
+                .append(", declined after planning: ").append(this.records[TransactionJournal.CASH_PLANNED])
+                .append(", cards inserted: ").append(this.records[TransactionJournal.CARD_INSERTED])
+                .append(", wrong PINs: ").append(this.records[TransactionJournal.PIN_FAILED])
+                .append(", cards blocked: ").append(this.records[TransactionJournal.CARD_BLOCKED])
+                .append(", paid out in batches: ").append(this.records[TransactionJournal.CASH_DISPENSED])
+                .append(", skipped: ").append(this.skipped)
+                .append("\n>>> dispensed: ").append(this.dispensed)
+                .append(", debited: ").append(this.debited)
+                .append(", dispensed in batches: ").append(this.dispensedInBatches)
+                .append(this.isConsistent() ? " (consistent)" : " (NOT consistent)");
+            
+            for (String violation : this.getViolations()) {
+                text.append("\n>>> ").append(violation);
+            }
+            
+            if (this.getViolationCount() > MAX_VIOLATIONS) {
+                text.append("\n>>> ... ").append(this.getViolationCount() - MAX_VIOLATIONS).append(" more");
+            }
+            
+            return text.toString();
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // replay on as many threads as there are cores
+    public JournalReplay(CardRegistry cards, ATM... atms) {
+        this(cards, Runtime.getRuntime().availableProcessors(), atms);
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * @param cards: the cards as they were when the journal was started
+     * @param threads: how many replayers of cards (and at most of ATMs) to run
+     * @param atms: the ATMs as they were when the journal was started
+     */
+    public JournalReplay(CardRegistry cards, int threads, ATM... atms) {
+        this.cards   = cards;
+        this.threads = Math.max(threads, 1);
+        
+        for (ATM atm : atms) {
+            int[] bills  = new int[atm.getBillsCount()];
+            int[] counts = new int[atm.getBillsCount()];
+            
+            // same order as the notes in the records
+            // (the bills of each currency in descending order)
+            for (String currency : atm.getCurrencies()) {
+                CassetteSet           cassettes = atm.getCassettes(currency);
+                Map<Integer, Integer> banknotes = atm.getBanknotes(currency);
+                
+                for (int i = 0; i < cassettes.size(); i++) {
+                    bills[cassettes.getFrom() + i]  = cassettes.getBill(i);
+                    counts[cassettes.getFrom() + i] = banknotes.get(cassettes.getBill(i));
+                }
+            }
+            
+            this.bills.put(atm.getNumber(), bills);
+            this.counts.put(atm.getNumber(), counts);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    public Result replay(Path journal) throws IOException, InterruptedException {
+        return this.replay(journal, 0);
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Replay the records of the journal
+     *
+     * @param journal: file of a TransactionJournal
+     * @param from: position of the first record to replay, the records before it
+     *              are skipped (eg. StateSnapshot.getJournalPosition of the starting state)
+     * @return the replayed state and what didn't add up
+     */
+    public Result replay(Path journal, long from) throws IOException, InterruptedException {
+        Result         result        = new Result();
+        ATMReplayer[]  atmReplayers  = new ATMReplayer[Math.max(Math.min(this.threads, this.bills.size()), 1)];
+        CardReplayer[] cardReplayers = new CardReplayer[this.threads];
+        
+        for (int i = 0; i < atmReplayers.length; i++) {
+            atmReplayers[i] = new ATMReplayer(i);
+            atmReplayers[i].start();
+        }
+        
+        for (int i = 0; i < cardReplayers.length; i++) {
+            cardReplayers[i] = new CardReplayer(i, cardReplayers.length);
+            cardReplayers[i].start();
+        }
+        
+        this.violations.clear();
+        this.violationCount.set(0);
+        
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ)) {
+            ByteBuffer buffer   = ByteBuffer.allocate(TransactionJournal.RECORD_SIZE * 4096);
+            CRC32      crc      = new CRC32();
+            long       position = Math.max(from - from % TransactionJournal.RECORD_SIZE, 0);
+            
+            result.skipped = position / TransactionJournal.RECORD_SIZE;
+            
+            reading:
+            while (true) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                
+                if (read < TransactionJournal.RECORD_SIZE) {
+                    break;
+                }
+                
+                for (int offset = 0; offset + TransactionJournal.RECORD_SIZE <= read; offset += TransactionJournal.RECORD_SIZE) {
+                    // the end of the journal, or a record torn by a crash
+                    if (!TransactionJournal.isValidRecord(buffer, offset, crc)) {
+                        break reading;
+                    }
+                    
+                    position += TransactionJournal.RECORD_SIZE;
+                    
+                    int type = buffer.getInt(offset);
+                    
+                    if (type > 0 && type < RECORD_TYPES) {
+                        result.records[type]++;
+                    }
+                    
+                    atmReplayers[Math.floorMod(buffer.getInt(offset + 20), atmReplayers.length)].add(buffer, offset);
+                    cardReplayers[Math.floorMod(buffer.getInt(offset + 4), cardReplayers.length)].add(buffer, offset);
+                }
+            }
+        }
+        finally {
+            for (Replayer replayer : atmReplayers) {
+                replayer.finish();
+            }
+            for (Replayer replayer : cardReplayers) {
+                replayer.finish();
+            }
+        }
+        
+        result.atmReplayers  = atmReplayers;
+        result.cardReplayers = cardReplayers;
+        
+        for (ATMReplayer replayer : atmReplayers) {
+            result.dispensed          += replayer.dispensed;
+            result.dispensedInBatches += replayer.dispensedInBatches;
+        }
+        for (CardReplayer replayer : cardReplayers) {
+            result.debited += replayer.debited;
+        }
+        
+        if (result.dispensed != result.debited) {
+            this.violation("notes worth " + result.dispensed + " handed out, " + result.debited + " debited in total");
+        }
+        
+        return result;
+    }
+    
+    ///////////////////////////////////////////////////////
+    private void violation(String text, ByteBuffer record, int offset) {
+        this.violation(text + " (record at " + Instant.ofEpochMilli(record.getLong(offset + 8)) + ")");
+    }
+    
+    ///////////////////////////////////////////////////////
+    private void violation(String text) {
+        if (this.violationCount.incrementAndGet() <= MAX_VIOLATIONS) {
+            this.violations.add(text);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    private static long[] toLongs(int[] values) {
+        long[] result = new long[values.length];
+        
+        for (int i = 0; i < values.length; i++) {
+            result[i] = values[i];
+        }
+        
+        return result;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // java JournalReplay start.snapshot transactions.journal [end.snapshot]:
+    // replay the journal from the first snapshot, and compare with the second one
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.out.println("usage: java JournalReplay start.snapshot transactions.journal [end.snapshot]");
+            return;
+        }
+        
+        EventLog.get().setEnabled(false);
+        
+        StateSnapshot start  = StateSnapshot.read(Paths.get(args[0]));
+        long          begin  = System.nanoTime();
+        Result        result = new JournalReplay(start.getCards(), start.getATM()).replay(Paths.get(args[1]), start.getJournalPosition());
+        
+        System.out.println(result);
+        System.out.println(String.format(">>> replayed in %.1f ms", (System.nanoTime() - begin) / 1e6));
+        
+        if (args.length > 2) {
+            StateSnapshot end = StateSnapshot.read(Paths.get(args[2]));
+            
+            for (String difference : result.compareWith(end.getCards(), end.getATM())) {
+                System.out.println(">>> " + difference);
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+///////////////////////////////////////////////////////
+// counts of recorded latencies (in nanoseconds) in buckets which
+// are at most about 3% wide at any scale: 32 buckets for every power of two.
+// recording is a couple of shifts and an increment, without any locking:
+// a histogram belongs to one thread. Metrics.Timer records from many
+// threads into a few striped AtomicLongArrays of the same buckets instead,
+// and adds them up into a histogram when it's read (see add)
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS  = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    
+    // enough for any positive long
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS + 2) * (SUB_BUCKET_COUNT / 2);
+    
+    private long[] counts = new long[BUCKETS];
+    private long   totalCount;
+    private long   total;
+    private long   max;
+    
+    ///////////////////////////////////////////////////////
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        
+        this.counts[bucketOf(value)]++;
+        this.totalCount++;
+        this.total += value;
+        this.max    = Math.max(this.max, value);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // add the counts of another histogram to this one
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < this.counts.length; i++) {
+            this.counts[i] += other.counts[i];
+        }
+        
+        this.totalCount += other.totalCount;
+        this.total      += other.total;
+        this.max         = Math.max(this.max, other.max);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // add counts recorded elsewhere (see Metrics.Timer): count
+    // of each bucket, then the sum and the largest of the latencies
+    void add(AtomicLongArray counts, long total, long max) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = counts.get(i);
+            
+            this.counts[i]  += count;
+            this.totalCount += count;
+        }
+        
+        this.total += total;
+        this.max    = Math.max(this.max, max);
+    }
+    
+    ///////////////////////////////////////////////////////
+    public long getCount() {
+        return this.totalCount;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public long getMax() {
+        return this.max;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public double getMean() {
+        return (this.totalCount == 0) ? 0 : (double) this.total / this.totalCount;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // latency which the given percentage of the recorded ones
+    // did not exceed (eg. 99.9 for p999); upper end of its bucket
+    public long getPercentile(double percentile) {
+        if (this.totalCount == 0) {
+            return 0;
+        }
+        
+        long rank  = (long) Math.ceil(percentile / 100 * this.totalCount);
+        long count = 0;
+        
+        for (int i = 0; i < this.counts.length; i++) {
+            count += this.counts[i];
+            
+            if (count >= Math.max(rank, 1)) {
+                return Math.min(highestValueOf(i), this.max);
+            }
+        }
+        
+        return this.max;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // values below SUB_BUCKET_COUNT get a bucket each,
+    // above that every power of two is split in SUB_BUCKET_COUNT / 2 buckets
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        
+        return magnitude * (SUB_BUCKET_COUNT / 2) + (int) (value >>> magnitude);
+    }
+    
+    ///////////////////////////////////////////////////////
+    private static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        
+        int  magnitude = bucket / (SUB_BUCKET_COUNT / 2) - 1;
+        long lowest    = (long) (bucket - magnitude * (SUB_BUCKET_COUNT / 2)) << magnitude;
+        
+        return lowest + (1L << magnitude) - 1;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // eg. "p50 1.2 us, p99 4.5 us, p999 20.1 us, max 1.3 ms"
+    public String toString() {
+        return "p50 " + format(this.getPercentile(50))
+               + ", p99 " + format(this.getPercentile(99))
+               + ", p999 " + format(this.getPercentile(99.9))
+               + ", max " + format(this.max);
+    }
+    
+    ///////////////////////////////////////////////////////
+    static String format(long nanos) {
+        if (nanos < 1000) {
+            return nanos + " ns";
+        }
+        if (nanos < 1000000) {
+            return String.format("%.1f us", nanos / 1e3);
+        }
+        if (nanos < 1000000000) {
+            return String.format("%.1f ms", nanos / 1e6);
+        }
+        
+        return String.format("%.2f s", nanos / 1e9);
+    }
+}
@@ -0,0 +1,256 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+///////////////////////////////////////////////////////
+// counters, latency histograms and gauges of the ATMs and cards,
+// exported in the Prometheus text format to a file or over HTTP.
+// recording never locks: counters are LongAdders, and latencies are
+// counted in a few striped histograms of atomic buckets (a thread always
+// records into the same one), which are only added up when the metrics
+// are exported. Instrumented classes look up
+// their metrics once (in static fields) and keep them
+public class Metrics {
+    private static Metrics global = new Metrics();
+    
+    private Map<String, Counter>      counters = new ConcurrentSkipListMap<String, Counter>();
+    private Map<String, Outcomes>     outcomes = new ConcurrentSkipListMap<String, Outcomes>();
+    private Map<String, Timer>        timers   = new ConcurrentSkipListMap<String, Timer>();
+    private Map<String, LongSupplier> gauges   = new ConcurrentSkipListMap<String, LongSupplier>();
+    
+    ///////////////////////////////////////////////////////
+    // metrics of the whole program
+    public static Metrics get() {
+        return global;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // number of times something happened
+    public static class Counter {
+        private LongAdder count = new LongAdder();
+        
+        ///////////////////////////////////////////////////////
+        public void increment() {
+            this.count.increment();
+        }
+        
+        ///////////////////////////////////////////////////////
+        public void add(long times) {
+            this.count.add(times);
+        }
+        
+        ///////////////////////////////////////////////////////
+        public long get() {
+            return this.count.sum();
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // how often an operation ended with each Outcome
+    // (each failed outcome stands for one of the CustomExceptions)
+    public static class Outcomes {
+        private LongAdder[] counts = new LongAdder[Outcome.values().length];
+        
+        ///////////////////////////////////////////////////////
+        Outcomes() {
+            for (int i = 0; i < this.counts.length; i++) {
+                this.counts[i] = new LongAdder();
+            }
+        }
+        
+        ///////////////////////////////////////////////////////
+        // count the outcome and return it, so it can wrap a return statement
+        public Outcome record(Outcome outcome) {
+            this.counts[outcome.ordinal()].increment();
+            return outcome;
+        }
+        
+        ///////////////////////////////////////////////////////
+        public long get(Outcome outcome) {
+            return this.counts[outcome.ordinal()].sum();
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // latencies of an operation, in a fixed number of stripes (twice
+    // the processors, rounded up to a power of two) picked by thread id,
+    // so the memory doesn't grow with the threads (eg. one per session)
+    // and threads rarely share a stripe; each stripe holds the count of
+    // every bucket (see LatencyHistogram), then the sum and the largest
+    public static class Timer {
+        private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1);
+        private static final int TOTAL   = LatencyHistogram.BUCKETS;
+        private static final int MAX     = LatencyHistogram.BUCKETS + 1;
+        
+        private AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+        
+        ///////////////////////////////////////////////////////
+        Timer() {
+            for (int i = 0; i < STRIPES; i++) {
+                this.stripes[i] = new AtomicLongArray(LatencyHistogram.BUCKETS + 2);
+            }
+        }
+        
+        ///////////////////////////////////////////////////////
+        // time since start (from System.nanoTime)
+        public void recordSince(long start) {
+            this.record(System.nanoTime() - start);
+        }
+        
+        ///////////////////////////////////////////////////////
+        public void record(long nanos) {
+            long            value  = Math.max(nanos, 0);
+            long            id     = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+            AtomicLongArray stripe = this.stripes[(int) (id >>> 32) & (STRIPES - 1)];
+            
+            stripe.getAndIncrement(LatencyHistogram.bucketOf(value));
+            stripe.getAndAdd(TOTAL, value);
+            
+            long max = stripe.get(MAX);
+            
+            while (value > max && !stripe.compareAndSet(MAX, max, value)) {
+                max = stripe.get(MAX);
+            }
+        }
+        
+        ///////////////////////////////////////////////////////
+        // all stripes added up; they are read while they are being
+        // recorded into, so the total can be off by the few operations
+        // which were in flight
+        public LatencyHistogram snapshot() {
+            LatencyHistogram total = new LatencyHistogram();
+            
+            for (AtomicLongArray stripe : this.stripes) {
+                total.add(stripe, stripe.get(TOTAL), stripe.get(MAX));
+            }
+            
+            return total;
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    public Counter counter(String name) {
+        return this.counters.computeIfAbsent(name, k -> new Counter());
+    }
+    
+    ///////////////////////////////////////////////////////
+    public Outcomes outcomes(String operation) {
+        return this.outcomes.computeIfAbsent(operation, k -> new Outcomes());
+    }
+    
+    ///////////////////////////////////////////////////////
+    public Timer timer(String name) {
+        return this.timers.computeIfAbsent(name, k -> new Timer());
+    }
+    
+    ///////////////////////////////////////////////////////
+    // value which is read when the metrics are exported;
+    // the name can contain labels, eg. atm_notes{atm="1",bill="200"}
+    public void gauge(String name, LongSupplier value) {
+        this.gauges.put(name, value);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // notes left in each cassette of the ATM, and the seconds until
+    // it runs out (Long.MAX_VALUE while nobody withdraws the bill)
+    public void watch(ATM atm) {
+        for (String currency : atm.getCurrencies()) {
+            for (int bill : atm.getBanknotes(currency).keySet()) {
+                String labels = "{atm=\"" + atm.getNumber() + "\",currency=\"" + currency + "\",bill=\"" + bill + "\"}";
+                
+                this.gauge("atm_notes" + labels, () -> atm.getBanknotes(currency).get(bill));
+                this.gauge("atm_seconds_to_empty" + labels,
+                           () -> (long) (double) atm.forecastSecondsToEmpty(currency).get(bill));
+            }
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // all metrics in the Prometheus text format
+    public String export() {
+        StringBuilder text = new StringBuilder();
+        
+        for (Map.Entry<String, Counter> entry : this.counters.entrySet()) {
+            text.append(entry.getKey()).append("_total ").append(entry.getValue().get()).append('\n');
+        }
+        
+        for (Map.Entry<String, Outcomes> entry : this.outcomes.entrySet()) {
+            for (Outcome outcome : Outcome.values()) {
+                long count = entry.getValue().get(outcome);
+                
+                if (count > 0) {
+                    text.append("outcomes_total{operation=\"").append(entry.getKey())
+                        .append("\",outcome=\"").append(outcome).append('"');
+                    
+                    if (outcome.getExceptionName() != null) {
+                        text.append(",exception=\"").append(outcome.getExceptionName()).append('"');
+                    }
+                    
+                    text.append("} ").append(count).append('\n');
+                }
+            }
+        }
+        
+        for (Map.Entry<String, Timer> entry : this.timers.entrySet()) {
+            LatencyHistogram latency = entry.getValue().snapshot();
+            String           name    = entry.getKey();
+            
+            for (double quantile : new double[] { 0.5, 0.99, 0.999 }) {
+                text.append(name).append("_seconds{quantile=\"").append(quantile).append("\"} ")
+                    .append(latency.getPercentile(quantile * 100) / 1e9).append('\n');
+            }
+            
+            text.append(name).append("_seconds_count ").append(latency.getCount()).append('\n');
+            text.append(name).append("_seconds_sum ").append(latency.getMean() * latency.getCount() / 1e9).append('\n');
+        }
+        
+        for (Map.Entry<String, LongSupplier> entry : this.gauges.entrySet()) {
+            text.append(entry.getKey()).append(' ').append(entry.getValue().getAsLong()).append('\n');
+        }
+        
+        return text.toString();
+    }
+    
+    ///////////////////////////////////////////////////////
+    // write the metrics to a file (replaced in one step, so a reader
+    // never sees half of them), eg. for a node exporter's textfile directory
+    public void writeTo(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        
+        Files.write(temporary, this.export().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // serve the metrics on http://localhost:port/metrics;
+    // stop the returned server when done
+    public HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        
+        server.createContext("/metrics", exchange -> {
+            byte[] body = this.export().getBytes(StandardCharsets.UTF_8);
+            
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        
+        server.start();
+        
+        return server;
+    }
+}
@@ -0,0 +1,101 @@
+///////////////////////////////////////////////////////
+// result of a step of a transaction, returned instead of
+// throwing one of the exceptions in CustomExceptions,
+// so that rejecting a request doesn't allocate anything;
+// the message is only formatted when someone asks for it
+public enum Outcome {
+    OK(null),
+    UNKNOWN_CARD(">>> Unknown card."),
+    WRONG_PIN(">>> Wrong PIN code."),
+    INVALID_PIN(">>> New PIN should be 4 digits."),
+    CARD_IS_BLOCKED(">>> Your card is blocked. Please contact your bank!"),
+    CARD_NOT_INSERTED(">>> Please insert card"),
+    INVALID_REQUESTED_AMOUNT(">>> Requested amount should be divisable by %d"),
+    NOT_ENOUGH_MONEY_IN_ATM(">>> Insufficient funds in ATM. Try again later."),
+    EXCEEDED_DAILY_LIMIT(">>> You have exceeded your daily limit."),
+    EXCEEDED_TRANSACTION_LIMIT(">>> You cannot withdraw more than %d%s"),
+    NOT_ENOUGH_FUNDS(">>> You don't have enough funds on your balance."),
+    SAME_PIN_ON_CHANGE(">>> New PIN cannot be the same as old PIN."),
+    PRINTER_ERROR(">>> There's an error with the printer."),
+    
+    // added last, so the ordinals in existing journals keep their meaning
+    UNSUPPORTED_CURRENCY(">>> This ATM doesn't pay out %s."),
+    PIN_ATTEMPTS_THROTTLED(">>> Too many wrong PINs. Please try again later."),
+    WITHDRAWAL_NOT_RECORDED(">>> Your withdrawal could not be completed. Please try again later.");
+    
+    private String message;
+    
+    ///////////////////////////////////////////////////////
+    Outcome(String message) {
+        this.message = message;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public boolean isSuccessful() {
+        return this == OK;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // message for outcomes which don't depend on the ATM or the card
+    public String getMessage() {
+        return this.message;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same message the console shows for this outcome;
+    // ATM and card fill in the unit of the amounts, the currency
+    // and the transaction limit (without a card, in the ATM's default currency)
+    public String getMessage(ATM atm, Card card) {
+        String currency = (card != null) ? card.getCurrency() : atm.getDefaultCurrency();
+        
+        switch (this) {
+            case INVALID_REQUESTED_AMOUNT:
+                return String.format(this.message, atm.getCassettes(currency).getUnit());
+            
+            case UNSUPPORTED_CURRENCY:
+                return String.format(this.message, currency);
+            
+            case EXCEEDED_TRANSACTION_LIMIT:
+                return String.format(this.message, card.getMaxWithdrawAmount(), currency);
+            
+            default:
+                return this.message;
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // name of the exception thrown for this outcome (eg. for metrics);
+    // null if there is none (OK, or reported without an exception)
+    public String getExceptionName() {
+        switch (this) {
+            case CARD_IS_BLOCKED:            return CardIsBlocked.class.getSimpleName();
+            case CARD_NOT_INSERTED:          return CardNotInserted.class.getSimpleName();
+            case INVALID_REQUESTED_AMOUNT:   return InvalidRequestedAmount.class.getSimpleName();
+            case UNSUPPORTED_CURRENCY:       return InvalidRequestedAmount.class.getSimpleName();
+            case NOT_ENOUGH_MONEY_IN_ATM:    return NotEnoughMoneyInATM.class.getSimpleName();
+            case WITHDRAWAL_NOT_RECORDED:    return NotEnoughMoneyInATM.class.getSimpleName();
+            case EXCEEDED_DAILY_LIMIT:       return ExceededDailyLimit.class.getSimpleName();
+            case EXCEEDED_TRANSACTION_LIMIT: return ExceededTransactionLimit.class.getSimpleName();
+            case NOT_ENOUGH_FUNDS:           return NotEnoughFunds.class.getSimpleName();
+            case SAME_PIN_ON_CHANGE:         return SamePINOnChange.class.getSimpleName();
+            case PRINTER_ERROR:              return PrinterError.class.getSimpleName();
+            default:                         return null;
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // which outcome the exception thrown by ATM or Card stands for
+    public static Outcome of(Exception e) {
+        if (e instanceof CardIsBlocked)            return CARD_IS_BLOCKED;
+        if (e instanceof CardNotInserted)          return CARD_NOT_INSERTED;
+        if (e instanceof InvalidRequestedAmount)   return INVALID_REQUESTED_AMOUNT;
+        if (e instanceof NotEnoughMoneyInATM)      return NOT_ENOUGH_MONEY_IN_ATM;
+        if (e instanceof ExceededDailyLimit)       return EXCEEDED_DAILY_LIMIT;
+        if (e instanceof ExceededTransactionLimit) return EXCEEDED_TRANSACTION_LIMIT;
+        if (e instanceof NotEnoughFunds)           return NOT_ENOUGH_FUNDS;
+        if (e instanceof SamePINOnChange)          return SAME_PIN_ON_CHANGE;
+        if (e instanceof PrinterError)             return PRINTER_ERROR;
+        
+        throw new IllegalArgumentException("No outcome for " + e);
+    }
+}
@@ -0,0 +1,219 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+///////////////////////////////////////////////////////
+// how many wrong PINs a card may get, shared by every session and ATM
+// the card is used in (and kept in snapshots, see Card.writeTo):
+//  - a card is blocked after maxPINattempts wrong PINs in a row,
+//    no matter in how many sessions they were entered
+//  - every wrong PIN takes a token from the card's bucket, which gets
+//    a token back every failureInterval; with no tokens left the PIN
+//    is not even checked until one comes back (PIN_ATTEMPTS_THROTTLED)
+//  - wrong PINs of all cards are counted in a sliding window of the last
+//    minute; when too large a share of the PINs are wrong (eg. someone
+//    trying a PIN or two on many cards at once), a card gets fewer tokens
+//    and they come back much slower, so the guesses are turned away
+//    before the PIN is even hashed.
+// attempts are counted in striped counters (LongAdder) and the bucket
+// of a card is a single long changed with compare-and-set, so checking
+// a PIN never locks, and a card without wrong PINs doesn't even read
+// the clock; only moving the window (once a second) takes a lock,
+// and a thread which finds it taken leaves the move to its holder
+public class PINGuard {
+    private static PINGuard global = new PINGuard();
+    
+    // the window: attempts and wrong PINs so far, and what they were
+    // at the start of each of the last WINDOW_SECONDS seconds
+    private static final int WINDOW_SECONDS = 60;
+    
+    private LongAdder attempts   = new LongAdder();
+    private LongAdder failures   = new LongAdder();
+    private long[]    seconds    = new long[WINDOW_SECONDS];
+    private long[]    attemptsAt = new long[WINDOW_SECONDS];
+    private long[]    failuresAt = new long[WINDOW_SECONDS];
+    
+    // the second the window was last moved in (the arrays above and
+    // checkedAt only change while holding the lock) and whether it was
+    // over the limit then
+    private ReentrantLock    window      = new ReentrantLock();
+    private volatile long    checkedAt   = Long.MIN_VALUE;
+    private volatile boolean underAttack = false;
+    
+    // tokens of a card and how fast they come back, normally
+    // (as many as the wrong PINs which block a card) and under attack
+    private volatile int  burst           = 3;
+    private volatile long failureInterval = TimeUnit.SECONDS.toNanos(30);
+    private volatile int  attackBurst     = 1;
+    private volatile long attackInterval  = TimeUnit.MINUTES.toNanos(10);
+    
+    // share of wrong PINs in the window which counts as an attack,
+    // once there are at least minimumFailures of them
+    private volatile double attackShare     = 0.2;
+    private volatile long   minimumFailures = 100;
+    
+    // outcomes of the checks and how often the window was over the limit (see Metrics)
+    private static final Metrics.Outcomes CHECKS  = Metrics.get().outcomes("pin_guard");
+    private static final Metrics.Counter  ATTACKS = Metrics.get().counter("pin_guard_attacks");
+    
+    ///////////////////////////////////////////////////////
+    public PINGuard() {
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            this.seconds[i] = Long.MIN_VALUE;
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the guard of every card session
+    public static PINGuard get() {
+        return global;
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * How fast a card can be guessed
+     *
+     * @param burst: wrong PINs a card may get at once before it's throttled
+     * @param failureInterval: how often a token comes back (nanoseconds)
+     * @param attackBurst: same as burst, while the fleet is under attack
+     * @param attackInterval: same as failureInterval, while the fleet is under attack
+     */
+    public void setLimits(int burst, long failureInterval, int attackBurst, long attackInterval) {
+        this.burst           = burst;
+        this.failureInterval = failureInterval;
+        this.attackBurst     = attackBurst;
+        this.attackInterval  = attackInterval;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // when the fleet counts as under attack: share of the PINs in the
+    // last minute which were wrong, and how many at least
+    public void setAttackThreshold(double share, long minimumFailures) {
+        this.attackShare     = share;
+        this.minimumFailures = minimumFailures;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // whether too many PINs were wrong in the last minute, as of the
+    // last time the window moved (with the wrong PINs, and with the
+    // checks of cards which had one, so an attack also ends without them)
+    public boolean isUnderAttack() {
+        return this.underAttack;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // whether the card's PIN may be checked now: OK, or
+    // PIN_ATTEMPTS_THROTTLED if it had too many wrong PINs recently
+    public Outcome tryAttempt(Card card) {
+        // never a wrong PIN: the bucket is full, whatever the time
+        if (card.getPINbucket() == Long.MIN_VALUE) {
+            this.attempts.increment();
+            
+            return CHECKS.record(Outcome.OK);
+        }
+        
+        return this.tryAttempt(card, System.nanoTime());
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, at the given time (from System.nanoTime)
+    Outcome tryAttempt(Card card, long now) {
+        this.attempts.increment();
+        this.moveWindow(TimeUnit.NANOSECONDS.toSeconds(now));
+        
+        // with a token left, charging a wrong PIN now would fill
+        // the bucket up to at most burst intervals after now
+        boolean underAttack = this.underAttack;
+        long    interval    = underAttack ? this.attackInterval : this.failureInterval;
+        int     burst       = underAttack ? this.attackBurst : this.burst;
+        
+        if (Math.max(card.getPINbucket(), now) - now > (long) (burst - 1) * interval) {
+            return CHECKS.record(Outcome.PIN_ATTEMPTS_THROTTLED);
+        }
+        
+        return CHECKS.record(Outcome.OK);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the PIN was wrong: take a token from the card
+    // and return true if the card should be blocked now
+    public boolean recordFailure(Card card) {
+        return this.recordFailure(card, System.nanoTime());
+    }
+    
+    ///////////////////////////////////////////////////////
+    boolean recordFailure(Card card, long now) {
+        this.failures.increment();
+        this.moveWindow(TimeUnit.NANOSECONDS.toSeconds(now));
+        
+        card.chargePINbucket(now, this.underAttack ? this.attackInterval : this.failureInterval);
+        
+        return card.addWrongPINattempt() >= card.getMaxPINattempts();
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the PIN was correct: the wrong PINs in a row start from 0 again
+    // (the tokens come back with time only)
+    public void recordSuccess(Card card) {
+        card.resetWrongPINattempts();
+    }
+    
+    ///////////////////////////////////////////////////////
+    // once per second, by the first thread to get the lock in it: remember
+    // the counts at the start of the second, and compare what was counted
+    // since the oldest second still in the window (seconds in which no card
+    // with a wrong PIN was checked are not remembered, so the window
+    // reaches back a little further)
+    private void moveWindow(long second) {
+        if (second <= this.checkedAt || !this.window.tryLock()) {
+            return;
+        }
+        
+        try {
+            if (second > this.checkedAt) {
+                this.moveWindowTo(second);
+            }
+        }
+        finally {
+            this.window.unlock();
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // with the lock held
+    private void moveWindowTo(long second) {
+        long checkedAt = this.checkedAt;
+        long attempts  = this.attempts.sum();
+        long failures  = this.failures.sum();
+        int  slot      = (int) Math.floorMod(second, (long) WINDOW_SECONDS);
+        int  oldest    = -1;
+        
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            if (this.seconds[i] > second - WINDOW_SECONDS && (oldest < 0 || this.seconds[i] < this.seconds[oldest])) {
+                oldest = i;
+            }
+        }
+        
+        // nothing remembered in the last minute: what was counted
+        // since the last time the window moved (or ever)
+        if (oldest < 0 && checkedAt != Long.MIN_VALUE) {
+            oldest = (int) Math.floorMod(checkedAt, (long) WINDOW_SECONDS);
+        }
+        
+        long    windowAttempts = (oldest < 0) ? attempts : attempts - this.attemptsAt[oldest];
+        long    windowFailures = (oldest < 0) ? failures : failures - this.failuresAt[oldest];
+        boolean underAttack    = windowFailures >= this.minimumFailures && windowFailures > this.attackShare * windowAttempts;
+        
+        this.seconds[slot]    = second;
+        this.attemptsAt[slot] = attempts;
+        this.failuresAt[slot] = failures;
+        this.checkedAt        = second;
+        
+        if (underAttack && !this.underAttack) {
+            ATTACKS.increment();
+            EventLog.get().log(EventLog.Type.PIN_ATTACK, null, 0, 0, null, windowFailures + " wrong PINs of " + windowAttempts + " in the last minute");
+        }
+        
+        this.underAttack = underAttack;
+    }
+}
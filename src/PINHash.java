@@ -0,0 +1,84 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+///////////////////////////////////////////////////////
+// how the cards keep their PINs: never as text, but as a hash
+// of the PIN and a random salt of the card, both plain longs.
+// entered PINs are checked for 4 digits with a loop over the characters
+// (no regex, no allocation) and hashes are compared in constant time.
+// there are only 10000 PINs, so the salt and the rounds don't make
+// guessing a PIN from its hash impossible, they make it slow and
+// different for every card; the real protection is blocking the card
+public class PINHash {
+    // rounds of mixing per hash; a microsecond or two (see Benchmarks)
+    static final int ROUNDS = 256;
+    
+    ///////////////////////////////////////////////////////
+    // the PIN as a number from 0 to 9999,
+    // or -1 if it's not exactly 4 digits
+    public static int parse(CharSequence PIN) {
+        if (PIN == null || PIN.length() != 4) {
+            return -1;
+        }
+        
+        int value = 0;
+        
+        for (int i = 0; i < 4; i++) {
+            int digit = PIN.charAt(i) - '0';
+            
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            
+            value = value * 10 + digit;
+        }
+        
+        return value;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // random salt for a new card
+    public static long newSalt() {
+        return ThreadLocalRandom.current().nextLong();
+    }
+    
+    ///////////////////////////////////////////////////////
+    // random PIN for a new card, eg. "0412"
+    public static String randomPIN() {
+        return String.valueOf(10000 + ThreadLocalRandom.current().nextInt(10000)).substring(1);
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Hash of a PIN: the salt and the PIN mixed ROUNDS times
+     *
+     * @param salt: salt of the card
+     * @param PIN: the PIN as returned by parse (0 to 9999)
+     */
+    public static long hash(long salt, int PIN) {
+        long hash = salt ^ (PIN * 0x9E3779B97F4A7C15L);
+        
+        for (int i = 0; i < ROUNDS; i++) {
+            hash = mix(hash + salt + i);
+        }
+        
+        return hash;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the finalizer of SplitMix64: every input bit affects every output bit
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        
+        return value ^ (value >>> 31);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // takes the same time no matter how many bits match
+    public static boolean matches(long hash, long expected) {
+        long difference = hash ^ expected;
+        
+        // 0 only if every bit is the same, without branching on any of them
+        return ((difference | -difference) >>> 63) == 0;
+    }
+}
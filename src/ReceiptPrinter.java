@@ -0,0 +1,23 @@
+///////////////////////////////////////////////////////
+// the printer of an ATM, as the receipt spooler sees it
+// (see ReceiptSpooler): it only ever gets rendered text,
+// and is only called from the spooler's thread, so it may
+// take as long as the hardware does
+public interface ReceiptPrinter {
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Print a batch of receipts; each one ends with a form feed ('\f'),
+     * where the paper is cut. Either all of them are printed or none
+     *
+     * @param receipts: the receipts as ASCII text (the buffer is reused, don't keep it)
+     * @param length: how many bytes of the buffer are used
+     * @param count: how many receipts are in the batch
+     */
+    void print(byte[] receipts, int length, int count) throws PrinterError;
+    
+    ///////////////////////////////////////////////////////
+    // whether there's paper and ink in the printer, asked again
+    // after a failed batch until the printer is back in order
+    boolean isInOrder();
+}
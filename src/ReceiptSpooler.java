@@ -0,0 +1,283 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+///////////////////////////////////////////////////////
+// prints the receipts of an ATM on its own thread, so a session never
+// waits for the printer: a receipt is only a few numbers put in a queue,
+// and the spooler thread turns whatever has queued up into text and sends
+// it to the printer as one batch.
+//  - the queue is bounded and its receipts are preallocated and reused;
+//    when it's full, a receipt is refused (and counted), never waited for
+//  - the text of a batch is rendered into a builder and a byte buffer
+//    which are kept for the next one
+//  - when a batch fails, the printer counts as out of order, receipts are
+//    refused right away and the spooler asks the printer every probe
+//    interval whether it's back, so checking the printer (see getHealth)
+//    is a read of a field, not a call to the printer
+public class ReceiptSpooler implements AutoCloseable {
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    
+    private ReceiptPrinter printer;
+    private int            maxBatch;
+    private long           probeNanos;
+    
+    // receipts waiting to be printed, and the ones free to be filled in
+    private BlockingQueue<Receipt> pending;
+    private BlockingQueue<Receipt> free;
+    private List<Receipt>          batch;
+    private Thread                 spooler;
+    private volatile boolean       isClosed = false;
+    
+    // OK or PRINTER_ERROR, as of the last batch or probe
+    private volatile Outcome health = Outcome.OK;
+    
+    // used by the spooler thread only, for every batch
+    private StringBuilder text   = new StringBuilder(1024);
+    private byte[]        buffer = new byte[1024];
+    
+    // latency of the batches and what happened to the receipts (see Metrics)
+    private static final Metrics.Outcomes SUBMISSIONS   = Metrics.get().outcomes("receipt_submit");
+    private static final Metrics.Timer    PRINT_LATENCY = Metrics.get().timer("receipt_print");
+    private static final Metrics.Counter  PRINTED       = Metrics.get().counter("receipts_printed");
+    private static final Metrics.Counter  DROPPED       = Metrics.get().counter("receipts_dropped");
+    private static final Metrics.Counter  LOST          = Metrics.get().counter("receipts_lost");
+    
+    // a receipt waiting to be printed
+    private static class Receipt {
+        int    atmNumber;
+        int    cardNumber;
+        long   balance;
+        String currency;
+        long   time;
+    }
+    
+    // marks the end of the queue when the spooler is closed
+    private static final Receipt CLOSE = new Receipt();
+    
+    ///////////////////////////////////////////////////////
+    // up to 256 receipts waiting, batches of at most 32,
+    // the printer is asked whether it's back every second
+    public ReceiptSpooler(ReceiptPrinter printer) {
+        this(printer, 256, 32, 1, TimeUnit.SECONDS);
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * @param printer: where the receipts are printed
+     * @param capacity: how many receipts can wait to be printed
+     * @param maxBatch: how many receipts are printed at most at once
+     * @param probeInterval: how often an out of order printer is asked whether it's back
+     * @param unit: unit of the probe interval
+     */
+    public ReceiptSpooler(ReceiptPrinter printer, int capacity, int maxBatch, long probeInterval, TimeUnit unit) {
+        this.printer    = printer;
+        this.maxBatch   = maxBatch;
+        this.probeNanos = unit.toNanos(probeInterval);
+        this.pending    = new ArrayBlockingQueue<Receipt>(capacity + 1);
+        this.free       = new ArrayBlockingQueue<Receipt>(capacity);
+        this.batch      = new ArrayList<Receipt>(maxBatch);
+        
+        for (int i = 0; i < capacity; i++) {
+            this.free.add(new Receipt());
+        }
+        
+        this.spooler = new Thread(this::run, "receipt-spooler");
+        this.spooler.setDaemon(true);
+        this.spooler.start();
+    }
+    
+    ///////////////////////////////////////////////////////
+    public ReceiptPrinter getPrinter() {
+        return this.printer;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // OK, or PRINTER_ERROR while the printer is out of order;
+    // never calls the printer
+    public Outcome getHealth() {
+        return this.health;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // how many receipts are waiting to be printed
+    public int getQueued() {
+        return this.pending.size();
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Queue a receipt with the balance of the card; never blocks
+     *
+     * @param atmNumber: number of the ATM the receipt is printed by
+     * @param card: whose balance is printed
+     * @return OK, or PRINTER_ERROR if the printer is out of order or too far behind
+     */
+    public Outcome submit(int atmNumber, Card card) {
+        if (this.health != Outcome.OK || this.isClosed) {
+            return SUBMISSIONS.record(Outcome.PRINTER_ERROR);
+        }
+        
+        Receipt receipt = this.free.poll();
+        
+        if (receipt == null) {
+            DROPPED.increment();
+            return SUBMISSIONS.record(Outcome.PRINTER_ERROR);
+        }
+        
+        receipt.atmNumber  = atmNumber;
+        receipt.cardNumber = card.getNumber();
+        receipt.balance    = card.getBalanceInMinorUnits();
+        receipt.currency   = card.getCurrency();
+        receipt.time       = System.currentTimeMillis();
+        
+        // there are never more receipts than free ones, so there's always room
+        this.pending.add(receipt);
+        
+        return SUBMISSIONS.record(Outcome.OK);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // print whatever has queued up, one batch at a time;
+    // while the printer is out of order, only ask it whether it's back
+    private void run() {
+        boolean closing = false;
+        
+        while (!closing) {
+            try {
+                if (this.health != Outcome.OK) {
+                    TimeUnit.NANOSECONDS.sleep(this.probeNanos);
+                    
+                    if (this.printer.isInOrder()) {
+                        this.health = Outcome.OK;
+                    }
+                    
+                    closing = this.isClosed;
+                    continue;
+                }
+                
+                Receipt first = this.pending.take();
+                
+                if (first == CLOSE) {
+                    closing = true;
+                }
+                else {
+                    this.batch.add(first);
+                    this.pending.drainTo(this.batch, this.maxBatch - 1);
+                }
+            }
+            catch (InterruptedException e) {
+                closing = true;
+            }
+            
+            // the end of the queue may have been drained with the rest
+            if (this.batch.remove(CLOSE)) {
+                closing = true;
+            }
+            
+            this.print();
+        }
+        
+        // anything submitted while closing, if the printer can still print it
+        this.pending.drainTo(this.batch);
+        this.batch.remove(CLOSE);
+        
+        if (this.health == Outcome.OK) {
+            this.print();
+        }
+        else {
+            LOST.add(this.batch.size());
+            this.batch.clear();
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // render the batch and print it; the receipts are free again either way
+    private void print() {
+        if (this.batch.isEmpty()) {
+            return;
+        }
+        
+        int  count = this.batch.size();
+        int  length;
+        long start = System.nanoTime();
+        
+        this.text.setLength(0);
+        
+        for (Receipt receipt : this.batch) {
+            this.render(receipt);
+            this.free.add(receipt);
+        }
+        
+        this.batch.clear();
+        length = this.encode();
+        
+        try {
+            this.printer.print(this.buffer, length, count);
+            PRINTED.add(count);
+        }
+        catch (PrinterError | RuntimeException e) {
+            this.health = Outcome.PRINTER_ERROR;
+            LOST.add(count);
+        }
+        
+        PRINT_LATENCY.recordSince(start);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the text of a receipt, eg.
+    //   ATM 1  2026-10-18 12:00:05
+    //   Card #3
+    //   Balance: 724.65 HRK
+    private void render(Receipt receipt) {
+        long balance = Math.abs(receipt.balance);
+        long cents   = balance % Card.MINOR_UNITS;
+        
+        this.text.append("ATM ").append(receipt.atmNumber).append("  ");
+        TIME.formatTo(Instant.ofEpochMilli(receipt.time), this.text);
+        this.text.append("\nCard #").append(receipt.cardNumber);
+        this.text.append("\nBalance: ").append(receipt.balance < 0 ? "-" : "").append(balance / Card.MINOR_UNITS)
+                 .append('.').append(cents < 10 ? "0" : "").append(cents);
+        this.text.append(' ').append(receipt.currency).append("\n\f");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the text into the byte buffer (it's all ASCII), made larger if needed
+    private int encode() {
+        int length = this.text.length();
+        
+        if (this.buffer.length < length) {
+            this.buffer = new byte[Integer.highestOneBit(length) << 1];
+        }
+        
+        for (int i = 0; i < length; i++) {
+            this.buffer[i] = (byte) this.text.charAt(i);
+        }
+        
+        return length;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // print what's been queued so far and stop the spooler thread;
+    // receipts submitted after that are refused
+    public void close() {
+        if (this.isClosed) {
+            return;
+        }
+        
+        this.isClosed = true;
+        this.pending.add(CLOSE);
+        
+        try {
+            this.spooler.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
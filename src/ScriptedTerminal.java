@@ -0,0 +1,51 @@
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+///////////////////////////////////////////////////////
+// simulated terminal: "types" the given lines one by one
+// and keeps everything the session printed
+public class ScriptedTerminal implements Terminal {
+    private Deque<String> input;
+    private StringBuilder output = new StringBuilder();
+    
+    ///////////////////////////////////////////////////////
+    public ScriptedTerminal(String... lines) {
+        this.input = new ArrayDeque<String>(lines.length);
+        Collections.addAll(this.input, lines);
+    }
+    
+    ///////////////////////////////////////////////////////
+    public ScriptedTerminal(List<String> lines) {
+        this.input = new ArrayDeque<String>(lines);
+    }
+    
+    ///////////////////////////////////////////////////////
+    public String readLine() {
+        String line = this.input.poll();
+        
+        // echo the typed line, same as it would appear on the console
+        if (line != null) {
+            this.output.append(line).append('\n');
+        }
+        
+        return line;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public void print(String text) {
+        this.output.append(text);
+    }
+    
+    ///////////////////////////////////////////////////////
+    public void println(String text) {
+        this.output.append(text).append('\n');
+    }
+    
+    ///////////////////////////////////////////////////////
+    // everything that was shown and typed during the session
+    public String getOutput() {
+        return this.output.toString();
+    }
+}
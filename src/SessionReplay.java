@@ -0,0 +1,434 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+///////////////////////////////////////////////////////
+// replays recorded console sessions through the interactive ATM
+// (ATMSession, CardSession) as fast as they run, on several threads,
+// and compares everything they printed with golden transcripts.
+// every session gets its own ATM and cards, as described in the script,
+// so it prints the same no matter which sessions ran before it or next to it.
+//
+// script format (blank lines and lines starting with # are skipped):
+//   session withdraw-120               starts a session, names are unique
+//   atm HRK 200:10,100:10,50:10        cassettes of one currency, the first one is the
+//                                      default (HRK 200:400,100:600,50:800,20:1000,10:2000 if none)
+//   card 724.65 400 600 1234 [EUR]     balance, limit, daily limit, PIN (and currency)
+//                                      of card #1, the next card line is card #2, etc.
+//   > 1                                a typed line (">" alone for an empty one)
+//   end                                ends the session
+//
+// golden file format: "=== name" and the transcript of the session after it,
+// the same as ScriptedTerminal.getOutput (what was printed and typed)
+//
+// usage: java SessionReplay script=sessions.script [key=value ...], eg.
+//   golden=sessions.golden (script=... with .golden instead of .script by default)
+//   record=true (write the golden transcripts instead of checking them)
+//   threads=4 repeat=1000 (every session is replayed that many times)
+public class SessionReplay {
+    private static final String DEFAULT_CASSETTES = "200:400,100:600,50:800,20:1000,10:2000";
+    
+    // how many differences are printed (all of them are counted)
+    private static final int SHOWN_DIFFERENCES = 10;
+    
+    private List<Script> scripts;
+    private int          threads = Runtime.getRuntime().availableProcessors();
+    
+    // a recorded session
+    static class Script {
+        String                             name;
+        int                                line;
+        Map<String, Map<Integer, Integer>> cassettes = new LinkedHashMap<String, Map<Integer, Integer>>();
+        String                             defaultCurrency;
+        List<String[]>                     cards     = new ArrayList<String[]>();
+        List<String>                       input     = new ArrayList<String>();
+    }
+    
+    // what one thread has measured
+    private static class Worker extends Thread {
+        LatencyHistogram latency    = new LatencyHistogram();
+        long             keystrokes = 0;
+        long             different  = 0;
+        
+        ///////////////////////////////////////////////////////
+        Worker(Runnable work, String name) {
+            super(work, name);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    public SessionReplay(List<Script> scripts) {
+        this.scripts = scripts;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public List<Script> getScripts() {
+        return this.scripts;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the sessions of a script file (see the format above);
+    // throws IllegalArgumentException with the line of the first error
+    public static List<Script> parse(List<String> lines) {
+        List<Script> scripts = new ArrayList<Script>();
+        Set<String>  names   = new HashSet<String>();
+        Script       script  = null;
+        
+        for (int i = 0; i < lines.size(); i++) {
+            String   line   = lines.get(i);
+            String   where  = "Line " + (i + 1) + ": ";
+            String[] fields = line.trim().split("\\s+");
+            
+            if (line.trim().isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            
+            if (line.startsWith(">")) {
+                if (script == null) {
+                    throw new IllegalArgumentException(where + "typed line outside of a session");
+                }
+                
+                script.input.add(line.startsWith("> ") ? line.substring(2) : line.substring(1));
+                continue;
+            }
+            
+            switch (fields[0]) {
+                case "session":
+                    if (script != null) {
+                        throw new IllegalArgumentException(where + "session " + script.name + " has no end");
+                    }
+                    if (fields.length != 2) {
+                        throw new IllegalArgumentException(where + "should be session <name>");
+                    }
+                    if (!names.add(fields[1])) {
+                        throw new IllegalArgumentException(where + "there's already a session " + fields[1]);
+                    }
+                    
+                    script      = new Script();
+                    script.name = fields[1];
+                    script.line = i + 1;
+                    break;
+                
+                case "atm":
+                    if (script == null || fields.length != 3) {
+                        throw new IllegalArgumentException(where + "should be atm <currency> <bill:count,...> in a session");
+                    }
+                    
+                    CassetteSet.pack(fields[1]);
+                    script.cassettes.put(fields[1], parseCassettes(fields[2]));
+                    
+                    if (script.defaultCurrency == null) {
+                        script.defaultCurrency = fields[1];
+                    }
+                    break;
+                
+                case "card":
+                    if (script == null || fields.length < 5 || fields.length > 6) {
+                        throw new IllegalArgumentException(where + "should be card <balance> <limit> <daily limit> <PIN> [currency] in a session");
+                    }
+                    
+                    script.cards.add(fields);
+                    break;
+                
+                case "end":
+                    if (script == null) {
+                        throw new IllegalArgumentException(where + "end outside of a session");
+                    }
+                    
+                    if (script.cassettes.isEmpty()) {
+                        script.cassettes.put(ATM.DEFAULT_CURRENCY, parseCassettes(DEFAULT_CASSETTES));
+                        script.defaultCurrency = ATM.DEFAULT_CURRENCY;
+                    }
+                    
+                    scripts.add(script);
+                    script = null;
+                    break;
+                
+                default:
+                    throw new IllegalArgumentException(where + "unknown line: " + line);
+            }
+        }
+        
+        if (script != null) {
+            throw new IllegalArgumentException("Session " + script.name + " has no end");
+        }
+        
+        return scripts;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // "200:400,100:600" -> {200=400, 100=600}
+    private static Map<Integer, Integer> parseCassettes(String pairs) {
+        Map<Integer, Integer> result = new TreeMap<Integer, Integer>(Collections.reverseOrder());
+        
+        for (String pair : pairs.split(",")) {
+            String[] parts = pair.split(":");
+            result.put(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+        }
+        
+        return result;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the transcripts of a golden file: (session name, transcript)
+    public static Map<String, String> parseGolden(List<String> lines) {
+        Map<String, String> golden     = new HashMap<String, String>();
+        String              name       = null;
+        StringBuilder       transcript = new StringBuilder();
+        boolean             isFirst    = true;
+        
+        for (String line : lines) {
+            if (line.startsWith("=== ")) {
+                if (name != null) {
+                    golden.put(name, transcript.toString());
+                }
+                
+                name    = line.substring(4);
+                isFirst = true;
+                transcript.setLength(0);
+            }
+            else if (name != null) {
+                // every line but the first one follows a line break
+                if (!isFirst) {
+                    transcript.append('\n');
+                }
+                
+                transcript.append(line);
+                isFirst = false;
+            }
+        }
+        
+        if (name != null) {
+            golden.put(name, transcript.toString());
+        }
+        
+        return golden;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // replay the session on its own ATM and cards
+    // and return everything that was printed and typed
+    public static String play(Script script) {
+        ATM          atm   = new ATM(1, script.cassettes, script.defaultCurrency);
+        CardRegistry cards = new CardRegistry(1);
+        
+        for (int i = 0; i < script.cards.size(); i++) {
+            String[] card     = script.cards.get(i);
+            String   currency = (card.length > 5) ? card[5] : script.defaultCurrency;
+            
+            cards.register(new Card(i + 1, Double.parseDouble(card[1]), Integer.parseInt(card[2]),
+                                    Integer.parseInt(card[3]), card[4], currency));
+        }
+        
+        ScriptedTerminal terminal = new ScriptedTerminal(script.input);
+        new ATMSession(atm, cards, terminal).run();
+        
+        return terminal.getOutput();
+    }
+    
+    ///////////////////////////////////////////////////////
+    // replay every session once and return the transcripts in the order of the sessions
+    public List<String> record() throws InterruptedException {
+        String[]      transcripts = new String[this.scripts.size()];
+        AtomicInteger next        = new AtomicInteger();
+        List<Thread>  workers     = new ArrayList<Thread>();
+        
+        for (int t = 0; t < this.threads; t++) {
+            workers.add(new Thread(() -> {
+                for (int i; (i = next.getAndIncrement()) < transcripts.length; ) {
+                    transcripts[i] = play(this.scripts.get(i));
+                }
+            }, "replay-" + t));
+        }
+        
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        
+        List<String> result = new ArrayList<String>(transcripts.length);
+        Collections.addAll(result, transcripts);
+        
+        return result;
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Replay every session the given number of times, compare
+     * the transcripts with the golden ones and print the report
+     *
+     * @param golden: (session name, transcript) from parseGolden
+     * @param repeat: how many times every session is replayed
+     * @return how many replayed sessions printed something else than their golden transcript
+     */
+    public long check(Map<String, String> golden, int repeat) throws InterruptedException {
+        long                          total       = (long) this.scripts.size() * repeat;
+        AtomicLong                    next        = new AtomicLong();
+        ConcurrentLinkedQueue<String> differences = new ConcurrentLinkedQueue<String>();
+        List<Worker>                  workers     = new ArrayList<Worker>(this.threads);
+        
+        for (Script script : this.scripts) {
+            if (!golden.containsKey(script.name)) {
+                throw new IllegalArgumentException("No golden transcript for session " + script.name + " (line " + script.line + ")");
+            }
+        }
+        
+        for (int t = 0; t < this.threads; t++) {
+            Worker[] worker = new Worker[1];
+            
+            worker[0] = new Worker(() -> {
+                for (long i; (i = next.getAndIncrement()) < total; ) {
+                    Script script   = this.scripts.get((int) (i % this.scripts.size()));
+                    long   started  = System.nanoTime();
+                    String actual   = play(script);
+                    
+                    worker[0].latency.record(System.nanoTime() - started);
+                    worker[0].keystrokes += script.input.size();
+                    
+                    if (!actual.equals(golden.get(script.name))) {
+                        worker[0].different++;
+                        
+                        if (differences.size() < SHOWN_DIFFERENCES) {
+                            differences.add(difference(script, golden.get(script.name), actual));
+                        }
+                    }
+                }
+            }, "replay-" + t);
+            
+            workers.add(worker[0]);
+        }
+        
+        long start = System.nanoTime();
+        
+        for (Worker worker : workers) {
+            worker.start();
+        }
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        
+        long             elapsed    = System.nanoTime() - start;
+        LatencyHistogram latency    = new LatencyHistogram();
+        long             keystrokes = 0;
+        long             different  = 0;
+        
+        for (Worker worker : workers) {
+            latency.add(worker.latency);
+            keystrokes += worker.keystrokes;
+            different  += worker.different;
+        }
+        
+        for (String difference : differences) {
+            System.out.println(difference);
+        }
+        
+        System.out.println(String.format("\n>>> %d sessions (%d scripts x %d), %d threads, %.2f s",
+                                         total, this.scripts.size(), repeat, workers.size(), elapsed / 1e9));
+        System.out.println(String.format(">>> %.0f sessions/s, %.0f keystrokes/s, session latency %s",
+                                         total * 1e9 / elapsed, keystrokes * 1e9 / elapsed, latency));
+        System.out.println(">>> " + different + " of " + total + " sessions differ from the golden transcripts");
+        
+        return different;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the first line of the transcript which is not the same
+    private static String difference(Script script, String expected, String actual) {
+        String[] expectedLines = expected.split("\n", -1);
+        String[] actualLines   = actual.split("\n", -1);
+        int      line          = 0;
+        
+        while (line < expectedLines.length && line < actualLines.length && expectedLines[line].equals(actualLines[line])) {
+            line++;
+        }
+        
+        return "\n>>> Session " + script.name + " (line " + script.line + "), transcript line " + (line + 1) + ":"
+               + "\n    expected: " + ((line < expectedLines.length) ? expectedLines[line] : "(end)")
+               + "\n    actual:   " + ((line < actualLines.length) ? actualLines[line] : "(end)");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the golden file of the transcripts, in the order of the sessions
+    private static String formatGolden(List<Script> scripts, List<String> transcripts) {
+        StringBuilder golden = new StringBuilder();
+        
+        for (int i = 0; i < scripts.size(); i++) {
+            golden.append("=== ").append(scripts.get(i).name).append('\n')
+                  .append(transcripts.get(i)).append('\n');
+        }
+        
+        return golden.toString();
+    }
+    
+    ///////////////////////////////////////////////////////
+    public static void main(String[] args) throws InterruptedException, IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            
+            if (option.length != 2) {
+                System.out.println(">>> Options are key=value, eg. script=sessions.script");
+                return;
+            }
+            
+            options.put(option[0], option[1]);
+        }
+        
+        if (!options.containsKey("script")) {
+            System.out.println(">>> Which sessions to replay? eg. script=sessions.script");
+            return;
+        }
+        
+        Path scriptFile = Paths.get(options.get("script"));
+        Path goldenFile = Paths.get(options.getOrDefault("golden", options.get("script").replaceFirst("(\\.script)?$", ".golden")));
+        
+        // the sessions only print to their terminals, and the PIN guard
+        // doesn't turn on attack mode, which would depend on the order
+        // the sessions run in, not on the sessions themselves
+        EventLog.get().setEnabled(false);
+        PINGuard.get().setAttackThreshold(2, Long.MAX_VALUE);
+        
+        SessionReplay replay = new SessionReplay(parse(Files.readAllLines(scriptFile, StandardCharsets.UTF_8)));
+        
+        if (options.containsKey("threads")) {
+            replay.setThreads(Integer.parseInt(options.get("threads")));
+        }
+        
+        if (Boolean.parseBoolean(options.getOrDefault("record", "false"))) {
+            List<String> transcripts = replay.record();
+            
+            Files.write(goldenFile, formatGolden(replay.getScripts(), transcripts).getBytes(StandardCharsets.UTF_8));
+            System.out.println(">>> " + transcripts.size() + " transcripts written to " + goldenFile);
+            return;
+        }
+        
+        Map<String, String> golden    = parseGolden(Files.readAllLines(goldenFile, StandardCharsets.UTF_8));
+        long                different = replay.check(golden, Integer.parseInt(options.getOrDefault("repeat", "1")));
+        
+        if (different > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+///////////////////////////////////////////////////////
+// runs many ATM sessions at the same time, each one on its own thread,
+// against a shared pool of ATMs and cards. On a JVM with virtual threads
+// (Java 21+) every session gets a virtual thread, so tens of thousands
+// of simulated terminals cost little more than their session state
+public class SessionServer {
+    private ATM[]           atms;
+    private CardRegistry    cards;
+    private ExecutorService executor = newSessionExecutor();
+    
+    // which ATM the next session is sent to (round robin)
+    private AtomicInteger nextATM = new AtomicInteger();
+    
+    ///////////////////////////////////////////////////////
+    public SessionServer(ATM[] atms, CardRegistry cards) {
+        this.atms  = atms;
+        this.cards = cards;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // start a session on the given terminal;
+    // the future completes when the terminal runs out of input
+    public Future<?> open(Terminal terminal) {
+        ATM atm = this.atms[Math.floorMod(this.nextATM.getAndIncrement(), this.atms.length)];
+        
+        return this.executor.submit(() -> new ATMSession(atm, this.cards, terminal).run());
+    }
+    
+    ///////////////////////////////////////////////////////
+    // let the running sessions finish, but don't accept new ones
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        this.executor.shutdown();
+        
+        return this.executor.awaitTermination(timeout, unit);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // one virtual thread per session if the JVM has them,
+    // otherwise a pool of platform threads which grows as needed.
+    // looked up by reflection, so the code still compiles and runs on older JVMs
+    static ExecutorService newSessionExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // simulate the given number of sessions (default 10000),
+    // each checking the balance of a card and withdrawing some money
+    public static void main(String[] args) throws Exception {
+        int    sessionsCount = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        ATM[]  atms          = new ATM[4];
+        Card[] cards         = new Card[100];
+        
+        for (int i = 0; i < atms.length; i++) {
+            atms[i] = new ATM(new TreeMap<Integer, Integer>(Collections.reverseOrder()) {{
+                put(200, 4000);
+                put(100, 6000);
+                put(50, 8000);
+                put(20, 10000);
+                put(10, 20000);
+            }});
+        }
+        
+        for (int i = 0; i < cards.length; i++) {
+            cards[i] = new Card(100000, 400, String.format("%04d", i));
+        }
+        
+        SessionServer       server    = new SessionServer(atms, CardRegistry.of(cards));
+        ScriptedTerminal[]  terminals = new ScriptedTerminal[sessionsCount];
+        List<Future<?>>     sessions  = new ArrayList<Future<?>>(sessionsCount);
+        long                start     = System.nanoTime();
+        
+        for (int i = 0; i < sessionsCount; i++) {
+            int    whichCard = i % cards.length;
+            String number    = String.valueOf(cards[whichCard].getNumber());
+            String PIN       = String.format("%04d", whichCard);
+            
+            // pick card, PIN, check balance; pick card, PIN, withdraw 120
+            terminals[i] = new ScriptedTerminal(number, PIN, "2", number, PIN, "1", "120");
+            sessions.add(server.open(terminals[i]));
+        }
+        
+        for (Future<?> session : sessions) {
+            session.get();
+        }
+        
+        long elapsed = System.nanoTime() - start;
+        server.shutdown(1, TimeUnit.MINUTES);
+        
+        System.out.println(">>> " + sessionsCount + " sessions in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+        for (ATM atm : atms) {
+            System.out.println(">>> Money in the ATM: " + atm.getBanknotes());
+        }
+    }
+}
@@ -1,28 +1,60 @@
-import java.io.*;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Collections;
 import java.util.Map;
-import java.util.Scanner;
 import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 public class StartingPoint {
     
-    static Scanner sc          = new Scanner(System.in);
-    static int     cardsCount  = 3;
     static Map<Integer, Integer> banknotes;
     
     ///////////////////////////////////////////////////////
-    public static void main(String[] args) {
-        ATM bankomat = initializeATM();
-        Card[] cards = initializeSomeCards();
+    public static void main(String[] args) throws IOException {
+        Path snapshotFile = Paths.get("atm.snapshot");
+        ATM          bankomat;
+        CardRegistry cards;
         
-        // keep coming back to the welcome screen
-        // when the user is done
-        while (true) {
-            welcomeScreen(bankomat, cards);
+        // events of the ATM and the cards go to a file next to the program,
+        // the console only shows what the user has to see
+        EventLog.get().setOutput(new PrintStream(new FileOutputStream("atm.events.log", true)));
+        
+        // continue from the last snapshot if there is one,
+        // otherwise start with the ATM and cards below
+        StateSnapshot snapshot = Files.exists(snapshotFile) ? StateSnapshot.read(snapshotFile) : null;
+        
+        bankomat = (snapshot != null) ? snapshot.getATM() : initializeATM();
+        System.out.println("<<<>>> Money in the ATM: " + bankomat.getBanknotes() + "<<<>>>");
+        cards    = (snapshot != null) ? reissuePINs(snapshot.getCards()) : initializeSomeCards();
+        
+        // cassette levels are exported with the rest of the metrics
+        Metrics.get().watch(bankomat);
+        
+        // save the state every minute and when the console is closed
+        ScheduledExecutorService snapshots = StateSnapshot.writePeriodically(snapshotFile, bankomat, cards, 1, TimeUnit.MINUTES);
+        
+        // withdrawals are kept in a file next to the program,
+        // so daily limits still apply after a restart
+        try (TransactionJournal journal = new TransactionJournal(Paths.get("transactions.journal"))) {
+            bankomat.setJournal(journal);
+            
+            // keep coming back to the welcome screen
+            // when the user is done, until the console is closed
+            new ATMSession(bankomat, cards, new ConsoleTerminal()).run();
+        }
+        finally {
+            snapshots.shutdownNow();
+            StateSnapshot.write(snapshotFile, bankomat, cards);
+            Metrics.get().writeTo(Paths.get("atm.metrics"));
         }
     }
-     
+    
     ///////////////////////////////////////////////////////
     // generate an ATM with the amount of bills in it:
     // (banknote, count)
@@ -37,229 +69,32 @@ public class StartingPoint {
     }
     
     ///////////////////////////////////////////////////////
-    // generate some cards with different balances
-    private static Card[] initializeSomeCards() {
-        Card[] cards = new Card[cardsCount];
-        
-        cards[0] = new Card(724.65, 400);
-        cards[1] = new Card(215.24, 200);
-        cards[2] = new Card(12, 200);
-        
-        return cards;
-    }
-    
-    ///////////////////////////////////////////////////////
-    // ask the user to insert their card 
-    private static void welcomeScreen(ATM bankomat, Card[] cards) {
-        int whichCard;
-        String input;
+    // generate some cards with different balances and random PINs;
+    // the cards only keep a hash of the PIN, so they are shown once here
+    private static CardRegistry initializeSomeCards() {
+        CardRegistry cards    = new CardRegistry();
+        double[]     balances = { 724.65, 215.24, 12 };
+        int[]        limits   = { 400, 200, 200 };
+        int[]        daily    = { 600, 400, 400 };
         
-        try {
-            do {
-                System.out.print("\n<<< Please pick which card to insert from 1 to " + cardsCount + ": ");
-                input     = sc.nextLine().toString();
-                whichCard = Integer.parseInt(input);
-            }
-            while (!input.matches("^[0-9]+$") || (whichCard == 0) || (whichCard > cardsCount));
-            
-            Card selectedCard = cards[whichCard-1]; // -1 since card array starts at 0
+        for (int i = 0; i < balances.length; i++) {
+            Card card = new Card(balances[i], limits[i], daily[i]);
             
-            // if the PIN was correct, show actions
-            // otherwise block or exit -> eject card
-            if (insertCardAndCheckPIN(selectedCard)) {
-                chooseAction(bankomat, selectedCard);
-            }
-            else {
-                ejectCardAction(selectedCard);
-            }
+            cards.register(card);
+            System.out.println(">>> " + card.getName() + " PIN: " + card.takeIssuedPIN());
         }
         
-        // for any error occurring,
-        // print the message if it's card related
-        catch (Exception e) {
-            if (e instanceof CardNotInserted) {
-                System.out.println(e.getMessage());
-            }
-        }
-    }
-    
-    ///////////////////////////////////////////////////////
-    // on card insertion show PIN and balance (if card is not blocked)
-    // if it is or gets blocked (maxed out attempts),
-    // show error message
-    private static boolean insertCardAndCheckPIN(Card selectedCard) throws CardNotInserted {
-        boolean verified = false;
-        if (!selectedCard.isCardBlocked()) {
-            System.out.println(selectedCard.toString());
-        }
-        
-        try {
-            selectedCard.insertCard();
-            verified = selectedCard.verifyPIN();
-        }
-        catch (CardIsBlocked e) {
-            System.out.println(e.getMessage());
-        }
-        
-        return verified;
-    }
-    
-    ///////////////////////////////////////////////////////
-    private static void chooseAction(ATM bankomat, Card card) {
-        String input;
-        int action;
-        
-        try {
-            do {
-                System.out.println("Choose action:");
-                System.out.println("Withdraw money (1)");
-                System.out.println("Check balance  (2)");
-                System.out.println("Change PIN     (3)");
-                System.out.println("- - - - - - - - -");
-                System.out.println("Exit           (0)");
-            
-                input  = sc.nextLine().toString();
-                action = Integer.parseInt(input);
-            }
-            while (action < 0 || action > 3);
-            
-            switch (action) {
-                case 1:
-                    withdrawalAction(bankomat, card);
-                    break;
-                    
-                case 2:
-                    printBalanceAction(bankomat, card);
-                    break;
-                    
-                case 3:
-                    changePINAction(bankomat, card);
-                    break;
-                    
-                case 0:
-                    ejectCardAction(card);
-                    break;
-            }
-        }
-        
-        // if the exception was thrown by the parseInt (NumberFormatException)
-        // print Invalid number message; otherwise print the thrown error message
-        // afterwards, ask the user to choose an action again
-        catch (Exception e) {
-            String errorMsg = (e instanceof NumberFormatException) ? ">>> Invalid number." : e.getMessage();
-            System.out.println(errorMsg);
-
-            chooseAction(bankomat, card);
-        }
-
+        return cards;
     }
     
     ///////////////////////////////////////////////////////
-    private static void withdrawalAction(ATM atm, Card card) throws CardNotInserted {
-        BufferedReader input = new BufferedReader( new InputStreamReader(System.in) );
-        Map<Integer, Integer> cash;
-        
-        try {
-            System.out.print("<<< Enter amount (0 to exit): ");
-            int requestedAmount = Integer.parseInt(input.readLine());
-            
-            // if the user has entered 0, eject the card
-            if (requestedAmount == 0) {
-                ejectCardAction(card);
-            }
-            
-            // otherwise proceed with the withdrawal
-            else {
-                // check that amount is > 0 and % to min amount
-                atm.checkAmountValidity(requestedAmount);
-                
-                // make sure the ATM has sufficient funds
-                cash = atm.prepareCashForDisposal(requestedAmount);
-                
-                // make sure the user has not exceeded their daily withdrawal limit
-                card.checkDailyLimit();
-                
-                // make sure the user is not surpassing their withdrawal limit
-                card.checkTransactionLimit(requestedAmount);
-                
-                // make sure the user has sufficient funds
-                card.withdrawFromBalance(requestedAmount);
-                
-                // refresh the amount of bills in the ATM
-                atm.removeBillsFromATM(cash);
-                
-                System.out.println(">>> Take your money: " + cash);
-                
-                // print balance and eject the card
-                printBalanceAction(atm, card);
-            }
-        }
+    // the snapshot only has the hashes of the PINs, and the PINs shown
+    // when the cards were created are gone with that console:
+    // give every restored card a new PIN and show it once here
+    private static CardRegistry reissuePINs(CardRegistry cards) {
+        cards.forEach(card -> System.out.println(">>> " + card.getName() + " PIN: " + card.reissuePIN()));
         
-        catch (Exception e) {
-            String errorMsg = (e instanceof NumberFormatException || e instanceof IOException)
-                              ? ">>> Invalid number."
-                              : e.getMessage();
-            
-            System.out.println(errorMsg);
-            
-            // if there's not enough money in the ATM, or daily limit is exceeded
-            // DON'T ask the user to enter amount again, eject card instead
-            if (e instanceof NotEnoughMoneyInATM || e instanceof ExceededDailyLimit) {
-                ejectCardAction(card);
-            }
-            
-            // otherwise repeat withdrawal steps
-            else {
-                withdrawalAction(atm, card);
-            }
-        }
-    }
-    
-    ///////////////////////////////////////////////////////
-    private static void printBalanceAction(ATM atm, Card card) throws CardNotInserted {
-        // try to print a receipt if there's paper and ink in the printer
-        try {
-            if (atm.isPrinterInOrder()) {
-                double balance = card.getBalance();
-                System.out.println(String.format(">>> Current balance: %1.2f", balance));
-            }
-        }
-
-        // if not, notify the user
-        catch (PrinterError e) {
-            System.out.println(e.getMessage());
-        }
-
-        // in the end, eject the card
-        finally {
-            ejectCardAction(card);
-        }
-    }
-    
-    ///////////////////////////////////////////////////////
-    // if the PIN change was successful,
-    // allow to user to choose another action
-    // otherwise eject the card
-    private static void changePINAction(ATM atm, Card card) throws CardNotInserted {
-        try {
-            if (card.changePIN()) {
-                System.out.println(">>> Your PIN was updated successfully!");
-                chooseAction(atm, card);
-            }
-            else {
-                ejectCardAction(card);
-            }
-        }
-        catch (SamePINOnChange e) {
-            System.out.println(e.getMessage());
-            changePINAction(atm, card);
-        }
-    }
-    
-    ///////////////////////////////////////////////////////
-    private static void ejectCardAction(Card card) throws CardNotInserted {
-        card.ejectCard();
-        System.out.println(">>> Card is ejected.");
+        return cards;
     }
 
 }
@@ -0,0 +1,245 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+///////////////////////////////////////////////////////
+// state of an ATM and its cards in one file, so a restart doesn't
+// lose balances, PIN changes, blocked cards and the notes in the ATM.
+// every card takes the same number of bytes, so the file is
+// written and read through a memory map in one pass
+public class StateSnapshot {
+    
+    // file layout:
+    //  0 int   MAGIC
+    //  4 int   VERSION
+    //  8 long  time the snapshot was taken (epoch millis)
+    // 16 int   number of bills
+    // 20 int   number of cards
+    // 24 int   number of the ATM
+    // 28 int   default currency of the ATM (see CassetteSet.pack)
+    // 32 long  position of the ATM's journal when the snapshot was taken
+    //          (0 if it had none), where a replay on top of it starts
+    // 40       (currency, bill, count) int triples, in the order of the ATM's
+    //          arrays: the bills of each currency in descending order
+    //  ..      cards, Card.SNAPSHOT_SIZE bytes each (see Card.writeTo)
+    //  ..      int CRC32 of everything before it
+    private static final int MAGIC       = 0x41544D53; // "ATMS"
+    // 2: cards keep a salted hash of the PIN instead of the PIN
+    // 3: the number of the ATM is kept, so it matches its journal records
+    // 4: bills and cards have a currency
+    // 5: balances of the cards are exact, in minor units
+    // 6: cards keep their wrong PINs in a row (see PINGuard)
+    // 7: the position of the journal is kept, so a replay skips what's in the snapshot
+    private static final int VERSION     = 7;
+    private static final int HEADER_SIZE = 40;
+    
+    private ATM          atm;
+    private CardRegistry cards;
+    private long         takenAt;
+    private long         journalPosition;
+    
+    ///////////////////////////////////////////////////////
+    private StateSnapshot(ATM atm, CardRegistry cards, long takenAt, long journalPosition) {
+        this.atm             = atm;
+        this.cards           = cards;
+        this.takenAt         = takenAt;
+        this.journalPosition = journalPosition;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public ATM getATM() {
+        return this.atm;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public CardRegistry getCards() {
+        return this.cards;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public long getTakenAt() {
+        return this.takenAt;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // where the ATM's journal was when the snapshot was taken: the records
+    // before it are in the snapshot already (see JournalReplay.replay)
+    public long getJournalPosition() {
+        return this.journalPosition;
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Write the state to a temporary file next to the given one,
+     * then move it in place, so a crash while writing
+     * leaves the previous snapshot intact
+     *
+     * @param file: where the snapshot is kept
+     * @param atm: ATM whose notes are written (including reserved ones)
+     * @param registry: cards to write
+     */
+    public static void write(Path file, ATM atm, CardRegistry registry) throws IOException {
+        // taken before the state: a withdrawal is written to the journal after it's
+        // done in memory, so every record before the position is in the snapshot
+        // (a withdrawal in flight while the snapshot is taken can be in both)
+        TransactionJournal journal         = atm.getJournal();
+        long               journalPosition = (journal != null) ? journal.size() : 0;
+        
+        Map<String, Map<Integer, Integer>> banknotes = new LinkedHashMap<String, Map<Integer, Integer>>();
+        int                                billsCount = 0;
+        
+        for (String currency : atm.getCurrencies()) {
+            banknotes.put(currency, atm.getBanknotes(currency));
+            billsCount += banknotes.get(currency).size();
+        }
+        
+        Card[] cards = registry.toArray();
+        long   size  = HEADER_SIZE + 12L * billsCount + (long) Card.SNAPSHOT_SIZE * cards.length + 4;
+        
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many cards for one snapshot: " + cards.length);
+        }
+        
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(temporary);
+        
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            
+            buffer.putInt(MAGIC)
+                  .putInt(VERSION)
+                  .putLong(System.currentTimeMillis())
+                  .putInt(billsCount)
+                  .putInt(cards.length)
+                  .putInt(atm.getNumber())
+                  .putInt(CassetteSet.pack(atm.getDefaultCurrency()))
+                  .putLong(journalPosition);
+            
+            for (Map.Entry<String, Map<Integer, Integer>> currency : banknotes.entrySet()) {
+                int packed = CassetteSet.pack(currency.getKey());
+                
+                for (Map.Entry<Integer, Integer> entry : currency.getValue().entrySet()) {
+                    buffer.putInt(packed).putInt(entry.getKey()).putInt(entry.getValue());
+                }
+            }
+            
+            for (Card card : cards) {
+                card.writeTo(buffer);
+            }
+            
+            buffer.putInt(checksum(buffer, (int) size - 4));
+            buffer.force();
+        }
+        
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // load a snapshot written by write;
+    // throws IOException if the file is not a valid snapshot
+    public static StateSnapshot read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            
+            if (size < HEADER_SIZE + 4 || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            
+            if (buffer.getInt(4) != VERSION) {
+                throw new IOException("Unsupported snapshot version " + buffer.getInt(4) + ": " + file);
+            }
+            
+            if (checksum(buffer, (int) size - 4) != buffer.getInt((int) size - 4)) {
+                throw new IOException("Snapshot is damaged: " + file);
+            }
+            
+            long takenAt     = buffer.getLong(8);
+            int  billsCount  = buffer.getInt(16);
+            int  cardsCount  = buffer.getInt(20);
+            int  atmNumber   = buffer.getInt(24);
+            long position    = buffer.getLong(32);
+            
+            if (HEADER_SIZE + 12L * billsCount + (long) Card.SNAPSHOT_SIZE * cardsCount + 4 != size) {
+                throw new IOException("Snapshot is damaged: " + file);
+            }
+            
+            buffer.position(HEADER_SIZE);
+            
+            // currencies in the order they were written
+            Map<String, Map<Integer, Integer>> banknotes = new LinkedHashMap<String, Map<Integer, Integer>>();
+            String                             currency;
+            
+            try {
+                currency = CassetteSet.unpack(buffer.getInt(28));
+                
+                for (int i = 0; i < billsCount; i++) {
+                    banknotes.computeIfAbsent(CassetteSet.unpack(buffer.getInt()), code -> new TreeMap<Integer, Integer>())
+                             .put(buffer.getInt(), buffer.getInt());
+                }
+            }
+            catch (IllegalArgumentException e) {
+                throw new IOException("Snapshot is damaged: " + file, e);
+            }
+            
+            CardRegistry cards = new CardRegistry();
+            for (int i = 0; i < cardsCount; i++) {
+                cards.register(Card.readFrom(buffer));
+            }
+            
+            return new StateSnapshot(new ATM(atmNumber, banknotes, currency), cards, takenAt, position);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // write a snapshot every period on a background thread;
+    // shutting down the returned executor stops the writing
+    public static ScheduledExecutorService writePeriodically(Path file, ATM atm, CardRegistry cards, long period, TimeUnit unit) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "state-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                write(file, atm, cards);
+            }
+            catch (IOException e) {
+                EventLog.get().log(EventLog.Type.SNAPSHOT_FAILED, atm, 0, 0, null, e);
+            }
+        }, period, period, unit);
+        
+        return scheduler;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // CRC32 of the first length bytes of the buffer
+    private static int checksum(ByteBuffer buffer, int length) {
+        ByteBuffer bytes = buffer.duplicate();
+        bytes.position(0).limit(length);
+        
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,16 @@
+///////////////////////////////////////////////////////
+// input and output of a single ATM session,
+// so that sessions don't have to talk to System.in and System.out
+public interface Terminal {
+    
+    ///////////////////////////////////////////////////////
+    // next line typed by the user, or null
+    // if there's no more input (the session is over)
+    String readLine();
+    
+    ///////////////////////////////////////////////////////
+    void print(String text);
+    
+    ///////////////////////////////////////////////////////
+    void println(String text);
+}
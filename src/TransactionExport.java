@@ -0,0 +1,527 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+///////////////////////////////////////////////////////
+// history of the transactions (see TransactionProcessor.setExport)
+// in a compact file for analytics: the transactions are kept in groups
+// of rows, and each group is written column by column, so a scan only
+// reads the columns it needs and skips the groups which can't match
+// (see TransactionExportReader).
+//  - card numbers and currencies are dictionary encoded: the distinct
+//    values of the group once, then a small index per row
+//  - times are encoded as the difference to the previous row
+//  - everything else as plain numbers; all as variable length integers,
+//    and every column is compressed (deflate) on its own
+//  - each column of a group keeps its smallest and largest value, and
+//    the group which outcomes are in it, so a reader can tell without
+//    reading the column whether any row can match
+//  - notes are counted per denomination (bill value), the same
+//    columns for every ATM, whichever cassettes it has the bill in
+//    (a 50 of another currency is in the same column, see CURRENCY)
+// transactions only put their row in a queue and never wait for the file:
+// a writer thread of the export fills in the group and writes it, the same
+// way ReceiptSpooler prints receipts. The queue is bounded and its rows are
+// preallocated and reused; when it's full a row is dropped (and counted),
+// and if the file can't be written the rows are lost (and counted) and
+// the error is thrown by close
+public class TransactionExport implements AutoCloseable {
+    static final int MAGIC   = 0x41544D58; // "ATMX"
+    static final int VERSION = 1;
+    
+    // columns of every group, then one column per denomination
+    static final int CARD       = 0;
+    static final int TIME       = 1;
+    static final int ATM_NUMBER = 2;
+    static final int ACTION     = 3;
+    static final int AMOUNT     = 4;
+    static final int OUTCOME    = 5;
+    static final int CURRENCY   = 6;
+    static final int NOTES      = 7;
+    
+    // how the values of a column are encoded
+    static final byte PLAIN      = 0;
+    static final byte DELTA      = 1;
+    static final byte DICTIONARY = 2;
+    
+    // group header: rows, outcomes in the group, then per column
+    // encoding, smallest and largest value, compressed and encoded size
+    static final int GROUP_HEADER_SIZE  = 4 + 8;
+    static final int COLUMN_HEADER_SIZE = 1 + 8 + 8 + 4 + 4;
+    
+    private FileChannel channel;
+    private int[]       denominations;
+    private int         rowsPerGroup;
+    
+    // rows waiting to be added to the group, and the ones free to be filled in
+    private BlockingQueue<Row> pending;
+    private BlockingQueue<Row> free;
+    private List<Row>          batch    = new ArrayList<Row>(MAX_BATCH);
+    private Thread             writer;
+    private volatile boolean   isClosed = false;
+    private volatile boolean   isDone   = false;
+    private IOException        failure;
+    
+    // rows of the current group, one array per column (writer thread only)
+    private long[][] columns;
+    private int      rows     = 0;
+    private long     outcomes = 0;
+    
+    // which denomination column the notes of each ATM bill go to
+    private Map<ATM, int[]> billColumns = new IdentityHashMap<ATM, int[]>();
+    
+    // reused for every column of every group
+    private Encoder  encoder    = new Encoder();
+    private byte[]   compressed = new byte[1 << 16];
+    private Deflater deflater   = new Deflater(Deflater.BEST_SPEED);
+    
+    // how many rows and bytes were written, and how many rows were
+    // dropped because the queue was full or lost to a write error (see Metrics)
+    private static final Metrics.Counter ROWS    = Metrics.get().counter("export_rows");
+    private static final Metrics.Counter BYTES   = Metrics.get().counter("export_bytes");
+    private static final Metrics.Counter DROPPED = Metrics.get().counter("export_rows_dropped");
+    private static final Metrics.Counter LOST    = Metrics.get().counter("export_rows_lost");
+    
+    // rows taken off the queue at once by the writer thread
+    private static final int MAX_BATCH = 1024;
+    
+    // a transaction waiting to be added to the group
+    private static class Row {
+        int                       card;
+        long                      time;
+        ATM                       atm;
+        TransactionRequest.Action action;
+        int                       amount;
+        String                    currency;
+        Outcome                   outcome;
+        int[]                     notes = new int[0];
+        boolean                   hasNotes;
+    }
+    
+    // marks the end of the queue when the export is closed
+    private static final Row CLOSE = new Row();
+    
+    ///////////////////////////////////////////////////////
+    // groups of 65536 rows
+    public TransactionExport(Path file, int[] denominations) throws IOException {
+        this(file, denominations, 1 << 16);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // up to 65536 rows waiting to be written
+    public TransactionExport(Path file, int[] denominations, int rowsPerGroup) throws IOException {
+        this(file, denominations, rowsPerGroup, 1 << 16);
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Start a new file (an existing one is replaced)
+     *
+     * @param file: where the transactions are written
+     * @param denominations: bill values the notes are counted for, eg. 200, 100, 50, 20, 10
+     * @param rowsPerGroup: how many transactions are written together;
+     *                      larger groups compress better, smaller ones can be skipped more often
+     * @param capacity: how many transactions can wait to be written
+     */
+    public TransactionExport(Path file, int[] denominations, int rowsPerGroup, int capacity) throws IOException {
+        this.channel       = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.denominations = denominations.clone();
+        this.rowsPerGroup  = rowsPerGroup;
+        this.columns       = new long[NOTES + denominations.length][rowsPerGroup];
+        this.pending       = new ArrayBlockingQueue<Row>(capacity + 1);
+        this.free          = new ArrayBlockingQueue<Row>(capacity);
+        
+        for (int i = 0; i < capacity; i++) {
+            this.free.add(new Row());
+        }
+        
+        ByteBuffer header = ByteBuffer.allocate(12 + 4 * denominations.length);
+        header.putInt(MAGIC).putInt(VERSION).putInt(denominations.length);
+        
+        for (int denomination : denominations) {
+            header.putInt(denomination);
+        }
+        
+        header.flip();
+        this.write(header);
+        
+        this.writer = new Thread(this::run, "transaction-export");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Queue a transaction for the current group; never blocks
+     * and never throws (the group is written by the writer thread)
+     *
+     * @param card: number of the card
+     * @param time: when the transaction ended (epoch millis)
+     * @param atm: where it was
+     * @param action: what the card holder asked for
+     * @param amount: requested amount (0 if not a withdrawal)
+     * @param currency: currency of the account, eg. "HRK"
+     * @param outcome: outcome of the transaction
+     * @param notes: notes handed out, indexed the same way as the bills in the ATM (or null if none)
+     * @return false if the row was dropped (too many waiting, the export is closed or failed)
+     */
+    public boolean append(int card, long time, ATM atm, TransactionRequest.Action action, int amount,
+                          String currency, Outcome outcome, int[] notes) {
+        Row row = this.isDone ? null : this.free.poll();
+        
+        if (row == null) {
+            DROPPED.increment();
+            return false;
+        }
+        
+        row.card     = card;
+        row.time     = time;
+        row.atm      = atm;
+        row.action   = action;
+        row.amount   = amount;
+        row.currency = currency;
+        row.outcome  = outcome;
+        row.hasNotes = (notes != null);
+        
+        if (notes != null) {
+            if (row.notes.length < notes.length) {
+                row.notes = new int[notes.length];
+            }
+            
+            System.arraycopy(notes, 0, row.notes, 0, notes.length);
+        }
+        
+        // there are never more rows than free ones, so there's always room
+        this.pending.add(row);
+        
+        return true;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // add whatever has queued up to the group, a batch at a time,
+    // and write the group whenever it's full
+    private void run() {
+        boolean closing = false;
+        
+        while (!closing) {
+            try {
+                Row first = this.pending.take();
+                
+                this.batch.add(first);
+                this.pending.drainTo(this.batch, MAX_BATCH - 1);
+            }
+            catch (InterruptedException e) {
+                closing = true;
+            }
+            
+            // the end of the queue may have been drained with the rest
+            if (this.batch.remove(CLOSE)) {
+                closing = true;
+            }
+            
+            this.add();
+        }
+        
+        // anything appended while closing
+        this.pending.drainTo(this.batch);
+        this.batch.remove(CLOSE);
+        this.add();
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the rows of the batch into the group; the rows are free again either way
+    private void add() {
+        for (Row row : this.batch) {
+            if (this.failure != null) {
+                LOST.increment();
+            }
+            else {
+                try {
+                    this.add(row);
+                }
+                catch (IllegalArgumentException e) {
+                    DROPPED.increment();
+                }
+                catch (IOException e) {
+                    this.fail(e);
+                }
+            }
+            
+            row.atm      = null;
+            row.currency = null;
+            this.free.add(row);
+        }
+        
+        this.batch.clear();
+    }
+    
+    ///////////////////////////////////////////////////////
+    private void add(Row queued) throws IOException {
+        int   row         = this.rows;
+        int[] billColumns = this.billColumnsOf(queued.atm);
+        
+        this.columns[CARD][row]       = queued.card;
+        this.columns[TIME][row]       = queued.time;
+        this.columns[ATM_NUMBER][row] = queued.atm.getNumber();
+        this.columns[ACTION][row]     = queued.action.ordinal();
+        this.columns[AMOUNT][row]     = queued.amount;
+        this.columns[OUTCOME][row]    = queued.outcome.ordinal();
+        this.columns[CURRENCY][row]   = CassetteSet.pack(queued.currency);
+        this.outcomes                |= 1L << queued.outcome.ordinal();
+        
+        for (int i = NOTES; i < this.columns.length; i++) {
+            this.columns[i][row] = 0;
+        }
+        for (int i = 0; queued.hasNotes && i < billColumns.length; i++) {
+            this.columns[billColumns[i]][row] += queued.notes[i];
+        }
+        
+        this.rows++;
+        
+        if (this.rows == this.rowsPerGroup) {
+            this.flush();
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the file can't be written: the rows of the group and every row
+    // after it are lost, and close throws the error
+    private void fail(IOException e) {
+        this.failure = e;
+        this.isDone  = true;
+        
+        LOST.add(this.rows);
+        this.rows     = 0;
+        this.outcomes = 0;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the denomination column of every bill of the ATM, worked out once per ATM
+    private int[] billColumnsOf(ATM atm) {
+        int[] billColumns = this.billColumns.get(atm);
+        
+        if (billColumns != null) {
+            return billColumns;
+        }
+        
+        billColumns = new int[atm.getBillsCount()];
+        
+        for (String currency : atm.getCurrencies()) {
+            CassetteSet cassettes = atm.getCassettes(currency);
+            
+            for (int i = 0; i < cassettes.size(); i++) {
+                int column = indexOf(this.denominations, cassettes.getBill(i));
+                
+                if (column < 0) {
+                    throw new IllegalArgumentException("No column for the notes of " + cassettes.getBill(i) + " in ATM " + atm.getNumber());
+                }
+                
+                billColumns[cassettes.getFrom() + i] = NOTES + column;
+            }
+        }
+        
+        this.billColumns.put(atm, billColumns);
+        
+        return billColumns;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // write the rows of the current group, even if it's not full
+    // (by the writer thread, or by close once it's done)
+    private void flush() throws IOException {
+        if (this.rows == 0) {
+            return;
+        }
+        
+        int          count  = this.columns.length;
+        ByteBuffer   header = ByteBuffer.allocate(GROUP_HEADER_SIZE + count * COLUMN_HEADER_SIZE);
+        ByteBuffer[] data   = new ByteBuffer[count];
+        
+        header.putInt(this.rows).putLong(this.outcomes);
+        
+        for (int i = 0; i < count; i++) {
+            byte encoding = (i == CARD || i == CURRENCY) ? DICTIONARY : (i == TIME) ? DELTA : PLAIN;
+            long min      = Long.MAX_VALUE;
+            long max      = Long.MIN_VALUE;
+            
+            for (int row = 0; row < this.rows; row++) {
+                min = Math.min(min, this.columns[i][row]);
+                max = Math.max(max, this.columns[i][row]);
+            }
+            
+            this.encoder.encode(encoding, this.columns[i], this.rows);
+            data[i] = this.compress();
+            
+            header.put(encoding).putLong(min).putLong(max).putInt(data[i].remaining()).putInt(this.encoder.length);
+        }
+        
+        header.flip();
+        this.write(header);
+        
+        for (ByteBuffer column : data) {
+            this.write(column);
+        }
+        
+        ROWS.add(this.rows);
+        this.rows     = 0;
+        this.outcomes = 0;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // deflate what the encoder holds into a buffer of its own
+    private ByteBuffer compress() {
+        this.deflater.reset();
+        this.deflater.setInput(this.encoder.bytes, 0, this.encoder.length);
+        this.deflater.finish();
+        
+        int length = 0;
+        
+        while (!this.deflater.finished()) {
+            if (length == this.compressed.length) {
+                this.compressed = Arrays.copyOf(this.compressed, length * 2);
+            }
+            
+            length += this.deflater.deflate(this.compressed, length, this.compressed.length - length);
+        }
+        
+        return ByteBuffer.wrap(Arrays.copyOf(this.compressed, length));
+    }
+    
+    ///////////////////////////////////////////////////////
+    private void write(ByteBuffer buffer) throws IOException {
+        BYTES.add(buffer.remaining());
+        
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // write what's been appended so far and close the file; rows appended
+    // after that are dropped. Throws the error the writer thread ran into, if any
+    public synchronized void close() throws IOException {
+        if (this.isClosed) {
+            return;
+        }
+        
+        this.isClosed = true;
+        this.isDone   = true;
+        this.pending.add(CLOSE);
+        
+        try {
+            this.writer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        // appended just as the writer thread was done
+        DROPPED.add(this.pending.size());
+        
+        try {
+            if (this.failure == null) {
+                this.flush();
+                this.channel.force(false);
+            }
+        }
+        finally {
+            this.channel.close();
+            this.deflater.end();
+        }
+        
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    static int indexOf(int[] values, int value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        
+        return -1;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // turns a column into variable length integers (7 bits per byte,
+    // zigzag for signed values), into a buffer which is reused
+    static class Encoder {
+        byte[] bytes  = new byte[1 << 16];
+        int    length = 0;
+        
+        ///////////////////////////////////////////////////////
+        void encode(byte encoding, long[] values, int rows) {
+            this.length = 0;
+            
+            switch (encoding) {
+                case DELTA:
+                    long previous = 0;
+                    
+                    for (int row = 0; row < rows; row++) {
+                        this.put(values[row] - previous);
+                        previous = values[row];
+                    }
+                    break;
+                
+                case DICTIONARY:
+                    // distinct values in order, as differences to the previous one,
+                    // then the index of every row's value among them
+                    long[] dictionary = Arrays.copyOf(values, rows);
+                    int    distinct   = 0;
+                    
+                    Arrays.sort(dictionary);
+                    
+                    for (int i = 0; i < rows; i++) {
+                        if (i == 0 || dictionary[i] != dictionary[distinct - 1]) {
+                            dictionary[distinct++] = dictionary[i];
+                        }
+                    }
+                    
+                    this.put(distinct);
+                    
+                    for (int i = 0; i < distinct; i++) {
+                        this.put(dictionary[i] - ((i == 0) ? 0 : dictionary[i - 1]));
+                    }
+                    for (int row = 0; row < rows; row++) {
+                        this.put(Arrays.binarySearch(dictionary, 0, distinct, values[row]));
+                    }
+                    break;
+                
+                default:
+                    for (int row = 0; row < rows; row++) {
+                        this.put(values[row]);
+                    }
+                    break;
+            }
+        }
+        
+        ///////////////////////////////////////////////////////
+        private void put(long value) {
+            if (this.length + 10 > this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, this.bytes.length * 2);
+            }
+            
+            long zigzag = (value << 1) ^ (value >> 63);
+            
+            while ((zigzag & ~0x7FL) != 0) {
+                this.bytes[this.length++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            
+            this.bytes[this.length++] = (byte) zigzag;
+        }
+    }
+}
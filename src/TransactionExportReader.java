@@ -0,0 +1,591 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+///////////////////////////////////////////////////////
+// scans a file of TransactionExport for the rows of a query, reading
+// as little of it as it can (predicate pushdown):
+//  - a group whose smallest and largest values (or outcomes) show that
+//    none of its rows can match is skipped without reading any column
+//  - with a card in the query, only the dictionary of the card column
+//    is looked at first; a group without the card is skipped
+//  - the columns of the query are read and compared next, and the other
+//    columns are only read if a row of the group matched (and the notes
+//    not at all if the query doesn't need them)
+// columns are decoded into arrays which are reused for every group,
+// and the rows handed out are a single reused Row
+public class TransactionExportReader implements AutoCloseable {
+    private FileChannel channel;
+    private int[]       denominations;
+    private long        firstGroup;
+    private int         columnsCount;
+    
+    // reused for every group: compressed and inflated bytes of a column,
+    // the decoded columns and which of them are decoded, the matching rows
+    private byte[]    compressed = new byte[1 << 16];
+    private byte[]    encoded    = new byte[1 << 16];
+    private long[][]  columns;
+    private boolean[] isDecoded;
+    private int[]     selected   = new int[0];
+    private Inflater  inflater   = new Inflater();
+    
+    // what the last scan read (see getBytesRead)
+    private long bytesRead;
+    private long groupsRead;
+    private long groupsSkipped;
+    
+    // which rows a scan is after; nothing set matches every row
+    public static class Query {
+        private int     card      = -1;
+        private int     atm       = -1;
+        private long    from      = Long.MIN_VALUE;
+        private long    to        = Long.MAX_VALUE;
+        private long    minAmount = Long.MIN_VALUE;
+        private long    maxAmount = Long.MAX_VALUE;
+        private long    outcomes  = -1;
+        private long    actions   = -1;
+        private boolean withNotes = true;
+        
+        ///////////////////////////////////////////////////////
+        public void setCard(int number) {
+            this.card = number;
+        }
+        
+        ///////////////////////////////////////////////////////
+        public void setATM(int number) {
+            this.atm = number;
+        }
+        
+        ///////////////////////////////////////////////////////
+        // from (inclusive) and to (exclusive), in epoch millis
+        public void setTime(long from, long to) {
+            this.from = from;
+            this.to   = to;
+        }
+        
+        ///////////////////////////////////////////////////////
+        // requested amounts from min to max, both inclusive
+        public void setAmount(long min, long max) {
+            this.minAmount = min;
+            this.maxAmount = max;
+        }
+        
+        ///////////////////////////////////////////////////////
+        public void setOutcomes(Outcome... outcomes) {
+            this.outcomes = 0;
+            
+            for (Outcome outcome : outcomes) {
+                this.outcomes |= 1L << outcome.ordinal();
+            }
+        }
+        
+        ///////////////////////////////////////////////////////
+        public void setActions(TransactionRequest.Action... actions) {
+            this.actions = 0;
+            
+            for (TransactionRequest.Action action : actions) {
+                this.actions |= 1L << action.ordinal();
+            }
+        }
+        
+        ///////////////////////////////////////////////////////
+        // the notes columns are not read (and Row.getNotes is always 0)
+        public void setWithNotes(boolean withNotes) {
+            this.withNotes = withNotes;
+        }
+    }
+    
+    // the row the scan is at; only valid in the consumer it's passed to
+    public class Row {
+        private int row;
+        
+        ///////////////////////////////////////////////////////
+        public int getCard() {
+            return (int) TransactionExportReader.this.columns[TransactionExport.CARD][this.row];
+        }
+        
+        ///////////////////////////////////////////////////////
+        // epoch millis
+        public long getTime() {
+            return TransactionExportReader.this.columns[TransactionExport.TIME][this.row];
+        }
+        
+        ///////////////////////////////////////////////////////
+        public int getATM() {
+            return (int) TransactionExportReader.this.columns[TransactionExport.ATM_NUMBER][this.row];
+        }
+        
+        ///////////////////////////////////////////////////////
+        public TransactionRequest.Action getAction() {
+            return TransactionRequest.Action.values()[(int) TransactionExportReader.this.columns[TransactionExport.ACTION][this.row]];
+        }
+        
+        ///////////////////////////////////////////////////////
+        public int getAmount() {
+            return (int) TransactionExportReader.this.columns[TransactionExport.AMOUNT][this.row];
+        }
+        
+        ///////////////////////////////////////////////////////
+        // see Outcome.getExceptionName for the exception it stands for
+        public Outcome getOutcome() {
+            return Outcome.values()[(int) TransactionExportReader.this.columns[TransactionExport.OUTCOME][this.row]];
+        }
+        
+        ///////////////////////////////////////////////////////
+        public String getCurrency() {
+            return CassetteSet.unpack((int) TransactionExportReader.this.columns[TransactionExport.CURRENCY][this.row]);
+        }
+        
+        ///////////////////////////////////////////////////////
+        // notes of denomination i (see getDenominations) handed out
+        public int getNotes(int i) {
+            int column = TransactionExport.NOTES + i;
+            
+            return TransactionExportReader.this.isDecoded[column] ? (int) TransactionExportReader.this.columns[column][this.row] : 0;
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    public TransactionExportReader(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        
+        ByteBuffer header = ByteBuffer.allocate(12);
+        this.readFully(header, 0);
+        
+        if (header.getInt() != TransactionExport.MAGIC || header.getInt() != TransactionExport.VERSION) {
+            throw new IOException(file + " is not a transaction export of version " + TransactionExport.VERSION);
+        }
+        
+        this.denominations = new int[header.getInt()];
+        this.columnsCount  = TransactionExport.NOTES + this.denominations.length;
+        this.columns       = new long[this.columnsCount][0];
+        this.isDecoded     = new boolean[this.columnsCount];
+        
+        ByteBuffer bills = ByteBuffer.allocate(4 * this.denominations.length);
+        this.readFully(bills, 12);
+        
+        for (int i = 0; i < this.denominations.length; i++) {
+            this.denominations[i] = bills.getInt();
+        }
+        
+        this.firstGroup = 12 + 4L * this.denominations.length;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // bill values of the notes columns
+    public int[] getDenominations() {
+        return this.denominations.clone();
+    }
+    
+    ///////////////////////////////////////////////////////
+    // bytes of the file read by the last scan
+    public long getBytesRead() {
+        return this.bytesRead;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // groups of the last scan whose columns were read, and the ones which were skipped
+    public long getGroupsRead() {
+        return this.groupsRead;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public long getGroupsSkipped() {
+        return this.groupsSkipped;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public long size() throws IOException {
+        return this.channel.size();
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Pass every row which matches the query to the consumer, in file order
+     *
+     * @param query: which rows
+     * @param action: gets a Row, which is reused for the next one
+     * @return how many rows matched
+     */
+    public synchronized long scan(Query query, Consumer<Row> action) throws IOException {
+        int        headerSize = TransactionExport.GROUP_HEADER_SIZE + this.columnsCount * TransactionExport.COLUMN_HEADER_SIZE;
+        ByteBuffer header     = ByteBuffer.allocate(headerSize);
+        byte[]     encodings  = new byte[this.columnsCount];
+        long[]     mins       = new long[this.columnsCount];
+        long[]     maxs       = new long[this.columnsCount];
+        long[]     offsets    = new long[this.columnsCount];
+        int[]      lengths    = new int[this.columnsCount];
+        int[]      sizes      = new int[this.columnsCount];
+        Row        row        = new Row();
+        long       matched    = 0;
+        long       position   = this.firstGroup;
+        
+        this.bytesRead     = this.firstGroup;
+        this.groupsRead    = 0;
+        this.groupsSkipped = 0;
+        
+        while (position + headerSize <= this.channel.size()) {
+            header.clear();
+            this.readFully(header, position);
+            
+            int  rows     = header.getInt();
+            long outcomes = header.getLong();
+            long offset   = position + headerSize;
+            
+            for (int i = 0; i < this.columnsCount; i++) {
+                encodings[i] = header.get();
+                mins[i]      = header.getLong();
+                maxs[i]      = header.getLong();
+                lengths[i]   = header.getInt();
+                sizes[i]     = header.getInt();
+                offsets[i]   = offset;
+                offset      += lengths[i];
+            }
+            
+            position = offset;
+            
+            // nothing in the group can match: don't read any column
+            if (!this.mayMatch(query, outcomes, mins, maxs)) {
+                this.groupsSkipped++;
+                continue;
+            }
+            
+            Arrays.fill(this.isDecoded, false);
+            
+            if (this.selected.length < rows) {
+                this.selected = new int[rows];
+            }
+            
+            int count = rows;
+            
+            for (int i = 0; i < rows; i++) {
+                this.selected[i] = i;
+            }
+            
+            // the card is looked up in the dictionary before the rows are decoded
+            if (query.card >= 0) {
+                if (!this.decode(TransactionExport.CARD, offsets, lengths, sizes, encodings, rows, query.card)) {
+                    this.groupsSkipped++;
+                    continue;
+                }
+                
+                count = this.select(TransactionExport.CARD, count, query.card, query.card);
+            }
+            
+            this.groupsRead++;
+            
+            if (query.atm >= 0 && count > 0) {
+                this.decode(TransactionExport.ATM_NUMBER, offsets, lengths, sizes, encodings, rows, -1);
+                count = this.select(TransactionExport.ATM_NUMBER, count, query.atm, query.atm);
+            }
+            if ((query.from != Long.MIN_VALUE || query.to != Long.MAX_VALUE) && count > 0) {
+                this.decode(TransactionExport.TIME, offsets, lengths, sizes, encodings, rows, -1);
+                count = this.select(TransactionExport.TIME, count, query.from, query.to - 1);
+            }
+            if ((query.minAmount != Long.MIN_VALUE || query.maxAmount != Long.MAX_VALUE) && count > 0) {
+                this.decode(TransactionExport.AMOUNT, offsets, lengths, sizes, encodings, rows, -1);
+                count = this.select(TransactionExport.AMOUNT, count, query.minAmount, query.maxAmount);
+            }
+            if (query.outcomes != -1 && count > 0) {
+                this.decode(TransactionExport.OUTCOME, offsets, lengths, sizes, encodings, rows, -1);
+                count = this.selectIn(TransactionExport.OUTCOME, count, query.outcomes);
+            }
+            if (query.actions != -1 && count > 0) {
+                this.decode(TransactionExport.ACTION, offsets, lengths, sizes, encodings, rows, -1);
+                count = this.selectIn(TransactionExport.ACTION, count, query.actions);
+            }
+            
+            if (count == 0) {
+                continue;
+            }
+            
+            // the rest of the columns, only for groups with matching rows
+            int needed = query.withNotes ? this.columnsCount : TransactionExport.NOTES;
+            
+            for (int i = 0; i < needed; i++) {
+                if (!this.isDecoded[i]) {
+                    this.decode(i, offsets, lengths, sizes, encodings, rows, -1);
+                }
+            }
+            
+            for (int i = 0; i < count; i++) {
+                row.row = this.selected[i];
+                action.accept(row);
+            }
+            
+            matched += count;
+        }
+        
+        return matched;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // false if the smallest and largest values of the group
+    // (and its outcomes) show that none of its rows can match
+    private boolean mayMatch(Query query, long outcomes, long[] mins, long[] maxs) {
+        if (query.card >= 0 && (query.card < mins[TransactionExport.CARD] || query.card > maxs[TransactionExport.CARD])) {
+            return false;
+        }
+        if (query.atm >= 0 && (query.atm < mins[TransactionExport.ATM_NUMBER] || query.atm > maxs[TransactionExport.ATM_NUMBER])) {
+            return false;
+        }
+        if (query.to <= mins[TransactionExport.TIME] || query.from > maxs[TransactionExport.TIME]) {
+            return false;
+        }
+        if (query.maxAmount < mins[TransactionExport.AMOUNT] || query.minAmount > maxs[TransactionExport.AMOUNT]) {
+            return false;
+        }
+        if ((query.outcomes & outcomes) == 0) {
+            return false;
+        }
+        
+        // actions of the query between the smallest and the largest one of the group
+        long range = (-1L << mins[TransactionExport.ACTION]) & (-1L >>> (63 - maxs[TransactionExport.ACTION]));
+        
+        return (query.actions & range) != 0;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // keep the selected rows whose value is from min to max (inclusive)
+    private int select(int column, int count, long min, long max) {
+        long[] values = this.columns[column];
+        int    kept   = 0;
+        
+        for (int i = 0; i < count; i++) {
+            long value = values[this.selected[i]];
+            
+            if (value >= min && value <= max) {
+                this.selected[kept++] = this.selected[i];
+            }
+        }
+        
+        return kept;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // keep the selected rows whose value (an ordinal) is in the mask
+    private int selectIn(int column, int count, long mask) {
+        long[] values = this.columns[column];
+        int    kept   = 0;
+        
+        for (int i = 0; i < count; i++) {
+            if ((mask & (1L << values[this.selected[i]])) != 0) {
+                this.selected[kept++] = this.selected[i];
+            }
+        }
+        
+        return kept;
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Read, inflate and decode a column of the group
+     *
+     * @param wanted: for a dictionary column, a value which has to be in
+     *                the dictionary (or -1 for any); if it's not, the rows
+     *                are not decoded and false is returned
+     */
+    private boolean decode(int column, long[] offsets, int[] lengths, int[] sizes, byte[] encodings, int rows, long wanted) throws IOException {
+        if (this.compressed.length < lengths[column]) {
+            this.compressed = new byte[Integer.highestOneBit(lengths[column]) << 1];
+        }
+        if (this.encoded.length < sizes[column]) {
+            this.encoded = new byte[Integer.highestOneBit(sizes[column]) << 1];
+        }
+        if (this.columns[column].length < rows) {
+            this.columns[column] = new long[rows];
+        }
+        
+        this.readFully(ByteBuffer.wrap(this.compressed, 0, lengths[column]), offsets[column]);
+        
+        try {
+            this.inflater.reset();
+            this.inflater.setInput(this.compressed, 0, lengths[column]);
+            
+            for (int inflated = 0; inflated < sizes[column]; ) {
+                int more = this.inflater.inflate(this.encoded, inflated, sizes[column] - inflated);
+                
+                if (more == 0 && (this.inflater.finished() || this.inflater.needsInput())) {
+                    throw new IOException("Column " + column + " is shorter than its header says");
+                }
+                
+                inflated += more;
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException("Column " + column + " can't be inflated", e);
+        }
+        
+        long[] values = this.columns[column];
+        int[]  at     = { 0 };
+        
+        switch (encodings[column]) {
+            case TransactionExport.DELTA:
+                long previous = 0;
+                
+                for (int row = 0; row < rows; row++) {
+                    previous    += this.next(at);
+                    values[row]  = previous;
+                }
+                break;
+            
+            case TransactionExport.DICTIONARY:
+                long[] dictionary = new long[(int) this.next(at)];
+                long   value      = 0;
+                
+                for (int i = 0; i < dictionary.length; i++) {
+                    value        += this.next(at);
+                    dictionary[i] = value;
+                }
+                
+                if (wanted >= 0 && Arrays.binarySearch(dictionary, wanted) < 0) {
+                    return false;
+                }
+                
+                for (int row = 0; row < rows; row++) {
+                    values[row] = dictionary[(int) this.next(at)];
+                }
+                break;
+            
+            default:
+                for (int row = 0; row < rows; row++) {
+                    values[row] = this.next(at);
+                }
+                break;
+        }
+        
+        this.isDecoded[column] = true;
+        
+        return true;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the next variable length integer of the inflated column
+    private long next(int[] at) {
+        long zigzag = 0;
+        int  shift  = 0;
+        byte b;
+        
+        do {
+            b       = this.encoded[at[0]++];
+            zigzag |= (long) (b & 0x7F) << shift;
+            shift  += 7;
+        }
+        while (b < 0);
+        
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+    
+    ///////////////////////////////////////////////////////
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = this.channel.read(buffer, position);
+            
+            if (read < 0) {
+                throw new IOException("Transaction export ends in the middle of a group");
+            }
+            
+            position       += read;
+            this.bytesRead += read;
+        }
+        
+        buffer.flip();
+    }
+    
+    ///////////////////////////////////////////////////////
+    public void close() throws IOException {
+        this.channel.close();
+        this.inflater.end();
+    }
+    
+    ///////////////////////////////////////////////////////
+    // a summary of the rows of a query, eg.
+    //   java TransactionExportReader fleet.export card=42 outcome=OK from=2026-10-01T00:00:00Z
+    // options: card, atm, from, to (ISO instants), min, max (amounts),
+    // outcome (comma separated), action (comma separated), rows (how many to print)
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println(">>> Which file? eg. java TransactionExportReader fleet.export card=42");
+            return;
+        }
+        
+        Query query   = new Query();
+        int   printed = 0;
+        
+        for (int i = 1; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            String   value  = option.length > 1 ? option[1] : "";
+            
+            switch (option[0]) {
+                case "card":   query.setCard(Integer.parseInt(value)); break;
+                case "atm":    query.setATM(Integer.parseInt(value)); break;
+                case "from":   query.setTime(Instant.parse(value).toEpochMilli(), query.to); break;
+                case "to":     query.setTime(query.from, Instant.parse(value).toEpochMilli()); break;
+                case "min":    query.setAmount(Long.parseLong(value), query.maxAmount); break;
+                case "max":    query.setAmount(query.minAmount, Long.parseLong(value)); break;
+                case "rows":   printed = Integer.parseInt(value); break;
+                case "outcome":
+                    query.setOutcomes(Arrays.stream(value.split(",")).map(Outcome::valueOf).toArray(Outcome[]::new));
+                    break;
+                case "action":
+                    query.setActions(Arrays.stream(value.split(",")).map(TransactionRequest.Action::valueOf).toArray(TransactionRequest.Action[]::new));
+                    break;
+                default:
+                    System.out.println(">>> Unknown option " + option[0]);
+                    return;
+            }
+        }
+        
+        try (TransactionExportReader reader = new TransactionExportReader(Paths.get(args[0]))) {
+            int[]  denominations = reader.getDenominations();
+            long[] notes         = new long[denominations.length];
+            long[] outcomes      = new long[Outcome.values().length];
+            long[] amount        = { 0 };
+            int[]  left          = { printed };
+            long   start         = System.nanoTime();
+            
+            long matched = reader.scan(query, row -> {
+                outcomes[row.getOutcome().ordinal()]++;
+                
+                if (row.getOutcome() == Outcome.OK && row.getAction() == TransactionRequest.Action.WITHDRAW) {
+                    amount[0] += row.getAmount();
+                }
+                for (int i = 0; i < notes.length; i++) {
+                    notes[i] += row.getNotes(i);
+                }
+                
+                if (left[0]-- > 0) {
+                    System.out.println(String.format("%s  card %d  atm %d  %-13s %6d %s  %s", Instant.ofEpochMilli(row.getTime()),
+                                                     row.getCard(), row.getATM(), row.getAction(), row.getAmount(),
+                                                     row.getCurrency(), row.getOutcome()));
+                }
+            });
+            
+            long elapsed = System.nanoTime() - start;
+            
+            System.out.println(String.format("\n>>> %d rows in %.3f s, %d of %d bytes read, %d groups read, %d skipped",
+                                             matched, elapsed / 1e9, reader.getBytesRead(), reader.size(),
+                                             reader.getGroupsRead(), reader.getGroupsSkipped()));
+            System.out.println(">>> Withdrawn: " + amount[0]);
+            
+            for (int i = 0; i < denominations.length; i++) {
+                System.out.println(String.format(">>> %6d: %d notes", denominations[i], notes[i]));
+            }
+            for (Outcome outcome : Outcome.values()) {
+                if (outcomes[outcome.ordinal()] > 0) {
+                    String exception = outcome.getExceptionName();
+                    
+                    System.out.println(">>> " + outcome + (exception != null ? " (" + exception + ")" : "") + ": " + outcomes[outcome.ordinal()]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,434 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+///////////////////////////////////////////////////////
+// append-only file with every withdrawal, written through a memory map
+// and synced to disk in batches. Besides withdrawals it holds
+// what happened to the cards in the ATMs (inserted, wrong PINs, blocked),
+// plans which were not paid out and notes paid out without a card
+// (see ATM.withdrawBatch), so the whole history can be
+// replayed and checked (see JournalReplay). Next to the file it keeps, per card,
+// how much was withdrawn today, so the daily limit check doesn't
+// have to go through the history. That index is rebuilt
+// from the file when the journal is opened again
+public class TransactionJournal implements AutoCloseable {
+    
+    // record layout (48 bytes):
+    //  0 int   type (see below); 0 means end of the journal
+    //  4 int   card number
+    //  8 long  time (epoch millis)
+    // 16 int   amount
+    // 20 int   ATM number
+    // 24 short notes per bill, by bill index of the ATM (MAX_BILLS of them),
+    //          unsigned, so up to MAX_NOTES of a bill in one record
+    // 40 int   detail (CASH_PLANNED: ordinal of the Outcome)
+    // 44 int   CRC32 of bytes 0-43
+    static final int RECORD_SIZE = 48;
+    static final int MAX_BILLS   = 8;
+    static final int MAX_NOTES   = 0xFFFF;
+    
+    // record types:
+    // notes dispensed and the amount debited from the card, in one record
+    static final int WITHDRAWAL     = 1;
+    static final int CARD_INSERTED  = 2;
+    static final int PIN_FAILED     = 3;
+    static final int CARD_BLOCKED   = 4;
+    // notes were planned and reserved, but the withdrawal was declined
+    // afterwards (eg. not enough funds) and they went back to the ATM
+    static final int CASH_PLANNED   = 5;
+    // notes handed out for an amount of a batch (see ATM.withdrawBatch):
+    // no card is debited, the card number is 0
+    static final int CASH_DISPENSED = 6;
+    
+    // the file is mapped in chunks of this many records
+    private static final int CHUNK_RECORDS = 65536;
+    
+    private FileChannel      channel;
+    private MappedByteBuffer chunk;
+    private long             chunkStart;
+    private long             position;
+    
+    // batching of syncs to disk: after this many records
+    // or this much time since the last sync, whichever comes first;
+    // the scheduler syncs the last records when no more are appended
+    private int                      syncEveryRecords;
+    private long                     syncIntervalMillis;
+    private int                      unsyncedRecords = 0;
+    private long                     lastSync;
+    private ScheduledExecutorService syncs;
+    
+    private Clock  clock;
+    private ZoneId zone;
+    
+    // card number -> (day << 32 | amount withdrawn that day)
+    private Map<Integer, AtomicLong> dailyTotals = new ConcurrentHashMap<Integer, AtomicLong>();
+    
+    // start and end of the current day, so the day of a timestamp
+    // can usually be found without any date arithmetic
+    private volatile long[] today = { 0, 0, 0 };
+    
+    // reused for every record, appends are synchronized anyway
+    private ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private CRC32      crc    = new CRC32();
+    
+    // written over records which are rolled back
+    private static final byte[] ZEROS = new byte[RECORD_SIZE];
+    
+    ///////////////////////////////////////////////////////
+    // sync every 64 records or 10 ms
+    public TransactionJournal(Path file) throws IOException {
+        this(file, Clock.systemDefaultZone(), 64, 10);
+    }
+    
+    ///////////////////////////////////////////////////////
+    public TransactionJournal(Path file, Clock clock, int syncEveryRecords, long syncIntervalMillis) throws IOException {
+        this.clock              = clock;
+        this.zone               = clock.getZone();
+        this.syncEveryRecords   = syncEveryRecords;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.channel            = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        
+        this.position = this.rebuildIndex();
+        this.mapChunk(this.position - this.position % ((long) CHUNK_RECORDS * RECORD_SIZE));
+        this.lastSync = this.clock.millis();
+        
+        if (syncIntervalMillis > 0) {
+            this.syncs = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "journal-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            
+            this.syncs.scheduleWithFixedDelay(this::syncIfUnsynced, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // stream through the file, add up today's withdrawals per card
+    // and return where the next record should be written;
+    // a torn record at the end (eg. after a crash) is overwritten
+    private long rebuildIndex() throws IOException {
+        ByteBuffer buffer   = ByteBuffer.allocate(RECORD_SIZE * 4096);
+        byte[]     bytes    = new byte[RECORD_SIZE];
+        long       position = 0;
+        int        today    = this.dayOf(this.clock.millis());
+        
+        while (true) {
+            buffer.clear();
+            int read = this.channel.read(buffer, position);
+            
+            if (read < RECORD_SIZE) {
+                return position;
+            }
+            
+            buffer.flip();
+            
+            while (buffer.remaining() >= RECORD_SIZE) {
+                buffer.get(bytes);
+                
+                if (!this.isValidRecord(bytes)) {
+                    return position;
+                }
+                
+                ByteBuffer record = ByteBuffer.wrap(bytes);
+                
+                if (record.getInt(0) == WITHDRAWAL && this.dayOf(record.getLong(8)) == today) {
+                    this.addToDailyTotal(record.getInt(4), record.getInt(16), today);
+                }
+                
+                position += RECORD_SIZE;
+            }
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    private boolean isValidRecord(byte[] bytes) {
+        return isValidRecord(ByteBuffer.wrap(bytes), 0, this.crc);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // whether there's a complete record at the offset of the buffer
+    // (backed by an array); false at the end of the journal
+    static boolean isValidRecord(ByteBuffer buffer, int offset, CRC32 crc) {
+        if (buffer.getInt(offset) == 0) {
+            return false;
+        }
+        
+        crc.reset();
+        crc.update(buffer.array(), buffer.arrayOffset() + offset, RECORD_SIZE - 4);
+        
+        return (int) crc.getValue() == buffer.getInt(offset + RECORD_SIZE - 4);
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Write a withdrawal to the journal; doesn't touch the daily totals,
+     * those are updated by the daily limit check (see tryAddToDailyTotal)
+     *
+     * @param atmNumber: ATM which handed out the money
+     * @param cardNumber: card the money was withdrawn from
+     * @param amount: how much money was withdrawn
+     * @param notes: notes handed out, indexed as the bills in the ATM (at most MAX_NOTES of a bill)
+     * @throws IllegalArgumentException if there are more notes of a bill than a record can hold
+     */
+    public synchronized void append(int atmNumber, int cardNumber, int amount, int[] notes) {
+        long start = this.position;
+        long now   = this.write(atmNumber, cardNumber, amount, notes);
+        
+        // the caller undoes the withdrawal if this throws,
+        // so the record mustn't make it to disk with a later sync
+        if (this.unsyncedRecords >= this.syncEveryRecords || now - this.lastSync >= this.syncIntervalMillis) {
+            try {
+                this.sync();
+            }
+            catch (RuntimeException e) {
+                this.rollBackTo(start);
+                throw e;
+            }
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, but leaves syncing to the caller (see GroupCommitter);
+    // returns the time written in the record
+    synchronized long write(int atmNumber, int cardNumber, int amount, int[] notes) {
+        return this.write(WITHDRAWAL, atmNumber, cardNumber, amount, notes, 0);
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Write any type of record to the journal; synced with the
+     * next withdrawal (or sync), since nothing waits for these
+     *
+     * @param type: one of the record types (CARD_INSERTED, etc.)
+     * @param atmNumber: ATM where it happened
+     * @param cardNumber: card it happened to
+     * @param amount: amount of money involved (or 0)
+     * @param notes: notes involved, indexed as the bills in the ATM (or null)
+     * @param detail: see the record layout
+     */
+    synchronized long write(int type, int atmNumber, int cardNumber, int amount, int[] notes, int detail) {
+        // checked before anything is written, so a record is never cut short
+        for (int i = 0; notes != null && i < Math.min(notes.length, MAX_BILLS); i++) {
+            if (notes[i] < 0 || notes[i] > MAX_NOTES) {
+                throw new IllegalArgumentException(notes[i] + " notes don't fit in a journal record");
+            }
+        }
+        
+        long now = this.clock.millis();
+        
+        this.record.clear();
+        this.record.putInt(type)
+                   .putInt(cardNumber)
+                   .putLong(now)
+                   .putInt(amount)
+                   .putInt(atmNumber);
+        
+        for (int i = 0; i < MAX_BILLS; i++) {
+            this.record.putShort((short) ((notes != null && i < notes.length) ? notes[i] : 0));
+        }
+        
+        this.record.putInt(detail);
+        
+        this.crc.reset();
+        this.crc.update(this.record.array(), 0, RECORD_SIZE - 4);
+        this.record.putInt((int) this.crc.getValue());
+        
+        if (this.position + RECORD_SIZE > this.chunkStart + this.chunk.capacity()) {
+            this.chunk.force();
+            
+            try {
+                this.mapChunk(this.position);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        this.chunk.put((int) (this.position - this.chunkStart), this.record.array());
+        this.position += RECORD_SIZE;
+        this.unsyncedRecords++;
+        
+        return now;
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Forget the records from the given position on (eg. a batch of
+     * withdrawals which couldn't be synced and was undone): they're zeroed,
+     * so the journal ends there again, even if some of them already made it
+     * to disk, and the next record is written in their place.
+     * The zeros are written to disk with the next sync
+     *
+     * @param start: position the records start at (see size)
+     * @throws UncheckedIOException if an earlier chunk of the file can't be mapped again
+     */
+    synchronized void rollBackTo(long start) {
+        if (start >= this.position) {
+            return;
+        }
+        
+        long chunkSize = (long) CHUNK_RECORDS * RECORD_SIZE;
+        
+        try {
+            for (long at = start; at < this.position; at += RECORD_SIZE) {
+                if (at < this.chunkStart || at >= this.chunkStart + chunkSize) {
+                    this.mapChunk(at - at % chunkSize);
+                }
+                
+                this.chunk.put((int) (at - this.chunkStart), ZEROS);
+            }
+            
+            if (start < this.chunkStart) {
+                this.mapChunk(start - start % chunkSize);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        
+        this.position        = start;
+        this.unsyncedRecords = Math.max(this.unsyncedRecords, 1);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // write everything appended so far to disk
+    public synchronized void sync() {
+        if (this.unsyncedRecords > 0) {
+            this.chunk.force();
+            this.unsyncedRecords = 0;
+        }
+        
+        this.lastSync = this.clock.millis();
+    }
+    
+    ///////////////////////////////////////////////////////
+    // by the scheduler: records appended since the last sync are
+    // written to disk, even if nothing else is appended after them
+    private synchronized void syncIfUnsynced() {
+        if (this.unsyncedRecords > 0 && this.channel.isOpen()) {
+            this.sync();
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    public synchronized void close() throws IOException {
+        if (this.syncs != null) {
+            this.syncs.shutdownNow();
+        }
+        
+        this.sync();
+        this.channel.close();
+    }
+    
+    ///////////////////////////////////////////////////////
+    // size of the journal in bytes
+    public synchronized long size() {
+        return this.position;
+    }
+    
+    ///////////////////////////////////////////////////////
+    private void mapChunk(long start) throws IOException {
+        this.chunkStart = start;
+        this.chunk      = this.channel.map(FileChannel.MapMode.READ_WRITE, start, (long) CHUNK_RECORDS * RECORD_SIZE);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // how much was withdrawn from the card today
+    public int withdrawnToday(int cardNumber) {
+        AtomicLong total = this.dailyTotals.get(cardNumber);
+        
+        if (total == null) {
+            return 0;
+        }
+        
+        long packed = total.get();
+        
+        return ((int) (packed >>> 32) == this.dayOf(this.clock.millis())) ? (int) packed : 0;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // count the amount towards today's total of the card,
+    // unless that would take the total over the daily limit
+    public boolean tryAddToDailyTotal(int cardNumber, int amount, int dailyLimit) {
+        AtomicLong total = this.dailyTotals.computeIfAbsent(cardNumber, k -> new AtomicLong());
+        int        today = this.dayOf(this.clock.millis());
+        
+        while (true) {
+            long packed    = total.get();
+            int  withdrawn = ((int) (packed >>> 32) == today) ? (int) packed : 0;
+            
+            if ((long) withdrawn + amount > dailyLimit) {
+                return false;
+            }
+            
+            if (total.compareAndSet(packed, pack(today, withdrawn + amount))) {
+                return true;
+            }
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the withdrawal was cancelled after the daily limit check
+    public void removeFromDailyTotal(int cardNumber, int amount) {
+        this.addToDailyTotal(cardNumber, -amount, this.dayOf(this.clock.millis()));
+    }
+    
+    ///////////////////////////////////////////////////////
+    private void addToDailyTotal(int cardNumber, int amount, int day) {
+        AtomicLong total = this.dailyTotals.computeIfAbsent(cardNumber, k -> new AtomicLong());
+        
+        while (true) {
+            long packed    = total.get();
+            int  withdrawn = ((int) (packed >>> 32) == day) ? (int) packed : 0;
+            
+            if (total.compareAndSet(packed, pack(day, Math.max(withdrawn + amount, 0)))) {
+                return;
+            }
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    private static long pack(int day, int amount) {
+        return ((long) day << 32) | (amount & 0xFFFFFFFFL);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // day of the timestamp in the journal's time zone (days since 1970-01-01)
+    int dayOf(long millis) {
+        long[] today = this.today;
+        
+        if (millis >= today[1] && millis < today[2]) {
+            return (int) today[0];
+        }
+        
+        LocalDate date = Instant.ofEpochMilli(millis).atZone(this.zone).toLocalDate();
+        long      day  = date.toEpochDay();
+        
+        // remember the range of the current day for the next calls
+        if (date.equals(LocalDate.now(this.clock))) {
+            long start = date.atStartOfDay(this.zone).toInstant().toEpochMilli();
+            long end   = date.plusDays(1).atStartOfDay(this.zone).toInstant().toEpochMilli();
+            
+            this.today = new long[] { day, start, end };
+        }
+        
+        return (int) day;
+    }
+}
@@ -0,0 +1,118 @@
+///////////////////////////////////////////////////////
+// runs ATM transactions without the console:
+// same steps and checks as StartingPoint, but the input comes
+// from a TransactionRequest and the output goes to a TransactionResult,
+// so transactions can be driven from code and tests
+public class TransactionProcessor {
+    private ATM          atm;
+    private CardRegistry cards;
+    
+    // one reusable card session per thread processing transactions
+    private ThreadLocal<CardSession> sessions = ThreadLocal.withInitial(() -> new CardSession(null, null, this.atm));
+    
+    // where every processed transaction is written for analytics (or null)
+    private TransactionExport export;
+    
+    ///////////////////////////////////////////////////////
+    public TransactionProcessor(ATM atm, CardRegistry cards) {
+        this.atm   = atm;
+        this.cards = cards;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public TransactionProcessor(ATM atm, Card[] cards) {
+        this(atm, CardRegistry.of(cards));
+    }
+    
+    ///////////////////////////////////////////////////////
+    // write every transaction to the given export from now on
+    // (it can be shared by the processors of many ATMs)
+    public void setExport(TransactionExport export) {
+        this.export = export;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public TransactionResult process(TransactionRequest request) {
+        TransactionResult result = new TransactionResult();
+        this.process(request, result);
+        
+        return result;
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Insert the card, verify the PIN, run the requested action
+     * and eject the card, same as a session on the console would.
+     * Every step returns an Outcome instead of throwing, so a rejected
+     * transaction costs no more than an accepted one
+     *
+     * @param request: card, PIN, action and amount
+     * @param result: filled with the outcome of the transaction
+     */
+    public void process(TransactionRequest request, TransactionResult result) {
+        result.reset(this.atm, request.getAction());
+        
+        Card card = this.cards.get(request.getCardNumber());
+        
+        if (card == null) {
+            result.setOutcome(Outcome.UNKNOWN_CARD);
+            this.export(request, null, result);
+            return;
+        }
+        
+        result.setCard(card);
+        
+        // same as a card inserted on the console, but without a terminal
+        CardSession session = this.sessions.get();
+        session.reset(card);
+        
+        Outcome outcome = session.tryInsertCard();
+        
+        if (outcome == Outcome.OK) {
+            outcome = session.tryVerifyPIN(request.getPIN());
+        }
+        
+        if (outcome == Outcome.OK) {
+            outcome = this.runAction(request, session, result);
+            result.setBalance(card.getBalance());
+        }
+        
+        // in the end, eject the card
+        session.tryEjectCard();
+        result.setOutcome(outcome);
+        this.export(request, card, result);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the transaction as a row of the export, if there is one;
+    // only queued, so the transaction never waits for the file
+    // (and a full or failed export drops the row, see TransactionExport)
+    private void export(TransactionRequest request, Card card, TransactionResult result) {
+        TransactionExport export = this.export;
+        
+        if (export == null) {
+            return;
+        }
+        
+        export.append(request.getCardNumber(), System.currentTimeMillis(), this.atm, request.getAction(), request.getAmount(),
+                      (card != null) ? card.getCurrency() : this.atm.getDefaultCurrency(), result.getOutcome(),
+                      result.isSuccessful() ? result.notes() : null);
+    }
+    
+    ///////////////////////////////////////////////////////
+    private Outcome runAction(TransactionRequest request, CardSession session, TransactionResult result) {
+        switch (request.getAction()) {
+            case WITHDRAW:
+                return this.atm.tryWithdraw(session.getCard(), request.getAmount(), result.notes());
+            
+            case CHECK_BALANCE:
+                return this.atm.tryPrintReceipt(session.getCard());
+            
+            case CHANGE_PIN:
+                return session.tryChangePIN(request.getNewPIN());
+            
+            default:
+                return Outcome.OK;
+        }
+    }
+}
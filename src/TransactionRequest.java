@@ -0,0 +1,73 @@
+///////////////////////////////////////////////////////
+// everything the user would otherwise type on the console
+// for a single visit to the ATM: which card, PIN, action
+// and, depending on the action, amount or new PIN
+public class TransactionRequest {
+    
+    public enum Action {
+        WITHDRAW,
+        CHECK_BALANCE,
+        CHANGE_PIN
+    }
+    
+    private int    cardNumber;
+    private String PIN;
+    private Action action;
+    private int    amount;
+    private String newPIN;
+    
+    ///////////////////////////////////////////////////////
+    private TransactionRequest(int cardNumber, String PIN, Action action, int amount, String newPIN) {
+        this.cardNumber = cardNumber;
+        this.PIN        = PIN;
+        this.action     = action;
+        this.amount     = amount;
+        this.newPIN     = newPIN;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public static TransactionRequest withdrawal(int cardNumber, String PIN, int amount) {
+        return new TransactionRequest(cardNumber, PIN, Action.WITHDRAW, amount, null);
+    }
+    
+    ///////////////////////////////////////////////////////
+    public static TransactionRequest balance(int cardNumber, String PIN) {
+        return new TransactionRequest(cardNumber, PIN, Action.CHECK_BALANCE, 0, null);
+    }
+    
+    ///////////////////////////////////////////////////////
+    public static TransactionRequest changePIN(int cardNumber, String PIN, String newPIN) {
+        return new TransactionRequest(cardNumber, PIN, Action.CHANGE_PIN, 0, newPIN);
+    }
+    
+    ///////////////////////////////////////////////////////
+    public int getCardNumber() {
+        return this.cardNumber;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public String getPIN() {
+        return this.PIN;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public Action getAction() {
+        return this.action;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public int getAmount() {
+        return this.amount;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public String getNewPIN() {
+        return this.newPIN;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public String toString() {
+        return this.action + " card #" + this.cardNumber
+               + (this.action == Action.WITHDRAW ? " amount " + this.amount : "");
+    }
+}
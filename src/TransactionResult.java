@@ -0,0 +1,106 @@
+///////////////////////////////////////////////////////
+// what the ATM would otherwise print on the console;
+// can be reused for any number of transactions
+// so that processing them doesn't allocate new results
+public class TransactionResult {
+    private Outcome                   outcome;
+    private TransactionRequest.Action action;
+    private double                    balance;
+    
+    // notes handed out on withdrawal, indexed as the bills in the ATM
+    private int[] notes;
+    
+    // only needed to format the message, which is done
+    // when (and if) someone asks for it
+    private ATM  atm;
+    private Card card;
+    
+    ///////////////////////////////////////////////////////
+    // clear the result before the next transaction
+    void reset(ATM atm, TransactionRequest.Action action) {
+        int billsCount = atm.getBillsCount();
+        
+        if (this.notes == null || this.notes.length != billsCount) {
+            this.notes = new int[billsCount];
+        }
+        
+        for (int i = 0; i < billsCount; i++) {
+            this.notes[i] = 0;
+        }
+        
+        this.atm     = atm;
+        this.card    = null;
+        this.action  = action;
+        this.outcome = null;
+        this.balance = 0;
+    }
+    
+    ///////////////////////////////////////////////////////
+    void setOutcome(Outcome outcome) {
+        this.outcome = outcome;
+    }
+    
+    ///////////////////////////////////////////////////////
+    void setCard(Card card) {
+        this.card = card;
+    }
+    
+    ///////////////////////////////////////////////////////
+    void setBalance(double balance) {
+        this.balance = balance;
+    }
+    
+    ///////////////////////////////////////////////////////
+    int[] notes() {
+        return this.notes;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public Outcome getOutcome() {
+        return this.outcome;
+    }
+    
+    ///////////////////////////////////////////////////////
+    public boolean isSuccessful() {
+        return this.outcome == Outcome.OK;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same message as the one shown on the console
+    public String getMessage() {
+        if (this.outcome != Outcome.OK) {
+            return this.outcome.getMessage(this.atm, this.card);
+        }
+        
+        switch (this.action) {
+            case WITHDRAW:
+                return ">>> Take your money: " + this.atm.notesToMap(this.notes);
+            
+            case CHECK_BALANCE:
+                return String.format(">>> Current balance: %1.2f", this.balance);
+            
+            default:
+                return ">>> Your PIN was updated successfully!";
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // balance after the transaction (if the PIN was correct)
+    public double getBalance() {
+        return this.balance;
+    }
+    
+    ///////////////////////////////////////////////////////
+    // notes handed out, indexed as the bills in the ATM
+    // (see ATM.notesToMap for a readable version)
+    public int[] getNotes() {
+        return this.notes.clone();
+    }
+    
+    ///////////////////////////////////////////////////////
+    public String toString() {
+        String message = this.getMessage();
+        
+        return this.outcome + (message != null ? ": " + message : "");
+    }
+}
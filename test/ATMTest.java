@@ -0,0 +1,306 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+///////////////////////////////////////////////////////
+// reserving, handing out and putting back notes, from one
+// and from many threads, and undoing withdrawals which
+// couldn't be written to the journal
+public class ATMTest {
+    
+    ///////////////////////////////////////////////////////
+    static void testReserveCommitRelease() {
+        ATM   atm   = new ATM(Map.of(200, 2, 100, 2, 50, 2));
+        int[] notes = atm.newNotesArray();
+        
+        // reserved notes are still in the ATM, but no one else can take them
+        Tests.checkEqual(Outcome.OK, atm.tryReserveCash(300, notes), "reserve 300");
+        Tests.checkEqual("[1, 1, 0]", Arrays.toString(notes), "notes for 300");
+        Tests.checkEqual(Map.of(200, 2, 100, 2, 50, 2), atm.getBanknotes(), "notes while reserved");
+        Tests.checkEqual(Outcome.NOT_ENOUGH_MONEY_IN_ATM, atm.tryReserveCash(550, atm.newNotesArray()), "550 of the other 400");
+        
+        atm.releaseCash(notes);
+        Tests.checkEqual(Map.of(200, 2, 100, 2, 50, 2), atm.getBanknotes(), "notes after the release");
+        
+        Tests.checkEqual(Outcome.OK, atm.tryReserveCash(550, notes), "reserve 550 after the release");
+        atm.commitCash(notes);
+        Tests.checkEqual(Map.of(200, 0, 100, 1, 50, 1), atm.getBanknotes(), "notes after the commit");
+        
+        Tests.checkEqual(Outcome.NOT_ENOUGH_MONEY_IN_ATM, atm.tryReserveCash(200, notes), "200 without 200s and with one 100");
+        Tests.checkEqual(Outcome.OK, atm.tryReserveCash(150, notes), "the rest");
+        Tests.checkEqual(Outcome.NOT_ENOUGH_MONEY_IN_ATM, atm.tryReserveCash(50, notes), "empty ATM");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // many threads reserving at once never take more notes than there
+    // are, and everything released goes back in the cassettes
+    static void testConcurrentReservationsConserveNotes() throws InterruptedException {
+        ATM            atm      = new ATM(Map.of(100, 1000, 50, 1000));
+        int            threads  = 8;
+        AtomicInteger  paid     = new AtomicInteger();
+        CountDownLatch start    = new CountDownLatch(1);
+        Thread[]       sessions = new Thread[threads];
+        
+        for (int t = 0; t < threads; t++) {
+            int released = t % 2;
+            
+            sessions[t] = new Thread(() -> {
+                int[] notes = atm.newNotesArray();
+                
+                try {
+                    start.await();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                
+                // every other thread puts back what it reserved every other time
+                for (int i = 0; atm.tryReserveCash(150, notes) == Outcome.OK; i++) {
+                    if (released == 1 && i % 2 == 0) {
+                        atm.releaseCash(notes);
+                    }
+                    else {
+                        atm.commitCash(notes);
+                        paid.addAndGet(150);
+                    }
+                }
+            });
+            sessions[t].start();
+        }
+        
+        start.countDown();
+        
+        for (Thread session : sessions) {
+            session.join();
+        }
+        
+        Map<Integer, Integer> left = atm.getBanknotes();
+        
+        Tests.check(left.get(100) >= 0 && left.get(50) >= 0, "no negative counts: " + left);
+        Tests.checkEqual(150000, paid.get() + left.get(100) * 100 + left.get(50) * 50, "paid and left");
+        Tests.check(left.get(100) * 100 + left.get(50) * 50 < 150, "nothing payable left: " + left);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the journal can't be written: nothing is handed out, and
+    // the card, the cassettes and the daily limit are as before
+    static void testWithdrawalIsUndoneWhenNotRecorded() throws Exception {
+        Path               file      = Tests.newFile("journal.bin");
+        TransactionJournal journal   = new TransactionJournal(file, Clock.systemUTC(), 1, 0);
+        GroupCommitter     committer = new GroupCommitter(journal);
+        ATM                atm       = new ATM(Map.of(200, 10, 100, 10));
+        Card               card      = new Card(1000, 500, 600, "1234");
+        int[]              notes     = atm.newNotesArray();
+        
+        atm.setGroupCommitter(committer);
+        
+        Tests.checkEqual(Outcome.OK, atm.tryWithdraw(card, 300, notes), "first withdrawal");
+        Tests.checkEqual(300, journal.withdrawnToday(card.getNumber()), "withdrawn today");
+        
+        committer.close();
+        
+        Tests.checkEqual(Outcome.WITHDRAWAL_NOT_RECORDED, atm.tryWithdraw(card, 300, notes), "withdrawal after the committer closed");
+        Tests.checkEqual(70000L, card.getBalanceInMinorUnits(), "balance");
+        Tests.checkEqual(300, journal.withdrawnToday(card.getNumber()), "withdrawn today");
+        Tests.checkEqual(Map.of(200, 9, 100, 9), atm.getBanknotes(), "notes");
+        
+        Tests.checkEqual(Outcome.WITHDRAWAL_NOT_RECORDED, atm.tryWithdrawAsync(card, 200, notes).join(), "asynchronous withdrawal");
+        Tests.checkEqual(70000L, card.getBalanceInMinorUnits(), "balance");
+        Tests.checkEqual(Map.of(200, 9, 100, 9), atm.getBanknotes(), "notes");
+        
+        journal.close();
+        Tests.checkEqual(48L, journal.size(), "journal size");
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * A batch which fails partway through and one whose sync fails:
+     * every withdrawal of them is undone, and so are their records,
+     * so the journal reopened (and replayed) only has the withdrawals
+     * which were handed out
+     */
+    static void testFailedBatchIsRolledBack() throws Exception {
+        Path           file      = Tests.newFile("journal.bin");
+        Path           snapshot  = Tests.newFile("atm.snapshot");
+        FailingJournal journal   = new FailingJournal(file);
+        GroupCommitter committer = new GroupCommitter(journal, 3, 1, TimeUnit.SECONDS);
+        ATM            atm       = new ATM(Map.of(200, 10, 100, 10));
+        Card           card      = new Card(1000, 500, 1000, "1234");
+        CardRegistry   cards     = CardRegistry.of(card);
+        
+        StateSnapshot.write(snapshot, atm, cards);
+        atm.setGroupCommitter(committer);
+        
+        Tests.checkEqual(List.of(Outcome.OK, Outcome.OK, Outcome.OK), withdrawBatch(atm, card, 100, 100, 100), "first batch");
+        
+        // the third record of the batch can't be written
+        journal.failWrites = 3;
+        
+        for (Outcome outcome : withdrawBatch(atm, card, 200, 100, 100)) {
+            Tests.checkEqual(Outcome.WITHDRAWAL_NOT_RECORDED, outcome, "batch failed partway through");
+        }
+        
+        Tests.checkEqual(3 * 48L, journal.size(), "journal size after a batch failed partway through");
+        
+        // all of the batch is written, but can't be synced
+        journal.failWrites = 0;
+        journal.failSync   = true;
+        
+        for (Outcome outcome : withdrawBatch(atm, card, 200, 100, 100)) {
+            Tests.checkEqual(Outcome.WITHDRAWAL_NOT_RECORDED, outcome, "batch failed to sync");
+        }
+        
+        Tests.checkEqual(3 * 48L, journal.size(), "journal size after a batch failed to sync");
+        
+        journal.failSync = false;
+        
+        Tests.checkEqual(List.of(Outcome.OK, Outcome.OK, Outcome.OK), withdrawBatch(atm, card, 200, 100, 100), "batch after the failures");
+        Tests.checkEqual(30000L, card.getBalanceInMinorUnits(), "balance");
+        Tests.checkEqual(700, journal.withdrawnToday(card.getNumber()), "withdrawn today");
+        
+        committer.close();
+        journal.close();
+        
+        try (TransactionJournal reopened = new TransactionJournal(file)) {
+            Tests.checkEqual(6 * 48L, reopened.size(), "journal size when reopened");
+            Tests.checkEqual(700, reopened.withdrawnToday(card.getNumber()), "withdrawn today when reopened");
+        }
+        
+        StateSnapshot        start  = StateSnapshot.read(snapshot);
+        JournalReplay.Result result = new JournalReplay(start.getCards(), start.getATM()).replay(file);
+        List<String>         differences = result.compareWith(cards, atm);
+        
+        Tests.check(differences.isEmpty(), "no differences: " + differences);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same as above, without a group committer: the record is
+    // rolled back if the sync after it fails, and isn't counted anywhere
+    static void testFailedAppendIsRolledBack() throws Exception {
+        Path           file    = Tests.newFile("journal.bin");
+        FailingJournal journal = new FailingJournal(file);
+        ATM            atm     = new ATM(Map.of(200, 10, 100, 10));
+        Card           card    = new Card(1000, 500, 1000, "1234");
+        int[]          notes   = atm.newNotesArray();
+        
+        atm.setJournal(journal);
+        journal.failSync = true;
+        
+        Tests.checkEqual(Outcome.WITHDRAWAL_NOT_RECORDED, atm.tryWithdraw(card, 300, notes), "withdrawal which can't be synced");
+        Tests.checkEqual(0L, journal.size(), "journal size");
+        Tests.checkEqual(0, journal.withdrawnToday(card.getNumber()), "withdrawn today");
+        Tests.checkEqual(100000L, card.getBalanceInMinorUnits(), "balance");
+        Tests.checkEqual(Map.of(200, 10, 100, 10), atm.getBanknotes(), "notes");
+        Tests.checkEqual(0.0, atm.getForecaster().getRate(200), "rate of the 200s");
+        
+        journal.failSync = false;
+        
+        Tests.checkEqual(Outcome.OK, atm.tryWithdraw(card, 100, notes), "withdrawal after the failure");
+        journal.close();
+        
+        try (TransactionJournal reopened = new TransactionJournal(file)) {
+            Tests.checkEqual(48L, reopened.size(), "journal size when reopened");
+            Tests.checkEqual(100, reopened.withdrawnToday(card.getNumber()), "withdrawn today when reopened");
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // a batch of amounts (ATM.withdrawBatch) whose records can't be synced:
+    // none of its notes are handed out and none of its records are kept
+    static void testFailedDispenseBatchIsRolledBack() throws Exception {
+        Path           file    = Tests.newFile("journal.bin");
+        FailingJournal journal = new FailingJournal(file);
+        ATM            atm     = new ATM(Map.of(200, 10, 100, 10));
+        
+        atm.setJournal(journal);
+        journal.failSync = true;
+        
+        try {
+            atm.withdrawBatch(new int[] { 300, 500, 200 });
+            Tests.check(false, "batch which can't be synced paid out");
+        }
+        catch (UncheckedIOException e) {
+            // expected
+        }
+        
+        Tests.checkEqual(0L, journal.size(), "journal size");
+        Tests.checkEqual(Map.of(200, 10, 100, 10), atm.getBanknotes(), "notes");
+        Tests.checkEqual(0.0, atm.getForecaster().getRate(200), "rate of the 200s");
+        
+        journal.failSync = false;
+        
+        DispenseBatch batch = atm.withdrawBatch(new int[] { 300, 500, 200 });
+        
+        Tests.check(batch.isCommitted(), "batch after the failure committed");
+        Tests.checkEqual(3 * 48L, journal.size(), "journal size after the batch");
+        Tests.checkEqual(0, journal.withdrawnToday(0), "withdrawn today without a card");
+        journal.close();
+    }
+    
+    ///////////////////////////////////////////////////////
+    // the amounts submitted at once, so they end up in the same batch
+    private static List<Outcome> withdrawBatch(ATM atm, Card card, int... amounts) {
+        List<CompletableFuture<Outcome>> futures  = new ArrayList<CompletableFuture<Outcome>>();
+        List<Outcome>                    outcomes = new ArrayList<Outcome>();
+        
+        for (int amount : amounts) {
+            futures.add(atm.tryWithdrawAsync(card, amount, atm.newNotesArray()));
+        }
+        
+        for (CompletableFuture<Outcome> future : futures) {
+            outcomes.add(future.join());
+        }
+        
+        return outcomes;
+    }
+    
+    // a journal which fails on the n-th record written or on syncs, when asked to
+    private static class FailingJournal extends TransactionJournal {
+        volatile int     failWrites = 0;
+        volatile boolean failSync   = false;
+        
+        ///////////////////////////////////////////////////////
+        FailingJournal(Path file) throws IOException {
+            super(file, Clock.systemUTC(), 1, 0);
+        }
+        
+        ///////////////////////////////////////////////////////
+        synchronized long write(int atmNumber, int cardNumber, int amount, int[] notes) {
+            if (this.failWrites > 0 && --this.failWrites == 0) {
+                throw new UncheckedIOException(new IOException("No space left on device"));
+            }
+            
+            return super.write(atmNumber, cardNumber, amount, notes);
+        }
+        
+        ///////////////////////////////////////////////////////
+        public synchronized void sync() {
+            if (this.failSync) {
+                throw new UncheckedIOException(new IOException("Input/output error"));
+            }
+            
+            super.sync();
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // refused, not planned (the notes would not even fit a journal record)
+    static void testHugeAmountIsRefused() {
+        ATM   atm   = new ATM(Map.of(200, 400, 100, 600, 50, 800, 20, 1000, 10, 2000));
+        Card  card  = new Card(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, "1234");
+        int[] notes = atm.newNotesArray();
+        
+        Tests.checkEqual(Outcome.NOT_ENOUGH_MONEY_IN_ATM, atm.tryWithdraw(card, 2000000000, notes), "2e9");
+        Tests.checkEqual(Outcome.NOT_ENOUGH_MONEY_IN_ATM, atm.tryReserveCash(220010, notes), "10 more than all of the cash");
+        Tests.checkEqual(Outcome.OK, atm.tryReserveCash(220000, notes), "all of the cash");
+    }
+}
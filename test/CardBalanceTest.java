@@ -0,0 +1,127 @@
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+///////////////////////////////////////////////////////
+// many threads taking money off (and putting it on) the same card:
+// the balance is changed with compare-and-set, so every debit
+// and credit counts exactly once and the balance never goes below 0
+public class CardBalanceTest {
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * 8 threads take 7 minor units at a time off 1000.00 until it runs out:
+     * exactly 100000 / 7 debits succeed between them, and the 5 left
+     * are less than a debit, so the card is never overdrawn
+     */
+    static void testConcurrentDebitsNeverOverdraw() throws InterruptedException {
+        Card           card    = new Card(1000, 100, "1234");
+        AtomicInteger  debits  = new AtomicInteger();
+        CountDownLatch start   = new CountDownLatch(1);
+        Thread[]       threads = new Thread[8];
+        
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                
+                while (card.tryDebit(7) == Outcome.OK) {
+                    debits.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        
+        start.countDown();
+        
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        Tests.checkEqual(100000 / 7, debits.get(), "debits");
+        Tests.checkEqual(100000L % 7, card.getBalanceInMinorUnits(), "balance");
+        Tests.checkEqual(Outcome.NOT_ENOUGH_FUNDS, card.tryDebit(6), "debit of more than is left");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // 4 threads debit and credit back the same amount while 4 others
+    // only credit: no update is lost, the balance ends up exactly
+    // where the credits put it
+    static void testDebitsAndCreditsAddUp() throws InterruptedException {
+        Card          card     = new Card(10, 100, "1234");
+        AtomicInteger failures = new AtomicInteger();
+        Thread[]      threads  = new Thread[8];
+        
+        for (int t = 0; t < threads.length; t++) {
+            boolean creditOnly = (t % 2 == 1);
+            
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    if (creditOnly) {
+                        card.credit(1);
+                    }
+                    else if (card.tryDebit(3) == Outcome.OK) {
+                        card.credit(3);
+                    }
+                    else {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        Tests.checkEqual(0, failures.get(), "debits refused");
+        Tests.checkEqual(1000L + 4 * 100000L, card.getBalanceInMinorUnits(), "balance");
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * 8 sessions withdraw 30 from the same card of 1000.00 through the ATM
+     * until the card runs out: 33 withdrawals go through, the card
+     * is left with 10.00, and the ATM handed out exactly 990 in notes;
+     * every session stops because of the balance, not anything else
+     */
+    static void testConcurrentWithdrawalsFromOneCard() throws InterruptedException {
+        ATM           atm      = new ATM(Map.of(20, 1000, 10, 1000));
+        Card          card     = new Card(1000, 100, "1234");
+        AtomicInteger paid     = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        Thread[]      sessions = new Thread[8];
+        
+        for (int t = 0; t < sessions.length; t++) {
+            sessions[t] = new Thread(() -> {
+                int[]   notes = atm.newNotesArray();
+                Outcome outcome;
+                
+                while ((outcome = atm.tryWithdraw(card, 30, notes)) == Outcome.OK) {
+                    paid.addAndGet(30);
+                }
+                
+                if (outcome != Outcome.NOT_ENOUGH_FUNDS) {
+                    failures.incrementAndGet();
+                }
+            });
+            sessions[t].start();
+        }
+        
+        for (Thread session : sessions) {
+            session.join();
+        }
+        
+        Map<Integer, Integer> left = atm.getBanknotes();
+        
+        Tests.checkEqual(0, failures.get(), "sessions stopped by something else than the balance");
+        Tests.checkEqual(990, paid.get(), "withdrawn");
+        Tests.checkEqual(1000L, card.getBalanceInMinorUnits(), "balance");
+        Tests.checkEqual(30000 - 990, left.get(20) * 20 + left.get(10) * 10, "notes left");
+    }
+}
@@ -0,0 +1,119 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+///////////////////////////////////////////////////////
+// cards created and registered from many threads at once:
+// every card gets a number of its own and is found under it,
+// and the registry goes through them in the order of the numbers
+public class CardRegistryTest {
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * 8 threads create 20000 cards each and register them in a registry
+     * of 4 shards (so every shard grows by many chunks while the others
+     * are read): the numbers are all different and every card is found
+     */
+    static void testConcurrentRegistration() throws InterruptedException {
+        CardRegistry   registry = new CardRegistry(4);
+        List<Card>     created  = Collections.synchronizedList(new ArrayList<Card>());
+        Thread[]       threads  = new Thread[8];
+        CountDownLatch start    = new CountDownLatch(1);
+        AtomicInteger  missing  = new AtomicInteger();
+        
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                
+                for (int i = 0; i < 20000; i++) {
+                    Card card = new Card(i, 100, "1234");
+                    
+                    registry.register(card);
+                    created.add(card);
+                    
+                    // found right after it was registered (checked once all
+                    // threads are done, a failed check here would only end the thread)
+                    if (registry.get(card.getNumber()) != card) {
+                        missing.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        
+        start.countDown();
+        
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        Tests.checkEqual(0, missing.get(), "cards not found right after they were registered");
+        
+        Set<Integer> numbers = new HashSet<Integer>();
+        
+        for (Card card : created) {
+            Tests.check(numbers.add(card.getNumber()), card.getName() + " handed out twice");
+            Tests.check(registry.get(card.getNumber()) == card, card.getName() + " found");
+        }
+        
+        Tests.checkEqual(threads.length * 20000, registry.size(), "registered cards");
+        Tests.checkEqual(registry.size(), registry.toArray().length, "cards in the array");
+        
+        int[] previous = { 0 };
+        
+        registry.forEach(card -> {
+            Tests.check(card.getNumber() > previous[0], "cards in the order of their numbers");
+            previous[0] = card.getNumber();
+        });
+        
+        Tests.checkEqual(registry.getHighestNumber(), previous[0], "highest number");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // unknown numbers are not found, a number can't be registered twice
+    static void testUnknownAndDuplicateNumbers() {
+        Card         card     = new Card(100, 100, "1234");
+        CardRegistry registry = CardRegistry.of(card);
+        
+        Tests.check(registry.get(0) == null, "card #0");
+        Tests.check(registry.get(-1) == null, "card #-1");
+        Tests.check(registry.get(card.getNumber() + 1) == null, "card after the highest");
+        Tests.check(registry.get(Integer.MAX_VALUE) == null, "card #" + Integer.MAX_VALUE);
+        
+        try {
+            registry.register(card);
+            Tests.check(false, "registered twice");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        
+        Tests.checkEqual(1, registry.size(), "cards after registering twice");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // a card made with a number of its own (eg. a replayed session)
+    // moves the counter, so cards created after it get later numbers
+    static void testCounterSkipsGivenNumbers() {
+        int  number = new Card(100, 100, "1234").getNumber() + 1000;
+        Card given  = new Card(number, 100, 100, 100, "1234", ATM.DEFAULT_CURRENCY);
+        Card next   = new Card(100, 100, "1234");
+        
+        Tests.checkEqual(number, given.getNumber(), "given number");
+        Tests.check(next.getNumber() > number, "number after the given one: " + next.getNumber());
+        
+        CardRegistry registry = CardRegistry.of(given, next);
+        
+        Tests.check(registry.get(number) == given, "card with the given number");
+        Tests.check(registry.get(number - 1) == null, "number skipped");
+    }
+}
@@ -0,0 +1,154 @@
+import java.util.Arrays;
+import java.util.Random;
+
+///////////////////////////////////////////////////////
+// the planner against a brute force search over every combination
+// of notes, and its limits (amounts above the cash or the table)
+public class CashPlannerTest {
+    private static final int[] BILLS = { 200, 100, 50, 20, 10 };
+    
+    ///////////////////////////////////////////////////////
+    static void testPaysWhatAGreedyWalkCannot() {
+        CashPlanner planner = new CashPlanner(CashPlanner.Objective.PRESERVE_SMALL_BILLS);
+        int[]       result  = new int[2];
+        
+        Tests.check(planner.plan(new int[] { 50, 20 }, new int[] { 5, 5 }, 60, result), "60 with 50s and 20s");
+        Tests.checkEqual("[0, 3]", Arrays.toString(result), "notes for 60");
+        
+        Tests.check(!planner.plan(new int[] { 50, 20 }, new int[] { 5, 2 }, 60, result), "60 with only two 20s");
+        Tests.checkEqual("[0, 0]", Arrays.toString(result), "notes when refused");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // every amount up to all of the cash, with random counts of up to 3
+    // notes of a bill: paid exactly and within the counts whenever
+    // some combination exists, with the fewest notes if asked to
+    static void testMatchesBruteForce() {
+        Random      random     = new Random(42);
+        CashPlanner fewest     = new CashPlanner(CashPlanner.Objective.FEWEST_NOTES);
+        CashPlanner preserving = new CashPlanner(CashPlanner.Objective.PRESERVE_SMALL_BILLS);
+        int[]       counts     = new int[BILLS.length];
+        int[]       result     = new int[BILLS.length];
+        
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < BILLS.length; i++) {
+                counts[i] = random.nextInt(4);
+            }
+            
+            int[] bestNotes = bruteForce(counts);
+            
+            for (int amount = 0; amount < bestNotes.length + 20; amount += 10) {
+                boolean payable = amount < bestNotes.length && bestNotes[amount] != Integer.MAX_VALUE;
+                String  what    = amount + " with " + Arrays.toString(counts);
+                
+                Tests.checkEqual(payable, fewest.plan(BILLS, counts, amount, result), "fewest notes, " + what);
+                
+                if (payable) {
+                    checkPlan(counts, amount, result, what);
+                    Tests.checkEqual(bestNotes[amount], Arrays.stream(result).sum(), "notes for " + what);
+                }
+                
+                Tests.checkEqual(payable, preserving.plan(BILLS, counts, amount, result), "preserving small bills, " + what);
+                
+                if (payable) {
+                    checkPlan(counts, amount, result, what);
+                }
+            }
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // refused straight away, without building a table for the amount
+    static void testRefusesAmountsAboveTheCash() {
+        CashPlanner planner = new CashPlanner(CashPlanner.Objective.FEWEST_NOTES);
+        int[]       counts  = { 400, 600, 800, 1000, 2000 };
+        int[]       result  = new int[BILLS.length];
+        long        start   = System.nanoTime();
+        
+        Tests.check(!planner.plan(BILLS, counts, 2000000000, result), "2e9 with 220000 in the ATM");
+        Tests.check(!planner.plan(BILLS, counts, 220010, result), "10 more than all of the cash");
+        Tests.check(System.nanoTime() - start < 100000000, "refused without a table");
+        
+        Tests.check(planner.plan(BILLS, counts, 220000, result), "all of the cash");
+        Tests.checkEqual(Arrays.toString(counts), Arrays.toString(result), "notes for all of the cash");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // more units than the table (and a journal record) allows,
+    // even when there's enough cash
+    static void testRefusesAmountsAboveTheTable() {
+        CashPlanner planner = new CashPlanner(CashPlanner.Objective.FEWEST_NOTES);
+        int[]       bills   = { 10 };
+        int[]       counts  = { CashPlanner.MAX_AMOUNT_UNITS + 10 };
+        int[]       result  = new int[1];
+        
+        Tests.check(planner.plan(bills, counts, 10 * CashPlanner.MAX_AMOUNT_UNITS, result), "largest amount");
+        Tests.checkEqual(CashPlanner.MAX_AMOUNT_UNITS, result[0], "notes for the largest amount");
+        
+        Tests.check(!planner.plan(bills, counts, 10 * (CashPlanner.MAX_AMOUNT_UNITS + 1), result), "one unit more");
+    }
+    
+    ///////////////////////////////////////////////////////
+    static void testInvalidAmounts() {
+        CashPlanner planner = new CashPlanner(CashPlanner.Objective.FEWEST_NOTES);
+        int[]       counts  = { 1, 1, 1, 1, 1 };
+        int[]       result  = { 7, 7, 7, 7, 7 };
+        
+        Tests.check(planner.plan(BILLS, counts, 0, result), "nothing");
+        Tests.checkEqual("[0, 0, 0, 0, 0]", Arrays.toString(result), "notes for nothing");
+        Tests.check(!planner.plan(BILLS, counts, -10, result), "negative amount");
+        Tests.check(!planner.plan(BILLS, counts, 15, result), "not a multiple of the smallest bill");
+        Tests.check(!planner.plan(BILLS, new int[] { -1, 0, 0, 0, 0 }, 200, result), "negative count");
+    }
+    
+    ///////////////////////////////////////////////////////
+    private static void checkPlan(int[] counts, int amount, int[] result, String what) {
+        int paid = 0;
+        
+        for (int i = 0; i < BILLS.length; i++) {
+            Tests.check(result[i] >= 0 && result[i] <= counts[i], "notes within the counts, " + what + ": " + Arrays.toString(result));
+            paid += result[i] * BILLS[i];
+        }
+        
+        Tests.checkEqual(amount, paid, "paid, " + what);
+    }
+    
+    ///////////////////////////////////////////////////////
+    // fewest notes for every amount reachable with the counts
+    // (Integer.MAX_VALUE if none), trying every combination
+    private static int[] bruteForce(int[] counts) {
+        int total = 0;
+        for (int i = 0; i < BILLS.length; i++) {
+            total += BILLS[i] * counts[i];
+        }
+        
+        int[] best = new int[total + 1];
+        Arrays.fill(best, Integer.MAX_VALUE);
+        
+        int[] taken = new int[BILLS.length];
+        
+        while (true) {
+            int amount = 0,
+                notes  = 0;
+            
+            for (int i = 0; i < BILLS.length; i++) {
+                amount += taken[i] * BILLS[i];
+                notes  += taken[i];
+            }
+            
+            best[amount] = Math.min(best[amount], notes);
+            
+            // next combination, like counting with digits up to counts[i]
+            int i = 0;
+            while (i < BILLS.length && taken[i] == counts[i]) {
+                taken[i++] = 0;
+            }
+            
+            if (i == BILLS.length) {
+                return best;
+            }
+            
+            taken[i]++;
+        }
+    }
+}
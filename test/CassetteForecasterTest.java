@@ -0,0 +1,117 @@
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+///////////////////////////////////////////////////////
+// rates and percentiles of a forecaster fed on a clock of its own
+// (the times passed in are nanoseconds, the same as System.nanoTime,
+// counted from just after the forecaster was created)
+public class CassetteForecasterTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long MINUTE = TimeUnit.MINUTES.toNanos(1);
+    private static final long HOUR   = TimeUnit.HOURS.toNanos(1);
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * 10 notes of 100 every second for three hours: the rate is
+     * 10 a second and the 1000 notes left last 100 seconds; an hour
+     * (a half life) without dispenses later, the rate is half of that
+     * (less a little, since the forecaster's own weight grows from 7/8
+     * to 15/16 meanwhile, see getRate). Nothing was withdrawn of the 50s
+     */
+    static void testSteadyRateAndDecay() {
+        CassetteForecaster forecaster = new CassetteForecaster(new int[] { 100, 50 }, HOUR, MINUTE);
+        long               start      = System.nanoTime();
+        int[]              notes      = { 10, 0 };
+        
+        for (long time = 0; time < 3 * HOUR; time += SECOND) {
+            forecaster.record(notes, start + time);
+        }
+        
+        long now = start + 3 * HOUR;
+        
+        double rate = forecaster.getRate(100, now);
+        
+        checkNear(10, rate, 0.3, "rate of the 100s");
+        checkNear(100, forecaster.secondsToEmpty(Map.of(100, 1000), false, now).get(100), 3, "seconds until the 100s run out");
+        Tests.checkEqual(0.0, forecaster.getRate(50, now), "rate of the 50s");
+        Tests.checkEqual(Double.POSITIVE_INFINITY, forecaster.secondsToEmpty(Map.of(50, 1000), false, now).get(50), "seconds until the 50s run out");
+        Tests.checkEqual(0.0, forecaster.getRate(20, now), "rate of a bill the ATM doesn't have");
+        
+        checkNear(rate / 2 * (7.0 / 8) / (15.0 / 16), forecaster.getRate(100, now + HOUR), 0.01, "rate of the 100s an hour later");
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * 60 notes in 4 of every 5 minutes and 600 in the fifth, for ten hours:
+     * a typical minute hands out a note a second, a busy one 10,
+     * and the forecast at the peak is sooner than at the recent rate
+     */
+    static void testPercentilesOfBusyIntervals() {
+        CassetteForecaster forecaster = new CassetteForecaster(new int[] { 100 }, HOUR, MINUTE);
+        long               start      = System.nanoTime();
+        
+        for (int minute = 0; minute < 600; minute++) {
+            int[] notes = { (minute % 5 == 4) ? 600 : 60 };
+            
+            forecaster.record(notes, start + minute * MINUTE + SECOND);
+        }
+        
+        long now = start + 600 * MINUTE + SECOND;
+        
+        checkNear(1, forecaster.getMedianRate(100), 0.2, "median rate");
+        checkNear(10, forecaster.getPeakRate(100, now), 1, "peak rate");
+        checkNear(2.8, forecaster.getRate(100, now), 0.3, "recent rate");
+        
+        Map<Integer, Double> atPeak = forecaster.secondsToEmpty(Map.of(100, 1000), true, now);
+        Map<Integer, Double> recent = forecaster.secondsToEmpty(Map.of(100, 1000), false, now);
+        
+        Tests.check(atPeak.get(100) < recent.get(100), "at the peak (" + atPeak + ") sooner than at the recent rate (" + recent + ")");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // notes of a dispense which was undone don't count
+    static void testUnrecord() {
+        CassetteForecaster forecaster = new CassetteForecaster(new int[] { 100 }, HOUR, MINUTE);
+        long               start      = System.nanoTime();
+        
+        forecaster.record(new int[] { 10 }, start + SECOND);
+        forecaster.unrecord(new int[] { 10 }, start + 2 * SECOND);
+        
+        Tests.checkEqual(0.0, forecaster.getRate(100, start + 3 * SECOND), "rate in the same interval");
+        Tests.checkEqual(0.0, forecaster.getRate(100, start + 2 * MINUTE), "rate in a later interval");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // dispenses recorded from many threads at once are all counted:
+    // the 100s recorded one note at a time from 4 threads come out
+    // at the same rate as the same number of 50s recorded at once
+    static void testConcurrentDispensesAreAllCounted() throws InterruptedException {
+        CassetteForecaster forecaster = new CassetteForecaster(new int[] { 100, 50 }, HOUR, MINUTE);
+        long               start      = System.nanoTime();
+        Thread[]           threads    = new Thread[4];
+        
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    forecaster.record(0, 1, start + SECOND);
+                }
+            });
+            threads[t].start();
+        }
+        
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        forecaster.record(1, threads.length * 100000, start + SECOND);
+        
+        for (long now : new long[] { start + 2 * SECOND, start + 2 * MINUTE }) {
+            Tests.checkEqual(forecaster.getRate(50, now), forecaster.getRate(100, now), "rate of the 100s and the 50s");
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    private static void checkNear(double expected, double actual, double tolerance, String what) {
+        Tests.check(Math.abs(expected - actual) <= tolerance, what + ": expected " + expected + " +- " + tolerance + ", got " + actual);
+    }
+}
@@ -0,0 +1,116 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+///////////////////////////////////////////////////////
+// an ATM with notes of several currencies: every currency checks
+// amounts against the greatest common divisor of its own bills,
+// and pays them out of its own cassettes only
+public class CurrencyTest {
+    
+    ///////////////////////////////////////////////////////
+    private static ATM newATM(int euros50, int euros20) {
+        Map<String, Map<Integer, Integer>> cassettes = new LinkedHashMap<String, Map<Integer, Integer>>();
+        cassettes.put("HRK", Map.of(200, 10, 100, 10, 50, 10, 20, 10, 10, 10));
+        cassettes.put("EUR", Map.of(50, euros50, 20, euros20));
+        cassettes.put("GBP", Map.of(50, 10, 20, 10, 5, 10));
+        cassettes.put("CHF", Map.of(200, 10, 100, 10, 50, 10));
+        
+        return new ATM(cassettes, "HRK");
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * The unit of a currency is the GCD of its bills, not its smallest bill:
+     * 70 EUR is valid with 50s and 20s, 15 GBP with 5s, 80 CHF is not
+     * with 50s; a currency the ATM doesn't have is refused as such
+     */
+    static void testAmountsAreMultiplesOfTheGCD() {
+        ATM atm = newATM(10, 10);
+        
+        Tests.checkEqual(10, atm.getCassettes("HRK").getUnit(), "unit of HRK");
+        Tests.checkEqual(10, atm.getCassettes("EUR").getUnit(), "unit of EUR");
+        Tests.checkEqual(5, atm.getCassettes("GBP").getUnit(), "unit of GBP");
+        Tests.checkEqual(50, atm.getCassettes("CHF").getUnit(), "unit of CHF");
+        
+        Tests.checkEqual(Outcome.OK, atm.tryCheckAmountValidity("EUR", 70), "70 EUR");
+        Tests.checkEqual(Outcome.OK, atm.tryCheckAmountValidity("EUR", 30), "30 EUR");
+        Tests.checkEqual(Outcome.INVALID_REQUESTED_AMOUNT, atm.tryCheckAmountValidity("EUR", 15), "15 EUR");
+        Tests.checkEqual(Outcome.OK, atm.tryCheckAmountValidity("GBP", 15), "15 GBP");
+        Tests.checkEqual(Outcome.INVALID_REQUESTED_AMOUNT, atm.tryCheckAmountValidity("CHF", 80), "80 CHF");
+        Tests.checkEqual(Outcome.INVALID_REQUESTED_AMOUNT, atm.tryCheckAmountValidity(15), "15 in the default currency");
+        Tests.checkEqual(Outcome.UNSUPPORTED_CURRENCY, atm.tryCheckAmountValidity("USD", 100), "100 USD");
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Every valid EUR amount up to 300 with five 50s and five 20s:
+     * paid with EUR notes only, exactly, whenever some combination
+     * of them makes it up (10 and 30 never, 60 as three 20s);
+     * the notes of the other currencies are never touched
+     */
+    static void testEurosFromFiftiesAndTwenties() {
+        ATM         atm   = newATM(5, 5);
+        CassetteSet euros = atm.getCassettes("EUR");
+        int[]       notes = atm.newNotesArray();
+        
+        for (int amount = 10; amount <= 300; amount += 10) {
+            boolean payable = false;
+            
+            for (int fifties = 0; fifties <= 5; fifties++) {
+                for (int twenties = 0; twenties <= 5; twenties++) {
+                    payable |= (50 * fifties + 20 * twenties == amount);
+                }
+            }
+            
+            Outcome outcome = atm.tryReserveCash("EUR", amount, notes);
+            
+            Tests.checkEqual(payable ? Outcome.OK : Outcome.NOT_ENOUGH_MONEY_IN_ATM, outcome, amount + " EUR");
+            
+            if (outcome == Outcome.OK) {
+                int paid = 0;
+                
+                for (int i = 0; i < notes.length; i++) {
+                    boolean isEuro = i >= euros.getFrom() && i < euros.getFrom() + euros.size();
+                    
+                    Tests.check(isEuro || notes[i] == 0, "notes of another currency for " + amount + " EUR: " + Arrays.toString(notes));
+                    paid += isEuro ? notes[i] * euros.getBill(i - euros.getFrom()) : 0;
+                }
+                
+                Tests.checkEqual(amount, paid, "paid for " + amount + " EUR");
+                
+                // back in the ATM for the next amount
+                atm.releaseCash(notes);
+            }
+        }
+        
+        Tests.checkEqual(Map.of(200, 10, 100, 10, 50, 10, 20, 10, 10, 10), atm.getBanknotes("HRK"), "HRK notes");
+        Tests.checkEqual(Map.of(50, 5, 20, 5), atm.getBanknotes("EUR"), "EUR notes");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // a card withdraws in the currency of its account, out of the
+    // cassettes of that currency; without them it's refused
+    static void testCardsWithdrawInTheirCurrency() {
+        ATM   atm    = newATM(5, 2);
+        Card  euros  = new Card(1000, 500, 1000, "1234", "EUR");
+        Card  kunas  = new Card(1000, 500, 1000, "1234");
+        Card  dollar = new Card(1000, 500, 1000, "1234", "USD");
+        int[] notes  = atm.newNotesArray();
+        
+        Tests.checkEqual(Outcome.OK, atm.tryWithdraw(euros, 70, notes), "70 EUR");
+        Tests.checkEqual(Map.of(50, 4, 20, 1), atm.getBanknotes("EUR"), "EUR notes after 70");
+        
+        // one 20 left: 60 can't be made up any more, 70 can
+        Tests.checkEqual(Outcome.NOT_ENOUGH_MONEY_IN_ATM, atm.tryWithdraw(euros, 60, notes), "60 EUR with one 20");
+        Tests.checkEqual(Outcome.OK, atm.tryWithdraw(euros, 70, notes), "70 EUR with one 20");
+        Tests.checkEqual(86000L, euros.getBalanceInMinorUnits(), "EUR balance");
+        
+        Tests.checkEqual(Outcome.OK, atm.tryWithdraw(kunas, 60, notes), "60 HRK");
+        Tests.checkEqual(Map.of(200, 10, 100, 10, 50, 9, 20, 10, 10, 9), atm.getBanknotes("HRK"), "HRK notes after 60");
+        Tests.checkEqual(Map.of(50, 3, 20, 0), atm.getBanknotes("EUR"), "EUR notes after 60 HRK");
+        
+        Tests.checkEqual(Outcome.UNSUPPORTED_CURRENCY, atm.tryWithdraw(dollar, 100, notes), "100 USD");
+        Tests.checkEqual(100000L, dollar.getBalanceInMinorUnits(), "USD balance");
+    }
+}
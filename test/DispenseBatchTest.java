@@ -0,0 +1,177 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+///////////////////////////////////////////////////////
+// many amounts planned and paid out at once (ATM.planBatch and
+// ATM.withdrawBatch): a batch pays out the same as the amounts would
+// one after another, and no note is lost or handed out twice
+// while other sessions take notes at the same time
+public class DispenseBatchTest {
+    private static final Map<Integer, Integer> CASSETTES = Map.of(200, 30, 100, 30, 50, 30, 20, 30, 10, 30);
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * The same amounts as a batch in one ATM and one after another in
+     * another ATM with the same notes: same outcome and notes for every
+     * amount (including invalid ones and the ones the ATM can't pay
+     * any more), and the same notes left at the end
+     */
+    static void testBatchPaysOutTheSameAsOneByOne() {
+        ATM    batched = new ATM(CASSETTES);
+        ATM    single  = new ATM(CASSETTES);
+        int[]  amounts = new int[200];
+        int[]  notes   = single.newNotesArray();
+        int[]  paid    = batched.newNotesArray();
+        long   total   = 0;
+        int    refused = 0;
+        Random random  = new Random(11);
+        
+        for (int i = 0; i < amounts.length; i++) {
+            amounts[i] = (i % 25 == 24) ? 15 : 10 * (1 + random.nextInt(60));
+        }
+        
+        DispenseBatch batch = batched.withdrawBatch(amounts);
+        
+        Tests.check(batch.isCommitted(), "batch committed");
+        Tests.checkEqual(amounts.length, batch.size(), "size");
+        
+        for (int i = 0; i < amounts.length; i++) {
+            Outcome outcome = (amounts[i] % 10 != 0) ? Outcome.INVALID_REQUESTED_AMOUNT : single.tryReserveCash(amounts[i], notes);
+            
+            if (outcome == Outcome.OK) {
+                single.commitCash(notes);
+                total += amounts[i];
+            }
+            else {
+                Arrays.fill(notes, 0);
+                refused += (outcome == Outcome.NOT_ENOUGH_MONEY_IN_ATM) ? 1 : 0;
+            }
+            
+            batch.getNotes(i, paid);
+            
+            Tests.checkEqual(amounts[i], batch.getAmount(i), "amount " + i);
+            Tests.checkEqual(outcome, batch.getOutcome(i), "outcome of " + amounts[i] + " (" + i + ")");
+            Tests.checkEqual(Arrays.toString(notes), Arrays.toString(paid), "notes of " + amounts[i] + " (" + i + ")");
+        }
+        
+        Tests.check(refused > 0, "amounts the ATM couldn't pay any more");
+        Tests.checkEqual(total, batch.getTotalAmount(), "total amount");
+        Tests.checkEqual(single.getBanknotes(), batched.getBanknotes(), "notes left");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // a planned batch doesn't take any notes, and is what
+    // the same batch would pay out
+    static void testPlannedBatchTakesNothing() {
+        ATM   atm     = new ATM(CASSETTES);
+        int[] amounts = { 380, 1000, 70, 5000, 20000, 40 };
+        
+        DispenseBatch planned = atm.planBatch(amounts);
+        
+        Tests.check(!planned.isCommitted(), "planned batch committed");
+        Tests.checkEqual(CASSETTES, atm.getBanknotes(), "notes after planning");
+        Tests.checkEqual(Outcome.NOT_ENOUGH_MONEY_IN_ATM, planned.getOutcome(4), "outcome of 20000");
+        
+        DispenseBatch paid = atm.withdrawBatch(amounts);
+        
+        for (int i = 0; i < amounts.length; i++) {
+            Tests.checkEqual(planned.getOutcome(i), paid.getOutcome(i), "outcome of " + amounts[i]);
+            Tests.checkEqual(planned.getNotes(i), paid.getNotes(i), "notes of " + amounts[i]);
+        }
+        
+        Tests.checkEqual(planned.getTotals(), paid.getTotals(), "totals");
+        
+        Map<Integer, Integer> left = new LinkedHashMap<Integer, Integer>();
+        
+        for (Map.Entry<Integer, Integer> entry : CASSETTES.entrySet()) {
+            left.put(entry.getKey(), entry.getValue() - paid.getTotals().getOrDefault(entry.getKey(), 0));
+        }
+        
+        Tests.checkEqual(left, atm.getBanknotes(), "notes after the batch");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // a batch in one currency leaves the notes of the others alone
+    static void testBatchInACurrency() {
+        Map<String, Map<Integer, Integer>> cassettes = new LinkedHashMap<String, Map<Integer, Integer>>();
+        cassettes.put("HRK", Map.of(200, 10, 100, 10));
+        cassettes.put("EUR", Map.of(50, 10, 20, 10, 10, 10));
+        
+        ATM           atm   = new ATM(cassettes, "HRK");
+        DispenseBatch batch = atm.withdrawBatch("EUR", new int[] { 60, 130, 200 });
+        
+        Tests.checkEqual(390L, batch.getTotalAmount(), "paid out in EUR");
+        Tests.checkEqual(Map.of(200, 10, 100, 10), atm.getBanknotes("HRK"), "HRK notes");
+        
+        try {
+            atm.withdrawBatch("USD", new int[] { 100 });
+            Tests.check(false, "batch in a currency the ATM doesn't have");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Batches paid out while 4 other threads reserve and hand out notes:
+     * what's left in the ATM and what was paid out add up to what was
+     * in it at the start, so no note is handed out twice
+     */
+    static void testBatchesWithConcurrentSessions() throws InterruptedException {
+        ATM        atm     = new ATM(Map.of(200, 5000, 100, 5000, 50, 5000, 20, 5000, 10, 5000));
+        long       before  = value(atm.getBanknotes());
+        AtomicLong paid    = new AtomicLong();
+        Thread[]   threads = new Thread[4];
+        
+        for (int t = 0; t < threads.length; t++) {
+            int seed = t;
+            
+            threads[t] = new Thread(() -> {
+                Random random = new Random(seed);
+                int[]  notes  = atm.newNotesArray();
+                
+                for (int i = 0; i < 5000; i++) {
+                    int amount = 10 * (1 + random.nextInt(100));
+                    
+                    if (atm.tryReserveCash(amount, notes) == Outcome.OK) {
+                        atm.commitCash(notes);
+                        paid.addAndGet(amount);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        
+        Random random  = new Random(99);
+        int[]  amounts = new int[100];
+        
+        for (int b = 0; b < 100; b++) {
+            for (int i = 0; i < amounts.length; i++) {
+                amounts[i] = 10 * (1 + random.nextInt(100));
+            }
+            
+            paid.addAndGet(atm.withdrawBatch(amounts).getTotalAmount());
+        }
+        
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        Tests.checkEqual(before, value(atm.getBanknotes()) + paid.get(), "notes left and paid out");
+    }
+    
+    ///////////////////////////////////////////////////////
+    private static long value(Map<Integer, Integer> banknotes) {
+        long value = 0;
+        
+        for (Map.Entry<Integer, Integer> entry : banknotes.entrySet()) {
+            value += (long) entry.getKey() * entry.getValue();
+        }
+        
+        return value;
+    }
+}
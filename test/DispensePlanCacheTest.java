@@ -0,0 +1,88 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+///////////////////////////////////////////////////////
+// plans kept for the amounts withdrawn most often: what the table
+// keeps and finds, and that a plan from the cache is always the
+// plan the planner would have made with the notes in the ATM now
+public class DispensePlanCacheTest {
+    private static final int[] BILLS = { 200, 100, 50, 20, 10 };
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * An amount is kept after its second miss, and only if no count could
+     * have limited its plan; it's found again with the same objective only.
+     * An amount 64 units away shares the slot, but isn't taken for it
+     */
+    static void testWhatIsKeptAndFound() {
+        DispensePlanCache     cache  = new DispensePlanCache(10);
+        int[]                 plenty = { 100, 100, 100, 100, 100 };
+        int[]                 few    = { 100, 100, 100, 100, 2 };
+        int[]                 notes  = { 1, 1, 0, 0, 0 };
+        CashPlanner.Objective fewest = CashPlanner.Objective.FEWEST_NOTES;
+        
+        Tests.check(!cache.accepts(300, BILLS, plenty), "kept after the first miss");
+        Tests.check(cache.accepts(300, BILLS, plenty), "kept after the second miss");
+        Tests.check(!cache.accepts(300, BILLS, few), "kept when the 10s could limit the plan");
+        
+        cache.put(300, fewest, notes, Map.of(200, 1, 100, 1));
+        
+        DispensePlanCache.Plan plan = cache.get(300, fewest);
+        
+        Tests.check(plan != null, "plan of 300 found");
+        Tests.checkEqual(1, plan.getNotes(1), "100s of the plan");
+        Tests.checkEqual(Map.of(200, 1, 100, 1), plan.getBanknotes(), "banknotes of the plan");
+        Tests.check(cache.get(300, CashPlanner.Objective.PRESERVE_SMALL_BILLS) == null, "plan of 300 found with another objective");
+        Tests.check(cache.get(300 + 64 * 10, fewest) == null, "plan of 300 found for " + (300 + 64 * 10));
+        Tests.check(cache.get(310, fewest) == null, "plan of 300 found for 310");
+        
+        // the plan is a copy, changing the notes passed in doesn't change it
+        notes[0] = 7;
+        Tests.checkEqual(1, cache.get(300, fewest).getNotes(0), "200s of the plan after the notes passed in changed");
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Common and random amounts withdrawn until the ATM runs low, with
+     * both objectives: every withdrawal hands out exactly what a planner
+     * of its own makes with the counts before it, whether the plan came
+     * from the cache or not, and the cache is used along the way
+     */
+    static void testCachedPlansMatchThePlanner() {
+        int[]  common = { 50, 100, 200, 300, 500, 1000 };
+        Random random = new Random(7);
+        long   hits   = Metrics.get().counter("atm_plan_cache_hits").get();
+        
+        for (CashPlanner.Objective objective : CashPlanner.Objective.values()) {
+            ATM         atm     = new ATM(Map.of(200, 40, 100, 40, 50, 40, 20, 40, 10, 40));
+            CashPlanner planner = new CashPlanner(objective);
+            int[]       notes   = atm.newNotesArray();
+            int[]       counts  = new int[BILLS.length];
+            int[]       planned = new int[BILLS.length];
+            
+            atm.setDispenseObjective(objective);
+            
+            for (int i = 0; i < 2000; i++) {
+                int amount = (random.nextInt(4) > 0) ? common[random.nextInt(common.length)] : 10 * (1 + random.nextInt(100));
+                
+                for (int j = 0; j < BILLS.length; j++) {
+                    counts[j] = atm.getBanknotes().get(BILLS[j]);
+                }
+                
+                boolean possible = planner.plan(BILLS, counts, amount, planned);
+                String  what     = objective + " " + amount + " with " + atm.getBanknotes();
+                Outcome outcome  = atm.tryReserveCash(amount, notes);
+                
+                Tests.checkEqual(possible ? Outcome.OK : Outcome.NOT_ENOUGH_MONEY_IN_ATM, outcome, what);
+                
+                if (outcome == Outcome.OK) {
+                    Tests.checkEqual(Arrays.toString(planned), Arrays.toString(notes), what);
+                    atm.commitCash(notes);
+                }
+            }
+        }
+        
+        Tests.check(Metrics.get().counter("atm_plan_cache_hits").get() > hits, "plans found in the cache");
+    }
+}
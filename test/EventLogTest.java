@@ -0,0 +1,114 @@
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+///////////////////////////////////////////////////////
+// events logged from many threads and written out by the writer thread:
+// the events of each thread come out in the order they were logged,
+// and flush waits until everything logged before it is written
+public class EventLogTest {
+    private static final Pattern EVENT = Pattern.compile(" WITHDRAWAL card=(\\d+) amount=(\\d+) outcome=OK");
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * 4 threads log 10000 events each, the card is the thread and the
+     * amount counts up: after a flush every event is written once,
+     * and the amounts of each card come one after another
+     */
+    static void testEventsOfAThreadStayInOrder() throws InterruptedException {
+        ByteArrayOutputStream out     = new ByteArrayOutputStream();
+        EventLog              log     = new EventLog(1 << 16, new PrintStream(out, true));
+        Thread[]              threads = new Thread[4];
+        
+        for (int t = 0; t < threads.length; t++) {
+            int card = t + 1;
+            
+            threads[t] = new Thread(() -> {
+                for (int i = 1; i <= 10000; i++) {
+                    log.log(EventLog.Type.WITHDRAWAL, null, card, i, Outcome.OK, null);
+                }
+            });
+            threads[t].start();
+        }
+        
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        log.flush();
+        
+        Map<Integer, Integer> last    = new HashMap<Integer, Integer>();
+        Matcher               matcher = EVENT.matcher(out.toString());
+        int                   events  = 0;
+        
+        while (matcher.find()) {
+            int card   = Integer.parseInt(matcher.group(1));
+            int amount = Integer.parseInt(matcher.group(2));
+            
+            Tests.checkEqual(last.getOrDefault(card, 0) + 1, amount, "event after " + last.get(card) + " of card " + card);
+            last.put(card, amount);
+            events++;
+        }
+        
+        Tests.checkEqual(threads.length * 10000, events, "events written");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // events logged after the writer went idle wake it up again,
+    // and flush waits for them too
+    static void testFlushAfterIdle() throws InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EventLog              log = new EventLog(16, new PrintStream(out, true));
+        
+        log.log(EventLog.Type.WITHDRAWAL, null, 1, 100, Outcome.OK, null);
+        log.flush();
+        
+        Tests.check(out.toString().contains(" WITHDRAWAL card=1 amount=100 outcome=OK"), "first event: " + out);
+        
+        // long enough for the writer to park
+        Thread.sleep(50);
+        
+        for (int i = 1; i <= 100; i++) {
+            log.log(EventLog.Type.WITHDRAWAL, null, 2, i, Outcome.OK, null);
+            
+            // the buffer only holds 16: leave room for the next one
+            if (i % 8 == 0) {
+                log.flush();
+            }
+        }
+        
+        log.flush();
+        
+        Matcher matcher = EVENT.matcher(out.toString());
+        int     events  = 0;
+        
+        while (matcher.find()) {
+            events++;
+        }
+        
+        Tests.checkEqual(101, events, "events written");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // a log which is off doesn't write anything, and flush doesn't wait
+    static void testDisabledLogWritesNothing() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EventLog              off = new EventLog(16, null);
+        
+        Tests.check(!off.isEnabled(), "log without an output enabled");
+        
+        off.log(EventLog.Type.WITHDRAWAL, null, 1, 100, Outcome.OK, null);
+        off.flush();
+        
+        EventLog log = new EventLog(16, new PrintStream(out, true));
+        
+        log.setEnabled(false);
+        log.log(EventLog.Type.WITHDRAWAL, null, 1, 100, Outcome.OK, null);
+        log.flush();
+        
+        Tests.checkEqual("", out.toString(), "written while disabled");
+    }
+}
@@ -0,0 +1,140 @@
+import java.util.concurrent.TimeUnit;
+
+///////////////////////////////////////////////////////
+// throttling of wrong PINs per card and for the whole fleet,
+// on a clock of its own (the times passed in are nanoseconds,
+// the same as System.nanoTime)
+public class PINGuardTest {
+    private static final long START  = TimeUnit.HOURS.toNanos(1);
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    
+    ///////////////////////////////////////////////////////
+    // a burst of 2 wrong PINs, then one every 30 seconds;
+    // the third wrong PIN in a row blocks the card
+    static void testCardIsThrottledAfterTheBurst() {
+        PINGuard guard = new PINGuard();
+        Card     card  = new Card(100, 100, "1234");
+        
+        guard.setLimits(2, 30 * SECOND, 1, 600 * SECOND);
+        
+        Tests.checkEqual(Outcome.OK, guard.tryAttempt(card, START), "first PIN");
+        Tests.check(!guard.recordFailure(card, START), "blocked after one wrong PIN");
+        Tests.checkEqual(Outcome.OK, guard.tryAttempt(card, START), "second PIN");
+        Tests.check(!guard.recordFailure(card, START), "blocked after two wrong PINs");
+        
+        Tests.checkEqual(Outcome.PIN_ATTEMPTS_THROTTLED, guard.tryAttempt(card, START), "third PIN at once");
+        Tests.checkEqual(Outcome.PIN_ATTEMPTS_THROTTLED, guard.tryAttempt(card, START + 30 * SECOND - 1), "third PIN just before a token is back");
+        Tests.checkEqual(Outcome.OK, guard.tryAttempt(card, START + 30 * SECOND), "third PIN once a token is back");
+        
+        Tests.check(guard.recordFailure(card, START + 30 * SECOND), "blocked after three wrong PINs");
+        Tests.checkEqual(3, card.getWrongPINattempts(), "wrong PINs");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // a correct PIN starts the wrong PINs in a row from 0,
+    // but the tokens only come back with time
+    static void testCorrectPINResetsWrongPINsButNotTokens() {
+        PINGuard guard = new PINGuard();
+        Card     card  = new Card(100, 100, "1234");
+        
+        guard.setLimits(2, 30 * SECOND, 1, 600 * SECOND);
+        
+        guard.recordFailure(card, START);
+        guard.recordFailure(card, START);
+        guard.recordSuccess(card);
+        
+        Tests.checkEqual(0, card.getWrongPINattempts(), "wrong PINs after a correct one");
+        Tests.checkEqual(Outcome.PIN_ATTEMPTS_THROTTLED, guard.tryAttempt(card, START + SECOND), "PIN after a correct one");
+        
+        // a full bucket again after both tokens are back
+        Tests.checkEqual(Outcome.OK, guard.tryAttempt(card, START + 60 * SECOND), "PIN after a minute");
+        Tests.check(!guard.recordFailure(card, START + 60 * SECOND), "blocked");
+        Tests.checkEqual(Outcome.OK, guard.tryAttempt(card, START + 60 * SECOND), "second PIN after a minute");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // a card which never had a wrong PIN is never throttled
+    static void testCardWithoutWrongPINs() {
+        PINGuard guard = new PINGuard();
+        Card     card  = new Card(100, 100, "1234");
+        
+        guard.setLimits(1, 30 * SECOND, 1, 600 * SECOND);
+        
+        for (int i = 0; i < 100; i++) {
+            Tests.checkEqual(Outcome.OK, guard.tryAttempt(card), "PIN " + i);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Wrong PINs on many cards at once put the fleet under attack:
+     * a card is throttled after its first wrong PIN instead of the burst.
+     * Once the wrong PINs are a small share of the last minute again,
+     * the normal limits are back
+     */
+    static void testFleetUnderAttack() {
+        PINGuard guard = new PINGuard();
+        
+        guard.setLimits(3, 30 * SECOND, 1, 600 * SECOND);
+        guard.setAttackThreshold(0.2, 10);
+        
+        for (int i = 0; i < 50; i++) {
+            Card card = new Card(100, 100, "1234");
+            
+            guard.tryAttempt(card, START);
+            guard.recordFailure(card, START);
+        }
+        
+        Tests.check(!guard.isUnderAttack(), "under attack before the window moved");
+        
+        Card card = new Card(100, 100, "1234");
+        
+        Tests.checkEqual(Outcome.OK, guard.tryAttempt(card, START + SECOND), "first PIN");
+        guard.recordFailure(card, START + SECOND);
+        
+        Tests.check(guard.isUnderAttack(), "under attack after 50 wrong PINs of 50");
+        Tests.checkEqual(Outcome.PIN_ATTEMPTS_THROTTLED, guard.tryAttempt(card, START + SECOND), "second PIN under attack");
+        
+        // two minutes later, 1000 correct PINs and a single wrong one
+        long later = START + 120 * SECOND;
+        Card other = new Card(100, 100, "1234");
+        
+        for (int i = 0; i < 1000; i++) {
+            guard.tryAttempt(other, later);
+        }
+        
+        Card last = new Card(100, 100, "1234");
+        
+        guard.recordFailure(last, later);
+        
+        Tests.check(!guard.isUnderAttack(), "under attack after 1 wrong PIN of 1000");
+        Tests.checkEqual(Outcome.OK, guard.tryAttempt(last, later), "second PIN after the attack");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // once the wrong PINs of an attack are out of the window, a card
+    // which had one is back on the normal limits, even if no other
+    // wrong PIN came in since (checking the card moves the window)
+    static void testAttackEndsWithoutMoreWrongPINs() {
+        PINGuard guard = new PINGuard();
+        Card     card  = new Card(100, 100, "1234");
+        
+        guard.setLimits(3, 100 * SECOND, 1, 600 * SECOND);
+        guard.setAttackThreshold(0.2, 10);
+        
+        guard.recordFailure(card, START);
+        guard.recordFailure(card, START);
+        
+        for (int i = 0; i < 50; i++) {
+            guard.recordFailure(new Card(100, 100, "1234"), START + SECOND);
+        }
+        
+        Tests.checkEqual(Outcome.PIN_ATTEMPTS_THROTTLED, guard.tryAttempt(card, START + 2 * SECOND), "PIN under attack");
+        Tests.check(guard.isUnderAttack(), "under attack");
+        
+        // no wrong PINs for two minutes: with a token left of the
+        // normal burst, but none of the attack burst
+        Tests.checkEqual(Outcome.OK, guard.tryAttempt(card, START + 130 * SECOND), "PIN after the attack");
+        Tests.check(!guard.isUnderAttack(), "under attack after two minutes without wrong PINs");
+    }
+}
@@ -0,0 +1,79 @@
+import java.util.HashSet;
+import java.util.Set;
+
+///////////////////////////////////////////////////////
+// PINs parsed, hashed and compared, and the PINs a session
+// remembers as verified, which must stop matching once
+// the PIN of the card is changed
+public class PINHashTest {
+    
+    ///////////////////////////////////////////////////////
+    // exactly 4 ASCII digits, anything else is -1
+    static void testParse() {
+        Tests.checkEqual(0, PINHash.parse("0000"), "0000");
+        Tests.checkEqual(412, PINHash.parse("0412"), "0412");
+        Tests.checkEqual(9999, PINHash.parse("9999"), "9999");
+        
+        for (String PIN : new String[] { null, "", "123", "12345", "12a4", " 123", "-123", "\uFF11\uFF12\uFF13\uFF14", "\u0661\u0662\u0663\u0664" }) {
+            Tests.checkEqual(-1, PINHash.parse(PIN), "\"" + PIN + "\"");
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // with the same salt, each of the 10000 PINs has a hash of its own;
+    // the same PIN with another salt has another hash
+    static void testHashes() {
+        long      salt   = PINHash.newSalt();
+        Set<Long> hashes = new HashSet<Long>();
+        
+        for (int PIN = 0; PIN < 10000; PIN++) {
+            Tests.check(hashes.add(PINHash.hash(salt, PIN)), "hash of " + PIN + " taken");
+        }
+        
+        Tests.checkEqual(PINHash.hash(salt, 1234), PINHash.hash(salt, 1234), "hash of the same PIN");
+        Tests.check(PINHash.hash(salt, 1234) != PINHash.hash(salt + 1, 1234), "hash with another salt");
+        
+        long hash = PINHash.hash(salt, 1234);
+        
+        Tests.check(PINHash.matches(hash, hash), "matches itself");
+        
+        for (int bit = 0; bit < 64; bit++) {
+            Tests.check(!PINHash.matches(hash, hash ^ (1L << bit)), "matches with bit " + bit + " changed");
+        }
+        
+        for (int i = 0; i < 1000; i++) {
+            Tests.check(PINHash.parse(PINHash.randomPIN()) >= 0, "random PIN");
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * A session remembers the PINs it verified: the same PIN verifies
+     * again without hashing it, but once the PIN of the card is changed
+     * (in this or any other session) the old PIN is wrong, and a PIN
+     * remembered for one card doesn't verify another card
+     */
+    static void testVerifiedPINsOfASession() {
+        Card        card    = new Card(100, 100, 100, "1234");
+        Card        other   = new Card(100, 100, 100, "4321");
+        CardSession session = new CardSession(card, null);
+        CardSession second  = new CardSession(card, null);
+        
+        Tests.checkEqual(Outcome.OK, session.tryInsertCard(), "insert");
+        Tests.checkEqual(Outcome.OK, session.tryVerifyPIN("1234"), "PIN");
+        Tests.checkEqual(Outcome.OK, session.tryVerifyPIN("1234"), "PIN verified before");
+        
+        Tests.checkEqual(Outcome.OK, second.tryInsertCard(), "insert in the second session");
+        Tests.checkEqual(Outcome.OK, second.tryChangePIN("5678"), "PIN changed in the second session");
+        
+        Tests.checkEqual(Outcome.WRONG_PIN, session.tryVerifyPIN("1234"), "PIN verified before the change");
+        Tests.checkEqual(Outcome.OK, session.tryVerifyPIN("5678"), "new PIN");
+        
+        session.reset(other);
+        
+        Tests.checkEqual(Outcome.OK, session.tryInsertCard(), "insert the other card");
+        Tests.checkEqual(Outcome.WRONG_PIN, session.tryVerifyPIN("5678"), "PIN of the first card");
+        Tests.checkEqual(Outcome.OK, session.tryVerifyPIN("4321"), "PIN of the other card");
+        Tests.checkEqual(0, other.getWrongPINattempts(), "wrong PINs after a correct one");
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+///////////////////////////////////////////////////////
+// receipts printed on the spooler's thread with a printer without
+// paper (see FakePrinter): what's printed, that a session is refused
+// rather than kept waiting when the printer can't keep up, and
+// the printer going out of order and coming back
+public class ReceiptSpoolerTest {
+    
+    ///////////////////////////////////////////////////////
+    // 100 receipts are all printed by the time the spooler is closed,
+    // in batches of at most 32, with the balance of the card
+    static void testReceiptsArePrinted() {
+        FakePrinter    printer = new FakePrinter();
+        ReceiptSpooler spooler = new ReceiptSpooler(printer);
+        Card           card    = new Card(724.65, 100, 1000, "1234", "EUR");
+        
+        for (int i = 0; i < 100; i++) {
+            Tests.checkEqual(Outcome.OK, spooler.submit(1, card), "receipt " + i);
+        }
+        
+        spooler.close();
+        
+        String last = printer.getLastBatch();
+        
+        Tests.checkEqual(100L, printer.getPrinted(), "printed");
+        Tests.check(printer.getBatches() >= 4, "100 receipts in " + printer.getBatches() + " batches");
+        Tests.check(last.startsWith("ATM 1  "), "receipt starts with the ATM: " + last);
+        Tests.check(last.endsWith("\nCard #" + card.getNumber() + "\nBalance: 724.65 EUR\n\f"), "receipt of the card: " + last);
+        Tests.checkEqual(Outcome.PRINTER_ERROR, spooler.submit(1, card), "receipt after the spooler was closed");
+        
+        // closing again does nothing
+        spooler.close();
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * A printer taking 50 ms a batch, with room for 4 receipts: 20 receipts
+     * submitted at once don't wait for it, the ones which don't fit are
+     * refused, and every receipt which was taken is printed in the end
+     */
+    static void testFullQueueRefusesInsteadOfWaiting() {
+        FakePrinter    printer  = new FakePrinter(50, 0, TimeUnit.MILLISECONDS, 0);
+        ReceiptSpooler spooler  = new ReceiptSpooler(printer, 4, 1, 1, TimeUnit.SECONDS);
+        Card           card     = new Card(100, 100, "1234");
+        int            accepted = 0;
+        long           start    = System.nanoTime();
+        
+        for (int i = 0; i < 20; i++) {
+            accepted += (spooler.submit(1, card) == Outcome.OK) ? 1 : 0;
+        }
+        
+        // waiting for the printer, they would take 800 ms at least
+        Tests.check(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(400), "submitted without waiting for the printer");
+        Tests.check(accepted >= 4 && accepted < 20, accepted + " of 20 receipts taken");
+        Tests.checkEqual(Outcome.OK, spooler.getHealth(), "health of a slow printer");
+        
+        spooler.close();
+        
+        Tests.checkEqual((long) accepted, printer.getPrinted(), "printed");
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * A batch which fails puts the printer out of order: receipts are
+     * refused right away until the printer says it's back (it's asked
+     * every 10 ms), and printed again after that
+     */
+    static void testPrinterOutOfOrderAndBack() throws InterruptedException {
+        FakePrinter    printer = new FakePrinter();
+        ReceiptSpooler spooler = new ReceiptSpooler(printer, 16, 4, 10, TimeUnit.MILLISECONDS);
+        Card           card    = new Card(100, 100, "1234");
+        
+        printer.setBroken(true);
+        
+        // the spooler only finds out when it prints
+        Tests.checkEqual(Outcome.OK, spooler.submit(1, card), "receipt for the broken printer");
+        Tests.check(waitFor(() -> spooler.getHealth() == Outcome.PRINTER_ERROR), "printer out of order");
+        Tests.checkEqual(Outcome.PRINTER_ERROR, spooler.submit(1, card), "receipt while out of order");
+        Tests.checkEqual(1L, printer.getFailures(), "failed batches");
+        
+        printer.setBroken(false);
+        
+        Tests.check(waitFor(() -> spooler.getHealth() == Outcome.OK), "printer back");
+        Tests.checkEqual(Outcome.OK, spooler.submit(1, card), "receipt after the printer is back");
+        
+        spooler.close();
+        
+        Tests.checkEqual(1L, printer.getPrinted(), "printed");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // whether the condition became true within 5 seconds
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            
+            Thread.sleep(1);
+        }
+        
+        return true;
+    }
+}
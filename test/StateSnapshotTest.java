@@ -0,0 +1,129 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+///////////////////////////////////////////////////////
+// the ATM and the cards written to a snapshot and read back,
+// and snapshots which are damaged or cut short
+public class StateSnapshotTest {
+    
+    ///////////////////////////////////////////////////////
+    static void testRoundTrip() throws Exception {
+        Map<String, Map<Integer, Integer>> cassettes = new LinkedHashMap<String, Map<Integer, Integer>>();
+        cassettes.put("HRK", Map.of(200, 400, 100, 600, 50, 800, 20, 1000, 10, 2000));
+        cassettes.put("EUR", Map.of(50, 30, 20, 0, 10, 70000));
+        
+        Path  file    = Tests.newFile("atm.snapshot");
+        ATM   atm     = new ATM(cassettes, "HRK");
+        Card  plain   = new Card(724.65, 500, 600, "1234");
+        Card  euros   = new Card(0.01, 300, 900, "4321", "EUR");
+        Card  wrong   = new Card(10, 100, 100, "1111");
+        Card  blocked = new Card(99999999.99, 1000, 2000, "2222");
+        int[] notes   = atm.newNotesArray();
+        
+        wrong.addWrongPINattempt();
+        wrong.addWrongPINattempt();
+        blocked.markBlocked();
+        
+        // reserved notes are still in the ATM until they're handed out
+        Tests.checkEqual(Outcome.OK, atm.tryReserveCash(370, notes), "reserve 370");
+        
+        CardRegistry cards = CardRegistry.of(plain, euros, wrong, blocked);
+        long         now   = System.currentTimeMillis();
+        
+        StateSnapshot.write(file, atm, cards);
+        
+        StateSnapshot snapshot = StateSnapshot.read(file);
+        ATM           restored = snapshot.getATM();
+        
+        Tests.check(snapshot.getTakenAt() >= now && snapshot.getTakenAt() <= System.currentTimeMillis(), "taken at");
+        Tests.checkEqual(atm.getNumber(), restored.getNumber(), "ATM number");
+        Tests.checkEqual("HRK", restored.getDefaultCurrency(), "default currency");
+        Tests.checkEqual(atm.getCurrencies(), restored.getCurrencies(), "currencies");
+        Tests.checkEqual(atm.getBanknotes("HRK"), restored.getBanknotes("HRK"), "HRK notes");
+        Tests.checkEqual(atm.getBanknotes("EUR"), restored.getBanknotes("EUR"), "EUR notes");
+        Tests.checkEqual(cards.size(), snapshot.getCards().size(), "cards");
+        
+        for (Card card : cards.toArray()) {
+            Card read = snapshot.getCards().get(card.getNumber());
+            
+            Tests.check(read != null && read != card, card.getName() + " read back");
+            Tests.checkEqual(card.getBalanceInMinorUnits(), read.getBalanceInMinorUnits(), card.getName() + " balance");
+            Tests.checkEqual(card.getMaxWithdrawAmount(), read.getMaxWithdrawAmount(), card.getName() + " limit");
+            Tests.checkEqual(card.getMaxDailyAmount(), read.getMaxDailyAmount(), card.getName() + " daily limit");
+            Tests.checkEqual(card.getMaxPINattempts(), read.getMaxPINattempts(), card.getName() + " PIN attempts");
+            Tests.checkEqual(card.getWrongPINattempts(), read.getWrongPINattempts(), card.getName() + " wrong PINs");
+            Tests.checkEqual(card.isCardBlocked(), read.isCardBlocked(), card.getName() + " blocked");
+            Tests.checkEqual(card.getCurrency(), read.getCurrency(), card.getName() + " currency");
+        }
+        
+        Tests.checkEqual(2, snapshot.getCards().get(wrong.getNumber()).getWrongPINattempts(), "wrong PINs");
+        Tests.check(snapshot.getCards().get(blocked.getNumber()).isCardBlocked(), "blocked");
+        Tests.checkEqual(9999999999L, snapshot.getCards().get(blocked.getNumber()).getBalanceInMinorUnits(), "large balance");
+        
+        // the PIN is kept as a salted hash, but still checks the same
+        Tests.check(snapshot.getCards().get(plain.getNumber()).isPINCorrect("1234"), "PIN");
+        Tests.check(!snapshot.getCards().get(plain.getNumber()).isPINCorrect("4321"), "wrong PIN");
+        Tests.check(snapshot.getCards().get(euros.getNumber()).isPINCorrect("4321"), "PIN of the EUR card");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // an ATM without cards
+    static void testEmptyRegistry() throws Exception {
+        Path file = Tests.newFile("atm.snapshot");
+        ATM  atm  = new ATM(Map.of(100, 3));
+        
+        StateSnapshot.write(file, atm, new CardRegistry());
+        
+        StateSnapshot snapshot = StateSnapshot.read(file);
+        
+        Tests.checkEqual(0, snapshot.getCards().size(), "cards");
+        Tests.checkEqual(Map.of(100, 3), snapshot.getATM().getBanknotes(), "notes");
+    }
+    
+    ///////////////////////////////////////////////////////
+    // any byte changed or the file cut short: not read
+    static void testDamagedSnapshotIsRejected() throws Exception {
+        Path file = Tests.newFile("atm.snapshot");
+        ATM  atm  = new ATM(Map.of(200, 5, 100, 5));
+        
+        StateSnapshot.write(file, atm, CardRegistry.of(new Card(100, 100, "1234")));
+        
+        long size = Files.size(file);
+        
+        for (long position : new long[] { 0, 4, 20, 40, size / 2, size - 1 }) {
+            StateSnapshot.write(file, atm, CardRegistry.of(new Card(100, 100, "1234")));
+            
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                raf.seek(position);
+                int value = raf.read();
+                raf.seek(position);
+                raf.write(value ^ 0x10);
+            }
+            
+            checkRejected(file, "byte " + position + " changed");
+        }
+        
+        StateSnapshot.write(file, atm, CardRegistry.of(new Card(100, 100, "1234")));
+        
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(size - 4);
+        }
+        
+        checkRejected(file, "cut short");
+    }
+    
+    ///////////////////////////////////////////////////////
+    private static void checkRejected(Path file, String what) {
+        try {
+            StateSnapshot.read(file);
+            Tests.check(false, "read a snapshot with " + what);
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+}
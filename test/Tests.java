@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Objects;
+
+///////////////////////////////////////////////////////
+// runs the behaviour tests of the classes below without a test framework:
+// every static method whose name starts with "test" is a test,
+// which fails by throwing (see check and checkEqual).
+// the tests sit in the same (default) package as the ATM,
+// so they can use the package-private constructors and clocks.
+//
+// usage: javac -d out src/*.java test/*.java && java -cp out Tests [filter], eg.
+//   java -cp out Tests PINGuard  (only the tests whose class or name contains "PINGuard")
+// exits with 1 if any test failed
+public class Tests {
+    private static final Class<?>[] CLASSES = {
+        CashPlannerTest.class,
+        ATMTest.class,
+        TransactionJournalTest.class,
+        StateSnapshotTest.class,
+        PINGuardTest.class,
+        TransactionExportTest.class,
+        CardRegistryTest.class,
+        EventLogTest.class,
+        PINHashTest.class,
+        CassetteForecasterTest.class,
+        DispensePlanCacheTest.class,
+        DispenseBatchTest.class,
+        CurrencyTest.class,
+        CardBalanceTest.class,
+        ReceiptSpoolerTest.class
+    };
+    
+    ///////////////////////////////////////////////////////
+    public static void main(String[] args) {
+        String filter = (args.length > 0) ? args[0] : "";
+        int    passed = 0,
+               failed = 0;
+        
+        for (Class<?> testClass : CLASSES) {
+            Method[] methods = testClass.getDeclaredMethods();
+            Arrays.sort(methods, Comparator.comparing(Method::getName));
+            
+            for (Method method : methods) {
+                String name = testClass.getName() + "." + method.getName();
+                
+                if (!method.getName().startsWith("test") || !Modifier.isStatic(method.getModifiers()) || !name.contains(filter)) {
+                    continue;
+                }
+                
+                long start = System.nanoTime();
+                
+                try {
+                    method.setAccessible(true);
+                    method.invoke(null);
+                    
+                    System.out.println("ok   " + name + " (" + LatencyHistogram.format(System.nanoTime() - start) + ")");
+                    passed++;
+                }
+                catch (InvocationTargetException e) {
+                    System.out.println("FAIL " + name + ": " + e.getCause());
+                    e.getCause().printStackTrace(System.out);
+                    failed++;
+                }
+                catch (IllegalAccessException e) {
+                    System.out.println("FAIL " + name + ": " + e);
+                    failed++;
+                }
+            }
+        }
+        
+        System.out.println(passed + " passed, " + failed + " failed");
+        
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    static void checkEqual(Object expected, Object actual, String what) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // a path in a new temporary directory, which doesn't exist yet
+    // (removed when the tests are done)
+    static Path newFile(String name) throws IOException {
+        Path directory = Files.createTempDirectory("atm-test");
+        Path file      = directory.resolve(name);
+        
+        directory.toFile().deleteOnExit();
+        file.toFile().deleteOnExit();
+        
+        return file;
+    }
+}
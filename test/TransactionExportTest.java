@@ -0,0 +1,219 @@
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Predicate;
+
+///////////////////////////////////////////////////////
+// rows written to an export and scanned back: every query
+// has to find exactly the rows a full scan of what was appended
+// finds, in the same order, while skipping the groups it can
+public class TransactionExportTest {
+    private static final int[] DENOMINATIONS = { 200, 100, 50, 20, 10 };
+    private static final long  START         = 1714996800000L;
+    
+    private static final Outcome[] OUTCOMES = {
+        Outcome.OK, Outcome.OK, Outcome.OK, Outcome.NOT_ENOUGH_FUNDS, Outcome.WRONG_PIN, Outcome.EXCEEDED_DAILY_LIMIT
+    };
+    
+    // a row as it was appended, with the notes per denomination
+    private static class Appended {
+        int                       card;
+        long                      time;
+        int                       atm;
+        TransactionRequest.Action action;
+        int                       amount;
+        String                    currency;
+        Outcome                   outcome;
+        int[]                     notes = new int[DENOMINATIONS.length];
+        
+        ///////////////////////////////////////////////////////
+        public String toString() {
+            return this.card + " " + this.time + " " + this.atm + " " + this.action + " " + this.amount + " "
+                   + this.currency + " " + this.outcome + " " + Arrays.toString(this.notes);
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * 20000 rows from two ATMs (the second one with two currencies),
+     * 1000 rows a group, written in the order of time and the first ATM
+     * before the second: queries on time and ATMs skip groups,
+     * the others read them all, and all of them find what a full scan finds
+     */
+    static void testPushdownMatchesFullScan() throws Exception {
+        Map<String, Map<Integer, Integer>> cassettes = new LinkedHashMap<String, Map<Integer, Integer>>();
+        cassettes.put("EUR", Map.of(50, 100, 20, 100, 10, 100));
+        cassettes.put("HRK", Map.of(200, 100, 100, 100));
+        
+        Path           file     = Tests.newFile("transactions.export");
+        ATM            first    = new ATM(Map.of(200, 100, 100, 100, 50, 100, 20, 100, 10, 100));
+        ATM            second   = new ATM(cassettes, "EUR");
+        List<Appended> appended = new ArrayList<Appended>();
+        Random         random   = new Random(7);
+        
+        try (TransactionExport export = new TransactionExport(file, DENOMINATIONS, 1000)) {
+            for (int i = 0; i < 20000; i++) {
+                ATM      atm   = (i < 10000) ? first : second;
+                Appended row   = new Appended();
+                int[]    notes = null;
+                
+                row.card     = 1 + random.nextInt(50);
+                row.time     = START + i * 1000L + random.nextInt(1000);
+                row.atm      = atm.getNumber();
+                row.action   = TransactionRequest.Action.values()[random.nextInt(3)];
+                row.amount   = (row.action == TransactionRequest.Action.WITHDRAW) ? 10 * (1 + random.nextInt(200)) : 0;
+                row.currency = (atm == second && random.nextBoolean()) ? "HRK" : atm.getDefaultCurrency();
+                row.outcome  = OUTCOMES[random.nextInt(OUTCOMES.length)];
+                
+                if (row.action == TransactionRequest.Action.WITHDRAW && row.outcome == Outcome.OK) {
+                    notes = atm.newNotesArray();
+                    
+                    for (String currency : atm.getCurrencies()) {
+                        CassetteSet bills = atm.getCassettes(currency);
+                        
+                        for (int j = 0; currency.equals(row.currency) && j < bills.size(); j++) {
+                            int count = random.nextInt(5);
+                            
+                            notes[bills.getFrom() + j]            = count;
+                            row.notes[indexOf(bills.getBill(j))] += count;
+                        }
+                    }
+                }
+                
+                Tests.check(export.append(row.card, row.time, atm, row.action, row.amount, row.currency, row.outcome, notes), "row " + i + " appended");
+                appended.add(row);
+            }
+        }
+        
+        try (TransactionExportReader reader = new TransactionExportReader(file)) {
+            Tests.checkEqual(Arrays.toString(DENOMINATIONS), Arrays.toString(reader.getDenominations()), "denominations");
+            
+            TransactionExportReader.Query query = new TransactionExportReader.Query();
+            checkScan(reader, query, appended, row -> true, "everything");
+            Tests.checkEqual(0L, reader.getGroupsSkipped(), "groups skipped by everything");
+            
+            query = new TransactionExportReader.Query();
+            query.setTime(START + 5000 * 1000L, START + 7500 * 1000L);
+            checkScan(reader, query, appended, row -> row.time >= START + 5000 * 1000L && row.time < START + 7500 * 1000L, "time");
+            Tests.check(reader.getGroupsSkipped() >= 17, "groups skipped by time: " + reader.getGroupsSkipped());
+            
+            query = new TransactionExportReader.Query();
+            query.setATM(second.getNumber());
+            checkScan(reader, query, appended, row -> row.atm == second.getNumber(), "second ATM");
+            Tests.checkEqual(10L, reader.getGroupsSkipped(), "groups skipped by the second ATM");
+            
+            query = new TransactionExportReader.Query();
+            query.setCard(17);
+            checkScan(reader, query, appended, row -> row.card == 17, "card 17");
+            
+            query = new TransactionExportReader.Query();
+            query.setCard(51);
+            checkScan(reader, query, appended, row -> false, "card without rows");
+            Tests.checkEqual(20L, reader.getGroupsSkipped(), "groups skipped by a card without rows");
+            
+            query = new TransactionExportReader.Query();
+            query.setAmount(1000, 1500);
+            checkScan(reader, query, appended, row -> row.amount >= 1000 && row.amount <= 1500, "amount");
+            
+            query = new TransactionExportReader.Query();
+            query.setOutcomes(Outcome.NOT_ENOUGH_FUNDS, Outcome.WRONG_PIN);
+            checkScan(reader, query, appended, row -> row.outcome == Outcome.NOT_ENOUGH_FUNDS || row.outcome == Outcome.WRONG_PIN, "outcomes");
+            
+            query = new TransactionExportReader.Query();
+            query.setOutcomes(Outcome.UNKNOWN_CARD);
+            checkScan(reader, query, appended, row -> false, "outcome without rows");
+            Tests.checkEqual(20L, reader.getGroupsSkipped(), "groups skipped by an outcome without rows");
+            
+            // everything at once
+            query = new TransactionExportReader.Query();
+            query.setATM(second.getNumber());
+            query.setTime(START + 12000 * 1000L, START + 19000 * 1000L);
+            query.setActions(TransactionRequest.Action.WITHDRAW);
+            query.setOutcomes(Outcome.OK);
+            query.setAmount(10, 800);
+            checkScan(reader, query, appended, row -> row.atm == second.getNumber()
+                                                      && row.time >= START + 12000 * 1000L && row.time < START + 19000 * 1000L
+                                                      && row.action == TransactionRequest.Action.WITHDRAW
+                                                      && row.outcome == Outcome.OK
+                                                      && row.amount >= 10 && row.amount <= 800, "everything at once");
+            
+            // without the notes, they read as 0
+            query = new TransactionExportReader.Query();
+            query.setWithNotes(false);
+            
+            long[] notes = new long[1];
+            reader.scan(query, row -> notes[0] += row.getNotes(0) + row.getNotes(4));
+            Tests.checkEqual(0L, notes[0], "notes without the notes");
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // rows appended after close are dropped, not written
+    static void testRowsAfterCloseAreDropped() throws Exception {
+        Path              file   = Tests.newFile("transactions.export");
+        ATM               atm    = new ATM(Map.of(100, 10));
+        TransactionExport export = new TransactionExport(file, DENOMINATIONS, 10);
+        
+        for (int i = 0; i < 25; i++) {
+            Tests.check(export.append(i, START + i, atm, TransactionRequest.Action.CHECK_BALANCE, 0, "HRK", Outcome.OK, null), "row " + i + " appended");
+        }
+        
+        export.close();
+        
+        Tests.check(!export.append(99, START, atm, TransactionRequest.Action.CHECK_BALANCE, 0, "HRK", Outcome.OK, null), "row appended after close");
+        
+        try (TransactionExportReader reader = new TransactionExportReader(file)) {
+            Tests.checkEqual(25L, reader.scan(new TransactionExportReader.Query(), row -> { }), "rows scanned");
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // same rows, in the same order, as the predicate over everything appended
+    private static void checkScan(TransactionExportReader reader, TransactionExportReader.Query query,
+                                  List<Appended> appended, Predicate<Appended> matches, String what) throws Exception {
+        List<String> expected = new ArrayList<String>();
+        List<String> scanned  = new ArrayList<String>();
+        
+        for (Appended row : appended) {
+            if (matches.test(row)) {
+                expected.add(row.toString());
+            }
+        }
+        
+        long count = reader.scan(query, row -> {
+            Appended read = new Appended();
+            
+            read.card     = row.getCard();
+            read.time     = row.getTime();
+            read.atm      = row.getATM();
+            read.action   = row.getAction();
+            read.amount   = row.getAmount();
+            read.currency = row.getCurrency();
+            read.outcome  = row.getOutcome();
+            
+            for (int i = 0; i < DENOMINATIONS.length; i++) {
+                read.notes[i] = row.getNotes(i);
+            }
+            
+            scanned.add(read.toString());
+        });
+        
+        Tests.checkEqual(expected.size(), (int) count, "rows counted, " + what);
+        Tests.check(expected.equals(scanned), "rows scanned, " + what);
+    }
+    
+    ///////////////////////////////////////////////////////
+    private static int indexOf(int bill) {
+        for (int i = 0; i < DENOMINATIONS.length; i++) {
+            if (DENOMINATIONS[i] == bill) {
+                return i;
+            }
+        }
+        
+        throw new IllegalArgumentException("No denomination " + bill);
+    }
+}
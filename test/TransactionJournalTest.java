@@ -0,0 +1,231 @@
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+
+///////////////////////////////////////////////////////
+// the journal written, reopened and replayed: daily totals
+// rebuilt from the file, torn records at the end, note counts
+// of a record, and a replay matching the ATM and cards it was written by
+public class TransactionJournalTest {
+    private static final Instant NOON = Instant.parse("2024-05-06T12:00:00Z");
+    
+    ///////////////////////////////////////////////////////
+    static void testDailyTotalsAreRebuiltOnReopen() throws Exception {
+        Path  file  = Tests.newFile("journal.bin");
+        Clock clock = Clock.fixed(NOON, ZoneOffset.UTC);
+        int[] notes = { 1, 1, 0, 0, 0 };
+        
+        try (TransactionJournal journal = new TransactionJournal(file, clock, 64, 10)) {
+            Tests.check(journal.tryAddToDailyTotal(7, 300, 1000), "300 of 1000");
+            journal.append(1, 7, 300, notes);
+            Tests.check(journal.tryAddToDailyTotal(7, 300, 1000), "600 of 1000");
+            journal.append(1, 7, 300, notes);
+            Tests.check(journal.tryAddToDailyTotal(8, 200, 1000), "200 of 1000");
+            journal.append(1, 8, 200, notes);
+        }
+        
+        try (TransactionJournal journal = new TransactionJournal(file, clock, 64, 10)) {
+            Tests.checkEqual(3 * 48L, journal.size(), "size");
+            Tests.checkEqual(600, journal.withdrawnToday(7), "withdrawn by card 7");
+            Tests.checkEqual(200, journal.withdrawnToday(8), "withdrawn by card 8");
+            Tests.checkEqual(0, journal.withdrawnToday(9), "withdrawn by card 9");
+            Tests.check(!journal.tryAddToDailyTotal(7, 500, 1000), "1100 of 1000");
+            Tests.check(journal.tryAddToDailyTotal(7, 400, 1000), "1000 of 1000");
+        }
+        
+        // the next day, nothing counts any more
+        try (TransactionJournal journal = new TransactionJournal(file, Clock.fixed(NOON.plus(Duration.ofDays(1)), ZoneOffset.UTC), 64, 10)) {
+            Tests.checkEqual(0, journal.withdrawnToday(7), "withdrawn by card 7 the next day");
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // a record which was only partly written (eg. a crash) ends the
+    // journal: it doesn't count and the next record overwrites it
+    static void testTornRecordIsOverwritten() throws Exception {
+        Path  file  = Tests.newFile("journal.bin");
+        Clock clock = Clock.fixed(NOON, ZoneOffset.UTC);
+        
+        try (TransactionJournal journal = new TransactionJournal(file, clock, 64, 10)) {
+            journal.append(1, 7, 300, new int[] { 1, 1 });
+            journal.append(1, 7, 500, new int[] { 2, 1 });
+        }
+        
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(48 + 16);
+            raf.writeInt(501);
+        }
+        
+        try (TransactionJournal journal = new TransactionJournal(file, clock, 64, 10)) {
+            Tests.checkEqual(48L, journal.size(), "size without the torn record");
+            Tests.checkEqual(300, journal.withdrawnToday(7), "withdrawn without the torn record");
+            
+            journal.append(1, 7, 200, new int[] { 1, 0 });
+        }
+        
+        try (TransactionJournal journal = new TransactionJournal(file, clock, 64, 10)) {
+            Tests.checkEqual(2 * 48L, journal.size(), "size after overwriting the torn record");
+            Tests.checkEqual(500, journal.withdrawnToday(7), "withdrawn after overwriting the torn record");
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    // up to MAX_NOTES of a bill fit a record, more are refused
+    // before anything is written
+    static void testNoteCountsOfARecord() throws Exception {
+        Path file = Tests.newFile("journal.bin");
+        
+        try (TransactionJournal journal = new TransactionJournal(file, Clock.systemUTC(), 64, 10)) {
+            journal.append(1, 7, 10 * TransactionJournal.MAX_NOTES, new int[] { 0, TransactionJournal.MAX_NOTES });
+            
+            for (int[] notes : new int[][] { { 0, TransactionJournal.MAX_NOTES + 1 }, { -1, 0 } }) {
+                try {
+                    journal.append(1, 7, 10, notes);
+                    Tests.check(false, "notes refused");
+                }
+                catch (IllegalArgumentException e) {
+                    Tests.checkEqual(48L, journal.size(), "size after a refused record");
+                }
+            }
+        }
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Snapshot of the ATM and the cards, withdrawals through the journal
+     * (including a declined one and one of 40000 notes), then the journal
+     * replayed on top of the snapshot: it has to come out the same as the
+     * ATM and the cards after the withdrawals
+     */
+    static void testReplayMatchesTheATMAndCards() throws Exception {
+        Path         file     = Tests.newFile("journal.bin");
+        Path         snapshot = Tests.newFile("atm.snapshot");
+        ATM          atm      = new ATM(Map.of(200, 100, 100, 100, 50, 100, 10, 50000));
+        Card         rich     = new Card(1000000, 1000000, 1000000, "1234");
+        Card         poor     = new Card(724.65, 500, 1000, "4321");
+        Card         blocked  = new Card(100, 100, 100, "1111");
+        CardRegistry cards    = CardRegistry.of(rich, poor, blocked);
+        int[]        notes    = atm.newNotesArray();
+        
+        StateSnapshot.write(snapshot, atm, cards);
+        
+        try (TransactionJournal journal = new TransactionJournal(file)) {
+            atm.setJournal(journal);
+            
+            Tests.checkEqual(Outcome.OK, atm.tryWithdraw(poor, 350, notes), "350 from 724.65");
+            Tests.checkEqual(Outcome.NOT_ENOUGH_FUNDS, atm.tryWithdraw(poor, 400, notes), "400 from 374.65");
+            Tests.checkEqual(Outcome.OK, atm.tryWithdraw(poor, 250, notes), "250 from 374.65");
+            
+            // the rest of the 200s, 100s and 50s and some 10s, then 40000 10s
+            Tests.checkEqual(Outcome.OK, atm.tryWithdraw(rich, 35000, notes), "35000");
+            Tests.checkEqual(Outcome.OK, atm.tryWithdraw(rich, 400000, notes), "400000");
+            Tests.checkEqual(40000, notes[3], "10s in one record");
+            
+            journal.write(TransactionJournal.CARD_BLOCKED, atm.getNumber(), blocked.getNumber(), 0, null, 0);
+            blocked.markBlocked();
+        }
+        
+        StateSnapshot        start  = StateSnapshot.read(snapshot);
+        JournalReplay.Result result = new JournalReplay(start.getCards(), start.getATM()).replay(file);
+        
+        Tests.check(result.isConsistent(), "consistent: " + result.getViolations());
+        Tests.checkEqual(Map.of(200, 0, 100, 0, 50, 0, 10, 9940), result.getBanknotes(atm.getNumber()), "replayed notes");
+        Tests.checkEqual(12465L, result.getBalanceInMinorUnits(poor.getNumber()), "replayed balance");
+        Tests.check(result.isCardBlocked(blocked.getNumber()), "replayed blocked card");
+        
+        List<String> differences = result.compareWith(cards, atm);
+        Tests.check(differences.isEmpty(), "no differences: " + differences);
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Snapshots taken every now and then while the journal keeps growing
+     * (as StartingPoint does): a replay from any of them only applies the
+     * records written after it, and comes out the same as the ATM and cards
+     */
+    static void testReplayFromASnapshotInTheMiddle() throws Exception {
+        Path         file   = Tests.newFile("journal.bin");
+        Path         middle = Tests.newFile("atm.snapshot");
+        ATM          atm    = new ATM(Map.of(200, 100, 100, 100, 50, 100));
+        Card         first  = new Card(5000, 1000, 5000, "1234");
+        Card         second = new Card(800, 1000, 5000, "4321");
+        CardRegistry cards  = CardRegistry.of(first, second);
+        int[]        notes  = atm.newNotesArray();
+        
+        try (TransactionJournal journal = new TransactionJournal(file)) {
+            atm.setJournal(journal);
+            
+            Tests.checkEqual(Outcome.OK, atm.tryWithdraw(first, 550, notes), "550 before the snapshot");
+            Tests.checkEqual(Outcome.OK, atm.tryWithdraw(second, 300, notes), "300 before the snapshot");
+            
+            StateSnapshot.write(middle, atm, cards);
+            
+            Tests.checkEqual(Outcome.OK, atm.tryWithdraw(first, 1000, notes), "1000 after the snapshot");
+            Tests.checkEqual(Outcome.NOT_ENOUGH_FUNDS, atm.tryWithdraw(second, 600, notes), "600 of 500 after the snapshot");
+            Tests.checkEqual(Outcome.OK, atm.tryWithdraw(second, 250, notes), "250 after the snapshot");
+        }
+        
+        StateSnapshot start = StateSnapshot.read(middle);
+        
+        Tests.checkEqual(2 * 48L, start.getJournalPosition(), "journal position of the snapshot");
+        
+        JournalReplay.Result result = new JournalReplay(start.getCards(), start.getATM()).replay(file, start.getJournalPosition());
+        
+        Tests.check(result.isConsistent(), "consistent: " + result.getViolations());
+        Tests.checkEqual(1250L, result.getDebited(), "debited after the snapshot");
+        Tests.checkEqual(1250L, result.getDispensed(), "dispensed after the snapshot");
+        
+        List<String> differences = result.compareWith(cards, atm);
+        Tests.check(differences.isEmpty(), "no differences: " + differences);
+        
+        // from the start of the journal, the first two are applied twice
+        differences = new JournalReplay(start.getCards(), start.getATM()).replay(file).compareWith(cards, atm);
+        Tests.check(!differences.isEmpty(), "differences when replayed from the start of the journal");
+    }
+    
+    ///////////////////////////////////////////////////////
+    /*
+     * Batches of amounts paid out without a card (ATM.withdrawBatch)
+     * between withdrawals: the replay takes their notes out of the ATM,
+     * but doesn't count them against the debits of the cards
+     */
+    static void testReplayWithDispenseBatches() throws Exception {
+        Path         file     = Tests.newFile("journal.bin");
+        Path         snapshot = Tests.newFile("atm.snapshot");
+        ATM          atm      = new ATM(Map.of(200, 10, 100, 10, 50, 10));
+        Card         card     = new Card(5000, 1000, 5000, "1234");
+        CardRegistry cards    = CardRegistry.of(card);
+        int[]        notes    = atm.newNotesArray();
+        
+        try (TransactionJournal journal = new TransactionJournal(file)) {
+            atm.setJournal(journal);
+            StateSnapshot.write(snapshot, atm, cards);
+            
+            Tests.checkEqual(Outcome.OK, atm.tryWithdraw(card, 450, notes), "450 before the batch");
+            
+            // 10000 is more than the ATM has left, 25 is not a valid amount
+            DispenseBatch batch = atm.withdrawBatch(new int[] { 650, 10000, 25, 300 });
+            
+            Tests.checkEqual(950L, batch.getTotalAmount(), "paid out by the batch");
+            Tests.checkEqual(Outcome.OK, atm.tryWithdraw(card, 200, notes), "200 after the batch");
+            Tests.checkEqual(650, journal.withdrawnToday(card.getNumber()), "withdrawn today");
+        }
+        
+        StateSnapshot        start  = StateSnapshot.read(snapshot);
+        JournalReplay.Result result = new JournalReplay(start.getCards(), start.getATM()).replay(file, start.getJournalPosition());
+        
+        Tests.check(result.isConsistent(), "consistent: " + result.getViolations());
+        Tests.checkEqual(2L, result.getRecords(TransactionJournal.CASH_DISPENSED), "records of the batch");
+        Tests.checkEqual(950L, result.getDispensedInBatches(), "dispensed in batches");
+        Tests.checkEqual(650L, result.getDispensed(), "dispensed for the card");
+        Tests.checkEqual(650L, result.getDebited(), "debited");
+        
+        List<String> differences = result.compareWith(cards, atm);
+        Tests.check(differences.isEmpty(), "no differences: " + differences);
+    }
+}